@@ -20,7 +20,6 @@ package weka.classifiers.functions;
 
 import java.io.*;
 import java.lang.reflect.Method;
-import java.nio.file.Paths;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
@@ -28,8 +27,6 @@ import java.util.stream.Collectors;
 
 import lombok.SneakyThrows;
 import lombok.extern.log4j.Log4j2;
-import org.apache.commons.io.output.CountingOutputStream;
-import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang3.time.StopWatch;
 import org.deeplearning4j.datasets.iterator.AsyncDataSetIterator;
 import org.deeplearning4j.exception.DL4JException;
@@ -43,12 +40,10 @@ import org.deeplearning4j.nn.conf.layers.BaseOutputLayer;
 import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.nn.transferlearning.TransferLearningHelper;
 import org.deeplearning4j.parallelism.ParallelWrapper;
-import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.CachingDataSetIterator;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import org.nd4j.linalg.dataset.api.iterator.cache.InFileDataSetCache;
 import org.nd4j.linalg.dataset.api.iterator.cache.InMemoryDataSetCache;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.factory.Nd4jBackend;
@@ -58,13 +53,24 @@ import weka.dl4j.Utils;
 import weka.classifiers.rules.ZeroR;
 import weka.core.*;
 import weka.core.Capabilities.Capability;
+import weka.core.converters.IncrementalConverter;
+import weka.core.converters.Loader;
 import weka.core.progress.ProgressManager;
 import weka.dl4j.*;
 import weka.dl4j.earlystopping.EarlyStopping;
 import weka.dl4j.enums.CacheMode;
 import weka.dl4j.enums.ConvolutionMode;
+import weka.dl4j.enums.ParallelTrainingMode;
 import weka.dl4j.enums.PoolingType;
 import weka.dl4j.inference.CustomModelSetup;
+import weka.dl4j.inference.PredictionWorkspace;
+import weka.dl4j.iterators.dataset.EpochAware;
+import weka.dl4j.iterators.dataset.LoaderDataSetIterator;
+import weka.dl4j.iterators.dataset.ParallelDataSetIterator;
+import weka.dl4j.iterators.dataset.cache.ContentHash;
+import weka.dl4j.iterators.dataset.cache.DataSetFile;
+import weka.dl4j.iterators.dataset.cache.PersistentDataSetCache;
+import weka.dl4j.iterators.dataset.cache.TieredDataSetCache;
 import weka.dl4j.iterators.instance.*;
 import weka.dl4j.iterators.instance.api.ConvolutionalIterator;
 import weka.dl4j.iterators.instance.sequence.text.cnn.CnnTextEmbeddingInstanceIterator;
@@ -73,9 +79,16 @@ import weka.dl4j.layers.FeedForwardLayer;
 import weka.dl4j.layers.GlobalPoolingLayer;
 import weka.dl4j.layers.Layer;
 import weka.dl4j.layers.OutputLayer;
+import weka.dl4j.layers.SparseDenseLayer;
 import weka.dl4j.layers.SubsamplingLayer;
+import weka.dl4j.preprocessing.PreprocessingPlan;
 import weka.dl4j.listener.EpochListener;
 import weka.dl4j.listener.TrainingListener;
+import weka.dl4j.serialization.CheckpointManager;
+import weka.dl4j.serialization.FramedModelSerializer;
+import weka.dl4j.serialization.LazyComputationGraph;
+import weka.dl4j.serialization.MappedModelFile;
+import weka.dl4j.serialization.TrainingCheckpoint;
 import weka.dl4j.zoo.*;
 import weka.filters.Filter;
 import weka.filters.unsupervised.attribute.NominalToBinary;
@@ -122,6 +135,15 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    * The ID used for serializing this class.
    */
   private static final long serialVersionUID = -6363254116597574265L;
+  /**
+   * Value of {@link #modelSize} that marks a network written by {@link FramedModelSerializer}.
+   */
+  protected static final long FRAMED_MODEL_SIZE = -1;
+  /**
+   * Value of {@link #modelSize} that marks a classifier written without its network, which is
+   * stored separately (see {@link MappedModelFile}).
+   */
+  protected static final long EXTERNAL_MODEL_SIZE = -2;
   /**
    * True once multi-gpu is set on CudaEnvironment.Configuration
    */
@@ -138,6 +160,15 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    * Filter used to convert nominal attributes to binary numeric attributes.
    */
   protected NominalToBinary nominalToBinaryFilter;
+  /**
+   * The filters above compiled into a single pass over the raw instances (null if the filters are
+   * applied instead).
+   */
+  protected PreprocessingPlan preprocessingPlan;
+  /**
+   * Per-thread buffers for single-instance predictions (created on first use).
+   */
+  protected transient volatile ThreadLocal<PredictionWorkspace> predictionWorkspaces;
   /**
    * ZeroR classifier, just in case we don't actually have any data to train a network.
    */
@@ -146,6 +177,14 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    * The actual neural network model.
    */
   protected transient ComputationGraph model;
+  /**
+   * Network that is built on first use from a memory-mapped model file (if loaded that way).
+   */
+  protected transient LazyComputationGraph lazyModel;
+  /**
+   * True while the classifier is being serialized without its network.
+   */
+  protected transient boolean externalizeNetwork;
   /**
    * Used to leverage multiple GPUs (if available).
    */
@@ -159,7 +198,8 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    */
   protected boolean filterMode = false;
   /**
-   * The size of the serialized network model in bytes.
+   * The size of the serialized network model in bytes, or {@link #FRAMED_MODEL_SIZE} if the network
+   * was written in the framed format.
    */
   protected long modelSize;
   /**
@@ -245,9 +285,39 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
   protected boolean resume;
   /**
    * Whether to leave the filesystem data cache intact (if using FILESYSTEM caching) when starting
-   * or resuming learning.
+   * or resuming learning. Without effect, the cache is content-addressed and never cleared.
    */
   protected boolean doNotClearFilesystemCache;
+  /**
+   * Root directory of the filesystem cache (default: "weka-dl4j-dataset-cache" in
+   * "java.io.tmpdir").
+   */
+  protected File cacheDirectory = new File(weka.dl4j.Utils.defaultFileLocation());
+  /**
+   * Maximum size of the filesystem cache in MB.
+   */
+  protected long cacheSizeLimit = 10240;
+  /**
+   * Whether to compress the batches in the filesystem cache.
+   */
+  protected boolean compressCache;
+  /**
+   * Maximum size of the batches kept in memory by the TIERED cache in MB.
+   */
+  protected long memoryCacheBudget = 1024;
+  /**
+   * The TIERED caches of the current training session.
+   */
+  protected transient List<TieredDataSetCache> tieredCaches;
+  /**
+   * Number of threads building the mini-batches (if < 2, batches are built by the iterator).
+   */
+  protected int numProducerThreads = 0;
+  /**
+   * Whether batches built by several threads are delivered as they are finished, instead of in
+   * the order of their rows.
+   */
+  protected boolean unorderedBatches;
   /**
    * Only useful in the GUI - if set to true, the GUI will load the layer specification of the currently
    * selected zoo model. This is off by default as it slows the GUI down considerably.
@@ -260,13 +330,23 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    */
   protected int numGPUs = 1;
   /**
-   * Size of the prefetch buffer when leveraging multiple GPUs. Ignored if there is only one GPU, or
-   * there is no GPU backend available.
+   * Number of model replicas to train in parallel on the CPU backend. If greater than 1, then
+   * data-parallel training is used to leverage multiple cores. Ignored if a GPU backend is
+   * available.
+   */
+  protected int numCPUWorkers = 1;
+  /**
+   * How the model replicas are synchronized during data-parallel training.
+   */
+  protected ParallelTrainingMode parallelTrainingMode = ParallelTrainingMode.AVERAGING;
+  /**
+   * Size of the prefetch buffer when training data-parallel on multiple GPUs or CPU workers.
+   * Ignored if only a single worker is used.
    */
   protected int prefetchBufferSize = 24;
   /**
-   * How often (in iterations, not epochs) to average model parameters when leveraging multiple
-   * GPUs. Ignored if there is only one GPU, or if there is no GPU backend available.
+   * How often (in iterations, not epochs) to average model parameters when training data-parallel
+   * on multiple GPUs or CPU workers. Ignored if only a single worker is used.
    */
   protected int averagingFrequency = 10;
   /**
@@ -277,6 +357,51 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    * Displays progress of the current process (feature extraction, training, etc.)
    */
   protected transient ProgressManager progressManager;
+  /**
+   * Directory to write training checkpoints to.
+   */
+  protected File checkpointDirectory = new File(Utils.defaultFileLocation());
+  /**
+   * Write a checkpoint every N epochs (0 = disabled).
+   */
+  protected int checkpointEpochs = 0;
+  /**
+   * Write a checkpoint at the end of the first epoch after N minutes since the last one
+   * (0 = disabled).
+   */
+  protected int checkpointMinutes = 0;
+  /**
+   * Number of checkpoints to keep (0 = keep all).
+   */
+  protected int checkpointRetention = 3;
+  /**
+   * Writes the checkpoints of the current training session in the background.
+   */
+  protected transient CheckpointManager checkpointManager;
+  /**
+   * Time the last checkpoint was taken (or checkpointing started).
+   */
+  protected transient long lastCheckpointTime;
+  /**
+   * The validation instances used for early stopping (kept for checkpointing).
+   */
+  protected transient Instances validationData;
+  /**
+   * Number of instances to fit the preprocessing on when training from a loader.
+   */
+  protected int loaderSampleSize = 10000;
+  /**
+   * Number of instances read and preprocessed at once when training from a loader.
+   */
+  protected int loaderChunkSize = 10000;
+  /**
+   * Loader to stream the training data from (null if training on in-memory instances).
+   */
+  protected transient Loader trainLoader;
+  /**
+   * Number of instances with a class value in the training loader.
+   */
+  protected transient int numLoaderInstances;
 
   /**
    * Worker for parsing layer names.
@@ -436,12 +561,8 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    * @param oos the object output stream
    */
   private void writeObject(ObjectOutputStream oos) throws IOException {
-    // figure out size of the written network
-    CountingOutputStream cos = new CountingOutputStream(new NullOutputStream());
-    if (isInitializationFinished) {
-      ModelSerializer.writeModel(model, cos, false);
-    }
-    modelSize = cos.getByteCount();
+    // The network is written in a single pass as a framed model, its size is not needed upfront
+    modelSize = externalizeNetwork ? EXTERNAL_MODEL_SIZE : FRAMED_MODEL_SIZE;
 
     // default serialization
     oos.defaultWriteObject();
@@ -456,8 +577,24 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     oos.writeObject(layerConfigs);
 
     // actually write the network
-    if (isInitializationFinished) {
-      ModelSerializer.writeModel(model, oos, false);
+    if (isInitializationFinished && !externalizeNetwork) {
+      FramedModelSerializer.writeModel(getModel(), oos, false);
+    }
+  }
+
+  /**
+   * Serialize this classifier without its network. Used to store the network separately, e.g. in a
+   * {@link MappedModelFile}.
+   *
+   * @param oos the object output stream
+   * @throws IOException Could not write the classifier
+   */
+  public void writeWithoutNetwork(ObjectOutputStream oos) throws IOException {
+    externalizeNetwork = true;
+    try {
+      oos.writeObject(this);
+    } finally {
+      externalizeNetwork = false;
     }
   }
 
@@ -490,27 +627,15 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
 
       // restore the network model
       if (isInitializationFinished) {
-        File tmpFile = File.createTempFile("restore", "multiLayer");
-        tmpFile.deleteOnExit();
-        BufferedOutputStream bos =
-            new BufferedOutputStream(new FileOutputStream(tmpFile));
-        long remaining = modelSize;
-        while (remaining > 0) {
-          int bsize = 10024;
-          if (remaining < 10024) {
-            bsize = (int) remaining;
-          }
-          byte[] buffer = new byte[bsize];
-          int len = ois.read(buffer);
-          if (len == -1) {
-            throw new IOException(
-                "Reached end of network model prematurely during deserialization.");
-          }
-          bos.write(buffer, 0, len);
-          remaining -= len;
+        if (modelSize == FRAMED_MODEL_SIZE) {
+          model = FramedModelSerializer.readModel(ois, false);
+        } else if (modelSize == EXTERNAL_MODEL_SIZE) {
+          // The network is attached by the caller via setLazyModel()
+          model = null;
+        } else {
+          // Models saved by earlier versions contain a ModelSerializer archive of modelSize bytes
+          model = FramedModelSerializer.readLegacyModel(ois, modelSize);
         }
-        bos.flush();
-        model = ModelSerializer.restoreComputationGraph(tmpFile, false);
       }
     } catch (Exception e) {
       log.error("Failed to restore serialized model. Error: " + e.getMessage());
@@ -593,6 +718,21 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
             "CnnText iterator requires ConvolutionLayer.");
       }
     }
+
+    // Sparse mini-batches can only be consumed by a SparseDenseLayer as first layer
+    final boolean isSparseIterator = getInstanceIterator() instanceof SparseInstanceIterator;
+    for (int i = 0; i < layers.length; i++) {
+      final boolean isSparseLayer = layers[i] instanceof SparseDenseLayer;
+      if (i == 0 && isSparseIterator && !isSparseLayer) {
+        throw new InvalidNetworkArchitectureException(
+            "SparseInstanceIterator requires a SparseDenseLayer as first layer.");
+      }
+      if (isSparseLayer && (i > 0 || !isSparseIterator)) {
+        throw new InvalidNetworkArchitectureException(
+            "A SparseDenseLayer can only be used as first layer with the "
+                + "SparseInstanceIterator.");
+      }
+    }
   }
 
   /**
@@ -762,10 +902,8 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
   }
 
   @OptionMetadata(displayName = "Preserve filesystem cache",
-      description = "If true, the filesystem cache will not be cleared when "
-          + "starting or resuming training of a model. This can save time on data "
-          + "preparation for a given problem, but will cause errors if a dataset "
-          + "different to that in the cache is used",
+      description = "Deprecated and without effect: the filesystem cache is keyed by the "
+          + "content of the data and is reused across runs whenever it matches.",
       commandLineParamName = "preserve-file-cache",
       commandLineParamSynopsis = "-preserve-file-cache",
       commandLineParamIsFlag = true, displayOrder = 32)
@@ -773,6 +911,99 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     doNotClearFilesystemCache = clear;
   }
 
+  public File getCacheDirectory() {
+    return cacheDirectory;
+  }
+
+  @OptionMetadata(
+      displayName = "Filesystem cache directory",
+      description = "Root directory of the FILESYSTEM cache, shared by all runs and processes "
+          + "(default = weka-dl4j-dataset-cache in java.io.tmpdir). Also holds the spill files of "
+          + "the TIERED cache (default = java.io.tmpdir).",
+      commandLineParamName = "cacheDir",
+      commandLineParamSynopsis = "-cacheDir <string>",
+      displayOrder = 44)
+  public void setCacheDirectory(File cacheDirectory) {
+    this.cacheDirectory = cacheDirectory;
+  }
+
+  public long getCacheSizeLimit() {
+    return cacheSizeLimit;
+  }
+
+  @OptionMetadata(
+      displayName = "Filesystem cache size limit (MB)",
+      description = "Least recently used entries of the FILESYSTEM cache are deleted beyond this "
+          + "size (default = 10240).",
+      commandLineParamName = "cacheSizeLimit",
+      commandLineParamSynopsis = "-cacheSizeLimit <integer>",
+      displayOrder = 45)
+  public void setCacheSizeLimit(long cacheSizeLimit) {
+    this.cacheSizeLimit = cacheSizeLimit;
+  }
+
+  public boolean getCompressCache() {
+    return compressCache;
+  }
+
+  @OptionMetadata(
+      displayName = "Compress filesystem cache",
+      description = "Compress the batches in the FILESYSTEM cache. Saves disk space, but "
+          + "compressed batches cannot be memory-mapped.",
+      commandLineParamName = "compressCache",
+      commandLineParamSynopsis = "-compressCache",
+      commandLineParamIsFlag = true,
+      displayOrder = 46)
+  public void setCompressCache(boolean compressCache) {
+    this.compressCache = compressCache;
+  }
+
+  public long getMemoryCacheBudget() {
+    return memoryCacheBudget;
+  }
+
+  @OptionMetadata(
+      displayName = "Memory cache budget (MB)",
+      description = "Batches beyond this size are spilled to a memory-mapped file in the cache "
+          + "directory when using the TIERED cache mode (default = 1024).",
+      commandLineParamName = "memoryCacheBudget",
+      commandLineParamSynopsis = "-memoryCacheBudget <integer>",
+      displayOrder = 47)
+  public void setMemoryCacheBudget(long memoryCacheBudget) {
+    this.memoryCacheBudget = memoryCacheBudget;
+  }
+
+  public int getNumProducerThreads() {
+    return numProducerThreads;
+  }
+
+  @OptionMetadata(
+      displayName = "Number of batch producer threads",
+      description = "The number of threads building disjoint mini-batches from the instance "
+          + "iterator in parallel (default: 0, batches are built by the iterator itself).",
+      commandLineParamName = "numProducerThreads",
+      commandLineParamSynopsis = "-numProducerThreads <int>",
+      displayOrder = 48)
+  public void setNumProducerThreads(int numProducerThreads) {
+    this.numProducerThreads = numProducerThreads;
+  }
+
+  public boolean getUnorderedBatches() {
+    return unorderedBatches;
+  }
+
+  @OptionMetadata(
+      displayName = "Deliver batches unordered",
+      description = "Whether batches built by several producer threads are delivered as they are "
+          + "finished, instead of in the order of their rows (default = false). The batch "
+          + "contents stay the same, but training is no longer deterministic.",
+      commandLineParamName = "unorderedBatches",
+      commandLineParamSynopsis = "-unorderedBatches",
+      displayOrder = 49)
+  public void setUnorderedBatches(boolean unorderedBatches) {
+    this.unorderedBatches = unorderedBatches;
+  }
+
   public int getNumGPUs() {
     return numGPUs;
   }
@@ -791,10 +1022,129 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     return prefetchBufferSize;
   }
 
-  @OptionMetadata(displayName = "Size of prefetch buffer for multiple GPUs",
+  public int getNumCPUWorkers() {
+    return numCPUWorkers;
+  }
+
+  @OptionMetadata(
+      displayName = "Number of CPU workers",
+      description = "Number of model replicas to train data-parallel on the CPU "
+          + "(default = 1, ignored if a GPU backend is available)",
+      commandLineParamName = "numCPUWorkers",
+      commandLineParamSynopsis = "-numCPUWorkers <integer>",
+      displayOrder = 36)
+  public void setNumCPUWorkers(int numCPUWorkers) {
+    this.numCPUWorkers = numCPUWorkers;
+  }
+
+  public ParallelTrainingMode getParallelTrainingMode() {
+    return parallelTrainingMode;
+  }
+
+  @OptionMetadata(
+      displayName = "Parallel training mode",
+      description = "How model replicas are synchronized when training on multiple "
+          + "GPUs or CPU workers: AVERAGING (parameter averaging) or SHARED_GRADIENTS "
+          + "(gradient sharing) (default = AVERAGING).",
+      commandLineParamName = "parallelMode",
+      commandLineParamSynopsis = "-parallelMode <string>",
+      displayOrder = 37)
+  public void setParallelTrainingMode(ParallelTrainingMode parallelTrainingMode) {
+    this.parallelTrainingMode = parallelTrainingMode;
+  }
+
+  public int getLoaderSampleSize() {
+    return loaderSampleSize;
+  }
+
+  @OptionMetadata(
+      displayName = "Loader sample size",
+      description = "Number of randomly sampled instances the preprocessing is fitted on when "
+          + "training from an incremental loader (default = 10000).",
+      commandLineParamName = "loaderSampleSize",
+      commandLineParamSynopsis = "-loaderSampleSize <integer>",
+      displayOrder = 42)
+  public void setLoaderSampleSize(int loaderSampleSize) {
+    this.loaderSampleSize = loaderSampleSize;
+  }
+
+  public int getLoaderChunkSize() {
+    return loaderChunkSize;
+  }
+
+  @OptionMetadata(
+      displayName = "Loader chunk size",
+      description = "Number of instances read, shuffled and preprocessed at once when training "
+          + "from an incremental loader (default = 10000).",
+      commandLineParamName = "loaderChunkSize",
+      commandLineParamSynopsis = "-loaderChunkSize <integer>",
+      displayOrder = 43)
+  public void setLoaderChunkSize(int loaderChunkSize) {
+    this.loaderChunkSize = loaderChunkSize;
+  }
+
+  public File getCheckpointDirectory() {
+    return checkpointDirectory;
+  }
+
+  @OptionMetadata(
+      displayName = "Checkpoint directory",
+      description = "Directory to write training checkpoints to. Training can be continued "
+          + "from the latest checkpoint with Dl4jMlpClassifier.resumeFromCheckpoint().",
+      commandLineParamName = "checkpointDir",
+      commandLineParamSynopsis = "-checkpointDir <string>",
+      displayOrder = 38)
+  public void setCheckpointDirectory(File checkpointDirectory) {
+    this.checkpointDirectory = checkpointDirectory;
+  }
+
+  public int getCheckpointEpochs() {
+    return checkpointEpochs;
+  }
+
+  @OptionMetadata(
+      displayName = "Checkpoint every N epochs",
+      description = "Write a checkpoint every N epochs (default = 0, disabled).",
+      commandLineParamName = "checkpointEpochs",
+      commandLineParamSynopsis = "-checkpointEpochs <integer>",
+      displayOrder = 39)
+  public void setCheckpointEpochs(int checkpointEpochs) {
+    this.checkpointEpochs = checkpointEpochs;
+  }
+
+  public int getCheckpointMinutes() {
+    return checkpointMinutes;
+  }
+
+  @OptionMetadata(
+      displayName = "Checkpoint every N minutes",
+      description = "Write a checkpoint at the end of the first epoch N minutes after the last "
+          + "checkpoint (default = 0, disabled).",
+      commandLineParamName = "checkpointMinutes",
+      commandLineParamSynopsis = "-checkpointMinutes <integer>",
+      displayOrder = 40)
+  public void setCheckpointMinutes(int checkpointMinutes) {
+    this.checkpointMinutes = checkpointMinutes;
+  }
+
+  public int getCheckpointRetention() {
+    return checkpointRetention;
+  }
+
+  @OptionMetadata(
+      displayName = "Number of checkpoints to keep",
+      description = "Number of most recent checkpoints to keep (default = 3, 0 = keep all).",
+      commandLineParamName = "checkpointRetention",
+      commandLineParamSynopsis = "-checkpointRetention <integer>",
+      displayOrder = 41)
+  public void setCheckpointRetention(int checkpointRetention) {
+    this.checkpointRetention = checkpointRetention;
+  }
+
+  @OptionMetadata(displayName = "Size of prefetch buffer for parallel training",
       description = "Size of the prefetch buffer that will be used for background "
-          + "data prefetching (0 = disable prefetch). Ignored if there is only one "
-          + "GPU, or no GPU backend available.",
+          + "data prefetching (0 = disable prefetch). Raised to at least the number "
+          + "of workers. Ignored if only a single GPU or CPU worker is used.",
       commandLineParamName = "prefetchSize",
       commandLineParamSynopsis = "-prefetchSize <integer>",
       displayOrder = 34)
@@ -809,8 +1159,8 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
   @OptionMetadata(displayName = "Model parameter averaging frequency",
       description = "How often (in iterations, not epochs) to average model "
           + "parameters when leveraging "
-          + "multiple GPUs (ignored if there is only one GPU, or no GPU backend "
-          + "available). Set no greater than num instances/num GPUs or no averaging "
+          + "multiple GPUs or CPU workers (ignored if only a single worker is used). "
+          + "Set no greater than num instances/num workers or no averaging "
           + "will occur!",
       commandLineParamName = "averagingFrequency",
       commandLineParamSynopsis = "-averagingFrequency <integer>",
@@ -848,7 +1198,15 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
       log.info("Classifier: \n{}", toString());
     }
 
-    progressManager = new ProgressManager(getNumEpochs(), "Training Dl4jMlpClassifier...");
+    trainEpochs();
+  }
+
+  /**
+   * Perform the remaining epochs of the current training session and clean up afterwards.
+   */
+  protected void trainEpochs() {
+    progressManager = new ProgressManager(getNumEpochs() - numEpochsPerformedThisSession,
+        "Training Dl4jMlpClassifier...");
     progressManager.start();
     try {
       boolean isContinue = true;
@@ -866,6 +1224,80 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     }
   }
 
+  /**
+   * Continue an interrupted training session from the latest checkpoint in the given directory and
+   * perform its remaining epochs. The parameters, updater state, epoch and early stopping counters
+   * and the random number generator state are restored, so that training continues exactly as if
+   * it had not been interrupted (when training with a single worker).
+   *
+   * @param checkpointDirectory Checkpoint directory of the interrupted session
+   * @return The trained classifier
+   * @throws Exception Could not restore the checkpoint
+   */
+  public static Dl4jMlpClassifier resumeFromCheckpoint(File checkpointDirectory)
+      throws Exception {
+    TrainingCheckpoint checkpoint = CheckpointManager.readLatest(checkpointDirectory);
+    Dl4jMlpClassifier clf;
+    Instances validationData;
+    try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(
+        new FileInputStream(CheckpointManager.sessionFile(checkpointDirectory)),
+        FramedModelSerializer.BUFFER_SIZE))) {
+      clf = (Dl4jMlpClassifier) ois.readObject();
+      validationData = (Instances) ois.readObject();
+    }
+    clf.setCheckpointDirectory(checkpointDirectory);
+    clf.restoreCheckpoint(checkpoint, validationData);
+    clf.trainEpochs();
+    return clf;
+  }
+
+  /**
+   * Restore the training state of a checkpoint into this (deserialized) classifier and set it up to
+   * continue training.
+   *
+   * @param checkpoint Checkpoint to restore
+   * @param validationData Validation data for early stopping, may be null
+   * @throws Exception Could not set up the training
+   */
+  protected void restoreCheckpoint(TrainingCheckpoint checkpoint, Instances validationData)
+      throws Exception {
+    logConfig.apply();
+    ClassLoader origLoader = Thread.currentThread().getContextClassLoader();
+    try {
+      Thread.currentThread().setContextClassLoader(
+          this.getClass().getClassLoader());
+
+      model = checkpoint.restoreModel();
+      numEpochsPerformed = checkpoint.getNumEpochsPerformed();
+      numEpochsPerformedThisSession = checkpoint.getNumEpochsPerformedThisSession();
+      maxEpochs = checkpoint.getMaxEpochs();
+      checkpoint.restoreEarlyStopping(earlyStopping);
+
+      instanceIterator.initialize();
+      // Shuffling iterators continue with the row order of the next epoch
+      trainIterator = getDataSetIterator(trainData, cacheMode, "", !unorderedBatches,
+          numEpochsPerformed);
+      this.validationData = validationData;
+      if (validationData != null) {
+        earlyStopping.init(getDataSetIterator(validationData, cacheMode, "val"));
+      }
+      model.setListeners(getListener());
+      initParallelWrapperIfApplicable();
+
+      // Keep writing into the directory of the interrupted session
+      closeCheckpointing();
+      if (isCheckpointingEnabled()) {
+        checkpointManager = new CheckpointManager(checkpointDirectory, checkpointRetention);
+        lastCheckpointTime = System.currentTimeMillis();
+      }
+    } finally {
+      Thread.currentThread().setContextClassLoader(origLoader);
+    }
+
+    // Nothing may consume random numbers between this and the next epoch
+    checkpoint.restoreRandom();
+  }
+
   /**
    * Checks if the layer is a valid output layer
    * @param filterMode true if the model is being used for a filter
@@ -906,6 +1338,38 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
       return;
     }
 
+    validateSetup(data);
+
+    // Apply preprocessing
+    data = preProcessInput(data);
+    data = initEarlyStopping(data);
+    saveLabelSortIndex(data);
+
+    if (data != null) {
+      trainData = data;
+    } else {
+      return;
+    }
+
+    ClassLoader origLoader = Thread.currentThread().getContextClassLoader();
+    try {
+      Thread.currentThread().setContextClassLoader(
+          this.getClass().getClassLoader());
+
+      finishClassifierInitialization();
+
+    } finally {
+      Thread.currentThread().setContextClassLoader(origLoader);
+    }
+  }
+
+  /**
+   * Check that the classifier can handle the data and that the network structure is valid.
+   *
+   * @param data Training data (or a sample of it)
+   * @throws Exception The data can not be handled or the network structure is invalid
+   */
+  protected void validateSetup(Instances data) throws Exception {
     try {
       // Can classifier handle the data?
       getCapabilities().testWithFail(data);
@@ -930,17 +1394,75 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
 
     // Check if layers are valid
     validateLayers(layers);
+  }
 
-    // Apply preprocessing
-    data = preProcessInput(data);
-    data = initEarlyStopping(data);
-    saveLabelSortIndex(data);
+  /**
+   * Build the classifier from an incremental loader (e.g. {@link weka.core.converters.ArffLoader}
+   * or {@link weka.core.converters.CSVLoader}) without loading the whole dataset into memory.
+   * <p>
+   * The preprocessing filters (and the class normalization) are fitted on a random sample of the
+   * data. During training, the instances are read in chunks on a background thread, shuffled within
+   * each chunk, filtered and converted into mini-batches, so memory use is bounded by the sample
+   * and chunk sizes. The loader's source must be a file, as it is reset every epoch. If the class
+   * index of the loaded data is not set, the last attribute is used as class.
+   *
+   * @param loader Incremental loader
+   * @throws Exception The classifier could not be built
+   */
+  public void buildClassifierFromLoader(Loader loader) throws Exception {
+    initializeClassifierFromLoader(loader);
 
-    if (data != null) {
-      trainData = data;
-    } else {
+    if (getDebug()) {
+      log.info("Classifier: \n{}", toString());
+    }
+
+    trainEpochs();
+  }
+
+  /**
+   * Initialize the classifier for training from an incremental loader.
+   *
+   * @param loader Incremental loader
+   * @throws Exception The classifier could not be initialized
+   */
+  protected void initializeClassifierFromLoader(Loader loader) throws Exception {
+    // Set the logging configuration
+    logConfig.apply();
+
+    if (!(loader instanceof IncrementalConverter)) {
+      throw new WekaException("Loader " + loader.getClass().getName()
+          + " can not read the data incrementally.");
+    }
+    if (useEarlyStopping()) {
+      throw new WekaException("Early stopping is not supported when training from a loader.");
+    }
+
+    // Draw a sample to fit the preprocessing on
+    loader.reset();
+    Instances structure = loader.getStructure();
+    if (structure.classIndex() < 0) {
+      structure.setClassIndex(structure.numAttributes() - 1);
+    }
+    Instances sample = sampleFromLoader(loader, structure);
+    log.info("Fitting the preprocessing on a sample of {} out of {} instances",
+        sample.numInstances(), numLoaderInstances);
+
+    // If only class is present, build zeroR
+    if (sample.numAttributes() == 1 && sample.classIndex() == 0) {
+      zeroR = new ZeroR();
+      zeroR.buildClassifier(sample);
+      return;
+    }
+
+    validateSetup(sample);
+
+    Instances data = preProcessInput(sample);
+    if (data == null) {
       return;
     }
+    saveLabelSortIndex(data);
+    trainData = data;
+    trainLoader = loader;
 
     ClassLoader origLoader = Thread.currentThread().getContextClassLoader();
     try {
@@ -954,36 +1476,130 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     }
   }
 
+  /**
+   * Read all instances from the loader, count those with a class value and keep a uniform random
+   * sample (reservoir) of at most {@link #loaderSampleSize} of them.
+   *
+   * @param loader Incremental loader
+   * @param structure Structure of the loaded data with the class index set
+   * @return Sample of instances with a class value
+   * @throws IOException Could not read from the loader
+   */
+  protected Instances sampleFromLoader(Loader loader, Instances structure) throws IOException {
+    final int sampleSize = Math.max(1, loaderSampleSize);
+    final Random rand = new Random(getSeed());
+    Instances sample = new Instances(structure, sampleSize);
+    numLoaderInstances = 0;
+    Instance inst;
+    while ((inst = loader.getNextInstance(structure)) != null) {
+      if (inst.classIsMissing()) {
+        continue;
+      }
+      numLoaderInstances++;
+      if (sample.numInstances() < sampleSize) {
+        sample.add(inst);
+      } else {
+        long j = (long) (rand.nextDouble() * numLoaderInstances);
+        if (j < sampleSize) {
+          sample.set((int) j, inst);
+        }
+      }
+    }
+    return sample;
+  }
+
+  /**
+   * Remove instances with missing class and apply the fitted filters to a chunk of instances read
+   * from the training loader.
+   *
+   * @param chunk Raw instances
+   * @return Preprocessed instances
+   * @throws Exception Filtering failed
+   */
+  protected Instances preProcessChunk(Instances chunk) throws Exception {
+    chunk.deleteWithMissingClass();
+    if (chunk.numInstances() == 0) {
+      return chunk;
+    }
+    return applyFilters(chunk);
+  }
+
+  /**
+   * Create the iterator over the training data: either over the training instances or, when
+   * training from a loader, over the chunks read from it.
+   *
+   * @return DataSetIterator over the training data
+   * @throws Exception Could not create the iterator
+   */
+  protected DataSetIterator createTrainIterator() throws Exception {
+    if (trainLoader == null) {
+      return getDataSetIterator(this.trainData);
+    }
+    // Chunks are read with the class index of the raw data
+    Instances structure = trainLoader.getStructure();
+    final int classIndex =
+        structure.classIndex() < 0 ? structure.numAttributes() - 1 : structure.classIndex();
+    return new LoaderDataSetIterator(trainLoader, classIndex, this::preProcessChunk,
+        instanceIterator, instanceIterator.getTrainBatchSize(), loaderChunkSize,
+        Math.max(2, queueSize), getSeed());
+  }
+
   /**
    * Wrap the model in a ParallelWrapper for data parallel training on multiple GPUs (if
-   * available).
+   * available) or on multiple CPU workers.
    */
   protected void initParallelWrapperIfApplicable() {
 
     gpuBackendAvailable = new IsGPUAvailable().check();
 
-    // only configure if the gpu backend is available and the user has requested
-    // more than one gpus
+    // only configure if the user has requested more than one gpu (gpu backend) or more than one
+    // worker (cpu backend)
     if (gpuBackendAvailable) {
       log.info("GPU backend available");
     }
-    if (gpuBackendAvailable && getNumGPUs() > 1) {
 
+    int numWorkers;
+    if (gpuBackendAvailable && getNumGPUs() > 1) {
       if (getNumGPUs() > Nd4j.getAffinityManager().getNumberOfDevices()) {
         log.warn("Number of requested GPUs {}, is greater than number "
             + "available {}", getNumGPUs(), Nd4j.getAffinityManager().getNumberOfDevices());
       }
-
-      if (prefetchBufferSize > 0 && prefetchBufferSize < getNumGPUs()) {
-        prefetchBufferSize = getNumGPUs();
+      numWorkers = getNumGPUs();
+    } else if (!gpuBackendAvailable && getNumCPUWorkers() > 1) {
+      final int numCores = Runtime.getRuntime().availableProcessors();
+      if (getNumCPUWorkers() > numCores) {
+        log.warn("Number of requested CPU workers {}, is greater than number "
+            + "of available cores {}", getNumCPUWorkers(), numCores);
       }
+      numWorkers = getNumCPUWorkers();
+    } else {
+      shutdownParallelWrapper();
+      return;
+    }
 
-      log.info("Initializing for parallel training on {} workers", getNumGPUs());
-      parallelWrapper = new ParallelWrapper.Builder(model)
-          .prefetchBuffer(getPrefetchBufferSize())
-          .workers(getNumGPUs())
-          .averagingFrequency(getParameterAveragingFrequency())
-          .build();
+    // Each worker needs at least one prefetched batch to avoid starving
+    if (prefetchBufferSize > 0 && prefetchBufferSize < numWorkers) {
+      prefetchBufferSize = numWorkers;
+    }
+
+    shutdownParallelWrapper();
+    log.info("Initializing for parallel training on {} workers ({})", numWorkers,
+        getParallelTrainingMode());
+    parallelWrapper = new ParallelWrapper.Builder(model)
+        .prefetchBuffer(getPrefetchBufferSize())
+        .workers(numWorkers)
+        .trainingMode(getParallelTrainingMode().getBackend())
+        .averagingFrequency(getParameterAveragingFrequency())
+        .build();
+  }
+
+  /**
+   * Stop the worker threads of the current ParallelWrapper (if any).
+   */
+  protected void shutdownParallelWrapper() {
+    if (parallelWrapper != null) {
+      parallelWrapper.shutdown();
+      parallelWrapper = null;
     }
   }
 
@@ -1009,7 +1625,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
 
     // Setup the datasetiterators (needs to be done after the model
     // initialization)
-    trainIterator = getDataSetIterator(this.trainData);
+    trainIterator = createTrainIterator();
 
     // Update epoch counter
     numEpochsPerformedThisSession = 0;
@@ -1023,6 +1639,68 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
 
     // Flag initialization as finished
     isInitializationFinished = true;
+
+    // Start a new checkpointing session (if enabled)
+    initCheckpointing();
+  }
+
+  /**
+   * Check whether checkpoints should be written during training.
+   *
+   * @return True if a checkpoint directory and a checkpoint frequency are set
+   */
+  public boolean isCheckpointingEnabled() {
+    return Utils.notDefaultFileLocation(checkpointDirectory)
+        && (checkpointEpochs > 0 || checkpointMinutes > 0);
+  }
+
+  /**
+   * Start writing checkpoints for a new training session (if enabled). Checkpoints of an earlier
+   * session in the same directory are removed.
+   *
+   * @throws IOException Could not write the session file
+   */
+  protected void initCheckpointing() throws IOException {
+    closeCheckpointing();
+    if (!isCheckpointingEnabled()) {
+      return;
+    }
+    if (trainLoader != null) {
+      log.warn("Checkpointing is not supported when training from a loader.");
+      return;
+    }
+    checkpointManager = new CheckpointManager(checkpointDirectory, checkpointRetention);
+    checkpointManager.startSession(this, validationData);
+    lastCheckpointTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Take a checkpoint if one is due after the current epoch. The snapshot is taken on the training
+   * thread and written in the background.
+   */
+  protected void checkpointIfDue() {
+    if (checkpointManager == null) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    final boolean epochsDue = checkpointEpochs > 0 && numEpochsPerformed % checkpointEpochs == 0;
+    final boolean timeDue =
+        checkpointMinutes > 0 && now - lastCheckpointTime >= checkpointMinutes * 60000L;
+    if (epochsDue || timeDue) {
+      checkpointManager.submit(new TrainingCheckpoint(model, numEpochsPerformed,
+          numEpochsPerformedThisSession, maxEpochs, earlyStopping));
+      lastCheckpointTime = now;
+    }
+  }
+
+  /**
+   * Wait for pending checkpoints to be written and stop the checkpoint writer (if any).
+   */
+  protected void closeCheckpointing() {
+    if (checkpointManager != null) {
+      checkpointManager.close();
+      checkpointManager = null;
+    }
   }
 
   /**
@@ -1070,9 +1748,11 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
       DataSetIterator valIterator =
           getDataSetIterator(valData, cacheMode, "val");
       earlyStopping.init(valIterator);
+      validationData = valData;
     } else {
       // Keep the full data
       trainData = data;
+      validationData = null;
     }
 
     return trainData;
@@ -1113,12 +1793,64 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    */
   protected DataSetIterator getDataSetIterator(Instances data, CacheMode cm,
       String cacheDirSuffix) throws Exception {
+    return getDataSetIterator(data, cm, cacheDirSuffix, !unorderedBatches);
+  }
+
+  /**
+   * Generates a DataSetIterator based on the given instances.
+   *
+   * @param data Input instances
+   * @param cm Cache mode for the datasets
+   * @param cacheDirSuffix suffix for the cache directory
+   * @param ordered whether batches built by several producer threads must be delivered in the
+   * order of their rows (e.g. for predictions)
+   * @return DataSetIterator Iterator over dataset objects
+   */
+  protected DataSetIterator getDataSetIterator(Instances data, CacheMode cm,
+      String cacheDirSuffix, boolean ordered) throws Exception {
+    return getDataSetIterator(data, cm, cacheDirSuffix, ordered, 0);
+  }
+
+  /**
+   * Generates a DataSetIterator based on the given instances, positioned at the start of the given
+   * epoch.
+   *
+   * @param data Input instances
+   * @param cm Cache mode for the datasets
+   * @param cacheDirSuffix suffix for the cache directory
+   * @param ordered whether batches built by several producer threads must be delivered in the
+   * order of their rows (e.g. for predictions)
+   * @param epoch Index of the first epoch, e.g. the number of epochs performed before resuming
+   * @return DataSetIterator Iterator over dataset objects
+   */
+  protected DataSetIterator getDataSetIterator(Instances data, CacheMode cm,
+      String cacheDirSuffix, boolean ordered, int epoch) throws Exception {
     // Also set the instance iterator to use this zoo model's channel order
     if (this.instanceIterator instanceof ImageInstanceIterator) {
       ((ImageInstanceIterator) this.instanceIterator).setChannelsLast(this.zooModel.getChannelsLast());
     }
 
-    DataSetIterator it = instanceIterator.getDataSetIterator(data, getSeed());
+    if (preprocessingPlan != null) {
+      checkPlanCompatible(data);
+    }
+
+    DataSetIterator it;
+    if (numProducerThreads > 1) {
+      // Disjoint batches are built by several threads
+      it = new ParallelDataSetIterator(instanceIterator, data, getSeed(),
+          instanceIterator.getTrainBatchSize(), numProducerThreads, ordered, preprocessingPlan);
+    } else if (preprocessingPlan != null) {
+      // Raw instances are preprocessed while converting each mini-batch
+      it = ((DefaultInstanceIterator) instanceIterator).getDataSetIterator(data, getSeed(),
+          instanceIterator.getTrainBatchSize(), preprocessingPlan);
+    } else {
+      it = instanceIterator.getDataSetIterator(data, getSeed());
+    }
+
+    // Cached batches are those of the first epoch, whose order does not need to be restored
+    if (epoch > 0 && cm == CacheMode.NONE && it instanceof EpochAware) {
+      ((EpochAware) it).setEpoch(epoch);
+    }
 
     // Use caching if set
     switch (cm) {
@@ -1126,27 +1858,24 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
         final InMemoryDataSetCache memCache = new InMemoryDataSetCache();
         it = new CachingDataSetIterator(it, memCache);
         break;
-      case FILESYSTEM: // use filesystem as cache
-        final String tmpDir = System.getProperty("java.io.tmpdir");
-        final String suffix =
-            cacheDirSuffix.isEmpty() ? "" : "-" + cacheDirSuffix;
-        final File cacheDir =
-            Paths.get(tmpDir, "dataset-cache" + suffix).toFile();
-        if (cacheDir.exists() && cacheDir.isDirectory() && !getDoNotClearFilesystemCache()) {
-          // delete contents then directory
-          File[] fs = cacheDir.listFiles();
-          for (File f : fs) {
-            f.delete();
-          }
-          if (!cacheDir.delete()) {
-            // remove old existing cache
-            log.error("Unable to delete cache dir "
-                + cacheDir.toString());
-          }
+      case FILESYSTEM: // use the persistent, content-addressed cache in the filesystem
+        final File cacheRoot = weka.dl4j.Utils.notDefaultFileLocation(cacheDirectory)
+            ? cacheDirectory : PersistentDataSetCache.getDefaultRoot();
+        final PersistentDataSetCache fsCache = new PersistentDataSetCache(cacheRoot,
+            getDataSetCacheKey(data, cacheDirSuffix), cacheSizeLimit * 1024L * 1024L,
+            compressCache);
+        it = new CachingDataSetIterator(it, fsCache, "batches");
+        break;
+      case TIERED: // memory up to the budget, then a memory-mapped spill file
+        final File spillDir = weka.dl4j.Utils.notDefaultFileLocation(cacheDirectory)
+            ? cacheDirectory : new File(System.getProperty("java.io.tmpdir"));
+        final TieredDataSetCache tieredCache =
+            new TieredDataSetCache(memoryCacheBudget * 1024L * 1024L, spillDir);
+        if (tieredCaches == null) {
+          tieredCaches = new ArrayList<>();
         }
-
-        final InFileDataSetCache fsCache = new InFileDataSetCache(cacheDir);
-        it = new CachingDataSetIterator(it, fsCache);
+        tieredCaches.add(tieredCache);
+        it = new CachingDataSetIterator(it, tieredCache);
         break;
     }
 
@@ -1161,6 +1890,42 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     return it;
   }
 
+  /**
+   * Compute the key of the filesystem cache entry for the given instances. The key identifies the
+   * content of the batches: the instances (and, for images, the size and modification time of each
+   * image file), the iterator and its options, the seed and the preprocessing state, including the
+   * statistics of the preprocessing plan.
+   *
+   * @param data Input instances, filtered unless a preprocessing plan is used
+   * @param cacheDirSuffix suffix distinguishing the training and validation data
+   * @return Cache key
+   */
+  protected String getDataSetCacheKey(Instances data, String cacheDirSuffix) {
+    ContentHash hash = new ContentHash()
+        .update(DataSetFile.VERSION)
+        .update(cacheDirSuffix)
+        .update(instanceIterator.getClass().getName())
+        .update(weka.core.Utils.joinOptions(instanceIterator.getOptions()))
+        .update(getSeed())
+        .update(preprocessingPlan != null)
+        .update(filter == null ? null : filter.getClass().getName())
+        .update(filter instanceof OptionHandler
+            ? weka.core.Utils.joinOptions(((OptionHandler) filter).getOptions()) : null)
+        .update(data);
+    if (preprocessingPlan != null) {
+      // The data is raw, the batches also depend on the statistics fitted on the training data
+      preprocessingPlan.updateHash(hash);
+    }
+    if (instanceIterator instanceof ImageInstanceIterator) {
+      final File imagesLocation = ((ImageInstanceIterator) instanceIterator).getImagesLocation();
+      for (Instance inst : data) {
+        final File image = new File(imagesLocation, inst.stringValue(0));
+        hash.update(image.length()).update(image.lastModified());
+      }
+    }
+    return hash.toHex();
+  }
+
   /**
    * Generates a DataSetIterator based on the given instances.
    *
@@ -1196,6 +1961,8 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     data = new Instances(data);
     data.deleteWithMissingClass();
     zeroR = null;
+    preprocessingPlan = null;
+    predictionWorkspaces = null;
     int numSamples = data.numInstances();
     if (numSamples == 0 || data.numAttributes() < 2) {
       zeroR = new ZeroR();
@@ -1219,6 +1986,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     double y1 = data.instance(index).classValue();
 
     // Init and apply the filters
+    Instances raw = data;
     data = initFilters(data);
 
     double z0 = data.instance(0).classValue();
@@ -1227,6 +1995,12 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     // guaranteed => z0 != z1 ???
     x0 = (y0 - x1 * z0); // = y1 - x1 * z1
 
+    // If possible, keep the raw data and preprocess it while converting the mini-batches
+    preprocessingPlan = compilePreprocessingPlan(raw, data);
+    if (preprocessingPlan != null) {
+      data = raw;
+    }
+
     // Randomize the data, just in case
     Random rand = new Random(getSeed());
     data.randomize(rand);
@@ -1253,6 +2027,12 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     data = Filter.useFilter(data, nominalToBinaryFilter);
 
     // Standardize or normalize (as requested), including the class
+    if (filterType != FILTER_NONE && instanceIterator instanceof SparseInstanceIterator) {
+      // Centering turns every zero into a stored value
+      log.warn("Standardizing or normalizing sparse data makes it dense, which defeats the "
+          + "SparseInstanceIterator. Set the filter type to 'No normalization/standardization' "
+          + "to keep the data sparse.");
+    }
 
     if (filterType == FILTER_STANDARDIZE) {
       filter = new Standardize();
@@ -1271,6 +2051,37 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     return data;
   }
 
+  /**
+   * Compile the fitted filters into a {@link PreprocessingPlan}. Only done for iterators that
+   * convert the instances row by row into dense features.
+   *
+   * @param data Raw training data
+   * @param filtered Training data after the filters, which the plan is checked against
+   * @return The plan, or null if the filters have to be applied
+   */
+  protected PreprocessingPlan compilePreprocessingPlan(Instances data, Instances filtered) {
+    if (!(instanceIterator instanceof DefaultInstanceIterator)
+        || instanceIterator instanceof SparseInstanceIterator) {
+      return null;
+    }
+    return PreprocessingPlan.compile(data, filtered, replaceMissingFilter, nominalToBinaryFilter,
+        filter);
+  }
+
+  /**
+   * Check that instances preprocessed by the plan have the format of the raw training data, as the
+   * filters would when they are applied instead.
+   *
+   * @param data Raw instances
+   * @throws IllegalArgumentException The instances are not compatible with the training data
+   */
+  protected void checkPlanCompatible(Instances data) {
+    if (!preprocessingPlan.isCompatible(data)) {
+      throw new IllegalArgumentException(
+          "The instances are not compatible with the training data: " + data.relationName());
+    }
+  }
+
   public InputType.InputTypeConvolutional getInputShape(CustomModelSetup customModelSetup) {
     if (useZooModel()) {
       int[] inputShape = getZooModel().getInputShape();
@@ -1367,7 +2178,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    * @return Model predictions
    */
   public INDArray outputSingle(INDArray image) {
-    return model.outputSingle(image);
+    return getModel().outputSingle(image);
   }
 
   /**
@@ -1429,7 +2240,12 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
       makeDefaultLayerSetup(gb);
     }
 
-    gb.setInputTypes(InputType.inferInputType(features));
+    if (getInstanceIterator() instanceof SparseInstanceIterator) {
+      // Sparse batches are packed, the number of inputs is the number of attributes
+      gb.setInputTypes(InputType.feedForward(trainData.numAttributes() - 1));
+    } else {
+      gb.setInputTypes(InputType.inferInputType(features));
+    }
     ComputationGraphConfiguration conf =
         gb.build();
     ComputationGraph model = new ComputationGraph(conf);
@@ -1580,7 +2396,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    * Get the iterationlistener
    */
   protected TrainingListener getListener() {
-    int numSamples = trainData.numInstances();
+    int numSamples = trainLoader == null ? trainData.numInstances() : numLoaderInstances;
     TrainingListener listener;
 
     // Initialize weka listener
@@ -1634,22 +2450,38 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
       numEpochsPerformedThisSession++;
       log.info("Epoch [{}/{}] took {}", numEpochsPerformed, maxEpochs,
           sw.toString());
+      reportCacheStatistics();
     } finally {
       Thread.currentThread().setContextClassLoader(origLoader);
     }
 
     // Evaluate early stopping
+    boolean continueTraining = true;
     if (useEarlyStopping()) {
-      boolean continueTraining = earlyStopping.evaluate(model);
+      continueTraining = earlyStopping.evaluate(model);
       if (!continueTraining) {
         log.info("Early stopping has stopped the training process. The "
             + "validation has not improved anymore after {} epochs. Training "
             + "finished.", earlyStopping.getMaxEpochsNoImprovement());
       }
-      return continueTraining;
     }
 
-    return true;
+    // Checkpoint after early stopping, so that its counters are up to date
+    checkpointIfDue();
+
+    return continueTraining;
+  }
+
+  /**
+   * Report the hit and spill statistics of the TIERED caches to the training listener.
+   */
+  protected void reportCacheStatistics() {
+    if (tieredCaches == null) {
+      return;
+    }
+    for (TieredDataSetCache cache : tieredCaches) {
+      iterationListener.log(cache.getStatistics().toString());
+    }
   }
 
   /**
@@ -1666,9 +2498,20 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    * Clean up after learning.
    */
   public void done() {
+    closeCheckpointing();
+    if (tieredCaches != null) {
+      tieredCaches.forEach(TieredDataSetCache::close);
+      tieredCaches = null;
+    }
+    if (trainIterator instanceof LoaderDataSetIterator) {
+      ((LoaderDataSetIterator) trainIterator).shutdown();
+    }
+    trainLoader = null;
     if (zeroR == null) {
       trainData = new Instances(trainData, 0);
     }
+    validationData = null;
+    shutdownParallelWrapper();
   }
 
   /**
@@ -1761,8 +2604,16 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     Dl4jMlpClassifier model;
     if (Utils.notDefaultFileLocation(serializedModelFile)) {
       // First try load from the WEKA binary model file
-      try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(serializedModelFile))) {
-        model = (Dl4jMlpClassifier) ois.readObject();
+      try {
+        if (MappedModelFile.isMappedModelFile(serializedModelFile)) {
+          // Parameters are mapped from the file and the network is built on first use
+          model = MappedModelFile.read(serializedModelFile);
+        } else {
+          try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(
+              new FileInputStream(serializedModelFile), FramedModelSerializer.BUFFER_SIZE))) {
+            model = (Dl4jMlpClassifier) ois.readObject();
+          }
+        }
         model.setCustomNet();
       } catch (Exception e) {
         throw new WekaException("Couldn't load Dl4jMlpClassifier from model file");
@@ -1857,8 +2708,10 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
   }
 
   /**
-   * The method to use when making a prediction for a test instance. Use distributionsForInstances()
-   * instead for speed if possible.
+   * The method to use when making a prediction for a test instance. If the preprocessing has been
+   * compiled into a {@link PreprocessingPlan}, the instance is written into a preallocated per-thread
+   * input row and the network output is computed in a reusable workspace. Otherwise, use
+   * distributionsForInstances() instead for speed if possible.
    *
    * @param inst the instance to get a prediction for
    * @return the class probability estimates (if the class is nominal) or the numeric prediction (if
@@ -1867,10 +2720,135 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    */
   @Override
   public double[] distributionForInstance(Instance inst) throws Exception {
+    return distributionForInstance(inst, getModel());
+  }
+
+  /**
+   * Make a prediction for a test instance with the given network, which must be this classifier's
+   * network or a replica of it (see {@link weka.dl4j.inference.ReplicaPool}).
+   *
+   * @param inst the instance to get a prediction for
+   * @param model the network to use
+   * @return the class probability estimates (if the class is nominal) or the numeric prediction (if
+   * it is numeric)
+   * @throws Exception if something goes wrong at prediction time
+   */
+  public double[] distributionForInstance(Instance inst, ComputationGraph model)
+      throws Exception {
+    if (supportsRowPrediction()) {
+      return predictSingle(inst, model);
+    }
 
     Instances data = new Instances(inst.dataset());
     data.add(inst);
-    return distributionsForInstances(data)[0];
+    return distributionsForInstances(data, model)[0];
+  }
+
+  /**
+   * Predict a single raw instance without creating any Instances or iterator.
+   *
+   * @param inst the instance to get a prediction for
+   * @param model the network to use
+   * @return the class probability estimates or the numeric prediction
+   */
+  protected double[] predictSingle(Instance inst, ComputationGraph model) {
+    return distributionsForRows(new Instance[]{inst}, 1, model, getPredictionWorkspace())[0];
+  }
+
+  /**
+   * Whether raw instances can be predicted row by row with
+   * {@link #distributionsForRows(Instance[], int, ComputationGraph, PredictionWorkspace)}, i.e.
+   * whether the preprocessing has been compiled into a {@link PreprocessingPlan}.
+   *
+   * @return true if rows can be predicted directly
+   */
+  public boolean supportsRowPrediction() {
+    return zeroR == null && preprocessingPlan != null;
+  }
+
+  /**
+   * Create a prediction workspace for up to the given number of rows of the features produced by
+   * the preprocessing plan.
+   *
+   * @param capacity the maximum number of rows per prediction
+   * @return the prediction workspace
+   */
+  public PredictionWorkspace createPredictionWorkspace(int capacity) {
+    final long[] featureShape = ((DefaultInstanceIterator) instanceIterator)
+        .getFeatureShape(preprocessingPlan.getNumFeatures());
+    return new PredictionWorkspace(capacity, featureShape);
+  }
+
+  /**
+   * Predict raw instances in a single forward pass: each instance is preprocessed straight into a
+   * row of the workspace's input array. Requires {@link #supportsRowPrediction()}.
+   *
+   * @param insts the instances to get predictions for (the first {@code numInsts} are used)
+   * @param numInsts the number of instances, at most the capacity of the workspace
+   * @param model the network to use
+   * @param workspace the prediction workspace of the calling thread
+   * @return the class probability estimates or the numeric predictions
+   */
+  public double[][] distributionsForRows(Instance[] insts, int numInsts, ComputationGraph model,
+      PredictionWorkspace workspace) {
+    final double[] row = workspace.getFeatureRow();
+    Instances checked = null;
+    for (int i = 0; i < numInsts; i++) {
+      final Instances header = insts[i].dataset();
+      if (header != null && header != checked) {
+        checkPlanCompatible(header);
+        checked = header;
+      }
+      preprocessingPlan.transform(insts[i], row);
+      workspace.setRow(i, row);
+    }
+    final double[][] out = workspace.output(model, numInsts);
+    final int[] permutation = numInsts == 0 ? null : getLabelPermutation(insts[0].dataset());
+
+    double[][] preds = new double[numInsts][];
+    for (int i = 0; i < numInsts; i++) {
+      boolean allNaN = true;
+      for (double v : out[i]) {
+        allNaN &= Double.isNaN(v);
+      }
+      if (allNaN) {
+        throw new DL4JException("NaNs in model output, likely caused by arithmetic underflow");
+      }
+
+      double[] pred = out[i];
+      if (permutation != null) {
+        pred = new double[out[i].length];
+        for (int j = 0; j < pred.length; j++) {
+          pred[j] = out[i][permutation[j]];
+        }
+      }
+      if (pred.length > 1) {
+        weka.core.Utils.normalize(pred);
+      } else {
+        pred[0] = pred[0] * x1 + x0;
+      }
+      preds[i] = pred;
+    }
+    return preds;
+  }
+
+  /**
+   * Get the prediction workspace of the calling thread, sized for single rows of the features
+   * produced by the preprocessing plan.
+   *
+   * @return Prediction workspace
+   */
+  protected PredictionWorkspace getPredictionWorkspace() {
+    ThreadLocal<PredictionWorkspace> workspaces = predictionWorkspaces;
+    if (workspaces == null) {
+      synchronized (this) {
+        if (predictionWorkspaces == null) {
+          predictionWorkspaces = ThreadLocal.withInitial(() -> createPredictionWorkspace(1));
+        }
+        workspaces = predictionWorkspaces;
+      }
+    }
+    return workspaces.get();
   }
 
   /**
@@ -1892,18 +2870,38 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    */
   @Override
   public double[][] distributionsForInstances(Instances insts) throws Exception {
+    return distributionsForInstances(insts, getModel());
+  }
+
+  /**
+   * Make predictions for test instances with the given network, which must be this classifier's
+   * network or a replica of it (see {@link weka.dl4j.inference.ReplicaPool}).
+   *
+   * @param insts the instances to get predictions for
+   * @param model the network to use
+   * @return the class probability estimates (if the class is nominal) or the numeric predictions
+   * (if it is numeric)
+   * @throws Exception if something goes wrong at prediction time
+   */
+  public double[][] distributionsForInstances(Instances insts, ComputationGraph model)
+      throws Exception {
 
     // Do we only have a ZeroR model?
     if (zeroR != null) {
       return zeroR.distributionsForInstances(insts);
     }
 
-    // Process input data to have the same filters applied as the training data
-    insts = applyFilters(insts);
+    // Process input data to have the same filters applied as the training data (the plan does so
+    // while converting). The filters are stateful, so only one thread may use them at a time.
+    if (preprocessingPlan == null) {
+      synchronized (this) {
+        insts = applyFilters(insts);
+      }
+    }
 
     // Get predictions
-    final DataSetIterator it = getDataSetIterator(insts, CacheMode.NONE);
-    double[][] preds = new double[insts.numInstances()][insts.numClasses()];
+    final DataSetIterator it = getDataSetIterator(insts, CacheMode.NONE, "", true);
+    double[][] preds = new double[insts.numInstances()][];
 
     int offset = 0;
     boolean next = it.hasNext();
@@ -1915,34 +2913,60 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
       if (arithmeticUnderflow(predBatch))
         throw new DL4JException("NaNs in model output, likely caused by arithmetic underflow");
 
-      int currentBatchSize = (int) predBatch.shape()[0];
-
       // Build weka distribution output
-      for (int i = 0; i < currentBatchSize; i++) {
-        for (int j = 0; j < insts.numClasses(); j++) {
-          int jResorted = fixLabelIndexIfNominal(j, insts);
-          preds[i + offset][j] = predBatch.getDouble(i, jResorted);
-        }
-      }
-      offset += currentBatchSize; // add batchsize as offset
+      double[][] batchPreds = toDistributions(predBatch, insts);
+      System.arraycopy(batchPreds, 0, preds, offset, batchPreds.length);
+      offset += batchPreds.length; // add batchsize as offset
       boolean hasInstancesLeft = offset < insts.numInstances();
       next = it.hasNext() || hasInstancesLeft;
     }
+    return preds;
+  }
+
+  /**
+   * Convert a batch of network outputs into Weka predictions. The label columns are permuted in a
+   * single gather (if the labels were resorted during training) and the batch is then copied out
+   * in one transfer, instead of reading it cell by cell.
+   *
+   * @param predBatch Network output of a batch, one row per instance
+   * @param insts Test dataset
+   * @return The class probability estimates or the numeric predictions of the batch
+   */
+  public double[][] toDistributions(INDArray predBatch, Instances insts) {
+    final int[] permutation = getLabelPermutation(insts);
+    final INDArray ordered = permutation == null ? predBatch : predBatch.getColumns(permutation);
+    double[][] preds = ordered.toDoubleMatrix();
 
     // Fix classes
-    for (int i = 0; i < preds.length; i++) {
+    for (double[] pred : preds) {
       // only normalise if we're dealing with classification
-      if (preds[i].length > 1) {
-        weka.core.Utils.normalize(preds[i]);
+      if (pred.length > 1) {
+        weka.core.Utils.normalize(pred);
       } else {
         // Rescale numeric classes with the computed coefficients in the
         // initialization phase
-        preds[i][0] = preds[i][0] * x1 + x0;
+        pred[0] = pred[0] * x1 + x0;
       }
     }
     return preds;
   }
 
+  /**
+   * Get the mapping from Weka label indices to the output columns of the network, see
+   * {@link #fixLabelIndexIfNominal(int, Instances)}.
+   *
+   * @param insts Test dataset
+   * @return Output column of each label, or null if the columns are in label order
+   */
+  protected int[] getLabelPermutation(Instances insts) {
+    if (insts.classAttribute().isNominal()
+        && getInstanceIterator() instanceof ImageInstanceIterator) {
+      return labelSortIndex;
+    } else {
+      return null;
+    }
+  }
+
   /**
    * Fixes nominal label indices. Dl4j sorts them during training time. A mapping from weka-labels
    * resorted labels is stored in {@link this.labelsSortIndex}.
@@ -1978,14 +3002,41 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
   }
 
   /**
-   * Get the {@link ComputationGraph} model
+   * Get the {@link ComputationGraph} model. If the classifier was loaded from a memory-mapped model
+   * file, the network is built on the first call.
    *
    * @return ComputationGraph model
    */
   public ComputationGraph getModel() {
+    if (model == null && lazyModel != null) {
+      model = lazyModel.get();
+    }
     return model;
   }
 
+  /**
+   * Get the header of the raw data the classifier was trained on, i.e. the format of the instances
+   * to predict.
+   *
+   * @return Header of the raw training data, or null if the classifier has not been trained
+   */
+  public Instances getInputFormat() {
+    if (replaceMissingFilter != null) {
+      return replaceMissingFilter.getCopyOfInputFormat();
+    }
+    return trainData == null ? null : new Instances(trainData, 0);
+  }
+
+  /**
+   * Attach a network that is built on first use, replacing the current network.
+   *
+   * @param lazyModel Lazily built network
+   */
+  public void setLazyModel(LazyComputationGraph lazyModel) {
+    this.lazyModel = lazyModel;
+    this.model = null;
+  }
+
   /**
    * Returns a string describing the model.
    *
@@ -1993,6 +3044,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    */
   @Override
   public String toString() {
+    final ComputationGraph model = getModel();
     if (model == null || model.getConfiguration() == null) {
       return "";
     }
@@ -2042,7 +3094,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     // TransferLearningHelper alters cmp graph in place so we need to clone it
     TransferLearningHelper transferLearningHelper;
     try {
-      ComputationGraph clonedGraph = model.clone();
+      ComputationGraph clonedGraph = getModel().clone();
       transferLearningHelper = new TransferLearningHelper(clonedGraph, layerName);
     } catch (Exception e) {
       throw new WekaException(String.format("Could not find features for layer %s, " +
@@ -2103,7 +3155,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    */
   public Instances getActivationsAtLayers(String[] layerNames, Instances input, PoolingType poolingType)
       throws Exception {
-    DataSetIterator iter = getDataSetIterator(input);
+    DataSetIterator iter = getDataSetIterator(input, cacheMode, "", true);
     INDArray result = null;
     Map<String, Long> attributesPerLayer = new LinkedHashMap<>();
     Instances newInstances = null;
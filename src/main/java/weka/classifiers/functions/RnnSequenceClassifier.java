@@ -27,6 +27,7 @@ import org.deeplearning4j.nn.conf.inputs.InputType;
 import org.deeplearning4j.nn.conf.layers.AbstractLSTM;
 import org.deeplearning4j.nn.conf.layers.BaseOutputLayer;
 import org.deeplearning4j.nn.conf.layers.EmbeddingLayer;
+import org.deeplearning4j.nn.conf.layers.EmbeddingSequenceLayer;
 import org.deeplearning4j.nn.conf.layers.GlobalPoolingLayer;
 import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
 import org.deeplearning4j.nn.graph.ComputationGraph;
@@ -41,13 +42,14 @@ import weka.classifiers.rules.ZeroR;
 import weka.core.Capabilities;
 import weka.core.Capabilities.Capability;
 import weka.core.CapabilitiesHandler;
-import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.InvalidNetworkArchitectureException;
 import weka.core.MissingOutputLayerException;
 import weka.core.OptionHandler;
 import weka.core.OptionMetadata;
 import weka.core.WekaException;
 import weka.dl4j.enums.CacheMode;
+import weka.dl4j.iterators.instance.sequence.text.rnn.RnnTokenIndexInstanceIterator;
 import weka.dl4j.layers.Layer;
 import weka.dl4j.zoo.AbstractZooModel;
 import weka.dl4j.zoo.CustomNet;
@@ -145,6 +147,12 @@ public class RnnSequenceClassifier extends Dl4jMlpClassifier
       numEpochsPerformedThisSession = 0;
       maxEpochs += numEpochs; // set the current upper bound
 
+      // Configure for parallel training on multiple GPUs/CPU workers (if applicable)
+      initParallelWrapperIfApplicable();
+
+      // Start a new checkpointing session (if enabled)
+      initCheckpointing();
+
     } finally {
       Thread.currentThread().setContextClassLoader(origLoader);
     }
@@ -176,6 +184,16 @@ public class RnnSequenceClassifier extends Dl4jMlpClassifier
       ((weka.dl4j.layers.RnnOutputLayer) lastLayer).setNOut(nOut);
     }
 
+    // Token indices are embedded by the first layer, initialized from the word vectors
+    if (instanceIterator instanceof RnnTokenIndexInstanceIterator) {
+      if (!(layers[0] instanceof weka.dl4j.layers.EmbeddingSequenceLayer)) {
+        throw new InvalidNetworkArchitectureException(
+            "RnnTokenIndexInstanceIterator requires an EmbeddingSequenceLayer as first layer.");
+      }
+      ((weka.dl4j.layers.EmbeddingSequenceLayer) layers[0]).initializeFromWordVectors(
+          ((RnnTokenIndexInstanceIterator) instanceIterator).getWordVectors());
+    }
+
     String currentInput = "input";
     gb.addInputs(currentInput);
     // Collect layers
@@ -205,7 +223,7 @@ public class RnnSequenceClassifier extends Dl4jMlpClassifier
     if (!valid) {
       throw new RuntimeException(
           "You have chosen an unsupported layer type. Pick one of "
-              + "[EmeddingLayer, LSTM, GravesLSTM, RNNOutput].");
+              + "[EmeddingLayer, EmbeddingSequenceLayer, LSTM, GravesLSTM, RNNOutput].");
     }
   }
 
@@ -217,21 +235,24 @@ public class RnnSequenceClassifier extends Dl4jMlpClassifier
    */
   protected boolean isSequenceCompatibleLayer(Layer layer) {
     return layer.getBackend() instanceof EmbeddingLayer
+        || layer.getBackend() instanceof EmbeddingSequenceLayer
         || layer.getBackend() instanceof AbstractLSTM
         || layer.getBackend() instanceof RnnOutputLayer
         || layer.getBackend() instanceof GlobalPoolingLayer;
   }
 
   /**
-   * The method to use when making predictions for test instances.
+   * The method to use when making predictions for test instances with the given network.
    *
    * @param insts the instances to get predictions for
+   * @param model the network to use
    * @return the class probability estimates (if the class is nominal) or the numeric predictions
    * (if it is numeric)
    * @throws Exception if something goes wrong at prediction time
    */
   @Override
-  public double[][] distributionsForInstances(Instances insts) throws Exception {
+  public double[][] distributionsForInstances(Instances insts, ComputationGraph model)
+      throws Exception {
 
     log.info("Calc. dist for {} instances", insts.numInstances());
 
@@ -244,7 +265,7 @@ public class RnnSequenceClassifier extends Dl4jMlpClassifier
     insts = applyFilters(insts);
 
     // Get predictions
-    final DataSetIterator it = getDataSetIterator(insts, CacheMode.NONE);
+    final DataSetIterator it = getDataSetIterator(insts, CacheMode.NONE, "", true);
     double[][] preds = new double[insts.numInstances()][insts.numClasses()];
 
     if (it.resetSupported()) {
@@ -296,14 +317,6 @@ public class RnnSequenceClassifier extends Dl4jMlpClassifier
     return preds;
   }
 
-  @Override
-  public double[] distributionForInstance(Instance instance) throws Exception {
-
-    Instances data = new Instances(instance.dataset());
-    data.add(instance);
-    return distributionsForInstances(data)[0];
-  }
-
   @OptionMetadata(
       description = "Number of backpropagations through time backward (default = 25).",
       displayName = "truncated backprop through time backward",
@@ -0,0 +1,336 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * InstancesConverter.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j;
+
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.concurrency.AffinityManager;
+import org.nd4j.linalg.api.concurrency.AffinityManager.Location;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.dl4j.preprocessing.PreprocessingPlan;
+
+/**
+ * Bulk conversion of {@link Instances} into a {@link DataSet}.
+ * <p>
+ * Features and labels are allocated once (uninitialized, in the requested data type) and every row
+ * is written straight into the underlying buffers. Rows are split into blocks which are converted
+ * in parallel on the common fork-join pool; small conversions (e.g. a single mini-batch) stay on
+ * the calling thread. The feature shape of a row may be given explicitly, e.g. {@code (channels,
+ * height, width)} to obtain NCHW image tensors without an intermediate flat copy.
+ * <p>
+ * Assumes that the class index has been set and that the instances have been suitably
+ * preprocessed - i.e. missing values replaced and nominals converted to binary/numeric - unless a
+ * {@link PreprocessingPlan} is given, which does so while writing each row.
+ */
+public class InstancesConverter {
+
+  /**
+   * Number of values (rows times columns) up to which a block is converted by a single task
+   */
+  static final int BLOCK_VALUES = 1 << 16;
+
+  /**
+   * Utility class
+   */
+  private InstancesConverter() {
+  }
+
+  /**
+   * Converts all instances into a flat feature matrix in the default floating point type.
+   *
+   * @param insts the instances to convert
+   * @return a DataSet
+   */
+  public static DataSet toDataSet(Instances insts) {
+    return toDataSet(insts, insts.numAttributes() - 1);
+  }
+
+  /**
+   * Converts all instances into features of the given per-row shape in the default floating point
+   * type.
+   *
+   * @param insts the instances to convert
+   * @param featureShape the shape of a single row, e.g. {@code (channels, height, width)}
+   * @return a DataSet
+   */
+  public static DataSet toDataSet(Instances insts, long... featureShape) {
+    return toDataSet(insts, null, 0, insts.numInstances(), Nd4j.defaultFloatingPointType(),
+        featureShape);
+  }
+
+  /**
+   * Converts the instances {@code order[from], ..., order[from + size - 1]} (or {@code from, ...,
+   * from + size - 1} if no order is given) into a dataset.
+   *
+   * @param insts the instances to convert
+   * @param order the order in which the instances are visited, may be null
+   * @param from position of the first row
+   * @param size number of rows
+   * @param dataType data type of the features and labels
+   * @param featureShape the shape of a single row, e.g. {@code (channels, height, width)}
+   * @return a DataSet
+   */
+  public static DataSet toDataSet(Instances insts, int[] order, int from, int size,
+      DataType dataType, long... featureShape) {
+    return toDataSet(insts, order, from, size, dataType, null, featureShape);
+  }
+
+  /**
+   * Converts the instances {@code order[from], ..., order[from + size - 1]} (or {@code from, ...,
+   * from + size - 1} if no order is given) into a dataset, preprocessing each row with the given
+   * plan while writing it.
+   *
+   * @param insts the (raw) instances to convert
+   * @param order the order in which the instances are visited, may be null
+   * @param from position of the first row
+   * @param size number of rows
+   * @param dataType data type of the features and labels
+   * @param plan preprocessing plan, may be null if the instances are already preprocessed
+   * @param featureShape the shape of a single row, e.g. {@code (channels, height, width)}
+   * @return a DataSet
+   */
+  public static DataSet toDataSet(Instances insts, int[] order, int from, int size,
+      DataType dataType, PreprocessingPlan plan, long... featureShape) {
+    final int numFeatures = plan == null ? insts.numAttributes() - 1 : plan.getNumFeatures();
+    long rowLength = 1;
+    for (long dim : featureShape) {
+      rowLength *= dim;
+    }
+    if (rowLength != numFeatures) {
+      throw new IllegalArgumentException(String.format(
+          "The feature shape %s does not match the number of attributes (excluding the class): %d",
+          Arrays.toString(featureShape), numFeatures));
+    }
+
+    long[] shape = new long[featureShape.length + 1];
+    shape[0] = size;
+    System.arraycopy(featureShape, 0, shape, 1, featureShape.length);
+    INDArray features = Nd4j.createUninitialized(dataType, shape);
+    INDArray labels = Nd4j.createUninitialized(dataType, size, insts.numClasses());
+
+    if (size > 0) {
+      new ConvertTask(insts, order, plan, from, 0, size, features, labels).invoke();
+    }
+    return new DataSet(features, labels);
+  }
+
+  /**
+   * Converts a range of rows, splitting it in halves as long as it is larger than
+   * {@link #BLOCK_VALUES}.
+   */
+  private static class ConvertTask extends RecursiveAction {
+
+    /**
+     * The ID used to serialize this class
+     */
+    private static final long serialVersionUID = 2956113271549962093L;
+    /**
+     * The instances to convert
+     */
+    private final Instances insts;
+    /**
+     * Order of the instances (may be null)
+     */
+    private final int[] order;
+    /**
+     * Preprocessing plan (may be null)
+     */
+    private final PreprocessingPlan plan;
+    /**
+     * Position of the first row of the whole conversion
+     */
+    private final int offset;
+    /**
+     * First output row of this task
+     */
+    private final int start;
+    /**
+     * Output row after the last row of this task
+     */
+    private final int end;
+    /**
+     * Features
+     */
+    private final INDArray features;
+    /**
+     * Labels
+     */
+    private final INDArray labels;
+
+    ConvertTask(Instances insts, int[] order, PreprocessingPlan plan, int offset, int start,
+        int end, INDArray features, INDArray labels) {
+      this.insts = insts;
+      this.order = order;
+      this.plan = plan;
+      this.offset = offset;
+      this.start = start;
+      this.end = end;
+      this.features = features;
+      this.labels = labels;
+    }
+
+    @Override
+    protected void compute() {
+      final int numFeatures = plan == null ? insts.numAttributes() - 1 : plan.getNumFeatures();
+      if (end - start > 1 && (long) (end - start) * numFeatures > BLOCK_VALUES) {
+        final int mid = (start + end) >>> 1;
+        invokeAll(
+            new ConvertTask(insts, order, plan, offset, start, mid, features, labels),
+            new ConvertTask(insts, order, plan, offset, mid, end, features, labels));
+        return;
+      }
+
+      final int classIndex = insts.classIndex();
+      final int numOutcomes = insts.numClasses();
+      final double[] featureRow = new double[numFeatures];
+      final double[] labelRow = new double[numOutcomes];
+      final RowWriter featureWriter = RowWriter.of(features, numFeatures);
+      final RowWriter labelWriter = RowWriter.of(labels, numOutcomes);
+
+      for (int row = start; row < end; row++) {
+        final int pos = offset + row;
+        Instance current = insts.instance(order == null ? pos : order[pos]);
+
+        final double classValue;
+        if (plan != null) {
+          // Impute, expand and scale in one pass
+          plan.transform(current, featureRow);
+          classValue = plan.transformClass(current);
+        } else {
+          // Sparse instances only set their non-zero values
+          if (current.numValues() < current.numAttributes()) {
+            Arrays.fill(featureRow, 0.0);
+          }
+          for (int j = 0; j < current.numValues(); j++) {
+            final int index = current.index(j);
+            if (index < classIndex) {
+              featureRow[index] = current.valueSparse(j);
+            } else if (index > classIndex) {
+              // Shift by -1, since the class is left out from the feature matrix and put into a
+              // separate outcomes matrix
+              featureRow[index - 1] = current.valueSparse(j);
+            }
+          }
+          classValue = current.classValue();
+        }
+
+        if (numOutcomes > 1) { // Classification
+          Arrays.fill(labelRow, 0.0);
+          labelRow[(int) classValue] = 1.0;
+        } else { // Regression (currently only single class)
+          labelRow[0] = classValue;
+        }
+
+        featureWriter.write((long) row * numFeatures, featureRow);
+        labelWriter.write((long) row * numOutcomes, labelRow);
+      }
+    }
+  }
+
+  /**
+   * Writes rows into the buffer of an array. Float and double buffers that fit into a NIO view are
+   * written with bulk puts, anything else element by element. The host copy of the buffer is brought
+   * up to date before the first write, and every write marks it as modified, so that backends with
+   * a separate device copy (e.g. CUDA) synchronize it before the array is used. A row writer is not
+   * thread-safe.
+   */
+  public abstract static class RowWriter {
+
+    /**
+     * Write a row.
+     *
+     * @param offset Offset of the first element of the row in the buffer
+     * @param row Row values
+     */
+    public abstract void write(long offset, double[] row);
+
+    /**
+     * Create a row writer for the buffer of the given array, owned by the calling thread.
+     *
+     * @param array Array (must not be a view)
+     * @param rowLength Length of a row
+     * @return Row writer
+     */
+    public static RowWriter of(INDArray array, int rowLength) {
+      final AffinityManager affinityManager = Nd4j.getAffinityManager();
+      affinityManager.ensureLocation(array, Location.HOST);
+      final DataBuffer buffer = array.data();
+      final RowWriter writer = of(buffer, rowLength);
+      return new RowWriter() {
+        @Override
+        public void write(long offset, double[] row) {
+          writer.write(offset, row);
+          affinityManager.tickHostWrite(array);
+        }
+      };
+    }
+
+    /**
+     * Create a row writer for the host copy of the given buffer, owned by the calling thread.
+     *
+     * @param buffer Data buffer
+     * @param rowLength Length of a row
+     * @return Row writer
+     */
+    private static RowWriter of(DataBuffer buffer, int rowLength) {
+      final boolean fitsNio = buffer.length() * buffer.getElementSize() <= Integer.MAX_VALUE;
+      if (fitsNio && buffer.dataType() == DataType.FLOAT) {
+        final FloatBuffer view = buffer.asNio().order(ByteOrder.nativeOrder()).asFloatBuffer();
+        final float[] tmp = new float[rowLength];
+        return new RowWriter() {
+          @Override
+          public void write(long offset, double[] row) {
+            for (int i = 0; i < row.length; i++) {
+              tmp[i] = (float) row[i];
+            }
+            view.position((int) offset);
+            view.put(tmp);
+          }
+        };
+      } else if (fitsNio && buffer.dataType() == DataType.DOUBLE) {
+        final DoubleBuffer view = buffer.asNio().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        return new RowWriter() {
+          @Override
+          public void write(long offset, double[] row) {
+            view.position((int) offset);
+            view.put(row);
+          }
+        };
+      } else {
+        return new RowWriter() {
+          @Override
+          public void write(long offset, double[] row) {
+            for (int i = 0; i < row.length; i++) {
+              buffer.put(offset + i, row[i]);
+            }
+          }
+        };
+      }
+    }
+  }
+}
@@ -63,44 +63,12 @@ public class Utils {
    * @return a DataSet
    */
   public static DataSet instancesToDataSet(Instances insts) {
-    INDArray data = Nd4j.zeros(insts.numInstances(), insts.numAttributes() - 1);
-    INDArray outcomes = Nd4j.zeros(insts.numInstances(), insts.numClasses());
-
-    for (int i = 0; i < insts.numInstances(); i++) {
-      double[] independent = new double[insts.numAttributes() - 1];
-      double[] dependent = new double[insts.numClasses()];
-      Instance current = insts.instance(i);
-      for (int j = 0; j < current.numValues(); j++) {
-        int index = current.index(j);
-        double value = current.valueSparse(j);
-
-        if (index < insts.classIndex()) {
-          independent[index] = value;
-        } else if (index > insts.classIndex()) {
-          // Shift by -1, since the class is left out from the feature matrix and put into a separate
-          // outcomes matrix
-          independent[index - 1] = value;
-        }
-      }
-
-      // Set class values
-      if (insts.numClasses() > 1) { // Classification
-        final int oneHotIdx = (int) current.classValue();
-        dependent[oneHotIdx] = 1.0;
-      } else { // Regression (currently only single class)
-        dependent[0] = current.classValue();
-      }
-
-      INDArray row = Nd4j.create(independent);
-      data.putRow(i, row);
-      outcomes.putRow(i, Nd4j.create(dependent));
-    }
-    return new DataSet(data, outcomes);
+    return InstancesConverter.toDataSet(insts);
   }
 
   /**
    * Converts a set of training instances to a DataSet prepared for the convolution operation using
-   * the height, width and number of channels.
+   * the height, width and number of channels. The features are written directly in NCHW layout.
    *
    * @param height image height
    * @param width image width
@@ -110,17 +78,7 @@ public class Utils {
    */
   public static DataSet instancesToConvDataSet(
       Instances insts, int height, int width, int channels) {
-    DataSet ds = instancesToDataSet(insts);
-    INDArray data = Nd4j.zeros(insts.numInstances(), channels, width, height);
-    ds.getFeatures();
-
-    for (int i = 0; i < insts.numInstances(); i++) {
-      INDArray row = ds.getFeatures().getRow(i);
-      row = row.reshape(1, channels, height, width);
-      data.putRow(i, row);
-    }
-
-    return new DataSet(data, ds.getLabels());
+    return InstancesConverter.toDataSet(insts, channels, height, width);
   }
 
   /**
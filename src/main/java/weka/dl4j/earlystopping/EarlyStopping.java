@@ -135,6 +135,35 @@ public class EarlyStopping implements OptionHandler, Serializable {
   }
 
 
+  /**
+   * Get the number of epochs without improvement so far
+   *
+   * @return Number of epochs without improvement
+   */
+  public int getCountEpochsNoImprovement() {
+    return countEpochsNoImprovement;
+  }
+
+  /**
+   * Get the best validation score so far
+   *
+   * @return Best validation score
+   */
+  public double getLastBestScore() {
+    return lastBestScore;
+  }
+
+  /**
+   * Restore the counters of a previous training run (e.g. from a checkpoint)
+   *
+   * @param countEpochsNoImprovement Number of epochs without improvement
+   * @param lastBestScore Best validation score
+   */
+  public void restoreState(int countEpochsNoImprovement, double lastBestScore) {
+    this.countEpochsNoImprovement = countEpochsNoImprovement;
+    this.lastBestScore = lastBestScore;
+  }
+
   public int getMaxEpochsNoImprovement() {
     return maxEpochsNoImprovement;
   }
@@ -23,7 +23,10 @@ package weka.dl4j.enums;
  * <ul>
  * <li>NONE: Do not use any cache</li>
  * <li>MEMORY: Cache data in memory</li>
- * <li>FILESYSTEM: Cache data in the filesystem in "java.io.tmpdir"</li>
+ * <li>FILESYSTEM: Cache data in a persistent, content-addressed cache in the filesystem that is
+ * reused across runs (see {@link weka.dl4j.iterators.dataset.cache.PersistentDataSetCache})</li>
+ * <li>TIERED: Cache data in memory up to a budget and spill further data to a memory-mapped file
+ * (see {@link weka.dl4j.iterators.dataset.cache.TieredDataSetCache})</li>
  * </ul>
  *
  * @author Steven Lang
@@ -31,5 +34,6 @@ package weka.dl4j.enums;
 public enum CacheMode {
   NONE,
   MEMORY,
-  FILESYSTEM
+  FILESYSTEM,
+  TIERED
 }
@@ -0,0 +1,33 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ImageNormalization.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.enums;
+
+/**
+ * Normalization of the pixel values of images.
+ * <ul>
+ * <li>SCALE: Scale the values from [0, 255] to [0, 1] (needs no statistics)</li>
+ * <li>STANDARDIZE: Standardize each channel to zero mean and unit variance</li>
+ * <li>MIN_MAX: Scale each channel from its minimum and maximum to [0, 1]</li>
+ * </ul>
+ */
+public enum ImageNormalization {
+  SCALE,
+  STANDARDIZE,
+  MIN_MAX
+}
@@ -0,0 +1,62 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ParallelTrainingMode.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.enums;
+
+import org.deeplearning4j.parallelism.ParallelWrapper;
+import weka.dl4j.ApiWrapper;
+
+/**
+ * Proxy Enum for {@link ParallelWrapper.TrainingMode}. Defines how the model replicas of a
+ * data-parallel training run are kept in sync.
+ */
+public enum ParallelTrainingMode implements ApiWrapper<ParallelWrapper.TrainingMode> {
+  /**
+   * Each worker trains its own replica and the parameters are averaged every few iterations.
+   */
+  AVERAGING,
+  /**
+   * Workers exchange (threshold-encoded) gradients after every iteration.
+   */
+  SHARED_GRADIENTS;
+
+  /**
+   * Parse backend training mode and return weka enum implementation.
+   *
+   * @param trainingMode Training mode
+   * @return Weka training mode enum implementation
+   */
+  public static ParallelTrainingMode fromBackend(ParallelWrapper.TrainingMode trainingMode) {
+    return valueOf(trainingMode.name());
+  }
+
+  @Override
+  public ParallelWrapper.TrainingMode getBackend() {
+    return ParallelWrapper.TrainingMode.valueOf(this.name());
+  }
+
+  @Override
+  public void setBackend(ParallelWrapper.TrainingMode newBackend) {
+    // Do nothing as this enum does not have a state
+  }
+
+  @Override
+  public void initializeBackend() {
+    // Do nothing as this enum does not have a state
+  }
+}
@@ -0,0 +1,273 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * BulkScorer.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.inference;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import lombok.extern.log4j.Log4j2;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.converters.Saver;
+
+/**
+ * Scores large datasets with all cores. The instances are partitioned into contiguous ranges that
+ * are predicted in parallel, each by a replica of a {@link ReplicaPool}. The predictions are either
+ * returned in one array or streamed in order to a {@link Saver}, in which case only the ranges in
+ * flight are held in memory.
+ */
+@Log4j2
+public class BulkScorer {
+
+  /**
+   * Replicas predicting the ranges
+   */
+  protected final ReplicaPool pool;
+
+  /**
+   * Number of instances per range
+   */
+  protected final int rangeSize;
+
+  /**
+   * Constructor with one replica per available processor.
+   *
+   * @param classifier Trained classifier
+   * @param rangeSize Number of instances predicted per task
+   */
+  public BulkScorer(Dl4jMlpClassifier classifier, int rangeSize) {
+    this(new ReplicaPool(classifier), rangeSize);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param pool Replicas to predict with, one range per replica at a time
+   * @param rangeSize Number of instances predicted per task
+   */
+  public BulkScorer(ReplicaPool pool, int rangeSize) {
+    if (rangeSize < 1) {
+      throw new IllegalArgumentException("The range size must be at least 1.");
+    }
+    this.pool = pool;
+    this.rangeSize = rangeSize;
+  }
+
+  /**
+   * Predict all instances.
+   *
+   * @param insts The instances to get predictions for
+   * @return The class probability estimates or the numeric predictions
+   * @throws Exception Prediction failed
+   */
+  public double[][] distributionsForInstances(Instances insts) throws Exception {
+    final double[][] preds = new double[insts.numInstances()][];
+    final ExecutorService executor = Executors.newFixedThreadPool(pool.getNumReplicas());
+    try {
+      final Deque<Future<double[][]>> inFlight = new ArrayDeque<>();
+      for (int from = 0; from < insts.numInstances(); from += rangeSize) {
+        final int size = Math.min(rangeSize, insts.numInstances() - from);
+        // Only references are copied, the instances are shared
+        inFlight.add(submit(executor, new Instances(insts, from, size)));
+      }
+      int offset = 0;
+      for (Future<double[][]> future : inFlight) {
+        double[][] rangePreds = get(future);
+        System.arraycopy(rangePreds, 0, preds, offset, rangePreds.length);
+        offset += rangePreds.length;
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return preds;
+  }
+
+  /**
+   * Predict all instances and write the predictions, in the order of the instances, to the given
+   * saver (see {@link #getPredictionHeader(Instances)} for the format). The saver must have its
+   * destination set; it is switched to incremental mode.
+   *
+   * @param insts The instances to get predictions for
+   * @param saver Saver to write the predictions to
+   * @throws Exception Prediction or writing failed
+   */
+  public void distributionsForInstances(Instances insts, Saver saver) throws Exception {
+    final Iterator<Instances> ranges = new Iterator<Instances>() {
+      int from = 0;
+
+      @Override
+      public boolean hasNext() {
+        return from < insts.numInstances();
+      }
+
+      @Override
+      public Instances next() {
+        final int size = Math.min(rangeSize, insts.numInstances() - from);
+        // Only references are copied, the instances are shared
+        final Instances range = new Instances(insts, from, size);
+        from += size;
+        return range;
+      }
+    };
+    distributionsForRanges(ranges, getPredictionHeader(insts), saver);
+  }
+
+  /**
+   * Predict consecutive ranges of instances and write the predictions, in order, to the given
+   * saver. Ranges are only taken from the iterator while fewer than two ranges per replica are in
+   * flight, so the iterator may produce them lazily (e.g. read them from a file) and only the
+   * ranges in flight are held in memory.
+   *
+   * @param ranges Ranges of instances to get predictions for
+   * @param header Header of the predictions, see {@link #getPredictionHeader(Instances)}
+   * @param saver Saver to write the predictions to
+   * @return Number of predicted instances
+   * @throws Exception Prediction or writing failed
+   */
+  public long distributionsForRanges(Iterator<Instances> ranges, Instances header, Saver saver)
+      throws Exception {
+    saver.setRetrieval(Saver.INCREMENTAL);
+    saver.setInstances(header);
+
+    // Keep two ranges per replica in flight, so that no replica idles while results are written
+    final int maxInFlight = 2 * pool.getNumReplicas();
+    final ExecutorService executor = Executors.newFixedThreadPool(pool.getNumReplicas());
+    long numPredicted = 0;
+    try {
+      final Deque<Future<double[][]>> inFlight = new ArrayDeque<>();
+      while (ranges.hasNext() || !inFlight.isEmpty()) {
+        while (inFlight.size() < maxInFlight && ranges.hasNext()) {
+          inFlight.add(submit(executor, ranges.next()));
+        }
+        for (double[] pred : get(inFlight.poll())) {
+          saver.writeIncremental(toInstance(pred, header));
+          numPredicted++;
+        }
+      }
+      // Signal the end of the data
+      saver.writeIncremental(null);
+    } finally {
+      executor.shutdownNow();
+    }
+    return numPredicted;
+  }
+
+  /**
+   * Get the format of the predictions written to a saver: for a nominal class, the probability of
+   * each class value ({@code distribution_<value>}) followed by the predicted value
+   * ({@code classification}); for a numeric class, only the predicted value.
+   *
+   * @param insts The instances to get predictions for
+   * @return Header of the predictions
+   */
+  public static Instances getPredictionHeader(Instances insts) {
+    final Attribute classAttribute = insts.classAttribute();
+    ArrayList<Attribute> attributes = new ArrayList<>();
+    if (classAttribute.isNominal()) {
+      ArrayList<String> values = new ArrayList<>();
+      for (int k = 0; k < classAttribute.numValues(); k++) {
+        attributes.add(new Attribute("distribution_" + classAttribute.value(k)));
+        values.add(classAttribute.value(k));
+      }
+      attributes.add(new Attribute("classification", values));
+    } else {
+      attributes.add(new Attribute("classification"));
+    }
+    Instances header = new Instances(insts.relationName() + "_predictions", attributes, 0);
+    header.setClassIndex(header.numAttributes() - 1);
+    return header;
+  }
+
+  /**
+   * Convert a prediction into an instance of the prediction header.
+   *
+   * @param pred The class probability estimates or the numeric prediction
+   * @param header Header of the predictions
+   * @return Instance
+   */
+  protected static DenseInstance toInstance(double[] pred, Instances header) {
+    double[] values = new double[header.numAttributes()];
+    if (pred.length > 1) {
+      System.arraycopy(pred, 0, values, 0, pred.length);
+      values[pred.length] = Utils.maxIndex(pred);
+    } else {
+      values[0] = pred[0];
+    }
+    DenseInstance inst = new DenseInstance(1.0, values);
+    inst.setDataset(header);
+    return inst;
+  }
+
+  /**
+   * Submit the prediction of a range.
+   *
+   * @param executor Executor to run the prediction
+   * @param range Instances of the range
+   * @return Future of the predictions of the range
+   */
+  protected Future<double[][]> submit(ExecutorService executor, Instances range) {
+    return executor.submit(() -> {
+      try (ReplicaPool.Replica replica = pool.lease()) {
+        return replica.distributionsForInstances(range);
+      }
+    });
+  }
+
+  /**
+   * Wait for the predictions of a range, unwrapping the cause of a failure.
+   *
+   * @param future Future of the predictions
+   * @return Predictions
+   * @throws Exception Prediction failed
+   */
+  private static double[][] get(Future<double[][]> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      log.error("Prediction of a range failed", e.getCause());
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    }
+  }
+
+  /**
+   * Get the number of instances predicted per task.
+   *
+   * @return Range size
+   */
+  public int getRangeSize() {
+    return rangeSize;
+  }
+
+  /**
+   * Get the replicas predicting the ranges.
+   *
+   * @return Replica pool
+   */
+  public ReplicaPool getPool() {
+    return pool;
+  }
+}
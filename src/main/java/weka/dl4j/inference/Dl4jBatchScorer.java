@@ -0,0 +1,512 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Dl4jBatchScorer.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.inference;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.lang3.time.StopWatch;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Attribute;
+import weka.core.CommandlineRunnable;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.OptionHandler;
+import weka.core.OptionMetadata;
+import weka.core.Utils;
+import weka.core.WekaException;
+import weka.core.converters.AbstractFileLoader;
+import weka.core.converters.AbstractFileSaver;
+import weka.core.converters.ConverterUtils;
+import weka.core.converters.IncrementalConverter;
+
+/**
+ * Scores an ARFF or CSV file with a serialized Dl4jMlpClassifier (or RnnSequenceClassifier) and
+ * writes the predictions to an ARFF or CSV file (see {@link BulkScorer#getPredictionHeader} for the
+ * format), in the order of the input rows.
+ * <p>
+ * The file is never loaded as a whole: a background thread reads the rows incrementally and groups
+ * them into batches, the batches are preprocessed and predicted in parallel by network replicas,
+ * and the predictions are written as soon as all earlier batches are done. Only a bounded number of
+ * batches is held in memory at any time, independent of the size of the file.
+ * <p>
+ * Input columns are matched to the attributes of the training data by name, so the class column
+ * may be left out. Nominal values are matched by label; unknown labels are treated as missing.
+ */
+@Log4j2
+public class Dl4jBatchScorer implements Serializable, OptionHandler, CommandlineRunnable {
+
+  /**
+   * The ID used to serialize this class
+   */
+  private static final long serialVersionUID = 3307496611298455437L;
+
+  /**
+   * Serialized model file
+   */
+  protected File serializedModelFile = new File(weka.dl4j.Utils.defaultFileLocation());
+
+  /**
+   * ARFF or CSV file to score
+   */
+  protected File inputFile = new File(weka.dl4j.Utils.defaultFileLocation());
+
+  /**
+   * ARFF or CSV file to write the predictions to
+   */
+  protected File outputFile = new File(weka.dl4j.Utils.defaultFileLocation());
+
+  /**
+   * Number of rows per batch
+   */
+  protected int batchSize = 1024;
+
+  /**
+   * Number of network replicas predicting in parallel
+   */
+  protected int numWorkers = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Score the input file and write the predictions.
+   *
+   * @return Number of scored rows
+   * @throws Exception Could not load the model, read the input or write the predictions
+   */
+  public long score() throws Exception {
+    return score(Dl4jMlpClassifier.tryLoadFromFile(serializedModelFile, null));
+  }
+
+  /**
+   * Score the input file with the given classifier and write the predictions.
+   *
+   * @param classifier Trained classifier
+   * @return Number of scored rows
+   * @throws Exception Could not read the input or write the predictions
+   */
+  public long score(Dl4jMlpClassifier classifier) throws Exception {
+    final Instances header = classifier.getInputFormat();
+    if (header == null) {
+      throw new WekaException("The classifier has not been trained.");
+    }
+
+    AbstractFileLoader loader = ConverterUtils.getLoaderForFile(inputFile);
+    if (!(loader instanceof IncrementalConverter)) {
+      throw new WekaException("Cannot read " + inputFile + " incrementally, please supply an ARFF "
+          + "or CSV file.");
+    }
+    loader.setFile(inputFile);
+    AbstractFileSaver saver = ConverterUtils.getSaverForFile(outputFile);
+    if (saver == null) {
+      throw new WekaException("Unknown output format: " + outputFile);
+    }
+    saver.setFile(outputFile);
+
+    final StopWatch stopWatch = new StopWatch();
+    stopWatch.start();
+    final BatchReader reader = new BatchReader(loader, header, batchSize, 2 * numWorkers);
+    reader.start();
+    try {
+      final long numScored = new BulkScorer(new ReplicaPool(classifier, numWorkers), batchSize)
+          .distributionsForRanges(reader, BulkScorer.getPredictionHeader(header), saver);
+      log.info("Scored {} rows in {}", numScored, stopWatch);
+      return numScored;
+    } finally {
+      reader.interrupt();
+    }
+  }
+
+  /**
+   * Reads batches from an incremental loader in the background and hands them over through a
+   * bounded queue.
+   */
+  protected static class BatchReader extends Thread implements Iterator<Instances> {
+
+    /**
+     * Marks the end of the input in the queue
+     */
+    private static final Instances END = new Instances("end", new ArrayList<>(), 0);
+
+    /**
+     * Loader to read from
+     */
+    private final AbstractFileLoader loader;
+
+    /**
+     * Header of the training data
+     */
+    private final Instances header;
+
+    /**
+     * Number of rows per batch
+     */
+    private final int batchSize;
+
+    /**
+     * Batches read ahead
+     */
+    private final BlockingQueue<Instances> batches;
+
+    /**
+     * The next batch, if already taken from the queue
+     */
+    private Instances next;
+
+    /**
+     * Failure of the reader, rethrown by the consumer
+     */
+    private volatile Exception failure;
+
+    /**
+     * Constructor.
+     *
+     * @param loader Loader to read from
+     * @param header Header of the training data
+     * @param batchSize Number of rows per batch
+     * @param readAhead Maximum number of batches read ahead
+     */
+    BatchReader(AbstractFileLoader loader, Instances header, int batchSize, int readAhead) {
+      super("Dl4jBatchScorer-reader");
+      setDaemon(true);
+      this.loader = loader;
+      this.header = header;
+      this.batchSize = batchSize;
+      this.batches = new ArrayBlockingQueue<>(readAhead);
+    }
+
+    @Override
+    public void run() {
+      try {
+        final Instances structure = loader.getStructure();
+        final int[] columns = new int[header.numAttributes()];
+        for (int j = 0; j < columns.length; j++) {
+          Attribute column = structure.attribute(header.attribute(j).name());
+          columns[j] = j == header.classIndex() || column == null ? -1 : column.index();
+        }
+
+        Instances batch = newBatch();
+        Instance row;
+        while ((row = loader.getNextInstance(structure)) != null) {
+          batch.add(toInstance(row, columns, batch));
+          if (batch.numInstances() == batchSize) {
+            batches.put(batch);
+            batch = newBatch();
+          }
+        }
+        if (batch.numInstances() > 0) {
+          batches.put(batch);
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (Exception e) {
+        failure = e;
+      }
+      try {
+        batches.put(END);
+      } catch (InterruptedException e) {
+        // Consumer has stopped
+      }
+    }
+
+    /**
+     * Create an empty batch. String and relational values are stored in the attributes of the
+     * batch, so that they are released together with the batch.
+     *
+     * @return Empty batch
+     */
+    private Instances newBatch() {
+      Instances batch = header.stringFreeStructure();
+      batch.setClassIndex(header.classIndex());
+      return batch;
+    }
+
+    /**
+     * Convert a row of the input file into an instance of the training data format.
+     *
+     * @param row Input row
+     * @param columns Input column of each attribute (-1 if absent)
+     * @param batch Batch the instance will be added to
+     * @return Instance
+     */
+    private Instance toInstance(Instance row, int[] columns, Instances batch) {
+      double[] values = new double[columns.length];
+      for (int j = 0; j < columns.length; j++) {
+        final int c = columns[j];
+        if (c < 0 || row.isMissing(c)) {
+          values[j] = Utils.missingValue();
+          continue;
+        }
+        final Attribute att = batch.attribute(j);
+        switch (att.type()) {
+          case Attribute.NOMINAL:
+            final int index = att.indexOfValue(row.attribute(c).isNumeric()
+                ? row.toString(c) : row.stringValue(c));
+            values[j] = index < 0 ? Utils.missingValue() : index;
+            break;
+          case Attribute.STRING:
+            values[j] = att.addStringValue(row.stringValue(c));
+            break;
+          case Attribute.RELATIONAL:
+            values[j] = att.addRelation(row.relationalValue(c));
+            break;
+          default:
+            values[j] = row.value(c);
+        }
+      }
+      return new DenseInstance(row.weight(), values);
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null) {
+        try {
+          next = batches.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while reading", e);
+        }
+      }
+      if (next == END) {
+        if (failure != null) {
+          throw new IllegalStateException("Could not read the input", failure);
+        }
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public Instances next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Instances batch = next;
+      next = null;
+      return batch;
+    }
+  }
+
+  @OptionMetadata(
+      displayName = "serialized model file",
+      description = "The trained Dl4jMlpClassifier or RnnSequenceClassifier to score with.",
+      commandLineParamName = "model-file",
+      commandLineParamSynopsis = "-model-file <file location>",
+      displayOrder = 0
+  )
+  public File getSerializedModelFile() {
+    return serializedModelFile;
+  }
+
+  public void setSerializedModelFile(File serializedModelFile) {
+    this.serializedModelFile = serializedModelFile;
+  }
+
+  @OptionMetadata(
+      displayName = "input file",
+      description = "The ARFF or CSV file to score.",
+      commandLineParamName = "i",
+      commandLineParamSynopsis = "-i <file location>",
+      displayOrder = 1
+  )
+  public File getInputFile() {
+    return inputFile;
+  }
+
+  public void setInputFile(File inputFile) {
+    this.inputFile = inputFile;
+  }
+
+  @OptionMetadata(
+      displayName = "output file",
+      description = "The ARFF or CSV file to write the predictions to.",
+      commandLineParamName = "o",
+      commandLineParamSynopsis = "-o <file location>",
+      displayOrder = 2
+  )
+  public File getOutputFile() {
+    return outputFile;
+  }
+
+  public void setOutputFile(File outputFile) {
+    this.outputFile = outputFile;
+  }
+
+  @OptionMetadata(
+      displayName = "batch size",
+      description = "Number of rows predicted together (default = 1024).",
+      commandLineParamName = "bs",
+      commandLineParamSynopsis = "-bs <int>",
+      displayOrder = 3
+  )
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  @OptionMetadata(
+      displayName = "number of workers",
+      description = "Number of network replicas predicting in parallel (default = number of "
+          + "processors).",
+      commandLineParamName = "workers",
+      commandLineParamSynopsis = "-workers <int>",
+      displayOrder = 4
+  )
+  public int getNumWorkers() {
+    return numWorkers;
+  }
+
+  public void setNumWorkers(int numWorkers) {
+    this.numWorkers = numWorkers;
+  }
+
+  /**
+   * Perform any setup stuff that might need to happen before execution.
+   *
+   * @throws Exception if a problem occurs during setup
+   */
+  @Override
+  public void preExecution() throws Exception {
+
+  }
+
+  /**
+   * Score the input file from the command line.
+   *
+   * @param toRun Object to run
+   * @param options Command line options
+   * @throws Exception invalid arguments.
+   */
+  private void commandLineRun(Object toRun, String[] options) throws Exception {
+    if (!(toRun instanceof Dl4jBatchScorer)) {
+      throw new IllegalArgumentException("Object to execute is not a Dl4jBatchScorer!");
+    }
+
+    final Dl4jBatchScorer scorer = (Dl4jBatchScorer) toRun;
+    try {
+      scorer.setOptions(options);
+      if (!weka.dl4j.Utils.notDefaultFileLocation(scorer.getSerializedModelFile())
+          || !weka.dl4j.Utils.notDefaultFileLocation(scorer.getInputFile())
+          || !weka.dl4j.Utils.notDefaultFileLocation(scorer.getOutputFile())) {
+        throw new WekaException("Please supply -model-file, -i and -o");
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      printInfo();
+      return;
+    }
+
+    final long numScored = scorer.score();
+    log.info("Wrote {} predictions to {}", numScored, scorer.getOutputFile());
+  }
+
+  /**
+   * Execute the supplied object.
+   *
+   * @param toRun the object to execute
+   * @param options any options to pass to the object
+   * @throws Exception if a problem occurs.
+   */
+  @Override
+  public void run(Object toRun, String[] options) throws Exception {
+    ClassLoader origLoader = Thread.currentThread().getContextClassLoader();
+    try {
+      Thread.currentThread().setContextClassLoader(this.getClass().getClassLoader());
+
+      commandLineRun(toRun, options);
+    } finally {
+      Thread.currentThread().setContextClassLoader(origLoader);
+    }
+  }
+
+  /**
+   * Print the usage options to standard err.
+   */
+  private void printInfo() {
+    System.err.println("\nUsage:\n" + "\tDl4jBatchScorer [options]\n"
+        + "\n" + "Options:\n");
+
+    Enumeration<Option> enm = new Dl4jBatchScorer().listOptions();
+    while (enm.hasMoreElements()) {
+      Option option = enm.nextElement();
+      System.err.println(option.synopsis());
+      System.err.println(option.description());
+    }
+  }
+
+  /**
+   * Perform any teardown stuff that might need to happen after execution.
+   *
+   * @throws Exception if a problem occurs during teardown
+   */
+  @Override
+  public void postExecution() throws Exception {
+
+  }
+
+  /**
+   * Returns an enumeration describing the available options.
+   *
+   * @return an enumeration of all the available options.
+   */
+  @Override
+  public Enumeration<Option> listOptions() {
+    return Option.listOptionsForClass(this.getClass()).elements();
+  }
+
+  /**
+   * Gets the current settings of the scorer.
+   *
+   * @return an array of strings suitable for passing to setOptions
+   */
+  @Override
+  public String[] getOptions() {
+    return Option.getOptionsForHierarchy(this, this.getClass());
+  }
+
+  /**
+   * Parses a given list of options.
+   *
+   * @param options the list of options as an array of strings
+   * @throws Exception if an option is not supported
+   */
+  public void setOptions(String[] options) throws Exception {
+    Option.setOptionsForHierarchy(options, this, this.getClass());
+    Utils.checkForRemainingOptions(options);
+  }
+
+  /**
+   * Main method for running this class.
+   *
+   * @param args the commandline parameters
+   */
+  public static void main(String[] args) throws Exception {
+    Dl4jBatchScorer scorer = new Dl4jBatchScorer();
+    scorer.run(scorer, args);
+  }
+}
@@ -0,0 +1,1083 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Dl4jInferenceServer.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.inference;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.log4j.Log4j2;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Attribute;
+import weka.core.CommandlineRunnable;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.OptionHandler;
+import weka.core.OptionMetadata;
+import weka.core.Utils;
+import weka.core.WekaException;
+import weka.core.json.JSONNode;
+import weka.dl4j.iterators.instance.AbstractInstanceIterator;
+import weka.dl4j.iterators.instance.ImageInstanceIterator;
+import weka.dl4j.iterators.instance.sequence.text.cnn.CnnTextFilesEmbeddingInstanceIterator;
+import weka.dl4j.iterators.instance.sequence.text.rnn.RnnTextFilesEmbeddingInstanceIterator;
+
+/**
+ * Serves predictions of serialized Dl4jMlpClassifier (or RnnSequenceClassifier) models over HTTP on
+ * the local machine.
+ * <p>
+ * Every model gets a {@link MicroBatcher}, so the instances of concurrent requests (from any
+ * connection) are predicted together in dynamically sized batches. Before the server reports
+ * ready, each model is warmed up with batches of synthetic instances, so that the JIT has compiled
+ * the prediction path and the workspaces have learned their sizes. The synthetic instances are
+ * zero for numeric attributes, the first label of nominal attributes and a relation with one such
+ * row for relational attributes. String attributes get the name of the first file of the image or
+ * text directory if the model reads files, and a short text otherwise. If the warm-up fails,
+ * {@link #start()} fails.
+ * <p>
+ * Endpoints:
+ * <ul>
+ * <li>{@code POST /models/<name>/predict}: predictions of the given instances. With content type
+ * {@code application/json}, the body is {@code {"instances": [[v1, v2, ...], ...]}} with one value
+ * per attribute of the training data (the class value may be left out): numbers, nominal labels,
+ * strings for string attributes (e.g. a text, or an image file name relative to the image
+ * directory of the model), arrays of rows of such values for relational attributes, or null for
+ * missing values; the answer is {@code {"predictions": [[p1, p2, ...], ...]}}. With content type
+ * {@code application/octet-stream} (only for models without string and relational attributes),
+ * the body is the number of instances and of values per instance (big-endian int32 each) followed
+ * by the values (big-endian float64, NaN for missing, nominal values as indices); the answer has
+ * the same layout with one row per instance. A request may hold at most as many instances as the
+ * queue of a model; malformed requests are answered with status 400.</li>
+ * <li>{@code GET /models}: attributes and class values of the served models.</li>
+ * <li>{@code GET /metrics}: request, batching and queueing metrics per model.</li>
+ * <li>{@code GET /health}: 200 once ready, 503 while warming up.</li>
+ * </ul>
+ */
+@Log4j2
+public class Dl4jInferenceServer implements Serializable, OptionHandler, CommandlineRunnable {
+
+  /**
+   * The ID used to serialize this class
+   */
+  private static final long serialVersionUID = -8219630460618429575L;
+
+  /**
+   * Content type of binary payloads
+   */
+  public static final String BINARY_CONTENT_TYPE = "application/octet-stream";
+
+  /**
+   * Content type of JSON payloads
+   */
+  public static final String JSON_CONTENT_TYPE = "application/json";
+
+  /**
+   * Comma-separated list of serialized model files
+   */
+  protected String modelFiles = "";
+
+  /**
+   * Address to bind to
+   */
+  protected String host = "127.0.0.1";
+
+  /**
+   * Port to listen on (0 for any free port)
+   */
+  protected int port = 8080;
+
+  /**
+   * Number of threads handling connections
+   */
+  protected int numHandlerThreads = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Maximum number of instances per batch
+   */
+  protected int maxBatchSize = 32;
+
+  /**
+   * Maximum time the oldest request of a batch waits for further requests, in microseconds
+   */
+  protected int maxWaitMicros = 1000;
+
+  /**
+   * Maximum number of queued instances per model
+   */
+  protected int queueCapacity = 4096;
+
+  /**
+   * Number of inference workers (network replicas) per model
+   */
+  protected int numWorkers = 1;
+
+  /**
+   * Number of full batches predicted per model before the server reports ready
+   */
+  protected int numWarmupBatches = 50;
+
+  /**
+   * Served models by name
+   */
+  protected transient Map<String, ServedModel> models = new LinkedHashMap<>();
+
+  /**
+   * The HTTP server
+   */
+  protected transient HttpServer server;
+
+  /**
+   * Executor handling the connections
+   */
+  protected transient ExecutorService handlers;
+
+  /**
+   * Whether all models have been warmed up
+   */
+  protected transient volatile boolean ready;
+
+  /**
+   * Released when the server stops
+   */
+  protected transient CountDownLatch stopped;
+
+  /**
+   * Add a trained model to serve. Models given in the options are added by {@link #start()}.
+   *
+   * @param name Name of the model in the request path
+   * @param classifier Trained classifier
+   * @throws WekaException The classifier has not been trained
+   */
+  public void addModel(String name, Dl4jMlpClassifier classifier) throws WekaException {
+    Instances header = classifier.getInputFormat();
+    if (header == null) {
+      throw new WekaException("Model " + name + " has not been trained.");
+    }
+    if (models == null) {
+      models = new LinkedHashMap<>();
+    }
+    models.put(name, new ServedModel(name, classifier, header));
+  }
+
+  /**
+   * Load the models, warm them up and start serving.
+   *
+   * @throws Exception Could not load a model, bind the server or warm up a model
+   */
+  public void start() throws Exception {
+    for (String path : modelFiles.split(",")) {
+      if (path.trim().isEmpty()) {
+        continue;
+      }
+      File file = new File(path.trim());
+      String name = file.getName().replaceFirst("\\.[^.]*$", "");
+      log.info("Loading model {} from {}", name, file);
+      addModel(name, Dl4jMlpClassifier.tryLoadFromFile(file, null));
+    }
+    if (models == null || models.isEmpty()) {
+      throw new WekaException("No models to serve, please supply -models <file,...>");
+    }
+
+    stopped = new CountDownLatch(1);
+    handlers = Executors.newFixedThreadPool(Math.max(1, numHandlerThreads));
+    server = HttpServer.create(new InetSocketAddress(host, port), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(handlers);
+    server.start();
+    log.info("Listening on {}:{}, warming up", host, getListeningPort());
+
+    for (ServedModel model : models.values()) {
+      model.batcher = new MicroBatcher(model.classifier, maxBatchSize, maxWaitMicros,
+          queueCapacity, numWorkers);
+      try {
+        model.warmUp(numWarmupBatches, maxBatchSize);
+      } catch (Exception e) {
+        stop();
+        throw new WekaException("Warm-up of model " + model.name + " failed: " + e.getMessage(),
+            e);
+      }
+    }
+    ready = true;
+    log.info("Ready, serving {}", models.keySet());
+  }
+
+  /**
+   * Stop serving and release the workers.
+   */
+  public void stop() {
+    ready = false;
+    if (server != null) {
+      server.stop(0);
+      server = null;
+    }
+    if (handlers != null) {
+      handlers.shutdownNow();
+      handlers = null;
+    }
+    if (models != null) {
+      for (ServedModel model : models.values()) {
+        if (model.batcher != null) {
+          model.batcher.close();
+          model.batcher = null;
+        }
+      }
+    }
+    if (stopped != null) {
+      stopped.countDown();
+    }
+  }
+
+  /**
+   * Wait until the server has been stopped.
+   *
+   * @throws InterruptedException Interrupted while waiting
+   */
+  public void awaitStop() throws InterruptedException {
+    stopped.await();
+  }
+
+  /**
+   * Whether the server has been started and all models are warmed up.
+   *
+   * @return True if ready
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Get the port the server listens on (the actual one if started with port 0).
+   *
+   * @return Port
+   */
+  public int getListeningPort() {
+    return server == null ? port : server.getAddress().getPort();
+  }
+
+  /**
+   * Dispatch a request.
+   *
+   * @param exchange HTTP exchange
+   * @throws IOException Could not answer
+   */
+  protected void handle(HttpExchange exchange) throws IOException {
+    try {
+      final String path = exchange.getRequestURI().getPath();
+      final String method = exchange.getRequestMethod();
+      if (path.equals("/health")) {
+        respond(exchange, ready ? 200 : 503, "text/plain", ready ? "ready" : "warming up");
+      } else if (path.equals("/metrics") && method.equals("GET")) {
+        respond(exchange, 200, JSON_CONTENT_TYPE, metricsToJson());
+      } else if (path.equals("/models") && method.equals("GET")) {
+        respond(exchange, 200, JSON_CONTENT_TYPE, modelsToJson());
+      } else if (path.startsWith("/models/") && path.endsWith("/predict")
+          && method.equals("POST")) {
+        String name = path.substring("/models/".length(), path.length() - "/predict".length());
+        ServedModel model = models.get(name);
+        if (model == null) {
+          respond(exchange, 404, "text/plain", "Unknown model: " + name);
+        } else if (!ready) {
+          respond(exchange, 503, "text/plain", "warming up");
+        } else {
+          predict(exchange, model);
+        }
+      } else {
+        respond(exchange, 404, "text/plain", "Not found: " + method + " " + path);
+      }
+    } catch (Exception e) {
+      log.debug("Request failed", e);
+      // A response that has already been started (e.g. failed while writing) is only closed
+      if (exchange.getResponseCode() == -1) {
+        respond(exchange, 500, "text/plain", String.valueOf(e.getMessage()));
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Predict the instances of a request.
+   *
+   * @param exchange HTTP exchange
+   * @param model Model to use
+   * @throws Exception Could not read the request or answer
+   */
+  protected void predict(HttpExchange exchange, ServedModel model) throws Exception {
+    final String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    final boolean binary = contentType != null && contentType.startsWith(BINARY_CONTENT_TYPE);
+
+    final Instance[] insts;
+    try {
+      insts = binary ? model.readBinary(exchange, queueCapacity)
+          : model.readJson(exchange, queueCapacity);
+    } catch (IllegalArgumentException e) {
+      model.errors.incrementAndGet();
+      respond(exchange, 400, "text/plain", e.getMessage());
+      return;
+    }
+
+    List<CompletableFuture<double[]>> futures = new ArrayList<>(insts.length);
+    for (Instance inst : insts) {
+      CompletableFuture<double[]> future = model.batcher.trySubmit(inst);
+      if (future.isCompletedExceptionally()) {
+        // Rejected: the instances accepted so far are not predicted either
+        for (CompletableFuture<double[]> accepted : futures) {
+          accepted.cancel(false);
+        }
+        model.errors.incrementAndGet();
+        respond(exchange, 503, "text/plain", "Too many queued instances, retry later");
+        return;
+      }
+      futures.add(future);
+    }
+    double[][] preds = new double[insts.length][];
+    try {
+      for (int i = 0; i < preds.length; i++) {
+        preds[i] = futures.get(i).get();
+      }
+    } catch (ExecutionException e) {
+      model.errors.incrementAndGet();
+      throw e;
+    }
+    model.requests.incrementAndGet();
+
+    if (binary) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + 8 * preds.length
+          * model.header.numClasses());
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(preds.length);
+      out.writeInt(model.header.numClasses());
+      for (double[] pred : preds) {
+        for (double p : pred) {
+          out.writeDouble(p);
+        }
+      }
+      out.flush();
+      respond(exchange, 200, BINARY_CONTENT_TYPE, bytes.toByteArray());
+    } else {
+      StringBuilder json = new StringBuilder("{\"predictions\": [");
+      for (int i = 0; i < preds.length; i++) {
+        json.append(i == 0 ? "" : ", ");
+        appendArray(json, preds[i]);
+      }
+      json.append("]}");
+      respond(exchange, 200, JSON_CONTENT_TYPE, json.toString());
+    }
+  }
+
+  /**
+   * Answer a request with a text body.
+   */
+  private static void respond(HttpExchange exchange, int status, String contentType, String body)
+      throws IOException {
+    respond(exchange, status, contentType, body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Answer a request.
+   */
+  private static void respond(HttpExchange exchange, int status, String contentType, byte[] body)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  /**
+   * Append an array of numbers as JSON (NaN as null).
+   */
+  private static void appendArray(StringBuilder json, double[] values) {
+    json.append('[');
+    for (int j = 0; j < values.length; j++) {
+      json.append(j == 0 ? "" : ", ");
+      json.append(Double.isNaN(values[j]) ? "null" : String.valueOf(values[j]));
+    }
+    json.append(']');
+  }
+
+  /**
+   * Append an array of counts as JSON.
+   */
+  private static void appendArray(StringBuilder json, long[] values) {
+    json.append('[');
+    for (int j = 0; j < values.length; j++) {
+      json.append(j == 0 ? "" : ", ").append(values[j]);
+    }
+    json.append(']');
+  }
+
+  /**
+   * Quote a string as JSON.
+   */
+  private static String quote(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /**
+   * Describe the served models as JSON.
+   *
+   * @return JSON
+   */
+  protected String modelsToJson() {
+    StringBuilder json = new StringBuilder("{");
+    int m = 0;
+    for (ServedModel model : models.values()) {
+      json.append(m++ == 0 ? "" : ", ").append(quote(model.name)).append(": {\"attributes\": [");
+      for (int j = 0; j < model.header.numAttributes(); j++) {
+        json.append(j == 0 ? "" : ", ").append(quote(model.header.attribute(j).name()));
+      }
+      json.append("], \"classIndex\": ").append(model.header.classIndex()).append(", \"classes\": [");
+      if (model.header.classAttribute().isNominal()) {
+        for (int k = 0; k < model.header.numClasses(); k++) {
+          json.append(k == 0 ? "" : ", ").append(quote(model.header.classAttribute().value(k)));
+        }
+      }
+      json.append("]}");
+    }
+    return json.append('}').toString();
+  }
+
+  /**
+   * Describe the metrics of the served models as JSON.
+   *
+   * @return JSON
+   */
+  protected String metricsToJson() {
+    StringBuilder json = new StringBuilder("{\"ready\": ").append(ready).append(", \"models\": {");
+    int m = 0;
+    for (ServedModel model : models.values()) {
+      json.append(m++ == 0 ? "" : ", ").append(quote(model.name)).append(": {");
+      json.append("\"requests\": ").append(model.requests.get());
+      json.append(", \"errors\": ").append(model.errors.get());
+      MicroBatcher batcher = model.batcher;
+      if (batcher != null) {
+        MicroBatcher.Metrics metrics = batcher.getMetrics();
+        json.append(", \"instances\": ").append(metrics.getNumRequests());
+        json.append(", \"batches\": ").append(metrics.getNumBatches());
+        json.append(", \"meanBatchSize\": ").append(metrics.getMeanBatchSize());
+        json.append(", \"meanQueueingDelayMicros\": ").append(metrics.getMeanDelayMicros());
+        json.append(", \"maxQueueingDelayMicros\": ").append(metrics.getMaxDelayMicros());
+        json.append(", \"rejected\": ").append(metrics.getNumRejected());
+        json.append(", \"queueLength\": ").append(batcher.getQueueLength());
+        json.append(", \"batchSizeCounts\": ");
+        appendArray(json, metrics.getBatchSizeCounts());
+        json.append(", \"queueingDelayLog2MicrosCounts\": ");
+        appendArray(json, metrics.getDelayCounts());
+      }
+      json.append('}');
+    }
+    return json.append("}}").toString();
+  }
+
+  /**
+   * A served model.
+   */
+  protected static class ServedModel {
+
+    /**
+     * Name in the request path
+     */
+    final String name;
+
+    /**
+     * The classifier
+     */
+    final Dl4jMlpClassifier classifier;
+
+    /**
+     * Header of the instances to predict
+     */
+    final Instances header;
+
+    /**
+     * Whether the header has string or relational attributes, whose values are stored in a copy of
+     * the header per request
+     */
+    final boolean hasStringOrRelational;
+
+    /**
+     * Batches the instances of all requests
+     */
+    volatile MicroBatcher batcher;
+
+    /**
+     * Number of answered prediction requests
+     */
+    final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Number of failed prediction requests
+     */
+    final AtomicLong errors = new AtomicLong();
+
+    ServedModel(String name, Dl4jMlpClassifier classifier, Instances header) {
+      this.name = name;
+      this.classifier = classifier;
+      this.header = header;
+      this.hasStringOrRelational = header.checkForStringAttributes()
+          || header.checkForAttributeType(Attribute.RELATIONAL);
+    }
+
+    /**
+     * Predict batches of a synthetic instance until the prediction path is compiled and the
+     * workspaces are sized.
+     *
+     * @param numBatches Number of batches
+     * @param batchSize Size of a batch
+     * @throws Exception The synthetic instance could not be created or predicted
+     */
+    void warmUp(int numBatches, int batchSize) throws Exception {
+      final Instances dataset = newDataset();
+      double[] values = new double[header.numAttributes()];
+      for (int j = 0; j < values.length; j++) {
+        values[j] = j == header.classIndex() ? Utils.missingValue()
+            : warmUpValue(dataset.attribute(j));
+      }
+      final Instance inst = toInstance(values, dataset);
+      for (int b = 0; b < numBatches; b++) {
+        List<CompletableFuture<double[]>> futures = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+          futures.add(batcher.submit(inst));
+        }
+        for (CompletableFuture<double[]> future : futures) {
+          try {
+            future.get();
+          } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+          }
+        }
+      }
+    }
+
+    /**
+     * Get a valid value of the given attribute for the warm-up instance.
+     *
+     * @param attribute Attribute of the dataset of the instance
+     * @return Value
+     * @throws WekaException No file to read for a string attribute
+     */
+    double warmUpValue(Attribute attribute) throws WekaException {
+      if (attribute.isNominal()) {
+        return 0;
+      } else if (attribute.isString()) {
+        return attribute.addStringValue(warmUpString());
+      } else if (attribute.isRelationValued()) {
+        Instances relation = new Instances(attribute.relation(), 1);
+        double[] values = new double[relation.numAttributes()];
+        for (int j = 0; j < values.length; j++) {
+          if (relation.attribute(j).isString() || relation.attribute(j).isRelationValued()) {
+            values[j] = Utils.missingValue();
+          } else {
+            values[j] = warmUpValue(relation.attribute(j));
+          }
+        }
+        relation.add(new DenseInstance(1.0, values));
+        return attribute.addRelation(relation);
+      }
+      return 0;
+    }
+
+    /**
+     * Get a valid string value for the warm-up instance: the name of the first file of the image
+     * or text directory if the model reads its inputs from files, a short text otherwise.
+     *
+     * @return String value
+     * @throws WekaException The directory of the model has no files
+     */
+    String warmUpString() throws WekaException {
+      final AbstractInstanceIterator iterator = classifier.getInstanceIterator();
+      File directory = null;
+      if (iterator instanceof ImageInstanceIterator) {
+        directory = ((ImageInstanceIterator) iterator).getImagesLocation();
+      } else if (iterator instanceof CnnTextFilesEmbeddingInstanceIterator) {
+        directory = ((CnnTextFilesEmbeddingInstanceIterator) iterator).getTextsLocation();
+      } else if (iterator instanceof RnnTextFilesEmbeddingInstanceIterator) {
+        directory = ((RnnTextFilesEmbeddingInstanceIterator) iterator).getTextsLocation();
+      }
+      if (directory == null) {
+        return "warm up";
+      }
+      String[] files = directory.list((dir, file) -> new File(dir, file).isFile());
+      if (files == null || files.length == 0) {
+        throw new WekaException("No file in " + directory + " to warm up with");
+      }
+      Arrays.sort(files);
+      return files[0];
+    }
+
+    /**
+     * Get the dataset of the instances of a request: a copy of the header that stores the string
+     * and relational values of the request, or the header itself if there are none.
+     *
+     * @return Dataset
+     */
+    Instances newDataset() {
+      return hasStringOrRelational ? header.stringFreeStructure() : header;
+    }
+
+    /**
+     * Create an instance of the header from the given values.
+     *
+     * @param values Values of all attributes or of all attributes but the class
+     * @param dataset Dataset of the instance (see {@link #newDataset()})
+     * @return Instance
+     */
+    Instance toInstance(double[] values, Instances dataset) {
+      final int numAttributes = header.numAttributes();
+      double[] full = values;
+      if (values.length == numAttributes - 1) {
+        // Class left out
+        full = new double[numAttributes];
+        final int classIndex = header.classIndex();
+        System.arraycopy(values, 0, full, 0, classIndex);
+        full[classIndex] = Utils.missingValue();
+        System.arraycopy(values, classIndex, full, classIndex + 1, values.length - classIndex);
+      } else {
+        checkNumValues(values.length);
+      }
+      Instance inst = new DenseInstance(1.0, full);
+      inst.setDataset(dataset);
+      return inst;
+    }
+
+    /**
+     * Check that an instance has a value for every attribute, or for every attribute but the class.
+     */
+    void checkNumValues(int numValues) {
+      final int numAttributes = header.numAttributes();
+      if (numValues != numAttributes && numValues != numAttributes - 1) {
+        throw new IllegalArgumentException(String.format(
+            "Expected %d values (or %d without the class) but got %d", numAttributes,
+            numAttributes - 1, numValues));
+      }
+    }
+
+    /**
+     * Check the number of instances of a request.
+     */
+    static void checkNumInstances(int numInstances, int maxInstances) {
+      if (numInstances < 0) {
+        throw new IllegalArgumentException("Negative number of instances");
+      } else if (numInstances > maxInstances) {
+        throw new IllegalArgumentException(String.format(
+            "A request may hold at most %d instances but has %d", maxInstances, numInstances));
+      }
+    }
+
+    /**
+     * Read the instances of a binary request.
+     */
+    Instance[] readBinary(HttpExchange exchange, int maxInstances) throws IOException {
+      if (hasStringOrRelational) {
+        throw new IllegalArgumentException("Model " + name + " has string or relational "
+            + "attributes, please send JSON");
+      }
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          exchange.getRequestBody()));
+      final int numInstances = in.readInt();
+      final int numValues = in.readInt();
+      checkNumInstances(numInstances, maxInstances);
+      checkNumValues(numValues);
+      Instance[] insts = new Instance[numInstances];
+      for (int i = 0; i < numInstances; i++) {
+        double[] values = new double[numValues];
+        for (int j = 0; j < numValues; j++) {
+          values[j] = in.readDouble();
+        }
+        insts[i] = toInstance(values, header);
+      }
+      return insts;
+    }
+
+    /**
+     * Read the instances of a JSON request.
+     */
+    Instance[] readJson(HttpExchange exchange, int maxInstances) throws IOException {
+      JSONNode root;
+      try (BufferedReader reader = new BufferedReader(
+          new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+        root = JSONNode.read(reader);
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        // The parser reports syntax errors with plain exceptions
+        throw new IllegalArgumentException("Malformed JSON: " + e.getMessage(), e);
+      }
+      JSONNode rows = root == null ? null : root.getChild("instances");
+      if (rows == null || !rows.isArray()) {
+        throw new IllegalArgumentException("Expected {\"instances\": [[...], ...]}");
+      }
+      checkNumInstances(rows.getChildCount(), maxInstances);
+
+      // String and relational values of all instances of the request
+      final Instances dataset = newDataset();
+      Instance[] insts = new Instance[rows.getChildCount()];
+      for (int i = 0; i < insts.length; i++) {
+        JSONNode row = (JSONNode) rows.getChildAt(i);
+        checkNumValues(row.getChildCount());
+        final boolean withClass = row.getChildCount() == header.numAttributes();
+        double[] values = new double[row.getChildCount()];
+        for (int j = 0; j < values.length; j++) {
+          final int att = withClass || j < header.classIndex() ? j : j + 1;
+          values[j] = parseValue((JSONNode) row.getChildAt(j), dataset.attribute(att), true);
+        }
+        insts[i] = toInstance(values, dataset);
+      }
+      return insts;
+    }
+
+    /**
+     * Parse a JSON value of the given attribute.
+     *
+     * @param node JSON value
+     * @param attribute Attribute of the dataset of the instance
+     * @param topLevel Whether the attribute is not part of a relation (strings are only supported
+     * at the top level)
+     * @return Value (an index into the values of string and relational attributes)
+     */
+    double parseValue(JSONNode node, Attribute attribute, boolean topLevel) {
+      if (attribute.isRelationValued() && node.isArray()) {
+        Instances relation = new Instances(attribute.relation(), node.getChildCount());
+        final int numAttributes = relation.numAttributes();
+        for (int i = 0; i < node.getChildCount(); i++) {
+          JSONNode row = (JSONNode) node.getChildAt(i);
+          if (!row.isArray() || row.getChildCount() != numAttributes) {
+            throw new IllegalArgumentException(String.format(
+                "Expected rows of %d values for attribute %s", numAttributes, attribute.name()));
+          }
+          double[] values = new double[numAttributes];
+          for (int j = 0; j < numAttributes; j++) {
+            values[j] = parseValue((JSONNode) row.getChildAt(j), relation.attribute(j), false);
+          }
+          relation.add(new DenseInstance(1.0, values));
+        }
+        return attribute.addRelation(relation);
+      }
+
+      final Object value = node.getValue();
+      if (value == null && !node.isArray() && !node.isObject()) {
+        return Utils.missingValue();
+      } else if (value instanceof Number && (attribute.isNumeric() || attribute.isNominal())) {
+        return ((Number) value).doubleValue();
+      } else if (value instanceof String && attribute.isNominal()) {
+        final int index = attribute.indexOfValue((String) value);
+        if (index < 0) {
+          throw new IllegalArgumentException(String.format("Unknown value '%s' of attribute %s",
+              value, attribute.name()));
+        }
+        return index;
+      } else if (value instanceof String && attribute.isString() && topLevel) {
+        return attribute.addStringValue((String) value);
+      }
+      throw new IllegalArgumentException(String.format("Unsupported value '%s' of attribute %s",
+          value, attribute.name()));
+    }
+  }
+
+  @OptionMetadata(
+      displayName = "model files",
+      description = "Comma-separated list of serialized models to serve, each under its file name "
+          + "without extension.",
+      commandLineParamName = "models",
+      commandLineParamSynopsis = "-models <file,...>",
+      displayOrder = 0
+  )
+  public String getModelFiles() {
+    return modelFiles;
+  }
+
+  public void setModelFiles(String modelFiles) {
+    this.modelFiles = modelFiles;
+  }
+
+  @OptionMetadata(
+      displayName = "host",
+      description = "Address to bind to (default = 127.0.0.1).",
+      commandLineParamName = "host",
+      commandLineParamSynopsis = "-host <address>",
+      displayOrder = 1
+  )
+  public String getHost() {
+    return host;
+  }
+
+  public void setHost(String host) {
+    this.host = host;
+  }
+
+  @OptionMetadata(
+      displayName = "port",
+      description = "Port to listen on, 0 for any free port (default = 8080).",
+      commandLineParamName = "port",
+      commandLineParamSynopsis = "-port <int>",
+      displayOrder = 2
+  )
+  public int getPort() {
+    return port;
+  }
+
+  public void setPort(int port) {
+    this.port = port;
+  }
+
+  @OptionMetadata(
+      displayName = "number of handler threads",
+      description = "Number of threads handling connections (default = number of processors).",
+      commandLineParamName = "handlers",
+      commandLineParamSynopsis = "-handlers <int>",
+      displayOrder = 3
+  )
+  public int getNumHandlerThreads() {
+    return numHandlerThreads;
+  }
+
+  public void setNumHandlerThreads(int numHandlerThreads) {
+    this.numHandlerThreads = numHandlerThreads;
+  }
+
+  @OptionMetadata(
+      displayName = "maximum batch size",
+      description = "Maximum number of instances predicted together (default = 32).",
+      commandLineParamName = "max-batch",
+      commandLineParamSynopsis = "-max-batch <int>",
+      displayOrder = 4
+  )
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  public void setMaxBatchSize(int maxBatchSize) {
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  @OptionMetadata(
+      displayName = "maximum wait (microseconds)",
+      description = "Maximum time an instance waits for further instances to batch with "
+          + "(default = 1000).",
+      commandLineParamName = "max-wait",
+      commandLineParamSynopsis = "-max-wait <int>",
+      displayOrder = 5
+  )
+  public int getMaxWaitMicros() {
+    return maxWaitMicros;
+  }
+
+  public void setMaxWaitMicros(int maxWaitMicros) {
+    this.maxWaitMicros = maxWaitMicros;
+  }
+
+  @OptionMetadata(
+      displayName = "queue capacity",
+      description = "Maximum number of queued instances per model, further requests are answered "
+          + "with 503 (default = 4096).",
+      commandLineParamName = "queue",
+      commandLineParamSynopsis = "-queue <int>",
+      displayOrder = 6
+  )
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  public void setQueueCapacity(int queueCapacity) {
+    this.queueCapacity = queueCapacity;
+  }
+
+  @OptionMetadata(
+      displayName = "number of workers",
+      description = "Number of inference workers (network replicas) per model (default = 1).",
+      commandLineParamName = "workers",
+      commandLineParamSynopsis = "-workers <int>",
+      displayOrder = 7
+  )
+  public int getNumWorkers() {
+    return numWorkers;
+  }
+
+  public void setNumWorkers(int numWorkers) {
+    this.numWorkers = numWorkers;
+  }
+
+  @OptionMetadata(
+      displayName = "number of warm-up batches",
+      description = "Number of full batches predicted per model before the server reports ready "
+          + "(default = 50).",
+      commandLineParamName = "warmup",
+      commandLineParamSynopsis = "-warmup <int>",
+      displayOrder = 8
+  )
+  public int getNumWarmupBatches() {
+    return numWarmupBatches;
+  }
+
+  public void setNumWarmupBatches(int numWarmupBatches) {
+    this.numWarmupBatches = numWarmupBatches;
+  }
+
+  /**
+   * Perform any setup stuff that might need to happen before execution.
+   *
+   * @throws Exception if a problem occurs during setup
+   */
+  @Override
+  public void preExecution() throws Exception {
+
+  }
+
+  /**
+   * Run the server from the command line until the process is terminated.
+   *
+   * @param toRun Object to run
+   * @param options Command line options
+   * @throws Exception invalid arguments.
+   */
+  private void commandLineRun(Object toRun, String[] options) throws Exception {
+    if (!(toRun instanceof Dl4jInferenceServer)) {
+      throw new IllegalArgumentException("Object to execute is not a Dl4jInferenceServer!");
+    }
+
+    final Dl4jInferenceServer server = (Dl4jInferenceServer) toRun;
+    try {
+      server.setOptions(options);
+      if (server.getModelFiles().trim().isEmpty()) {
+        throw new WekaException("Please supply the models to serve with -models <file,...>");
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      printInfo();
+      return;
+    }
+
+    Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+    server.start();
+    System.out.println("Dl4jInferenceServer ready on http://" + server.getHost() + ":"
+        + server.getListeningPort());
+    server.awaitStop();
+  }
+
+  /**
+   * Execute the supplied object.
+   *
+   * @param toRun the object to execute
+   * @param options any options to pass to the object
+   * @throws Exception if a problem occurs.
+   */
+  @Override
+  public void run(Object toRun, String[] options) throws Exception {
+    ClassLoader origLoader = Thread.currentThread().getContextClassLoader();
+    try {
+      Thread.currentThread().setContextClassLoader(this.getClass().getClassLoader());
+
+      commandLineRun(toRun, options);
+    } finally {
+      Thread.currentThread().setContextClassLoader(origLoader);
+    }
+  }
+
+  /**
+   * Print the usage options to standard err.
+   */
+  private void printInfo() {
+    System.err.println("\nUsage:\n" + "\tDl4jInferenceServer [options]\n"
+        + "\n" + "Options:\n");
+
+    Enumeration<Option> enm = new Dl4jInferenceServer().listOptions();
+    while (enm.hasMoreElements()) {
+      Option option = enm.nextElement();
+      System.err.println(option.synopsis());
+      System.err.println(option.description());
+    }
+  }
+
+  /**
+   * Perform any teardown stuff that might need to happen after execution.
+   *
+   * @throws Exception if a problem occurs during teardown
+   */
+  @Override
+  public void postExecution() throws Exception {
+
+  }
+
+  /**
+   * Returns an enumeration describing the available options.
+   *
+   * @return an enumeration of all the available options.
+   */
+  @Override
+  public Enumeration<Option> listOptions() {
+    return Option.listOptionsForClass(this.getClass()).elements();
+  }
+
+  /**
+   * Gets the current settings of the server.
+   *
+   * @return an array of strings suitable for passing to setOptions
+   */
+  @Override
+  public String[] getOptions() {
+    return Option.getOptionsForHierarchy(this, this.getClass());
+  }
+
+  /**
+   * Parses a given list of options.
+   *
+   * @param options the list of options as an array of strings
+   * @throws Exception if an option is not supported
+   */
+  public void setOptions(String[] options) throws Exception {
+    Option.setOptionsForHierarchy(options, this, this.getClass());
+    Utils.checkForRemainingOptions(options);
+  }
+
+  /**
+   * Main method for running this class.
+   *
+   * @param args the commandline parameters
+   */
+  public static void main(String[] args) throws Exception {
+    Dl4jInferenceServer server = new Dl4jInferenceServer();
+    server.run(server, args);
+  }
+}
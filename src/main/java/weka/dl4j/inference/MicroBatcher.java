@@ -0,0 +1,578 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * MicroBatcher.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.inference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import lombok.extern.log4j.Log4j2;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RelationalLocator;
+import weka.core.StringLocator;
+
+/**
+ * Collects concurrent single-instance predictions into mini-batches.
+ * <p>
+ * Callers submit instances and receive a future of the prediction. Worker threads, each owning a
+ * network replica (see {@link ReplicaPool#createReplica(ComputationGraph)}), take the queued
+ * requests and predict up to {@code maxBatchSize} of them in one forward pass. A batch is started
+ * as soon as it is full or the oldest request in it has waited {@code maxWaitMicros}. The request
+ * queue is bounded: {@link #submit(Instance)} blocks while it is full, {@link #trySubmit(Instance)}
+ * rejects the request instead.
+ * <p>
+ * If the classifier supports row prediction (see
+ * {@link Dl4jMlpClassifier#supportsRowPrediction()}), the instances are preprocessed directly into
+ * a preallocated input array. Otherwise (e.g. for the RnnSequenceClassifier) the batch is
+ * predicted as an Instances object, so all instances of a batch must have the same structure. Their
+ * string and relational values may be stored in different copies of the header (e.g. one per
+ * request) and are copied into the batch.
+ * Submitted instances must not be modified until their prediction has completed. Requests whose
+ * future is cancelled before their batch is predicted are skipped.
+ */
+@Log4j2
+public class MicroBatcher implements AutoCloseable {
+
+  /**
+   * Number of buckets of the queueing delay histogram (powers of two in microseconds)
+   */
+  public static final int NUM_DELAY_BUCKETS = 24;
+
+  /**
+   * The trained classifier
+   */
+  protected final Dl4jMlpClassifier classifier;
+
+  /**
+   * Maximum number of instances per batch
+   */
+  protected final int maxBatchSize;
+
+  /**
+   * Maximum time the oldest request of a batch waits for further requests, in nanoseconds
+   */
+  protected final long maxWaitNanos;
+
+  /**
+   * Queued requests
+   */
+  protected final BlockingQueue<Request> queue;
+
+  /**
+   * Worker threads
+   */
+  protected final List<Thread> workers = new ArrayList<>();
+
+  /**
+   * Metrics
+   */
+  protected final Metrics metrics;
+
+  /**
+   * Whether the batcher has been closed
+   */
+  protected volatile boolean closed;
+
+  /**
+   * Constructor with a single worker.
+   *
+   * @param classifier Trained classifier
+   * @param maxBatchSize Maximum number of instances per batch
+   * @param maxWaitMicros Maximum time the oldest request of a batch waits for further requests
+   * @param queueCapacity Maximum number of queued requests
+   */
+  public MicroBatcher(Dl4jMlpClassifier classifier, int maxBatchSize, long maxWaitMicros,
+      int queueCapacity) {
+    this(classifier, maxBatchSize, maxWaitMicros, queueCapacity, 1);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param classifier Trained classifier
+   * @param maxBatchSize Maximum number of instances per batch
+   * @param maxWaitMicros Maximum time the oldest request of a batch waits for further requests
+   * @param queueCapacity Maximum number of queued requests
+   * @param numWorkers Number of worker threads, each with its own network replica
+   */
+  public MicroBatcher(Dl4jMlpClassifier classifier, int maxBatchSize, long maxWaitMicros,
+      int queueCapacity, int numWorkers) {
+    if (maxBatchSize < 1 || queueCapacity < 1 || numWorkers < 1 || maxWaitMicros < 0) {
+      throw new IllegalArgumentException("Batch size, queue capacity and number of workers must "
+          + "be positive, the wait time must not be negative.");
+    }
+    this.classifier = classifier;
+    this.maxBatchSize = maxBatchSize;
+    this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.metrics = new Metrics(maxBatchSize);
+
+    final ComputationGraph model = classifier.getModel();
+    for (int i = 0; i < numWorkers; i++) {
+      final ComputationGraph replica = model == null ? null : ReplicaPool.createReplica(model);
+      Thread worker = new Thread(() -> work(replica), "MicroBatcher-worker-" + i);
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   * Submit an instance, waiting while the queue is full.
+   *
+   * @param inst Instance to predict
+   * @return Future of the class probability estimates or the numeric prediction
+   * @throws InterruptedException Interrupted while waiting for space in the queue
+   */
+  public CompletableFuture<double[]> submit(Instance inst) throws InterruptedException {
+    checkOpen();
+    Request request = new Request(inst);
+    queue.put(request);
+    cancelIfClosed(request);
+    return request.future;
+  }
+
+  /**
+   * Submit an instance if the queue is not full.
+   *
+   * @param inst Instance to predict
+   * @return Future of the prediction, completed exceptionally with a
+   * {@link RejectedExecutionException} if the queue is full
+   */
+  public CompletableFuture<double[]> trySubmit(Instance inst) {
+    checkOpen();
+    Request request = new Request(inst);
+    if (!queue.offer(request)) {
+      metrics.rejected.incrementAndGet();
+      request.future.completeExceptionally(new RejectedExecutionException("Queue is full"));
+    } else {
+      cancelIfClosed(request);
+    }
+    return request.future;
+  }
+
+  /**
+   * Predict an instance, waiting for the batch it is part of.
+   *
+   * @param inst Instance to predict
+   * @return The class probability estimates or the numeric prediction
+   * @throws Exception Interrupted or prediction failed
+   */
+  public double[] distributionForInstance(Instance inst) throws Exception {
+    try {
+      return submit(inst).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Fail if the batcher has been closed.
+   */
+  private void checkOpen() {
+    if (closed) {
+      throw new RejectedExecutionException("MicroBatcher has been closed");
+    }
+  }
+
+  /**
+   * Cancel a request that was queued while the batcher was being closed.
+   */
+  private void cancelIfClosed(Request request) {
+    if (closed && queue.remove(request)) {
+      request.future.completeExceptionally(new CancellationException("MicroBatcher closed"));
+    }
+  }
+
+  /**
+   * Worker loop: collect a batch and predict it.
+   *
+   * @param model Network replica of this worker
+   */
+  protected void work(ComputationGraph model) {
+    final boolean rows = classifier.supportsRowPrediction();
+    final PredictionWorkspace workspace =
+        rows ? classifier.createPredictionWorkspace(maxBatchSize) : null;
+    final Request[] batch = new Request[maxBatchSize];
+    final Instance[] insts = new Instance[maxBatchSize];
+
+    while (!closed) {
+      int size;
+      try {
+        size = collect(batch);
+      } catch (InterruptedException e) {
+        break;
+      }
+      // Skip requests that were cancelled while queued
+      int numOpen = 0;
+      for (int i = 0; i < size; i++) {
+        if (!batch[i].future.isDone()) {
+          batch[numOpen++] = batch[i];
+        }
+      }
+      for (int i = numOpen; i < size; i++) {
+        batch[i] = null;
+      }
+      size = numOpen;
+      if (size == 0) {
+        continue;
+      }
+
+      final long start = System.nanoTime();
+      for (int i = 0; i < size; i++) {
+        insts[i] = batch[i].inst;
+        metrics.recordDelay(start - batch[i].enqueued);
+      }
+      metrics.recordBatch(size);
+
+      try {
+        final double[][] preds;
+        if (rows) {
+          preds = classifier.distributionsForRows(insts, size, model, workspace);
+        } else {
+          Instances data = toInstances(insts, size);
+          preds = classifier.distributionsForInstances(data, model);
+        }
+        for (int i = 0; i < size; i++) {
+          batch[i].future.complete(preds[i]);
+        }
+      } catch (Throwable t) {
+        log.debug("Batch prediction failed", t);
+        for (int i = 0; i < size; i++) {
+          batch[i].future.completeExceptionally(t);
+        }
+      }
+      for (int i = 0; i < size; i++) {
+        batch[i] = null;
+        insts[i] = null;
+      }
+    }
+  }
+
+  /**
+   * Collect the next batch: wait for a first request, then for further requests until the batch is
+   * full or the first request has waited the maximum time.
+   *
+   * @param batch Array to put the requests into
+   * @return Number of requests (0 if none arrived)
+   * @throws InterruptedException Interrupted while waiting, the requests collected so far are
+   * cancelled
+   */
+  protected int collect(Request[] batch) throws InterruptedException {
+    Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+    if (first == null) {
+      return 0;
+    }
+    batch[0] = first;
+    int size = 1;
+    final long deadline = first.enqueued + maxWaitNanos;
+    try {
+      while (size < batch.length) {
+        Request next = queue.poll();
+        if (next == null) {
+          final long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            break;
+          }
+          next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+        }
+        batch[size++] = next;
+      }
+    } catch (InterruptedException e) {
+      // The requests are no longer in the queue, so close() cannot cancel them
+      for (int i = 0; i < size; i++) {
+        batch[i].future.completeExceptionally(new CancellationException("MicroBatcher closed"));
+        batch[i] = null;
+      }
+      throw e;
+    }
+    return size;
+  }
+
+  /**
+   * Put the instances of a batch into one dataset. String and relational values are copied into
+   * the dataset, since the instances may store them in different copies of the header.
+   *
+   * @param insts Instances of the batch
+   * @param size Number of instances
+   * @return Dataset of the batch
+   */
+  protected static Instances toInstances(Instance[] insts, int size) {
+    final Instances header = insts[0].dataset();
+    if (!header.checkForStringAttributes()
+        && !header.checkForAttributeType(Attribute.RELATIONAL)) {
+      Instances data = new Instances(header, size);
+      for (int i = 0; i < size; i++) {
+        data.add(insts[i]);
+      }
+      return data;
+    }
+    Instances data = header.stringFreeStructure();
+    StringLocator strings = new StringLocator(data);
+    RelationalLocator relations = new RelationalLocator(data);
+    for (int i = 0; i < size; i++) {
+      Instance copy = (Instance) insts[i].copy();
+      StringLocator.copyStringValues(copy, data, strings);
+      RelationalLocator.copyRelationalValues(copy, data, relations);
+      data.add(copy);
+    }
+    return data;
+  }
+
+  /**
+   * Stop the workers. Queued requests that have not been predicted yet are cancelled.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+    for (Thread worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    Request request;
+    while ((request = queue.poll()) != null) {
+      request.future.completeExceptionally(new CancellationException("MicroBatcher closed"));
+    }
+  }
+
+  /**
+   * Get the metrics of this batcher.
+   *
+   * @return Metrics
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Get the number of currently queued requests.
+   *
+   * @return Queue length
+   */
+  public int getQueueLength() {
+    return queue.size();
+  }
+
+  /**
+   * A queued prediction request.
+   */
+  protected static class Request {
+
+    /**
+     * Instance to predict
+     */
+    final Instance inst;
+
+    /**
+     * Time the request was queued (System.nanoTime())
+     */
+    final long enqueued = System.nanoTime();
+
+    /**
+     * Future of the prediction
+     */
+    final CompletableFuture<double[]> future = new CompletableFuture<>();
+
+    Request(Instance inst) {
+      this.inst = inst;
+    }
+  }
+
+  /**
+   * Batch size distribution and queueing delay of a {@link MicroBatcher}.
+   */
+  public static class Metrics {
+
+    /**
+     * Number of batches per batch size (index = size - 1)
+     */
+    private final AtomicLongArray batchSizes;
+
+    /**
+     * Number of requests per delay bucket: bucket {@code b} counts delays in
+     * {@code [2^(b-1), 2^b)} microseconds (bucket 0: below one microsecond)
+     */
+    private final AtomicLongArray delays = new AtomicLongArray(NUM_DELAY_BUCKETS);
+
+    /**
+     * Sum of the queueing delays in nanoseconds
+     */
+    private final AtomicLong totalDelayNanos = new AtomicLong();
+
+    /**
+     * Maximum queueing delay in nanoseconds
+     */
+    private final AtomicLong maxDelayNanos = new AtomicLong();
+
+    /**
+     * Number of rejected requests
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param maxBatchSize Maximum batch size
+     */
+    Metrics(int maxBatchSize) {
+      batchSizes = new AtomicLongArray(maxBatchSize);
+    }
+
+    /**
+     * Record a batch.
+     */
+    void recordBatch(int size) {
+      batchSizes.incrementAndGet(size - 1);
+    }
+
+    /**
+     * Record the queueing delay of a request.
+     */
+    void recordDelay(long nanos) {
+      totalDelayNanos.addAndGet(nanos);
+      maxDelayNanos.accumulateAndGet(nanos, Math::max);
+      final long micros = nanos / 1000;
+      final int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+      delays.incrementAndGet(Math.min(bucket, NUM_DELAY_BUCKETS - 1));
+    }
+
+    /**
+     * Get the number of batches per batch size.
+     *
+     * @return Counts, index {@code i} is the number of batches of size {@code i + 1}
+     */
+    public long[] getBatchSizeCounts() {
+      long[] counts = new long[batchSizes.length()];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = batchSizes.get(i);
+      }
+      return counts;
+    }
+
+    /**
+     * Get the queueing delay histogram.
+     *
+     * @return Counts, index {@code b > 0} counts delays in {@code [2^(b-1), 2^b)} microseconds,
+     * index 0 delays below one microsecond
+     */
+    public long[] getDelayCounts() {
+      long[] counts = new long[delays.length()];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = delays.get(i);
+      }
+      return counts;
+    }
+
+    /**
+     * Get the number of predicted batches.
+     *
+     * @return Number of batches
+     */
+    public long getNumBatches() {
+      long n = 0;
+      for (long c : getBatchSizeCounts()) {
+        n += c;
+      }
+      return n;
+    }
+
+    /**
+     * Get the number of predicted requests.
+     *
+     * @return Number of requests
+     */
+    public long getNumRequests() {
+      long n = 0;
+      long[] counts = getBatchSizeCounts();
+      for (int i = 0; i < counts.length; i++) {
+        n += (i + 1) * counts[i];
+      }
+      return n;
+    }
+
+    /**
+     * Get the mean batch size.
+     *
+     * @return Mean batch size (0 if no batch was predicted yet)
+     */
+    public double getMeanBatchSize() {
+      final long numBatches = getNumBatches();
+      return numBatches == 0 ? 0 : (double) getNumRequests() / numBatches;
+    }
+
+    /**
+     * Get the mean queueing delay.
+     *
+     * @return Mean delay in microseconds
+     */
+    public double getMeanDelayMicros() {
+      final long numRequests = getNumRequests();
+      return numRequests == 0 ? 0 : totalDelayNanos.get() / 1000.0 / numRequests;
+    }
+
+    /**
+     * Get the maximum queueing delay.
+     *
+     * @return Maximum delay in microseconds
+     */
+    public double getMaxDelayMicros() {
+      return maxDelayNanos.get() / 1000.0;
+    }
+
+    /**
+     * Get the number of requests rejected because the queue was full.
+     *
+     * @return Number of rejected requests
+     */
+    public long getNumRejected() {
+      return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("requests=%d, batches=%d, meanBatchSize=%.2f, meanDelayMicros=%.1f, "
+              + "maxDelayMicros=%.1f, rejected=%d", getNumRequests(), getNumBatches(),
+          getMeanBatchSize(), getMeanDelayMicros(), getMaxDelayMicros(), getNumRejected());
+    }
+  }
+}
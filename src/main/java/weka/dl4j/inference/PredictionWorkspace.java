@@ -0,0 +1,165 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * PredictionWorkspace.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.inference;
+
+import java.util.Arrays;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.memory.conf.WorkspaceConfiguration;
+import org.nd4j.linalg.api.memory.enums.AllocationPolicy;
+import org.nd4j.linalg.api.memory.enums.LearningPolicy;
+import org.nd4j.linalg.api.memory.enums.SpillPolicy;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import weka.dl4j.InstancesConverter.RowWriter;
+
+/**
+ * Preallocated buffers for repeated predictions of small batches on one thread.
+ * <p>
+ * Holds a feature row to preprocess an instance into, an input array of a fixed capacity that the
+ * rows are written into and a reusable workspace in which the network output is computed. Once the
+ * workspace has learned its size, a prediction does not allocate any off-heap memory. Not
+ * thread-safe: each thread needs its own instance (workspaces are attached to a thread).
+ */
+public class PredictionWorkspace {
+
+  /**
+   * ID of the output workspace (workspaces are per thread, so one ID suffices)
+   */
+  private static final String WORKSPACE_ID = "WEKA_PREDICTION_WORKSPACE";
+
+  /**
+   * Configuration of the output workspace
+   */
+  private static final WorkspaceConfiguration WORKSPACE_CONFIG = WorkspaceConfiguration.builder()
+      .initialSize(0)
+      .overallocationLimit(0.2)
+      .policyAllocation(AllocationPolicy.OVERALLOCATE)
+      .policyLearning(LearningPolicy.FIRST_LOOP)
+      .policySpill(SpillPolicy.REALLOCATE)
+      .build();
+
+  /**
+   * Maximum number of rows per prediction
+   */
+  private final int capacity;
+
+  /**
+   * Number of features per row
+   */
+  private final int rowLength;
+
+  /**
+   * Scratch feature row
+   */
+  private final double[] featureRow;
+
+  /**
+   * Input array of shape (capacity, featureShape...), detached from any workspace
+   */
+  private final INDArray input;
+
+  /**
+   * Writer into the input buffer
+   */
+  private final RowWriter writer;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity Maximum number of rows per prediction
+   * @param featureShape Shape of a single row, e.g. {@code (channels, height, width)}
+   */
+  public PredictionWorkspace(int capacity, long... featureShape) {
+    this.capacity = capacity;
+    long length = 1;
+    for (long dim : featureShape) {
+      length *= dim;
+    }
+    this.rowLength = (int) length;
+    this.featureRow = new double[rowLength];
+
+    long[] shape = new long[featureShape.length + 1];
+    shape[0] = capacity;
+    System.arraycopy(featureShape, 0, shape, 1, featureShape.length);
+    final DataType dataType = Nd4j.defaultFloatingPointType();
+    try (MemoryWorkspace ignored = Nd4j.getMemoryManager().scopeOutOfWorkspaces()) {
+      this.input = Nd4j.create(dataType, shape);
+    }
+    this.writer = RowWriter.of(input, rowLength);
+  }
+
+  /**
+   * Get the scratch feature row, to be filled and passed to {@link #setRow(int, double[])}.
+   *
+   * @return Feature row
+   */
+  public double[] getFeatureRow() {
+    return featureRow;
+  }
+
+  /**
+   * Write a feature row into the input array.
+   *
+   * @param row Row index (smaller than the capacity)
+   * @param features Feature values of the row
+   */
+  public void setRow(int row, double[] features) {
+    writer.write((long) row * rowLength, features);
+  }
+
+  /**
+   * Compute the network output of the first rows of the input array.
+   *
+   * @param model Network with a single output
+   * @param numRows Number of rows
+   * @return Output values per row
+   */
+  public double[][] output(ComputationGraph model, int numRows) {
+    if (numRows < 1 || numRows > capacity) {
+      throw new IllegalArgumentException(
+          String.format("Number of rows must be in [1, %d] but was %d", capacity, numRows));
+    }
+    INDArray features = input;
+    if (numRows < capacity) {
+      INDArrayIndex[] indices = new INDArrayIndex[input.rank()];
+      Arrays.fill(indices, NDArrayIndex.all());
+      indices[0] = NDArrayIndex.interval(0, numRows);
+      features = input.get(indices);
+    }
+
+    try (MemoryWorkspace ws = Nd4j.getWorkspaceManager()
+        .getAndActivateWorkspace(WORKSPACE_CONFIG, WORKSPACE_ID)) {
+      // Copy the output out of the workspace in a single transfer
+      return model.output(false, ws, features)[0].toDoubleMatrix();
+    }
+  }
+
+  /**
+   * Get the maximum number of rows per prediction.
+   *
+   * @return Capacity
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+}
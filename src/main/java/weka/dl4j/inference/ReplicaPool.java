@@ -0,0 +1,270 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ReplicaPool.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.inference;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.log4j.Log4j2;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Thread-safe inference on top of a trained {@link Dl4jMlpClassifier} (or
+ * {@link weka.classifiers.functions.RnnSequenceClassifier}).
+ * <p>
+ * A {@link ComputationGraph} must not be used by several threads at once. The pool therefore holds
+ * a number of network replicas that all view the same parameter array of the trained network, so
+ * the weights are not duplicated. A replica is leased by one thread at a time and returned after
+ * use; activations are computed in the workspaces of the leasing thread. The pool only reads the
+ * classifier, which must not be retrained while the pool is in use.
+ * <p>
+ * With many replicas it is usually best to limit the threads of the ND4J backend (e.g.
+ * {@code OMP_NUM_THREADS=1}), so that the scoring threads do not compete for the cores.
+ */
+@Log4j2
+public class ReplicaPool {
+
+  /**
+   * The trained classifier
+   */
+  protected final Dl4jMlpClassifier classifier;
+
+  /**
+   * Replicas that are currently not leased
+   */
+  protected final BlockingQueue<Replica> idle;
+
+  /**
+   * Number of replicas
+   */
+  protected final int numReplicas;
+
+  /**
+   * Constructor with one replica per available processor.
+   *
+   * @param classifier Trained classifier
+   */
+  public ReplicaPool(Dl4jMlpClassifier classifier) {
+    this(classifier, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param classifier Trained classifier
+   * @param numReplicas Number of replicas, i.e. the number of threads that can predict at once
+   */
+  public ReplicaPool(Dl4jMlpClassifier classifier, int numReplicas) {
+    if (numReplicas < 1) {
+      throw new IllegalArgumentException("The number of replicas must be at least 1.");
+    }
+    this.classifier = classifier;
+    this.numReplicas = numReplicas;
+    this.idle = new ArrayBlockingQueue<>(numReplicas);
+
+    final ComputationGraph model = classifier.getModel();
+    for (int i = 0; i < numReplicas; i++) {
+      // ZeroR models have no network, the classifier predicts without one
+      idle.add(new Replica(model == null ? null : createReplica(model)));
+    }
+    log.debug("Created {} replicas", numReplicas);
+  }
+
+  /**
+   * Create a network with the configuration of the given network that uses its parameter array
+   * (without copying it).
+   *
+   * @param model Trained network
+   * @return Replica
+   */
+  public static ComputationGraph createReplica(ComputationGraph model) {
+    ComputationGraph replica = new ComputationGraph(model.getConfiguration().clone());
+    replica.init(model.params(), false);
+    return replica;
+  }
+
+  /**
+   * Lease a replica, waiting until one is available. It must be returned with
+   * {@link Replica#close()} (or {@link #release(Replica)}).
+   *
+   * @return Leased replica
+   * @throws InterruptedException Interrupted while waiting
+   */
+  public Replica lease() throws InterruptedException {
+    return idle.take().leased();
+  }
+
+  /**
+   * Lease a replica, waiting at most the given time.
+   *
+   * @param timeout Maximum time to wait
+   * @param unit Unit of the timeout
+   * @return Leased replica, or null if none became available in time
+   * @throws InterruptedException Interrupted while waiting
+   */
+  public Replica tryLease(long timeout, TimeUnit unit) throws InterruptedException {
+    Replica replica = idle.poll(timeout, unit);
+    return replica == null ? null : replica.leased();
+  }
+
+  /**
+   * Return a leased replica to the pool.
+   *
+   * @param replica Leased replica
+   */
+  public void release(Replica replica) {
+    replica.close();
+  }
+
+  /**
+   * Predict an instance with the next available replica.
+   *
+   * @param inst The instance to get a prediction for
+   * @return The class probability estimates or the numeric prediction
+   * @throws Exception Interrupted or prediction failed
+   */
+  public double[] distributionForInstance(Instance inst) throws Exception {
+    try (Replica replica = lease()) {
+      return replica.distributionForInstance(inst);
+    }
+  }
+
+  /**
+   * Predict instances with the next available replica.
+   *
+   * @param insts The instances to get predictions for
+   * @return The class probability estimates or the numeric predictions
+   * @throws Exception Interrupted or prediction failed
+   */
+  public double[][] distributionsForInstances(Instances insts) throws Exception {
+    try (Replica replica = lease()) {
+      return replica.distributionsForInstances(insts);
+    }
+  }
+
+  /**
+   * Get the number of replicas.
+   *
+   * @return Number of replicas
+   */
+  public int getNumReplicas() {
+    return numReplicas;
+  }
+
+  /**
+   * Get the number of replicas that are currently not leased.
+   *
+   * @return Number of idle replicas
+   */
+  public int getNumIdle() {
+    return idle.size();
+  }
+
+  /**
+   * Get the classifier the replicas belong to.
+   *
+   * @return Classifier
+   */
+  public Dl4jMlpClassifier getClassifier() {
+    return classifier;
+  }
+
+  /**
+   * A network replica, usable by the leasing thread until it is closed.
+   */
+  public class Replica implements AutoCloseable {
+
+    /**
+     * The network (null for ZeroR models)
+     */
+    private final ComputationGraph model;
+
+    /**
+     * Whether the replica is currently leased
+     */
+    private boolean leased;
+
+    /**
+     * Constructor.
+     *
+     * @param model Network replica
+     */
+    Replica(ComputationGraph model) {
+      this.model = model;
+    }
+
+    /**
+     * Mark the replica as leased.
+     *
+     * @return This replica
+     */
+    private synchronized Replica leased() {
+      leased = true;
+      return this;
+    }
+
+    /**
+     * Get the network of this replica.
+     *
+     * @return Network
+     */
+    public ComputationGraph getModel() {
+      return model;
+    }
+
+    /**
+     * Predict an instance.
+     *
+     * @param inst The instance to get a prediction for
+     * @return The class probability estimates or the numeric prediction
+     * @throws Exception Prediction failed
+     */
+    public double[] distributionForInstance(Instance inst) throws Exception {
+      return classifier.distributionForInstance(inst, model);
+    }
+
+    /**
+     * Predict instances.
+     *
+     * @param insts The instances to get predictions for
+     * @return The class probability estimates or the numeric predictions
+     * @throws Exception Prediction failed
+     */
+    public double[][] distributionsForInstances(Instances insts) throws Exception {
+      return classifier.distributionsForInstances(insts, model);
+    }
+
+    /**
+     * Return the replica to the pool. Closing it a second time has no effect.
+     */
+    @Override
+    public void close() {
+      synchronized (this) {
+        if (!leased) {
+          return;
+        }
+        leased = false;
+      }
+      idle.add(this);
+    }
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * CsrBatch.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+import java.util.Arrays;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A mini-batch of sparse feature rows in compressed sparse row (CSR) format.
+ * <p>
+ * Since the arrays passed through a DL4J network are dense, a batch travels from the iterator to
+ * the first layer in a packed form (see {@link #toFeatures(DataType)}): a matrix of shape
+ * {@code (numRows, 2 * maxRowNonZeros)} in which each row holds its {@code (column, value)} pairs,
+ * padded with {@code (-1, 0)}. The size of a batch therefore depends on the number of non-zeros
+ * per row only, not on the number of columns.
+ */
+public class CsrBatch {
+
+  /**
+   * Largest column index that can be stored exactly in single precision
+   */
+  static final int MAX_FLOAT_COLUMNS = 1 << 24;
+
+  /**
+   * Number of columns of the (virtual) dense matrix
+   */
+  private final int numColumns;
+
+  /**
+   * Start of each row in {@link #columnIndices} and {@link #values}, followed by the number of
+   * non-zeros
+   */
+  private final int[] rowPointers;
+
+  /**
+   * Column of each non-zero
+   */
+  private final int[] columnIndices;
+
+  /**
+   * Value of each non-zero
+   */
+  private final double[] values;
+
+  /**
+   * Constructs a batch from its CSR arrays.
+   *
+   * @param numColumns Number of columns
+   * @param rowPointers Start of each row, followed by the number of non-zeros
+   * @param columnIndices Column of each non-zero
+   * @param values Value of each non-zero
+   */
+  public CsrBatch(int numColumns, int[] rowPointers, int[] columnIndices, double[] values) {
+    this.numColumns = numColumns;
+    this.rowPointers = rowPointers;
+    this.columnIndices = columnIndices;
+    this.values = values;
+  }
+
+  /**
+   * Collects the non-zero feature values of the instances {@code order[from], ..., order[from +
+   * size - 1]} (or {@code from, ..., from + size - 1} if no order is given). The class attribute is
+   * left out.
+   *
+   * @param insts Instances with class index set
+   * @param order Order in which the instances are visited, may be null
+   * @param from Position of the first row
+   * @param size Number of rows
+   * @return CSR batch
+   */
+  public static CsrBatch fromInstances(Instances insts, int[] order, int from, int size) {
+    final int classIndex = insts.classIndex();
+    int[] rowPointers = new int[size + 1];
+    for (int i = 0; i < size; i++) {
+      Instance inst = insts.instance(order == null ? from + i : order[from + i]);
+      rowPointers[i + 1] = rowPointers[i] + inst.numValues();
+    }
+
+    int[] columnIndices = new int[rowPointers[size]];
+    double[] values = new double[rowPointers[size]];
+    int nnz = 0;
+    for (int i = 0; i < size; i++) {
+      Instance inst = insts.instance(order == null ? from + i : order[from + i]);
+      for (int j = 0; j < inst.numValues(); j++) {
+        final int index = inst.index(j);
+        final double value = inst.valueSparse(j);
+        if (index == classIndex || value == 0) {
+          continue;
+        }
+        // Shift by -1, since the class is left out from the features
+        columnIndices[nnz] = index < classIndex ? index : index - 1;
+        values[nnz] = value;
+        nnz++;
+      }
+      rowPointers[i + 1] = nnz;
+    }
+    return new CsrBatch(insts.numAttributes() - 1, rowPointers,
+        Arrays.copyOf(columnIndices, nnz), Arrays.copyOf(values, nnz));
+  }
+
+  /**
+   * Unpacks a batch from its packed feature matrix.
+   *
+   * @param features Packed features as created by {@link #toFeatures(DataType)}
+   * @param numColumns Number of columns
+   * @return CSR batch
+   */
+  public static CsrBatch fromFeatures(INDArray features, int numColumns) {
+    INDArray packed = features.ordering() == 'c' && !features.isView() ? features : features.dup('c');
+    final DataBuffer buffer = packed.data();
+    final long offset = packed.offset();
+    final int numRows = (int) packed.rows();
+    final int width = (int) packed.columns() / 2;
+
+    int[] rowPointers = new int[numRows + 1];
+    int[] columnIndices = new int[numRows * width];
+    double[] values = new double[numRows * width];
+    int nnz = 0;
+    for (int i = 0; i < numRows; i++) {
+      final long rowOffset = offset + (long) i * 2 * width;
+      for (int k = 0; k < width; k++) {
+        final int column = (int) buffer.getDouble(rowOffset + 2 * k);
+        if (column < 0) {
+          break;
+        }
+        columnIndices[nnz] = column;
+        values[nnz] = buffer.getDouble(rowOffset + 2 * k + 1);
+        nnz++;
+      }
+      rowPointers[i + 1] = nnz;
+    }
+    return new CsrBatch(numColumns, rowPointers, Arrays.copyOf(columnIndices, nnz),
+        Arrays.copyOf(values, nnz));
+  }
+
+  /**
+   * Packs the batch into a matrix of shape {@code (numRows, 2 * maxRowNonZeros)} holding the
+   * {@code (column, value)} pairs of each row, padded with {@code (-1, 0)}.
+   *
+   * @param dataType Data type of the packed matrix
+   * @return Packed features
+   */
+  public INDArray toFeatures(DataType dataType) {
+    if (dataType != DataType.DOUBLE && numColumns > MAX_FLOAT_COLUMNS) {
+      throw new IllegalArgumentException(String.format(
+          "Column indices up to %d cannot be stored exactly in %s, use double precision.",
+          numColumns, dataType));
+    }
+    final int numRows = getNumRows();
+    final int width = Math.max(1, getMaxRowNonZeros());
+    INDArray packed = Nd4j.createUninitialized(dataType, numRows, 2L * width);
+    final DataBuffer buffer = packed.data();
+    for (int i = 0; i < numRows; i++) {
+      final long rowOffset = (long) i * 2 * width;
+      final int rowStart = rowPointers[i];
+      final int rowNnz = rowPointers[i + 1] - rowStart;
+      for (int k = 0; k < width; k++) {
+        final boolean isValue = k < rowNnz;
+        buffer.put(rowOffset + 2 * k, isValue ? columnIndices[rowStart + k] : -1);
+        buffer.put(rowOffset + 2 * k + 1, isValue ? values[rowStart + k] : 0.0);
+      }
+    }
+    return packed;
+  }
+
+  /**
+   * Get the sorted distinct columns that contain non-zeros.
+   *
+   * @return Distinct columns
+   */
+  public int[] uniqueColumns() {
+    return Arrays.stream(columnIndices).distinct().sorted().toArray();
+  }
+
+  /**
+   * Creates the dense matrix of shape {@code (numRows, uniqueColumns.length)} restricted to the
+   * given columns, i.e. the batch times the selection matrix of the columns.
+   *
+   * @param uniqueColumns Sorted columns as returned by {@link #uniqueColumns()}
+   * @param dataType Data type of the matrix
+   * @return Compact dense matrix
+   */
+  public INDArray toCompactDense(int[] uniqueColumns, DataType dataType) {
+    final int numRows = getNumRows();
+    INDArray compact = Nd4j.zeros(dataType, numRows, uniqueColumns.length);
+    final DataBuffer buffer = compact.data();
+    for (int i = 0; i < numRows; i++) {
+      final long rowOffset = (long) i * uniqueColumns.length;
+      for (int j = rowPointers[i]; j < rowPointers[i + 1]; j++) {
+        final int col = Arrays.binarySearch(uniqueColumns, columnIndices[j]);
+        buffer.put(rowOffset + col, buffer.getDouble(rowOffset + col) + values[j]);
+      }
+    }
+    return compact;
+  }
+
+  /**
+   * Creates the dense matrix of shape {@code (numRows, numColumns)}.
+   *
+   * @param dataType Data type of the matrix
+   * @return Dense matrix
+   */
+  public INDArray toDense(DataType dataType) {
+    int[] columns = new int[numColumns];
+    for (int i = 0; i < numColumns; i++) {
+      columns[i] = i;
+    }
+    return toCompactDense(columns, dataType);
+  }
+
+  /**
+   * Get the number of rows.
+   *
+   * @return Number of rows
+   */
+  public int getNumRows() {
+    return rowPointers.length - 1;
+  }
+
+  /**
+   * Get the number of columns.
+   *
+   * @return Number of columns
+   */
+  public int getNumColumns() {
+    return numColumns;
+  }
+
+  /**
+   * Get the number of non-zeros.
+   *
+   * @return Number of non-zeros
+   */
+  public int getNumNonZeros() {
+    return rowPointers[getNumRows()];
+  }
+
+  /**
+   * Get the largest number of non-zeros in a row.
+   *
+   * @return Largest number of non-zeros in a row
+   */
+  public int getMaxRowNonZeros() {
+    int max = 0;
+    for (int i = 0; i < getNumRows(); i++) {
+      max = Math.max(max, rowPointers[i + 1] - rowPointers[i]);
+    }
+    return max;
+  }
+
+  public int[] getRowPointers() {
+    return rowPointers;
+  }
+
+  public int[] getColumnIndices() {
+    return columnIndices;
+  }
+
+  public double[] getValues() {
+    return values;
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * EpochAware.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+/**
+ * A dataset iterator whose batches depend on the index of the epoch, e.g. because the row order is
+ * drawn from the seed and the epoch. Resuming training from a checkpoint positions such an
+ * iterator at the epoch that follows the checkpoint, so that it delivers the same batches as the
+ * interrupted session would have.
+ */
+public interface EpochAware {
+
+  /**
+   * Position the iterator at the start of the given epoch. The next reset starts the epoch after
+   * it.
+   *
+   * @param epoch Index of the epoch, starting at 0
+   */
+  void setEpoch(int epoch);
+}
@@ -0,0 +1,284 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ImageTensorDataSetIterator.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.dl4j.iterators.dataset.cache.ImageTensorCache;
+
+/**
+ * An nd4j mini-batch iterator over images that were decoded into an {@link ImageTensorCache}.
+ * The pixel values of each batch are read from the mapped cache, so no image is decoded.
+ * <p>
+ * Follows the semantics of the {@code RecordReaderDataSetIterator} used on the image files: the
+ * values are in [0, 255], the label columns are in the sorted order of the class values, and
+ * {@link #hasNext()} also reports the last, smaller batch.
+ */
+public class ImageTensorDataSetIterator implements DataSetIterator {
+
+  /**
+   * The ID used to serialize this class
+   */
+  private static final long serialVersionUID = 2671302949817436571L;
+
+  /**
+   * The cache holding the images
+   */
+  protected final transient ImageTensorCache cache;
+
+  /**
+   * Cache slot of each row
+   */
+  protected final int[] slots;
+
+  /**
+   * Label column of each row (-1 if the class is missing)
+   */
+  protected final int[] labelColumns;
+
+  /**
+   * Sorted class values
+   */
+  protected final List<String> labels;
+
+  /**
+   * The batch size
+   */
+  protected final int batchSize;
+
+  /**
+   * The cursor
+   */
+  protected int cursor = 0;
+
+  /**
+   * An optional dataset preprocessor
+   */
+  protected DataSetPreProcessor preProcessor;
+
+  /**
+   * Constructs a new iterator over cached images.
+   *
+   * @param cache The cache holding the images
+   * @param slots Cache slot of each row, see {@link ImageTensorCache#update}
+   * @param data The meta instances of the images (with nominal class attribute)
+   * @param batchSize The batch size
+   */
+  public ImageTensorDataSetIterator(ImageTensorCache cache, int[] slots, Instances data,
+      int batchSize) {
+    this.cache = cache;
+    this.slots = slots;
+    this.batchSize = Math.max(1, Math.min(batchSize, slots.length));
+
+    // Label columns are in sorted order, as with the record reader
+    final Attribute classAttribute = data.classAttribute();
+    this.labels = new ArrayList<>(classAttribute.numValues());
+    for (int i = 0; i < classAttribute.numValues(); i++) {
+      labels.add(classAttribute.value(i));
+    }
+    Collections.sort(labels);
+    this.labelColumns = new int[data.numInstances()];
+    for (int i = 0; i < labelColumns.length; i++) {
+      Instance inst = data.instance(i);
+      labelColumns[i] = inst.classIsMissing() ? -1 : labels.indexOf(inst.stringValue(
+          data.classIndex()));
+    }
+  }
+
+  /**
+   * Whether another batch of data is still available.
+   *
+   * @return true if another (possibly smaller) batch is still available
+   */
+  @Override
+  public boolean hasNext() {
+    return cursor < slots.length;
+  }
+
+  /**
+   * Returns the next mini batch of data.
+   *
+   * @return the dataset corresponding to the mini batch
+   */
+  @Override
+  public DataSet next() {
+    return next(batchSize);
+  }
+
+  /**
+   * Returns a batch of the given size (or the remaining rows, if fewer).
+   *
+   * @param num the size of the batch to return
+   * @return a mini-batch of the given size
+   */
+  @Override
+  public DataSet next(int num) {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    final int size = Math.min(num, slots.length - cursor);
+    final int imageBytes = cache.getImageBytes();
+    final byte[] pixels = new byte[imageBytes];
+    final float[] values = new float[size * imageBytes];
+    try {
+      for (int i = 0; i < size; i++) {
+        cache.read(slots[cursor + i], pixels, 0);
+        final int offset = i * imageBytes;
+        for (int j = 0; j < imageBytes; j++) {
+          values[offset + j] = pixels[j] & 0xFF;
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    final long[] imageShape = cache.getImageShape();
+    final long[] shape = new long[imageShape.length + 1];
+    shape[0] = size;
+    System.arraycopy(imageShape, 0, shape, 1, imageShape.length);
+    INDArray features = Nd4j.create(values, shape, 'c');
+    final DataType dataType = Nd4j.defaultFloatingPointType();
+    if (features.dataType() != dataType) {
+      features = features.castTo(dataType);
+    }
+
+    INDArray labelArray = Nd4j.zeros(dataType, size, labels.size());
+    for (int i = 0; i < size; i++) {
+      if (labelColumns[cursor + i] >= 0) {
+        labelArray.putScalar(i, labelColumns[cursor + i], 1.0);
+      }
+    }
+    cursor += size;
+
+    DataSet batch = new DataSet(features, labelArray);
+    if (preProcessor != null) {
+      preProcessor.preProcess(batch);
+    }
+    return batch;
+  }
+
+  /**
+   * Returns the number of input columns.
+   *
+   * @return the number of pixel values of an image
+   */
+  @Override
+  public int inputColumns() {
+    return cache.getImageBytes();
+  }
+
+  /**
+   * Returns the total number of labels.
+   *
+   * @return the total number of labels
+   */
+  @Override
+  public int totalOutcomes() {
+    return labels.size();
+  }
+
+  /**
+   * Resets the cursor.
+   */
+  @Override
+  public void reset() {
+    cursor = 0;
+  }
+
+  /**
+   * Whether the iterator can be reset.
+   *
+   * @return true
+   */
+  @Override
+  public boolean resetSupported() {
+    return true;
+  }
+
+  /**
+   * Whether the iterator can be used asynchronously.
+   *
+   * @return true
+   */
+  @Override
+  public boolean asyncSupported() {
+    return true;
+  }
+
+  /**
+   * The size of the mini batches.
+   *
+   * @return the size of the mini batches
+   */
+  @Override
+  public int batch() {
+    return batchSize;
+  }
+
+  /**
+   * Gets the preprocessor.
+   *
+   * @return preProcessor
+   */
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return preProcessor;
+  }
+
+  /**
+   * Sets the preprocessor.
+   *
+   * @param preProcessor A DataSet preprocessor.
+   */
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  /**
+   * Gets the labels.
+   *
+   * @return the class values in the order of the label columns
+   */
+  @Override
+  public List<String> getLabels() {
+    return labels;
+  }
+
+  /**
+   * Enables removing of a mini-batch.
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
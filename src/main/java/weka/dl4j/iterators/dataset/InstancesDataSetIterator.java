@@ -0,0 +1,358 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * InstancesDataSetIterator.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.dl4j.InstancesConverter;
+import weka.dl4j.preprocessing.PreprocessingPlan;
+
+/**
+ * An nd4j mini-batch iterator that converts the rows of each mini-batch on demand, directly from
+ * the given {@link Instances}.
+ * <p>
+ * In contrast to {@link DefaultDataSetIterator}, the dataset is never converted as a whole: only
+ * the rows of the current mini-batch are written (see {@link InstancesConverter}) into arrays of
+ * the size of a single batch, and the preprocessor is applied to that batch only. Optionally, the
+ * order of the rows is shuffled at every reset, which only permutes an index array and never
+ * copies the data. The order of an epoch only depends on the seed and the index of the epoch, the
+ * first epoch visits the rows in their given order. If a {@link PreprocessingPlan} is given, the instances are raw and each row is
+ * preprocessed while it is written.
+ * <p>
+ * Follows the semantics of {@link DefaultDataSetIterator}: {@link #hasNext()} only reports full
+ * mini-batches, while {@link #next()} returns the remaining rows as a smaller batch.
+ */
+public class InstancesDataSetIterator implements DataSetIterator, EpochAware, Serializable {
+
+  /**
+   * The ID used to serialize this class
+   */
+  private static final long serialVersionUID = -3452268461745011380L;
+
+  /**
+   * The instances to operate on
+   */
+  protected final Instances data;
+
+  /**
+   * The batch size
+   */
+  protected final int batchSize;
+
+  /**
+   * Shape of the features of a single row
+   */
+  protected final long[] featureShape;
+
+  /**
+   * Preprocessing applied to each row (null if the instances are already preprocessed)
+   */
+  protected final PreprocessingPlan plan;
+
+  /**
+   * Order in which the rows are visited
+   */
+  protected final int[] order;
+
+  /**
+   * Whether the row order is shuffled at every reset
+   */
+  protected final boolean shuffle;
+
+  /**
+   * Seed for shuffling the row order
+   */
+  protected final long seed;
+
+  /**
+   * Index of the current epoch
+   */
+  protected int epoch = 0;
+
+  /**
+   * The cursor
+   */
+  protected int cursor = 0;
+
+  /**
+   * An optional dataset preprocessor
+   */
+  protected DataSetPreProcessor preProcessor;
+
+  /**
+   * Constructs a new dataset iterator visiting the rows in their given order.
+   *
+   * @param data The instances to operate on (with class index set)
+   * @param batchSize The batch size
+   */
+  public InstancesDataSetIterator(Instances data, int batchSize) {
+    this(data, batchSize, false, 0);
+  }
+
+  /**
+   * Constructs a new dataset iterator.
+   *
+   * @param data The instances to operate on (with class index set)
+   * @param batchSize The batch size
+   * @param shuffle Whether to visit the rows in a new random order after every reset
+   * @param seed Seed for shuffling
+   */
+  public InstancesDataSetIterator(Instances data, int batchSize, boolean shuffle, long seed) {
+    this(data, batchSize, shuffle, seed, data.numAttributes() - 1);
+  }
+
+  /**
+   * Constructs a new dataset iterator with features of the given shape, e.g. {@code (channels,
+   * height, width)} for NCHW image batches.
+   *
+   * @param data The instances to operate on (with class index set)
+   * @param batchSize The batch size
+   * @param shuffle Whether to visit the rows in a new random order after every reset
+   * @param seed Seed for shuffling
+   * @param featureShape Shape of the features of a single row
+   */
+  public InstancesDataSetIterator(Instances data, int batchSize, boolean shuffle, long seed,
+      long... featureShape) {
+    this(data, batchSize, shuffle, seed, null, featureShape);
+  }
+
+  /**
+   * Constructs a new dataset iterator on raw instances, which are preprocessed with the given plan
+   * while converting each mini-batch.
+   *
+   * @param data The raw instances to operate on (with class index set)
+   * @param batchSize The batch size
+   * @param shuffle Whether to visit the rows in a new random order after every reset
+   * @param seed Seed for shuffling
+   * @param plan Preprocessing plan, may be null if the instances are already preprocessed
+   * @param featureShape Shape of the features of a single (preprocessed) row
+   */
+  public InstancesDataSetIterator(Instances data, int batchSize, boolean shuffle, long seed,
+      PreprocessingPlan plan, long... featureShape) {
+    this.data = data;
+    this.plan = plan;
+    this.featureShape = featureShape;
+    this.batchSize = Math.max(1, Math.min(batchSize, data.numInstances()));
+    this.order = new int[data.numInstances()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    this.shuffle = shuffle;
+    this.seed = seed;
+  }
+
+  /**
+   * Whether another batch of data is still available.
+   *
+   * @return true if another batch is still available
+   */
+  @Override
+  public boolean hasNext() {
+    return cursor + batchSize <= order.length;
+  }
+
+  /**
+   * Returns the next mini batch of data.
+   *
+   * @return the dataset corresponding to the mini batch
+   */
+  @Override
+  public DataSet next() {
+    return next(batchSize);
+  }
+
+  /**
+   * Returns a batch of the given size (or the remaining rows, if fewer).
+   *
+   * @param num the size of the batch to return
+   * @return a mini-batch of the given size
+   */
+  @Override
+  public DataSet next(int num) {
+    final int size = Math.min(num, order.length - cursor);
+    DataSet batch = convertBatch(cursor, size);
+    cursor += size;
+
+    // Apply preprocessor to this batch only
+    if (preProcessor != null) {
+      preProcessor.preProcess(batch);
+    }
+    return batch;
+  }
+
+  /**
+   * Convert the rows {@code order[from], ..., order[from + size - 1]} into a dataset.
+   *
+   * @param from Position of the first row in the visiting order
+   * @param size Number of rows
+   * @return Dataset with features and labels of the rows
+   */
+  protected DataSet convertBatch(int from, int size) {
+    return InstancesConverter.toDataSet(data, order, from, size, Nd4j.defaultFloatingPointType(),
+        plan, featureShape);
+  }
+
+  /**
+   * Returns the number of input columns.
+   *
+   * @return the number of input columns
+   */
+  @Override
+  public int inputColumns() {
+    return plan == null ? data.numAttributes() - 1 : plan.getNumFeatures();
+  }
+
+  /**
+   * Returns the total number of labels.
+   *
+   * @return the total number of labels
+   */
+  @Override
+  public int totalOutcomes() {
+    return data.numClasses();
+  }
+
+  /**
+   * Starts the next epoch, see {@link #setEpoch(int)}.
+   */
+  @Override
+  public void reset() {
+    setEpoch(epoch + 1);
+  }
+
+  /**
+   * Resets the cursor and, if shuffling, draws the row order of the given epoch.
+   *
+   * @param epoch Index of the epoch, starting at 0
+   */
+  @Override
+  public void setEpoch(int epoch) {
+    this.epoch = epoch;
+    cursor = 0;
+    if (shuffle) {
+      drawOrder(order, seed, epoch);
+    }
+  }
+
+  /**
+   * Draw the row order of an epoch: the rows in their given order for the first epoch, a random
+   * permutation drawn from the seed and the epoch otherwise.
+   *
+   * @param order Row order to fill
+   * @param seed Seed
+   * @param epoch Index of the epoch
+   */
+  static void drawOrder(int[] order, long seed, int epoch) {
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    if (epoch == 0) {
+      return;
+    }
+    final Random random = new Random(seed + epoch);
+    for (int i = order.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int tmp = order[i];
+      order[i] = order[j];
+      order[j] = tmp;
+    }
+  }
+
+  /**
+   * Whether the iterator can be reset.
+   *
+   * @return true
+   */
+  @Override
+  public boolean resetSupported() {
+    return true;
+  }
+
+  /**
+   * Whether the iterator can be used asynchronously.
+   *
+   * @return false
+   */
+  @Override
+  public boolean asyncSupported() {
+    return false;
+  }
+
+  /**
+   * The size of the mini batches.
+   *
+   * @return the size of the mini batches
+   */
+  @Override
+  public int batch() {
+    return batchSize;
+  }
+
+  /**
+   * Gets the preprocessor.
+   *
+   * @return preProcessor
+   */
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return preProcessor;
+  }
+
+  /**
+   * Sets the preprocessor.
+   *
+   * @param preProcessor A DataSet preprocessor.
+   */
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  /**
+   * Gets the labels (index of the label column of each row, in the given row order).
+   *
+   * @return the labels
+   */
+  @Override
+  public List<String> getLabels() {
+    List<String> labels = new ArrayList<>(data.numInstances());
+    final int numOutcomes = totalOutcomes();
+    for (int i = 0; i < data.numInstances(); i++) {
+      Instance inst = data.instance(i);
+      labels.add(String.valueOf(numOutcomes > 1 ? (int) inst.classValue() : 0));
+    }
+    return labels;
+  }
+
+  /**
+   * Enables removing of a mini-batch.
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
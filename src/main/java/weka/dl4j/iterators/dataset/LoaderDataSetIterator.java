@@ -0,0 +1,425 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * LoaderDataSetIterator.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.Loader;
+import weka.dl4j.iterators.instance.AbstractInstanceIterator;
+
+/**
+ * An nd4j mini-batch iterator that streams instances from an incremental Weka {@link Loader}.
+ * <p>
+ * A background thread reads the instances in chunks, shuffles each chunk, passes it through the
+ * given preprocessing and converts it into mini-batches with the given instance iterator. The
+ * mini-batches are handed over through a bounded queue, so at most one chunk and a few
+ * mini-batches are held in memory at any time, independent of the size of the data.
+ * <p>
+ * The loader is reset at the start of every epoch, so its source must be a file.
+ */
+public class LoaderDataSetIterator implements DataSetIterator, EpochAware {
+
+  /**
+   * Preprocessing applied to each chunk of raw instances.
+   */
+  @FunctionalInterface
+  public interface ChunkPreprocessor {
+
+    /**
+     * Preprocess a chunk of instances.
+     *
+     * @param chunk Raw instances
+     * @return Preprocessed instances
+     * @throws Exception Preprocessing failed
+     */
+    Instances apply(Instances chunk) throws Exception;
+  }
+
+  /**
+   * Queue marker for the end of an epoch.
+   */
+  private static final Object END_OF_EPOCH = new Object();
+
+  /**
+   * The loader to read from
+   */
+  protected final Loader loader;
+
+  /**
+   * Class index of the loaded data
+   */
+  protected final int classIndex;
+
+  /**
+   * Preprocessing applied to each chunk
+   */
+  protected final ChunkPreprocessor preprocessing;
+
+  /**
+   * Instance iterator used to convert a chunk into mini-batches
+   */
+  protected final AbstractInstanceIterator instanceIterator;
+
+  /**
+   * The batch size
+   */
+  protected final int batchSize;
+
+  /**
+   * Number of instances per chunk (a multiple of the batch size)
+   */
+  protected final int chunkSize;
+
+  /**
+   * Seed for shuffling the chunks
+   */
+  protected final int seed;
+
+  /**
+   * Queue between the reader thread and the consumer
+   */
+  protected final BlockingQueue<Object> queue;
+
+  /**
+   * An optional dataset preprocessor
+   */
+  protected DataSetPreProcessor preProcessor;
+
+  /**
+   * Number of epochs started so far
+   */
+  protected int epoch = 0;
+
+  /**
+   * Thread reading the current epoch
+   */
+  protected Thread reader;
+
+  /**
+   * Next mini-batch taken from the queue (null if none taken yet)
+   */
+  protected Object next;
+
+  /**
+   * Number of input columns, taken from the first mini-batch (-1 if none was read yet)
+   */
+  protected int inputColumns = -1;
+
+  /**
+   * Total number of labels, taken from the first mini-batch (-1 if none was read yet)
+   */
+  protected int totalOutcomes = -1;
+
+  /**
+   * Constructs a new loader dataset iterator and starts reading the first epoch.
+   *
+   * @param loader Incremental loader, positioned anywhere (is reset)
+   * @param classIndex Class index of the loaded data
+   * @param preprocessing Preprocessing applied to each chunk
+   * @param instanceIterator Instance iterator used to convert chunks into mini-batches
+   * @param batchSize The batch size
+   * @param chunkSize Number of instances per chunk (rounded up to a multiple of the batch size)
+   * @param queueCapacity Number of mini-batches to prefetch
+   * @param seed Seed for shuffling the chunks
+   */
+  public LoaderDataSetIterator(Loader loader, int classIndex, ChunkPreprocessor preprocessing,
+      AbstractInstanceIterator instanceIterator, int batchSize, int chunkSize, int queueCapacity,
+      int seed) {
+    this.loader = loader;
+    this.classIndex = classIndex;
+    this.preprocessing = preprocessing;
+    this.instanceIterator = instanceIterator;
+    this.batchSize = batchSize;
+    this.chunkSize = Math.max(1, (chunkSize + batchSize - 1) / batchSize) * batchSize;
+    this.seed = seed;
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+    startReader();
+  }
+
+  /**
+   * Start a reader thread for the next epoch.
+   */
+  protected void startReader() {
+    final int currentEpoch = epoch++;
+    reader = new Thread(() -> read(currentEpoch), "loader-dataset-iterator");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Read one epoch from the loader and put its mini-batches into the queue, followed by the end
+   * marker (or the exception that stopped the reading).
+   *
+   * @param currentEpoch Index of the epoch
+   */
+  protected void read(int currentEpoch) {
+    try {
+      loader.reset();
+      final Instances structure = loader.getStructure();
+      structure.setClassIndex(classIndex);
+      final Random rand = new Random(seed + currentEpoch);
+
+      Instances chunk = new Instances(structure, chunkSize);
+      Instance inst;
+      while ((inst = loader.getNextInstance(structure)) != null) {
+        chunk.add(inst);
+        if (chunk.numInstances() == chunkSize) {
+          emit(chunk, rand);
+          chunk = new Instances(structure, chunkSize);
+        }
+      }
+      if (chunk.numInstances() > 0) {
+        emit(chunk, rand);
+      }
+      queue.put(END_OF_EPOCH);
+    } catch (InterruptedException e) {
+      // Iterator was reset or shut down
+    } catch (Exception e) {
+      try {
+        queue.put(e);
+      } catch (InterruptedException ie) {
+        // Iterator was reset or shut down
+      }
+    }
+  }
+
+  /**
+   * Shuffle and preprocess a chunk and put its mini-batches into the queue.
+   *
+   * @param chunk Raw instances
+   * @param rand Random number generator of the epoch
+   * @throws Exception Could not preprocess or convert the chunk
+   */
+  protected void emit(Instances chunk, Random rand) throws Exception {
+    chunk.randomize(rand);
+    Instances processed = preprocessing.apply(chunk);
+    if (processed.numInstances() == 0) {
+      return;
+    }
+    DataSetIterator it = instanceIterator.getDataSetIterator(processed, seed, batchSize);
+    while (it.hasNext()) {
+      queue.put(it.next());
+    }
+  }
+
+  /**
+   * Stop the reader thread of the current epoch and discard its mini-batches.
+   */
+  public void shutdown() {
+    if (reader != null) {
+      reader.interrupt();
+      try {
+        reader.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      reader = null;
+    }
+    queue.clear();
+    next = null;
+  }
+
+  /**
+   * Whether another batch of data is still available.
+   *
+   * @return true if another batch is still available
+   */
+  @Override
+  public boolean hasNext() {
+    if (next == null) {
+      if (reader == null) {
+        return false;
+      }
+      try {
+        next = queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for the next mini batch.", e);
+      }
+    }
+    if (next instanceof Exception) {
+      throw new RuntimeException("Could not read the next mini batch from the loader.",
+          (Exception) next);
+    }
+    if (inputColumns < 0 && next instanceof DataSet) {
+      inputColumns = (int) ((DataSet) next).getFeatures().columns();
+      totalOutcomes = (int) ((DataSet) next).getLabels().columns();
+    }
+    return next != END_OF_EPOCH;
+  }
+
+  /**
+   * Returns the next mini batch of data.
+   *
+   * @return the dataset corresponding to the mini batch
+   */
+  @Override
+  public DataSet next() {
+    if (!hasNext()) {
+      throw new IllegalStateException("No more mini batches in this epoch.");
+    }
+    DataSet batch = (DataSet) next;
+    next = null;
+    if (preProcessor != null) {
+      preProcessor.preProcess(batch);
+    }
+    return batch;
+  }
+
+  /**
+   * Not supported, the mini batches are created by the reader thread.
+   *
+   * @param num the size of the batch to return
+   * @return nothing
+   */
+  @Override
+  public DataSet next(int num) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Returns the number of input columns, as seen in the first mini-batch.
+   *
+   * @return the number of input columns
+   * @throws IllegalStateException No mini-batch was read and the current epoch has none left
+   */
+  @Override
+  public int inputColumns() {
+    checkColumnsKnown();
+    return inputColumns;
+  }
+
+  /**
+   * Returns the total number of labels, as seen in the first mini-batch.
+   *
+   * @return the total number of labels
+   * @throws IllegalStateException No mini-batch was read and the current epoch has none left
+   */
+  @Override
+  public int totalOutcomes() {
+    checkColumnsKnown();
+    return totalOutcomes;
+  }
+
+  /**
+   * Make sure that the column counts are known, by taking the next mini-batch if necessary.
+   */
+  protected void checkColumnsKnown() {
+    if (inputColumns < 0 && !hasNext()) {
+      throw new IllegalStateException(
+          "The number of columns is unknown, since the loader provided no mini batch.");
+    }
+  }
+
+  /**
+   * Restarts reading from the beginning of the loader, with a new chunk order.
+   */
+  @Override
+  public void reset() {
+    shutdown();
+    startReader();
+  }
+
+  /**
+   * Restarts reading from the beginning of the loader, with the chunk order of the given epoch.
+   *
+   * @param epoch Index of the epoch, starting at 0
+   */
+  @Override
+  public void setEpoch(int epoch) {
+    shutdown();
+    this.epoch = epoch;
+    startReader();
+  }
+
+  /**
+   * Whether the iterator can be reset.
+   *
+   * @return true
+   */
+  @Override
+  public boolean resetSupported() {
+    return true;
+  }
+
+  /**
+   * Whether the iterator can be used asynchronously.
+   *
+   * @return false, as it prefetches by itself
+   */
+  @Override
+  public boolean asyncSupported() {
+    return false;
+  }
+
+  /**
+   * The size of the mini batches.
+   *
+   * @return the size of the mini batches
+   */
+  @Override
+  public int batch() {
+    return batchSize;
+  }
+
+  /**
+   * Gets the preprocessor.
+   *
+   * @return preProcessor
+   */
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return preProcessor;
+  }
+
+  /**
+   * Sets the preprocessor.
+   *
+   * @param preProcessor A DataSet preprocessor.
+   */
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  /**
+   * Not supported, the labels are only known chunk by chunk.
+   *
+   * @return null
+   */
+  @Override
+  public List<String> getLabels() {
+    return null;
+  }
+
+  /**
+   * Enables removing of a mini-batch.
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
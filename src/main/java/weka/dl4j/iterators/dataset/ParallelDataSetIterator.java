@@ -0,0 +1,536 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ParallelDataSetIterator.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.dl4j.iterators.dataset.sequence.text.TokenIdCorpus;
+import weka.dl4j.iterators.instance.AbstractInstanceIterator;
+import weka.dl4j.iterators.instance.DefaultInstanceIterator;
+import weka.dl4j.iterators.instance.ImageInstanceIterator;
+import weka.dl4j.iterators.instance.sequence.text.AbstractTextEmbeddingIterator;
+import weka.dl4j.preprocessing.PreprocessingPlan;
+
+/**
+ * An nd4j mini-batch iterator that builds the mini-batches on several worker threads.
+ * <p>
+ * The rows are split into disjoint mini-batches of consecutive positions in the visiting order.
+ * Each mini-batch is built by a worker from its own dataset iterator, obtained from the given
+ * {@link AbstractInstanceIterator} for the rows of that batch only, so that e.g. image decoding runs
+ * on all workers at once. Text iterators tokenize all rows once into a {@link TokenIdCorpus}, from
+ * which each batch selects its rows. At most two batches per worker are built ahead.
+ * <p>
+ * The contents of the batches only depend on the seed: if the instance iterator shuffles (see
+ * {@link DefaultInstanceIterator#getShuffle()}), the visiting order is drawn from the seed and the
+ * epoch at every reset, exactly as in {@link InstancesDataSetIterator}. Batches are either delivered in the order
+ * of their rows, which makes training deterministic, or in the order in which the workers finish
+ * them, which avoids waiting for slow batches.
+ * <p>
+ * Follows the semantics of {@link DefaultDataSetIterator}: {@link #hasNext()} only reports full
+ * mini-batches, while {@link #next()} returns the remaining rows as a smaller batch, which is then
+ * built on the calling thread. The worker threads are daemon threads that terminate when idle.
+ */
+public class ParallelDataSetIterator implements DataSetIterator, EpochAware {
+
+  /**
+   * The ID used to serialize this class
+   */
+  private static final long serialVersionUID = -1830416937468806741L;
+
+  /**
+   * Seconds after which idle worker threads terminate
+   */
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  /**
+   * Counter for the worker thread names
+   */
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+  /**
+   * The instance iterator building the individual batches
+   */
+  protected final AbstractInstanceIterator instanceIterator;
+
+  /**
+   * The instances to operate on
+   */
+  protected final Instances data;
+
+  /**
+   * Preprocessing applied to each row (null if the instances are already preprocessed)
+   */
+  protected final PreprocessingPlan plan;
+
+  /**
+   * Seed passed to the instance iterator
+   */
+  protected final int seed;
+
+  /**
+   * The batch size
+   */
+  protected final int batchSize;
+
+  /**
+   * Whether batches are delivered in the order of their rows
+   */
+  protected final boolean ordered;
+
+  /**
+   * Maximum number of batches submitted to the workers but not yet delivered
+   */
+  protected final int maxPending;
+
+  /**
+   * Order in which the rows are visited
+   */
+  protected final int[] order;
+
+  /**
+   * Whether the row order is shuffled at every reset
+   */
+  protected final boolean shuffle;
+
+  /**
+   * Index of the current epoch
+   */
+  protected int epoch = 0;
+
+  /**
+   * Token id corpus of all rows (only for text iterators, created with the first batch)
+   */
+  protected transient TokenIdCorpus corpus;
+
+  /**
+   * The worker threads
+   */
+  protected transient ThreadPoolExecutor workers;
+
+  /**
+   * Completion service of the workers (only used if batches are delivered unordered)
+   */
+  protected transient CompletionService<DataSet> completion;
+
+  /**
+   * Batches submitted to the workers but not yet delivered, in submission order
+   */
+  protected transient Deque<Future<DataSet>> pending;
+
+  /**
+   * Number of full batches submitted in this epoch
+   */
+  protected int submitted;
+
+  /**
+   * Number of rows delivered in this epoch
+   */
+  protected int cursor;
+
+  /**
+   * An optional dataset preprocessor
+   */
+  protected DataSetPreProcessor preProcessor;
+
+  /**
+   * Constructs a new parallel dataset iterator.
+   *
+   * @param instanceIterator The instance iterator building the individual batches
+   * @param data The instances to operate on (with class index set)
+   * @param seed Seed for the instance iterator and for shuffling
+   * @param batchSize The batch size
+   * @param numWorkers The number of worker threads
+   * @param ordered Whether batches are delivered in the order of their rows
+   * @throws Exception The image normalization statistics could not be computed
+   */
+  public ParallelDataSetIterator(AbstractInstanceIterator instanceIterator, Instances data,
+      int seed, int batchSize, int numWorkers, boolean ordered) throws Exception {
+    this(instanceIterator, data, seed, batchSize, numWorkers, ordered, null);
+  }
+
+  /**
+   * Constructs a new parallel dataset iterator on raw instances, which are preprocessed with the
+   * given plan while building each mini-batch.
+   *
+   * @param instanceIterator The instance iterator building the individual batches (must be a
+   * {@link DefaultInstanceIterator} if a plan is given)
+   * @param data The instances to operate on (with class index set)
+   * @param seed Seed for the instance iterator and for shuffling
+   * @param batchSize The batch size
+   * @param numWorkers The number of worker threads
+   * @param ordered Whether batches are delivered in the order of their rows
+   * @param plan Preprocessing plan, may be null if the instances are already preprocessed
+   * @throws Exception The image normalization statistics could not be computed
+   */
+  public ParallelDataSetIterator(AbstractInstanceIterator instanceIterator, Instances data,
+      int seed, int batchSize, int numWorkers, boolean ordered, PreprocessingPlan plan)
+      throws Exception {
+    if (plan != null && !(instanceIterator instanceof DefaultInstanceIterator)) {
+      throw new IllegalArgumentException(
+          "A preprocessing plan requires a DefaultInstanceIterator.");
+    }
+    this.instanceIterator = instanceIterator;
+    this.data = data;
+    this.plan = plan;
+    this.seed = seed;
+    this.batchSize = Math.max(1, Math.min(batchSize, data.numInstances()));
+    this.ordered = ordered;
+    this.maxPending = 2 * Math.max(1, numWorkers);
+    this.order = new int[data.numInstances()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    this.shuffle = instanceIterator instanceof DefaultInstanceIterator
+        && ((DefaultInstanceIterator) instanceIterator).getShuffle();
+    if (instanceIterator instanceof ImageInstanceIterator) {
+      // Statistics are computed from all rows, not from the rows of the first batch
+      ((ImageInstanceIterator) instanceIterator).getNormalizer(data, seed);
+    }
+    this.workers = createWorkers(Math.max(1, numWorkers));
+  }
+
+  /**
+   * Create the pool of worker threads.
+   *
+   * @param numWorkers The number of worker threads
+   * @return Thread pool whose idle threads terminate
+   */
+  protected static ThreadPoolExecutor createWorkers(int numWorkers) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(numWorkers, numWorkers, KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread t = new Thread(r, "dataset-producer-" + THREAD_COUNT.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Whether another full batch is still available.
+   *
+   * @return true if another full batch is still available
+   */
+  @Override
+  public boolean hasNext() {
+    return cursor + batchSize <= order.length;
+  }
+
+  /**
+   * Returns the next mini batch of data.
+   *
+   * @return the dataset corresponding to the mini batch
+   */
+  @Override
+  public DataSet next() {
+    if (cursor >= order.length) {
+      throw new NoSuchElementException();
+    }
+    DataSet batch;
+    if (hasNext()) {
+      submitBatches();
+      batch = takeBatch();
+      cursor += batchSize;
+      submitBatches();
+    } else {
+      // The remaining rows are not submitted ahead, so they are never delivered before a full batch
+      final int size = order.length - cursor;
+      batch = buildBatch(rowsAt(cursor, size));
+      cursor += size;
+    }
+
+    // Apply preprocessor to this batch only
+    if (preProcessor != null) {
+      preProcessor.preProcess(batch);
+    }
+    return batch;
+  }
+
+  /**
+   * Returns the next mini batch. Only the configured batch size is supported, as the batches are
+   * built ahead.
+   *
+   * @param num the size of the batch to return (must equal {@link #batch()})
+   * @return the next mini batch
+   */
+  @Override
+  public DataSet next(int num) {
+    if (num != batchSize) {
+      throw new UnsupportedOperationException(
+          "Batches are built ahead, only the batch size " + batchSize + " is supported.");
+    }
+    return next();
+  }
+
+  /**
+   * Submit further full batches to the workers until the maximum number of pending batches is
+   * reached.
+   */
+  protected void submitBatches() {
+    if (workers == null) {
+      // Deserialized iterator
+      workers = createWorkers(maxPending / 2);
+    }
+    if (pending == null) {
+      pending = new ArrayDeque<>(maxPending);
+      completion = new ExecutorCompletionService<>(workers);
+    }
+    final int numFullBatches = order.length / batchSize;
+    while (pending.size() < maxPending && submitted < numFullBatches) {
+      // The rows are copied here, so that the workers never see a reshuffled order
+      final int[] rows = rowsAt(submitted * batchSize, batchSize);
+      pending.add(ordered ? workers.submit(() -> buildBatch(rows))
+          : completion.submit(() -> buildBatch(rows)));
+      submitted++;
+    }
+  }
+
+  /**
+   * Wait for the next batch to be delivered.
+   *
+   * @return Next batch
+   */
+  protected DataSet takeBatch() {
+    try {
+      final Future<DataSet> future;
+      if (ordered) {
+        future = pending.poll();
+      } else {
+        future = completion.take();
+        pending.remove(future);
+      }
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for the next batch.", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Could not build batch.", e.getCause());
+    }
+  }
+
+  /**
+   * Get a copy of the row indices at the given positions of the visiting order.
+   *
+   * @param from Position of the first row in the visiting order
+   * @param size Number of rows
+   * @return Row indices
+   */
+  protected int[] rowsAt(int from, int size) {
+    final int[] rows = new int[size];
+    System.arraycopy(order, from, rows, 0, size);
+    return rows;
+  }
+
+  /**
+   * Build the batch of the given rows from a dataset iterator of the instance iterator.
+   *
+   * @param rows Row indices
+   * @return Dataset with features and labels of the rows
+   * @throws Exception The instance iterator could not build the batch
+   */
+  protected DataSet buildBatch(int[] rows) throws Exception {
+    final Instances subset;
+    if (!shuffle) {
+      // Consecutive rows are shared, not copied
+      subset = new Instances(data, rows[0], rows.length);
+    } else {
+      subset = new Instances(data, rows.length);
+      for (int row : rows) {
+        subset.add(data.instance(row));
+      }
+    }
+
+    // Creating the iterator may lazily initialize the instance iterator (e.g. load word vectors),
+    // building the batch runs in parallel
+    final DataSetIterator it;
+    synchronized (instanceIterator) {
+      if (plan != null) {
+        it = ((DefaultInstanceIterator) instanceIterator).getDataSetIterator(subset, seed,
+            rows.length, plan);
+      } else if (instanceIterator instanceof AbstractTextEmbeddingIterator) {
+        // The documents of all rows are tokenized once, not for the rows of each batch
+        final AbstractTextEmbeddingIterator textIterator =
+            (AbstractTextEmbeddingIterator) instanceIterator;
+        if (corpus == null) {
+          textIterator.validate(data);
+          corpus = textIterator.getTokenIdCorpus(data);
+        }
+        it = textIterator.getDataSetIterator(subset, seed, rows.length,
+            corpus == null ? null : corpus.select(rows));
+      } else {
+        it = instanceIterator.getDataSetIterator(subset, seed, rows.length);
+      }
+    }
+    return it.next();
+  }
+
+  /**
+   * Returns the number of input columns.
+   *
+   * @return the number of input columns
+   */
+  @Override
+  public int inputColumns() {
+    return plan == null ? data.numAttributes() - 1 : plan.getNumFeatures();
+  }
+
+  /**
+   * Returns the total number of labels.
+   *
+   * @return the total number of labels
+   */
+  @Override
+  public int totalOutcomes() {
+    return data.numClasses();
+  }
+
+  /**
+   * Starts the next epoch, see {@link #setEpoch(int)}.
+   */
+  @Override
+  public void reset() {
+    setEpoch(epoch + 1);
+  }
+
+  /**
+   * Discards the batches built ahead, resets the cursor and, if shuffling, draws the row order of
+   * the given epoch.
+   *
+   * @param epoch Index of the epoch, starting at 0
+   */
+  @Override
+  public void setEpoch(int epoch) {
+    if (pending != null) {
+      // Running batches are finished and dropped, their rows were copied on submission
+      for (Future<DataSet> future : pending) {
+        future.cancel(false);
+      }
+      pending = null;
+      completion = null;
+    }
+    submitted = 0;
+    cursor = 0;
+    this.epoch = epoch;
+    if (shuffle) {
+      InstancesDataSetIterator.drawOrder(order, seed, epoch);
+    }
+  }
+
+  /**
+   * Stop the worker threads. Further batches are built on new threads.
+   */
+  public void shutdown() {
+    // Restart the current epoch without advancing it
+    setEpoch(epoch);
+    if (workers != null) {
+      workers.shutdown();
+      workers = null;
+    }
+  }
+
+  /**
+   * Whether the iterator can be reset.
+   *
+   * @return true
+   */
+  @Override
+  public boolean resetSupported() {
+    return true;
+  }
+
+  /**
+   * Whether the iterator can be used asynchronously.
+   *
+   * @return false, batches are already built ahead
+   */
+  @Override
+  public boolean asyncSupported() {
+    return false;
+  }
+
+  /**
+   * The size of the mini batches.
+   *
+   * @return the size of the mini batches
+   */
+  @Override
+  public int batch() {
+    return batchSize;
+  }
+
+  /**
+   * Gets the preprocessor.
+   *
+   * @return preProcessor
+   */
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return preProcessor;
+  }
+
+  /**
+   * Sets the preprocessor.
+   *
+   * @param preProcessor A DataSet preprocessor.
+   */
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  /**
+   * Gets the labels (index of the label column of each row, in the given row order).
+   *
+   * @return the labels
+   */
+  @Override
+  public List<String> getLabels() {
+    List<String> labels = new ArrayList<>(data.numInstances());
+    final int numOutcomes = totalOutcomes();
+    for (int i = 0; i < data.numInstances(); i++) {
+      Instance inst = data.instance(i);
+      labels.add(String.valueOf(numOutcomes > 1 ? (int) inst.classValue() : 0));
+    }
+    return labels;
+  }
+
+  /**
+   * Enables removing of a mini-batch.
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
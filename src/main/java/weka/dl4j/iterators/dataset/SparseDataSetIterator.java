@@ -0,0 +1,78 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * SparseDataSetIterator.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A mini-batch iterator that never densifies the features: each mini-batch is collected as a
+ * {@link CsrBatch} and handed on in its packed form, so its size only depends on the number of
+ * non-zeros of its rows. The features must be consumed by a
+ * {@link weka.dl4j.layers.SparseDenseLayer} as first layer.
+ */
+public class SparseDataSetIterator extends InstancesDataSetIterator {
+
+  /**
+   * The ID used to serialize this class
+   */
+  private static final long serialVersionUID = 5360387520432719146L;
+
+  /**
+   * Constructs a new sparse dataset iterator.
+   *
+   * @param data The instances to operate on (with class index set)
+   * @param batchSize The batch size
+   * @param shuffle Whether to visit the rows in a new random order after every reset
+   * @param seed Seed for shuffling
+   */
+  public SparseDataSetIterator(Instances data, int batchSize, boolean shuffle, long seed) {
+    super(data, batchSize, shuffle, seed);
+  }
+
+  /**
+   * Convert the rows {@code order[from], ..., order[from + size - 1]} into a dataset with packed
+   * sparse features.
+   *
+   * @param from Position of the first row in the visiting order
+   * @param size Number of rows
+   * @return Dataset with packed features and labels of the rows
+   */
+  @Override
+  protected DataSet convertBatch(int from, int size) {
+    final DataType dataType = Nd4j.defaultFloatingPointType();
+    INDArray features = CsrBatch.fromInstances(data, order, from, size).toFeatures(dataType);
+
+    final int numOutcomes = totalOutcomes();
+    INDArray labels = Nd4j.zeros(dataType, size, numOutcomes);
+    for (int i = 0; i < size; i++) {
+      Instance inst = data.instance(order[from + i]);
+      if (numOutcomes > 1) { // Classification
+        labels.putScalar(i, (int) inst.classValue(), 1.0);
+      } else { // Regression (currently only single class)
+        labels.putScalar(i, 0, inst.classValue());
+      }
+    }
+    return new DataSet(features, labels);
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ContentHash.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * SHA-256 hash over the content of datasets and settings, used as key of cache entries.
+ */
+public class ContentHash {
+
+  /**
+   * The digest
+   */
+  private final MessageDigest digest;
+
+  /**
+   * Buffer collecting small updates before they are passed to the digest
+   */
+  private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+  /**
+   * Constructor.
+   */
+  public ContentHash() {
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /**
+   * Add a number to the hash.
+   *
+   * @param value Number
+   * @return This hash
+   */
+  public ContentHash update(long value) {
+    ensureRemaining(Long.BYTES);
+    buffer.putLong(value);
+    return this;
+  }
+
+  /**
+   * Add a number to the hash.
+   *
+   * @param value Number
+   * @return This hash
+   */
+  public ContentHash update(double value) {
+    return update(Double.doubleToLongBits(value));
+  }
+
+  /**
+   * Add a flag to the hash.
+   *
+   * @param value Flag
+   * @return This hash
+   */
+  public ContentHash update(boolean value) {
+    return update(value ? 1L : 0L);
+  }
+
+  /**
+   * Add a string to the hash (null is distinguished from the empty string).
+   *
+   * @param value String
+   * @return This hash
+   */
+  public ContentHash update(String value) {
+    if (value == null) {
+      return update(-1L);
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    update((long) bytes.length);
+    flush();
+    digest.update(bytes);
+    return this;
+  }
+
+  /**
+   * Add the header, weights and values of all instances to the hash.
+   *
+   * @param data Instances
+   * @return This hash
+   */
+  public ContentHash update(Instances data) {
+    update(new Instances(data, 0).toString());
+    update((long) data.classIndex());
+    update((long) data.numInstances());
+    final int numAttributes = data.numAttributes();
+    for (Instance inst : data) {
+      update(inst.weight());
+      for (int j = 0; j < numAttributes; j++) {
+        final Attribute att = data.attribute(j);
+        if (inst.isMissing(j)) {
+          update(Double.NaN);
+        } else if (att.isString()) {
+          update(inst.stringValue(j));
+        } else if (att.isRelational()) {
+          update(inst.relationalValue(j));
+        } else {
+          update(inst.value(j));
+        }
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Get the hash as hexadecimal string. The hash must not be updated afterwards.
+   *
+   * @return Hexadecimal hash
+   */
+  public String toHex() {
+    flush();
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Pass the buffer to the digest if it has less than the given number of bytes left.
+   */
+  private void ensureRemaining(int numBytes) {
+    if (buffer.remaining() < numBytes) {
+      flush();
+    }
+  }
+
+  /**
+   * Pass the buffer to the digest.
+   */
+  private void flush() {
+    buffer.flip();
+    digest.update(buffer);
+    buffer.clear();
+  }
+}
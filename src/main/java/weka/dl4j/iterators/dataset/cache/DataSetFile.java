@@ -0,0 +1,289 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * DataSetFile.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.dl4j.serialization.FramedModelSerializer;
+
+/**
+ * Compact binary file format for a single {@link DataSet} (features, labels and their masks).
+ * <p>
+ * The file starts with a magic number, the format version and flags. Each of the four arrays is
+ * then stored with its shape, data type and length, followed by its raw contents in little-endian
+ * order, aligned to 8 bytes. Uncompressed files are memory-mapped on read and the contents of each
+ * array are copied out of the mapping in a single bulk copy (on little-endian platforms), without
+ * any parsing. The arrays are copies rather than views, since dataset preprocessors modify the
+ * arrays of a batch in place. Compressed files are deflated after the flags and are inflated into
+ * new arrays on read.
+ */
+public final class DataSetFile {
+
+  /**
+   * Magic number at the start of every file ("WDSC")
+   */
+  public static final int MAGIC = 0x57445343;
+
+  /**
+   * Version of the format
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * Flag for deflated contents
+   */
+  private static final int FLAG_COMPRESSED = 1;
+
+  /**
+   * Number of arrays per dataset: features, labels, features mask and labels mask
+   */
+  private static final int NUM_ARRAYS = 4;
+
+  /**
+   * Size of the header (magic number, version and flags) in bytes
+   */
+  private static final int HEADER_SIZE = 12;
+
+  /**
+   * Alignment of the array contents in bytes
+   */
+  private static final int ALIGNMENT = 8;
+
+  private DataSetFile() {
+  }
+
+  /**
+   * Write a dataset to a file.
+   *
+   * @param ds Dataset to write
+   * @param file File to write to
+   * @param compress Whether to deflate the contents
+   * @throws IOException Could not write the file
+   */
+  public static void write(DataSet ds, File file, boolean compress) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file), FramedModelSerializer.BUFFER_SIZE))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(compress ? FLAG_COMPRESSED : 0);
+      if (compress) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+          DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater,
+              FramedModelSerializer.BUFFER_SIZE);
+          DataOutputStream body = new DataOutputStream(deflated);
+          writeRecord(ds, body);
+          body.flush();
+          deflated.finish();
+        } finally {
+          deflater.end();
+        }
+      } else {
+        writeRecord(ds, out);
+      }
+    }
+  }
+
+  /**
+   * Read a dataset from a file.
+   *
+   * @param file File to read
+   * @return Dataset
+   * @throws IOException Could not read the file or unknown format
+   */
+  public static DataSet read(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      if (mapped.getInt() != MAGIC) {
+        throw new IOException("Not a dataset cache file: " + file);
+      }
+      final int version = mapped.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported dataset cache file version " + version + ": " + file);
+      }
+      final int flags = mapped.getInt();
+      if ((flags & FLAG_COMPRESSED) == 0) {
+        return readRecord(mapped);
+      }
+    }
+
+    try (FileInputStream fis = new FileInputStream(file)) {
+      // The deflated contents start after the header
+      fis.getChannel().position(HEADER_SIZE);
+      DataInputStream in = new DataInputStream(new InflaterInputStream(
+          new BufferedInputStream(fis, FramedModelSerializer.BUFFER_SIZE)));
+      INDArray[] arrays = new INDArray[NUM_ARRAYS];
+      for (int i = 0; i < NUM_ARRAYS; i++) {
+        arrays[i] = readArray(in);
+      }
+      return new DataSet(arrays[0], arrays[1], arrays[2], arrays[3]);
+    }
+  }
+
+  /**
+   * Read the arrays of a dataset written by {@link #writeRecord(DataSet, DataOutputStream)} from a
+   * buffer, starting at its position. The contents are copied into new arrays, so the buffer is
+   * not referenced by the dataset.
+   *
+   * @param buffer Buffer positioned at the record, at a multiple of 8 bytes in the mapped file
+   * @return Dataset
+   * @throws IOException Invalid record
+   */
+  public static DataSet readRecord(ByteBuffer buffer) throws IOException {
+    INDArray[] arrays = new INDArray[NUM_ARRAYS];
+    for (int i = 0; i < NUM_ARRAYS; i++) {
+      arrays[i] = mapArray(buffer);
+    }
+    return new DataSet(arrays[0], arrays[1], arrays[2], arrays[3]);
+  }
+
+  /**
+   * Write the arrays of a dataset, without the file header. The array contents are aligned
+   * relative to the start of the stream.
+   *
+   * @param ds Dataset to write
+   * @param out Output to write to
+   * @throws IOException Could not write to the output
+   */
+  public static void writeRecord(DataSet ds, DataOutputStream out) throws IOException {
+    writeArray(ds.getFeatures(), out);
+    writeArray(ds.getLabels(), out);
+    writeArray(ds.getFeaturesMaskArray(), out);
+    writeArray(ds.getLabelsMaskArray(), out);
+  }
+
+  /**
+   * Write an array (or its absence) with shape, data type, length and aligned contents.
+   */
+  private static void writeArray(INDArray arr, DataOutputStream out) throws IOException {
+    out.writeBoolean(arr != null);
+    if (arr == null) {
+      return;
+    }
+    if (arr.isView() || arr.ordering() != 'c') {
+      arr = arr.dup('c');
+    }
+    final long[] shape = arr.shape();
+    out.writeInt(shape.length);
+    for (long s : shape) {
+      out.writeLong(s);
+    }
+    out.writeUTF(arr.dataType().name());
+    out.writeLong(arr.length());
+    // Without compression, out.size() is the offset relative to an aligned position in the file
+    final int padding = (ALIGNMENT - (out.size() + 1) % ALIGNMENT) % ALIGNMENT;
+    out.writeByte(padding);
+    out.write(new byte[padding]);
+    FramedModelSerializer.writeContents(arr, out);
+  }
+
+  /**
+   * Read an array from a stream into a new array.
+   */
+  private static INDArray readArray(DataInputStream in) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    final long[] shape = new long[in.readInt()];
+    for (int i = 0; i < shape.length; i++) {
+      shape[i] = in.readLong();
+    }
+    final DataType dataType = DataType.valueOf(in.readUTF());
+    final long length = in.readLong();
+    in.readFully(new byte[in.readUnsignedByte()]);
+
+    INDArray arr = Nd4j.createUninitialized(dataType, shape, 'c');
+    final int width = dataType.width();
+    ByteBuffer dst = arr.data().asNio().order(ByteOrder.nativeOrder());
+    dst.position(0);
+    dst.limit((int) (length * width));
+    byte[] buffer = new byte[FramedModelSerializer.chunkSize(width)];
+    while (dst.hasRemaining()) {
+      int n = Math.min(buffer.length, dst.remaining());
+      in.readFully(buffer, 0, n);
+      FramedModelSerializer.toStreamOrder(buffer, n, width);
+      dst.put(buffer, 0, n);
+    }
+    Nd4j.getAffinityManager().tickHostWrite(arr);
+    return arr;
+  }
+
+  /**
+   * Read an array from a mapped file into a new array. On little-endian platforms the contents are
+   * copied in bulk, otherwise they are converted chunk by chunk.
+   */
+  private static INDArray mapArray(ByteBuffer mapped) throws IOException {
+    if (mapped.get() == 0) {
+      return null;
+    }
+    final long[] shape = new long[mapped.getInt()];
+    for (int i = 0; i < shape.length; i++) {
+      shape[i] = mapped.getLong();
+    }
+    byte[] name = new byte[mapped.getShort() & 0xFFFF];
+    mapped.get(name);
+    final DataType dataType = DataType.valueOf(new String(name, StandardCharsets.UTF_8));
+    final long length = mapped.getLong();
+    final int padding = mapped.get() & 0xFF;
+    mapped.position(mapped.position() + padding);
+
+    final int numBytes = (int) (length * dataType.width());
+    ByteBuffer contents = mapped.slice();
+    contents.limit(numBytes);
+    mapped.position(mapped.position() + numBytes);
+
+    INDArray arr = Nd4j.createUninitialized(dataType, shape, 'c');
+    ByteBuffer dst = arr.data().asNio().order(ByteOrder.nativeOrder());
+    dst.position(0);
+    if (ByteOrder.nativeOrder() == FramedModelSerializer.STREAM_ORDER) {
+      dst.put(contents);
+    } else {
+      final int width = dataType.width();
+      byte[] buffer = new byte[FramedModelSerializer.chunkSize(width)];
+      while (contents.hasRemaining()) {
+        int n = Math.min(buffer.length, contents.remaining());
+        contents.get(buffer, 0, n);
+        FramedModelSerializer.toStreamOrder(buffer, n, width);
+        dst.put(buffer, 0, n);
+      }
+    }
+    Nd4j.getAffinityManager().tickHostWrite(arr);
+    return arr;
+  }
+}
@@ -0,0 +1,492 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ImageTensorCache.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+import lombok.extern.log4j.Log4j2;
+import org.datavec.image.loader.NativeImageLoader;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Cache of decoded images, stored as uint8 tensors of a fixed shape in sharded, memory-mapped
+ * files.
+ * <p>
+ * Each image occupies a slot of {@code height * width * channels} bytes, in NCHW or NHWC order.
+ * The slots are spread over shard files of at most 1 GB, which are mapped read-only. An index maps
+ * the absolute path of each source image to its slot, together with the modification time and size
+ * of the source file; images whose source file changed are decoded again into their slot. A source
+ * file that is replaced by one of the same size and modification time (e.g. copied with preserved
+ * timestamps) is not detected. Missing images are decoded in parallel, each thread with its own
+ * image loader.
+ * <p>
+ * The cache is not bounded: it keeps a slot for every distinct image path it has decoded, also
+ * after the image was moved or deleted, since other processes sharing the cache may still read the
+ * slot. Its size is therefore the number of distinct images times the size of a slot; delete the
+ * cache directory to reclaim the space.
+ * <p>
+ * All images of a cache have the same shape and come from the same kind of loader, so the cache
+ * directory is specific to the shape, the channel order and the loader variant. Updates lock the
+ * directory, so that several processes can share it. File locks are held by the whole JVM, so
+ * updates of caches on the same directory within one JVM (e.g. of iterator copies) are serialized
+ * by a lock per directory in addition. Every write of the index stores a new random
+ * stamp, by which an update detects whether another process changed the index since it was last
+ * read.
+ */
+@Log4j2
+public class ImageTensorCache implements Closeable {
+
+  /**
+   * Magic number at the start of the index ("WITC")
+   */
+  private static final int MAGIC = 0x57495443;
+
+  /**
+   * Version of the format
+   */
+  public static final int VERSION = 2;
+
+  /**
+   * Maximum size of a shard file in bytes
+   */
+  private static final long SHARD_BYTES = 1L << 30;
+
+  /**
+   * Name of the index file
+   */
+  private static final String INDEX_FILE = "index.bin";
+
+  /**
+   * Name of the lock file
+   */
+  private static final String LOCK_FILE = "lock";
+
+  /**
+   * Locks serializing the updates within this JVM, by canonical cache directory
+   */
+  private static final Map<String, Object> DIRECTORY_LOCKS = new ConcurrentHashMap<>();
+
+  /**
+   * Directory of this cache
+   */
+  private final File directory;
+
+  /**
+   * Shape of a single image (without the batch dimension)
+   */
+  private final long[] imageShape;
+
+  /**
+   * Whether the images are stored in NHWC instead of NCHW order
+   */
+  private final boolean channelsLast;
+
+  /**
+   * Number of bytes of a single image
+   */
+  private final int imageBytes;
+
+  /**
+   * Number of images per shard file
+   */
+  private final int slotsPerShard;
+
+  /**
+   * Index entries by absolute path of the source image
+   */
+  private final Map<String, Entry> index = new HashMap<>();
+
+  /**
+   * Number of allocated slots
+   */
+  private int numSlots;
+
+  /**
+   * Stamp of the index when it was last read or written (0 if there is no index)
+   */
+  private long indexStamp = 0;
+
+  /**
+   * Read-only mappings of the shard files (null entries are mapped on demand)
+   */
+  private final List<MappedByteBuffer> mappings = new ArrayList<>();
+
+  /**
+   * Constructor.
+   *
+   * @param root Root directory of the image caches
+   * @param height Image height
+   * @param width Image width
+   * @param channels Number of channels
+   * @param channelsLast Whether the images are stored in NHWC instead of NCHW order
+   * @param variant Name of the loader variant (e.g. of the resizing), part of the directory name
+   */
+  public ImageTensorCache(File root, int height, int width, int channels, boolean channelsLast,
+      String variant) {
+    this.directory = new File(root, String.format("%dx%dx%d-%s-%s", height, width, channels,
+        channelsLast ? "nhwc" : "nchw", variant));
+    this.channelsLast = channelsLast;
+    this.imageShape = channelsLast ? new long[]{height, width, channels}
+        : new long[]{channels, height, width};
+    this.imageBytes = height * width * channels;
+    this.slotsPerShard = (int) Math.max(1, SHARD_BYTES / imageBytes);
+  }
+
+  /**
+   * Get the directory of this cache.
+   *
+   * @return Cache directory
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Get the shape of a single image.
+   *
+   * @return Shape without the batch dimension
+   */
+  public long[] getImageShape() {
+    return imageShape.clone();
+  }
+
+  /**
+   * Get the number of bytes of a single image.
+   *
+   * @return Number of bytes
+   */
+  public int getImageBytes() {
+    return imageBytes;
+  }
+
+  /**
+   * Make sure that the given images are cached and up to date, decoding missing or changed images
+   * in parallel.
+   *
+   * @param files Source images
+   * @param loaders Creates an image loader for each decoding thread
+   * @param numThreads Number of decoding threads
+   * @return Slot of each image
+   * @throws IOException Could not decode an image or write the cache
+   */
+  public synchronized int[] update(List<File> files, Supplier<NativeImageLoader> loaders,
+      int numThreads) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+      throw new IOException("Could not create cache directory " + directory);
+    }
+    final Object directoryLock = DIRECTORY_LOCKS.computeIfAbsent(directory.getCanonicalPath(),
+        path -> new Object());
+    synchronized (directoryLock) {
+      return updateLocked(files, loaders, numThreads, new File(directory, LOCK_FILE));
+    }
+  }
+
+  /**
+   * Update the cache while holding the lock of the directory in this JVM.
+   */
+  private int[] updateLocked(List<File> files, Supplier<NativeImageLoader> loaders, int numThreads,
+      File lockFile) throws IOException {
+    try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = lockChannel.lock()) {
+      // Another process may have added images since the last update
+      readIndex();
+
+      final int[] slots = new int[files.size()];
+      final List<Integer> stale = new ArrayList<>();
+      final Map<String, Entry> decoding = new HashMap<>();
+      for (int i = 0; i < slots.length; i++) {
+        final File file = files.get(i).getAbsoluteFile();
+        final String path = file.getPath();
+        Entry entry = index.get(path);
+        if (entry == null || entry.lastModified != file.lastModified()
+            || entry.length != file.length()) {
+          if (decoding.containsKey(path)) {
+            entry = decoding.get(path);
+          } else {
+            entry = new Entry(entry == null ? numSlots++ : entry.slot, file.lastModified(),
+                file.length());
+            decoding.put(path, entry);
+            stale.add(i);
+          }
+        }
+        slots[i] = entry.slot;
+      }
+
+      if (!stale.isEmpty()) {
+        log.info("Decoding {} images into {}", stale.size(), directory);
+        decode(files, slots, stale, loaders, Math.max(1, numThreads));
+        index.putAll(decoding);
+        writeIndex();
+      }
+      // Shards may have grown, they are mapped again on demand
+      mappings.clear();
+      return slots;
+    }
+  }
+
+  /**
+   * Decode images and write them into their slots.
+   */
+  private void decode(List<File> files, int[] slots, List<Integer> stale,
+      Supplier<NativeImageLoader> loaders, int numThreads) throws IOException {
+    final Map<Integer, FileChannel> shards = new HashMap<>();
+    final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      final List<Future<Void>> futures = new ArrayList<>();
+      for (int t = 0; t < numThreads; t++) {
+        final int first = t;
+        futures.add(executor.submit(() -> {
+          final NativeImageLoader loader = loaders.get();
+          final ByteBuffer buffer = ByteBuffer.allocate(imageBytes);
+          for (int k = first; k < stale.size(); k += numThreads) {
+            final int i = stale.get(k);
+            toBytes(loader.asMatrix(files.get(i)), buffer);
+            final FileChannel shard = getShardChannel(shards, slots[i] / slotsPerShard);
+            long position = (long) (slots[i] % slotsPerShard) * imageBytes;
+            while (buffer.hasRemaining()) {
+              position += shard.write(buffer, position);
+            }
+          }
+          return null;
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while decoding images", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Could not decode images", e.getCause());
+    } finally {
+      executor.shutdownNow();
+      for (FileChannel shard : shards.values()) {
+        shard.close();
+      }
+    }
+  }
+
+  /**
+   * Write the pixel values of a decoded image (of shape {@code [1, channels, height, width]}) into
+   * the buffer in the order of this cache, and flip the buffer.
+   */
+  private void toBytes(INDArray image, ByteBuffer buffer) {
+    if (channelsLast) {
+      image = image.permute(0, 2, 3, 1);
+    }
+    final float[] values = image.dup('c').data().asFloat();
+    buffer.clear();
+    for (float v : values) {
+      buffer.put((byte) Math.round(Math.max(0, Math.min(255, v))));
+    }
+    buffer.flip();
+  }
+
+  /**
+   * Get the writable channel of a shard file, opening it if necessary.
+   */
+  private FileChannel getShardChannel(Map<Integer, FileChannel> shards, int shard)
+      throws IOException {
+    synchronized (shards) {
+      FileChannel channel = shards.get(shard);
+      if (channel == null) {
+        channel = FileChannel.open(getShardFile(shard).toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        shards.put(shard, channel);
+      }
+      return channel;
+    }
+  }
+
+  /**
+   * Get the file of a shard.
+   */
+  private File getShardFile(int shard) {
+    return new File(directory, "shard-" + shard + ".bin");
+  }
+
+  /**
+   * Copy the pixel values of an image into the given array.
+   *
+   * @param slot Slot of the image, see {@link #update(List, Supplier, int)}
+   * @param dst Destination
+   * @param offset Offset in the destination
+   * @throws IOException Could not map the shard file
+   */
+  public void read(int slot, byte[] dst, int offset) throws IOException {
+    final ByteBuffer src = getMapping(slot / slotsPerShard).duplicate();
+    src.position((slot % slotsPerShard) * imageBytes);
+    src.get(dst, offset, imageBytes);
+  }
+
+  /**
+   * Get the read-only mapping of a shard file, mapping it if necessary.
+   */
+  private synchronized MappedByteBuffer getMapping(int shard) throws IOException {
+    while (mappings.size() <= shard) {
+      mappings.add(null);
+    }
+    MappedByteBuffer mapping = mappings.get(shard);
+    if (mapping == null) {
+      try (FileChannel channel = FileChannel.open(getShardFile(shard).toPath(),
+          StandardOpenOption.READ)) {
+        mapping = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      }
+      mappings.set(shard, mapping);
+    }
+    return mapping;
+  }
+
+  /**
+   * Read the index of the cache directory, if it exists.
+   */
+  private void readIndex() throws IOException {
+    final File file = new File(directory, INDEX_FILE);
+    if (!file.exists()) {
+      clearIndex();
+      return;
+    }
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        log.warn("Ignoring image cache index {} of another version", file);
+        clearIndex();
+        return;
+      }
+      final long stamp = in.readLong();
+      if (stamp == indexStamp) {
+        // Unchanged since it was last read or written
+        return;
+      }
+      clearIndex();
+      indexStamp = stamp;
+      numSlots = in.readInt();
+      final int numEntries = in.readInt();
+      for (int i = 0; i < numEntries; i++) {
+        final String path = in.readUTF();
+        index.put(path, new Entry(in.readInt(), in.readLong(), in.readLong()));
+      }
+    }
+  }
+
+  /**
+   * Forget the index read or written before.
+   */
+  private void clearIndex() {
+    index.clear();
+    numSlots = 0;
+    indexStamp = 0;
+  }
+
+  /**
+   * Write the index of the cache directory via a temporary file that is then renamed.
+   */
+  private void writeIndex() throws IOException {
+    final File file = new File(directory, INDEX_FILE);
+    final Path tmp = Files.createTempFile(directory.toPath(), INDEX_FILE, ".tmp");
+    long stamp;
+    do {
+      stamp = ThreadLocalRandom.current().nextLong();
+    } while (stamp == 0 || stamp == indexStamp);
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(stamp);
+        out.writeInt(numSlots);
+        out.writeInt(index.size());
+        for (Map.Entry<String, Entry> e : index.entrySet()) {
+          out.writeUTF(e.getKey());
+          out.writeInt(e.getValue().slot);
+          out.writeLong(e.getValue().lastModified);
+          out.writeLong(e.getValue().length);
+        }
+      }
+      Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      indexStamp = stamp;
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Release the mappings of the shard files.
+   */
+  @Override
+  public synchronized void close() {
+    mappings.clear();
+  }
+
+  /**
+   * Index entry of a cached image.
+   */
+  private static class Entry {
+
+    /**
+     * Slot of the image
+     */
+    final int slot;
+
+    /**
+     * Modification time of the source file
+     */
+    final long lastModified;
+
+    /**
+     * Size of the source file
+     */
+    final long length;
+
+    Entry(int slot, long lastModified, long length) {
+      this.slot = slot;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+  }
+}
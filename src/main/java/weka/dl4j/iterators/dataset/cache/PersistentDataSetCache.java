@@ -0,0 +1,291 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * PersistentDataSetCache.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.log4j.Log4j2;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.cache.DataSetCache;
+
+/**
+ * Content-addressed dataset cache in the filesystem that persists across runs, folds and
+ * processes.
+ * <p>
+ * Each entry is a directory below the cache root, named by a key that identifies the content of
+ * the cached batches (see {@link ContentHash}): the input data, the iterator options and the
+ * preprocessing state. Batches are stored as {@link DataSetFile}s, which are memory-mapped on read.
+ * An entry is only used once it has been marked complete, so interrupted runs are simply rewritten.
+ * Files are written to temporary files and atomically renamed, so that several processes can
+ * safely fill and read the same entry.
+ * <p>
+ * When an entry is completed, the least recently used other entries are deleted until the cache
+ * fits into its size limit. Entries are marked as used on every access, and entries used within
+ * the last {@value #IN_USE_MILLIS} ms are never deleted, since another fold, run or process may
+ * still be reading (or filling) them.
+ */
+@Log4j2
+public class PersistentDataSetCache implements DataSetCache {
+
+  /**
+   * Name of the default cache directory in "java.io.tmpdir"
+   */
+  public static final String DEFAULT_DIRECTORY_NAME = "weka-dl4j-dataset-cache";
+
+  /**
+   * Suffix of the marker files of complete namespaces
+   */
+  private static final String COMPLETE_SUFFIX = ".complete";
+
+  /**
+   * Time in milliseconds after its last use during which an entry is not evicted
+   */
+  public static final long IN_USE_MILLIS = 10 * 60 * 1000;
+
+  /**
+   * Minimum time in milliseconds between two updates of the last use of the entry
+   */
+  private static final long TOUCH_INTERVAL_MILLIS = 1000;
+
+  /**
+   * Root directory of the cache
+   */
+  private final File root;
+
+  /**
+   * Directory of this entry
+   */
+  private final File entry;
+
+  /**
+   * Maximum size of the cache in bytes
+   */
+  private final long sizeLimit;
+
+  /**
+   * Whether batches are compressed
+   */
+  private final boolean compress;
+
+  /**
+   * Time at which this cache last marked its entry as used
+   */
+  private volatile long lastTouched = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param root Root directory of the cache
+   * @param key Key of the entry, see {@link ContentHash}
+   * @param sizeLimit Maximum size of the cache in bytes
+   * @param compress Whether to compress the batches written by this cache
+   */
+  public PersistentDataSetCache(File root, String key, long sizeLimit, boolean compress) {
+    this.root = root;
+    this.entry = new File(root, key);
+    this.sizeLimit = sizeLimit;
+    this.compress = compress;
+    if (!entry.isDirectory() && !entry.mkdirs() && !entry.isDirectory()) {
+      throw new UncheckedIOException(new IOException("Could not create cache directory " + entry));
+    }
+  }
+
+  /**
+   * Get the default root directory of the cache.
+   *
+   * @return Directory in "java.io.tmpdir"
+   */
+  public static File getDefaultRoot() {
+    return new File(System.getProperty("java.io.tmpdir"), DEFAULT_DIRECTORY_NAME);
+  }
+
+  @Override
+  public boolean isComplete(String namespace) {
+    final boolean complete = new File(entry, namespace + COMPLETE_SUFFIX).exists();
+    if (complete) {
+      touch();
+      log.debug("Using cached batches in {}", entry);
+    }
+    return complete;
+  }
+
+  @Override
+  public void setComplete(String namespace, boolean value) {
+    final File marker = new File(entry, namespace + COMPLETE_SUFFIX);
+    try {
+      if (value) {
+        writeAtomically(marker, tmp -> {
+        });
+        touch();
+        evict();
+      } else {
+        Files.deleteIfExists(marker.toPath());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public DataSet get(String key) {
+    touch();
+    try {
+      return DataSetFile.read(new File(entry, key));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void put(String key, DataSet dataSet) {
+    touch();
+    try {
+      writeAtomically(new File(entry, key), tmp -> DataSetFile.write(dataSet, tmp, compress));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public boolean contains(String key) {
+    return new File(entry, key).exists();
+  }
+
+  /**
+   * Get the directory of this entry.
+   *
+   * @return Entry directory
+   */
+  public File getEntry() {
+    return entry;
+  }
+
+  /**
+   * Mark the entry as recently used, at most once per {@link #TOUCH_INTERVAL_MILLIS}.
+   */
+  protected void touch() {
+    final long now = System.currentTimeMillis();
+    if (now - lastTouched >= TOUCH_INTERVAL_MILLIS) {
+      lastTouched = now;
+      entry.setLastModified(now);
+    }
+  }
+
+  /**
+   * Delete the least recently used entries (other than this one and those used within the last
+   * {@link #IN_USE_MILLIS}) until the cache fits into its size limit.
+   */
+  protected void evict() {
+    File[] dirs = root.listFiles(File::isDirectory);
+    if (dirs == null) {
+      return;
+    }
+    List<File> entries = new ArrayList<>();
+    // Other processes may touch the entries while sorting
+    final Map<File, Long> lastUsed = new HashMap<>();
+    long total = 0;
+    for (File dir : dirs) {
+      total += sizeOf(dir);
+      if (!dir.equals(entry)) {
+        entries.add(dir);
+        lastUsed.put(dir, dir.lastModified());
+      }
+    }
+    entries.sort(Comparator.comparing(lastUsed::get));
+    final long inUseSince = System.currentTimeMillis() - IN_USE_MILLIS;
+    for (File dir : entries) {
+      if (total <= sizeLimit || lastUsed.get(dir) > inUseSince) {
+        // The remaining entries are in use
+        break;
+      }
+      final long size = sizeOf(dir);
+      log.info("Evicting dataset cache entry {} ({} bytes)", dir, size);
+      delete(dir);
+      total -= size;
+    }
+    if (total > sizeLimit) {
+      log.warn("Dataset cache entries in use ({}) exceed the cache size limit of {} bytes",
+          entry, sizeLimit);
+    }
+  }
+
+  /**
+   * Get the total size of the files in a directory.
+   */
+  private static long sizeOf(File dir) {
+    File[] files = dir.listFiles();
+    long size = 0;
+    if (files != null) {
+      for (File f : files) {
+        size += f.length();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Delete a directory with its files. Marker files are deleted first, so that other processes do
+   * not use a partially deleted entry.
+   */
+  private static void delete(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.getName().endsWith(COMPLETE_SUFFIX)) {
+          f.delete();
+        }
+      }
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * Write a file via a temporary file in the same directory that is then renamed.
+   */
+  private static void writeAtomically(File file, FileWriter writer) throws IOException {
+    Path tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+    try {
+      writer.write(tmp.toFile());
+      Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Writes the contents of a file.
+   */
+  private interface FileWriter {
+
+    void write(File file) throws IOException;
+  }
+}
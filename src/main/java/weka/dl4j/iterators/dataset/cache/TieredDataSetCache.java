@@ -0,0 +1,304 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * TieredDataSetCache.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import lombok.extern.log4j.Log4j2;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.cache.DataSetCache;
+import weka.dl4j.serialization.FramedModelSerializer;
+
+/**
+ * Dataset cache for a single run with a bounded memory footprint. Batches are kept in memory until
+ * their total size reaches the memory budget; further batches are appended to a spill file in
+ * {@link DataSetFile} record format. A spilled batch is read back by mapping its region of the
+ * file and copying each array out of the mapping in one pass, so every read of a spilled batch
+ * allocates fresh arrays of the size of the batch. Batches in memory are copied when they are put
+ * and on every read, since callers (e.g. preprocessors applied in place) modify the batches they
+ * get. The spill file is deleted when the cache is closed.
+ */
+@Log4j2
+public class TieredDataSetCache implements DataSetCache, Closeable {
+
+  /**
+   * Maximum number of bytes of the batches kept in memory
+   */
+  private final long memoryBudget;
+
+  /**
+   * Directory of the spill file
+   */
+  private final File spillDirectory;
+
+  /**
+   * Batches kept in memory
+   */
+  private final Map<String, DataSet> memory = new HashMap<>();
+
+  /**
+   * Offset and length of the spilled batches in the spill file
+   */
+  private final Map<String, long[]> spilled = new HashMap<>();
+
+  /**
+   * Complete namespaces
+   */
+  private final Set<String> complete = new HashSet<>();
+
+  /**
+   * Spill file, created with the first spilled batch
+   */
+  private File spillFile;
+
+  /**
+   * Channel of the spill file
+   */
+  private FileChannel spillChannel;
+
+  /**
+   * Statistics of this cache
+   */
+  private final Statistics statistics = new Statistics();
+
+  /**
+   * Constructor.
+   *
+   * @param memoryBudget Maximum number of bytes of the batches kept in memory
+   * @param spillDirectory Directory to create the spill file in
+   */
+  public TieredDataSetCache(long memoryBudget, File spillDirectory) {
+    this.memoryBudget = memoryBudget;
+    this.spillDirectory = spillDirectory;
+  }
+
+  @Override
+  public synchronized boolean isComplete(String namespace) {
+    return complete.contains(namespace);
+  }
+
+  @Override
+  public synchronized void setComplete(String namespace, boolean value) {
+    if (value) {
+      complete.add(namespace);
+    } else {
+      complete.remove(namespace);
+    }
+  }
+
+  @Override
+  public synchronized DataSet get(String key) {
+    DataSet ds = memory.get(key);
+    if (ds != null) {
+      statistics.memoryHits++;
+      return ds.copy();
+    }
+    final long[] region = spilled.get(key);
+    if (region == null) {
+      return null;
+    }
+    try {
+      statistics.spillHits++;
+      return DataSetFile.readRecord(spillChannel.map(MapMode.READ_ONLY, region[0], region[1]));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public synchronized void put(String key, DataSet dataSet) {
+    final long size = sizeOf(dataSet);
+    if (statistics.memoryBytes + size <= memoryBudget) {
+      memory.put(key, dataSet.copy());
+      statistics.memoryBatches++;
+      statistics.memoryBytes += size;
+      return;
+    }
+    try {
+      spill(key, dataSet);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public synchronized boolean contains(String key) {
+    return memory.containsKey(key) || spilled.containsKey(key);
+  }
+
+  /**
+   * Append a batch to the spill file.
+   *
+   * @param key Key of the batch
+   * @param dataSet Batch
+   * @throws IOException Could not write the spill file
+   */
+  private void spill(String key, DataSet dataSet) throws IOException {
+    if (spillChannel == null) {
+      if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+        throw new IOException("Could not create directory " + spillDirectory);
+      }
+      spillFile = Files.createTempFile(spillDirectory.toPath(), "dataset-spill", ".bin").toFile();
+      spillFile.deleteOnExit();
+      spillChannel = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      log.info("Memory cache budget of {} bytes reached, spilling batches to {}", memoryBudget,
+          spillFile);
+    }
+
+    // Records start at multiples of 8 bytes, so the array contents are aligned for the bulk copy
+    final long offset = spillChannel.size();
+    spillChannel.position(offset);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        Channels.newOutputStream(spillChannel), FramedModelSerializer.BUFFER_SIZE));
+    DataSetFile.writeRecord(dataSet, out);
+    out.write(new byte[(8 - out.size() % 8) % 8]);
+    out.flush();
+
+    final long length = spillChannel.position() - offset;
+    spilled.put(key, new long[]{offset, length});
+    statistics.spilledBatches++;
+    statistics.spilledBytes += length;
+  }
+
+  /**
+   * Get the number of bytes of the arrays of a batch.
+   */
+  private static long sizeOf(DataSet ds) {
+    long size = 0;
+    for (INDArray arr : new INDArray[]{ds.getFeatures(), ds.getLabels(),
+        ds.getFeaturesMaskArray(), ds.getLabelsMaskArray()}) {
+      if (arr != null) {
+        size += arr.length() * arr.dataType().width();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Get the statistics of this cache.
+   *
+   * @return Statistics (live view)
+   */
+  public Statistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Release the batches and delete the spill file.
+   */
+  @Override
+  public synchronized void close() {
+    memory.clear();
+    spilled.clear();
+    complete.clear();
+    if (spillChannel != null) {
+      try {
+        spillChannel.close();
+      } catch (IOException e) {
+        log.warn("Could not close the spill file", e);
+      }
+      spillChannel = null;
+      if (!spillFile.delete()) {
+        log.warn("Could not delete the spill file {}", spillFile);
+      }
+    }
+  }
+
+  /**
+   * Hit and spill statistics of a {@link TieredDataSetCache}.
+   */
+  public static class Statistics {
+
+    /**
+     * Number of batches kept in memory
+     */
+    private long memoryBatches;
+
+    /**
+     * Number of bytes of the batches kept in memory
+     */
+    private long memoryBytes;
+
+    /**
+     * Number of spilled batches
+     */
+    private long spilledBatches;
+
+    /**
+     * Number of bytes of the spilled batches
+     */
+    private long spilledBytes;
+
+    /**
+     * Number of batches served from memory
+     */
+    private long memoryHits;
+
+    /**
+     * Number of batches served from the spill file
+     */
+    private long spillHits;
+
+    public long getMemoryBatches() {
+      return memoryBatches;
+    }
+
+    public long getMemoryBytes() {
+      return memoryBytes;
+    }
+
+    public long getSpilledBatches() {
+      return spilledBatches;
+    }
+
+    public long getSpilledBytes() {
+      return spilledBytes;
+    }
+
+    public long getMemoryHits() {
+      return memoryHits;
+    }
+
+    public long getSpillHits() {
+      return spillHits;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Dataset cache: %d batches in memory (%.1f MB), %d spilled (%.1f MB); "
+              + "%d memory hits, %d spill hits", memoryBatches, memoryBytes / 1048576.0,
+          spilledBatches, spilledBytes / 1048576.0, memoryHits, spillHits);
+    }
+  }
+}
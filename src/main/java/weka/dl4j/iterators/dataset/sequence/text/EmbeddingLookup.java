@@ -0,0 +1,222 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * EmbeddingLookup.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset.sequence.text;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import lombok.extern.log4j.Log4j2;
+import org.deeplearning4j.models.embeddings.WeightLookupTable;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.dl4j.text.embeddings.BinaryWordVectorsFile;
+import weka.dl4j.text.embeddings.MappedWordVectors;
+
+/**
+ * Batched lookup of word vectors by vocabulary index.
+ * <p>
+ * The word vectors are held as one contiguous [vocabulary size, vector size] matrix, so that the
+ * vectors of all tokens of a mini-batch are collected with a single gather instead of one lookup
+ * and one put per token. Word vectors mapped from a {@link BinaryWordVectorsFile} are gathered from
+ * the mapped matrix of the file, so that only the rows of the tokens in a batch are read.
+ */
+@Log4j2
+public class EmbeddingLookup {
+
+  /**
+   * Id of a padding position, filled with zeros
+   */
+  public static final int PADDING_ID = -2;
+
+  /**
+   * Embedding matrices assembled from word vectors without a lookup table, e.g. static models set
+   * programmatically. Each is a second copy of the vectors, kept while the word vectors are in use.
+   */
+  private static final Map<WordVectors, INDArray> MATRICES = new WeakHashMap<>();
+
+  /**
+   * The word vectors
+   */
+  private final WordVectors wordVectors;
+
+  /**
+   * The vocabulary
+   */
+  private final VocabCache<?> vocab;
+
+  /**
+   * The mapped file of the word vectors, if they are mapped
+   */
+  private final BinaryWordVectorsFile file;
+
+  /**
+   * The embedding matrix, one row per vocabulary index (created on demand)
+   */
+  private INDArray matrix;
+
+  /**
+   * Constructor.
+   *
+   * @param wordVectors Word vectors
+   */
+  public EmbeddingLookup(WordVectors wordVectors) {
+    this.wordVectors = wordVectors;
+    this.vocab = wordVectors.vocab();
+    this.file = wordVectors instanceof MappedWordVectors
+        ? ((MappedWordVectors) wordVectors).getFile() : null;
+  }
+
+  /**
+   * Get the embedding matrix of the word vectors.
+   *
+   * @return Matrix of shape [vocabulary size, vector size]
+   */
+  public INDArray getMatrix() {
+    if (matrix == null) {
+      matrix = getEmbeddingMatrix(wordVectors);
+    }
+    return matrix;
+  }
+
+  /**
+   * Get the embedding matrix of the given word vectors. This is the weight matrix of the lookup
+   * table if the word vectors have one, and a new copy of the matrix of mapped word vectors.
+   * Otherwise, which only happens for word vectors that were not loaded through the {@link
+   * weka.dl4j.text.embeddings.WordVectorsRegistry} (it maps static models in the binary format),
+   * the matrix is assembled row by row from the single vectors. That costs one lookup per word and
+   * a second copy of all vectors, which is kept and shared by all lookups of the same word vectors.
+   *
+   * @param wordVectors Word vectors
+   * @return Matrix of shape [vocabulary size, vector size]
+   */
+  public static INDArray getEmbeddingMatrix(WordVectors wordVectors) {
+    if (wordVectors instanceof MappedWordVectors) {
+      return toDefaultType(((MappedWordVectors) wordVectors).getFile().readVectors());
+    }
+    final int numWords = wordVectors.vocab().numWords();
+    WeightLookupTable<?> table;
+    try {
+      table = wordVectors.lookupTable();
+    } catch (UnsupportedOperationException e) {
+      table = null;
+    }
+    if (table != null && table.getWeights() != null && table.getWeights().rank() == 2
+        && table.getWeights().rows() == numWords) {
+      return toDefaultType(table.getWeights());
+    }
+
+    synchronized (MATRICES) {
+      INDArray matrix = MATRICES.get(wordVectors);
+      if (matrix == null) {
+        log.debug("Assembling the embedding matrix of " + numWords + " words");
+        final VocabCache<?> vocab = wordVectors.vocab();
+        final int vectorSize = wordVectors.getWordVector(vocab.wordAtIndex(0)).length;
+        matrix = Nd4j.create(Nd4j.defaultFloatingPointType(), numWords, vectorSize);
+        for (int i = 0; i < numWords; i++) {
+          matrix.putRow(i, wordVectors.getWordVectorMatrix(vocab.wordAtIndex(i)));
+        }
+        MATRICES.put(wordVectors, matrix);
+      }
+      return matrix;
+    }
+  }
+
+  /**
+   * Get the vocabulary index of a token.
+   *
+   * @param token Token
+   * @return Vocabulary index, or {@link TokenIdCorpus#UNKNOWN_ID} if the token is not in the
+   * vocabulary
+   */
+  public int indexOf(String token) {
+    final int index = vocab.indexOf(token);
+    return index < 0 ? TokenIdCorpus.UNKNOWN_ID : index;
+  }
+
+  /**
+   * Get the size of the word vectors.
+   *
+   * @return Vector size
+   */
+  public int getVectorSize() {
+    if (file != null) {
+      return file.getVectorSize();
+    }
+    return (int) getMatrix().columns();
+  }
+
+  /**
+   * Gather the word vectors of the given ids with a single gather from the embedding matrix (or
+   * from the mapped matrix of the file).
+   *
+   * @param ids Vocabulary indices, {@link TokenIdCorpus#UNKNOWN_ID} or {@link #PADDING_ID}
+   * @param unknown Vector of unknown tokens (zeros if null)
+   * @return Matrix of shape [number of ids, vector size] in 'c' order, with row i holding the
+   * vector of id i
+   */
+  public INDArray gather(int[] ids, INDArray unknown) {
+    final int[] rows = new int[ids.length];
+    final float[] keep = new float[ids.length];
+    final List<Integer> unknownRows = new ArrayList<>();
+    for (int i = 0; i < ids.length; i++) {
+      if (ids[i] >= 0) {
+        rows[i] = ids[i];
+        keep[i] = 1;
+      } else if (ids[i] == TokenIdCorpus.UNKNOWN_ID && unknown != null) {
+        unknownRows.add(i);
+      }
+    }
+
+    // Gather all rows, then zero the padding and unknown rows in bulk
+    final INDArray vectors = file != null ? toDefaultType(file.readVectors(rows))
+        : Nd4j.pullRows(getMatrix(), 1, rows, 'c');
+    vectors.muliColumnVector(Nd4j.create(keep, new long[]{ids.length, 1}, 'c')
+        .castTo(vectors.dataType()));
+    for (int row : unknownRows) {
+      vectors.putRow(row, unknown);
+    }
+    return vectors;
+  }
+
+  /**
+   * Create an array of the default floating point type from the given values.
+   *
+   * @param values Values in 'c' order
+   * @param shape Shape
+   * @return Array
+   */
+  public static INDArray create(float[] values, long... shape) {
+    return toDefaultType(Nd4j.create(values, shape, 'c'));
+  }
+
+  /**
+   * Cast an array to the default floating point type if necessary.
+   *
+   * @param array Array
+   * @return Array of the default floating point type
+   */
+  private static INDArray toDefaultType(INDArray array) {
+    final DataType dataType = Nd4j.defaultFloatingPointType();
+    return array.dataType() == dataType ? array : array.castTo(dataType);
+  }
+}
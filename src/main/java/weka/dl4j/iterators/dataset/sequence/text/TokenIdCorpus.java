@@ -0,0 +1,352 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * TokenIdCorpus.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset.sequence.text;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.deeplearning4j.iterator.LabeledSentenceProvider;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.nd4j.common.primitives.Pair;
+import weka.core.stopwords.AbstractStopwords;
+import weka.dl4j.text.tokenization.tokenizer.factory.TokenizerFactory;
+
+/**
+ * A tokenized text corpus: each document is stored as the vocabulary indices of its tokens in the
+ * word vectors, together with its label.
+ * <p>
+ * Documents are tokenized once, tokens are filtered by the vocabulary and the stop words and
+ * truncated to the maximum length, so that batches can be built from the indices alone. The ids
+ * of all documents are stored contiguously with an offset per document, either in memory or in a
+ * memory-mapped file. A corpus of some of the documents (e.g. of a mini-batch) is a view of the
+ * corpus of all documents, see {@link #select(int[])}.
+ */
+public class TokenIdCorpus {
+
+  /**
+   * Id of a token that is not in the vocabulary (only kept if unknown words are kept)
+   */
+  public static final int UNKNOWN_ID = -1;
+
+  /**
+   * Magic number at the start of every file ("WTIC")
+   */
+  private static final int MAGIC = 0x57544943;
+
+  /**
+   * Version of the format (also part of the cache keys, so that corpora built with other token
+   * filtering are not reused)
+   */
+  public static final int VERSION = 2;
+
+  /**
+   * Offset of the ids of each document, with the total number of ids at the end
+   */
+  private final IntBuffer offsets;
+
+  /**
+   * Ids of all documents
+   */
+  private final IntBuffer ids;
+
+  /**
+   * Label of each document
+   */
+  private final List<String> labels;
+
+  /**
+   * Indices of the selected documents (null if all documents are selected)
+   */
+  private final int[] docs;
+
+  /**
+   * Constructor.
+   *
+   * @param offsets Offset of the ids of each document, with the total number of ids at the end
+   * @param ids Ids of all documents
+   * @param labels Label of each document
+   */
+  protected TokenIdCorpus(IntBuffer offsets, IntBuffer ids, List<String> labels) {
+    this(offsets, ids, labels, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param offsets Offset of the ids of each document, with the total number of ids at the end
+   * @param ids Ids of all documents
+   * @param labels Label of each document
+   * @param docs Indices of the selected documents (null if all documents are selected)
+   */
+  private TokenIdCorpus(IntBuffer offsets, IntBuffer ids, List<String> labels, int[] docs) {
+    this.offsets = offsets;
+    this.ids = ids;
+    this.labels = labels;
+    this.docs = docs;
+  }
+
+  /**
+   * Tokenize all sentences of the given provider.
+   *
+   * @param sentenceProvider Provider of the labeled sentences (documents)
+   * @param tokenizerFactory Tokenizer factory
+   * @param wordVectors Word vectors defining the vocabulary
+   * @param stopWords Stop words to remove
+   * @param keepUnknown Whether tokens that are not in the vocabulary are kept as {@link
+   * #UNKNOWN_ID} (and empty documents get a single unknown token), instead of being removed
+   * @param truncateLength Maximum number of tokens per document (no limit if < 1)
+   * @return The corpus
+   */
+  public static TokenIdCorpus build(LabeledSentenceProvider sentenceProvider,
+      TokenizerFactory tokenizerFactory, WordVectors wordVectors, AbstractStopwords stopWords,
+      boolean keepUnknown, int truncateLength) {
+    final VocabCache<?> vocab = wordVectors.vocab();
+    final int limit = truncateLength > 0 ? truncateLength : Integer.MAX_VALUE;
+    final List<String> labels = new ArrayList<>(sentenceProvider.totalNumSentences());
+    final List<Integer> offsets = new ArrayList<>(sentenceProvider.totalNumSentences() + 1);
+    int[] ids = new int[1024];
+    int numIds = 0;
+
+    sentenceProvider.reset();
+    while (sentenceProvider.hasNext()) {
+      final Pair<String, String> next = sentenceProvider.nextSentence();
+      offsets.add(numIds);
+      labels.add(next.getSecond());
+      final int start = numIds;
+      final List<String> tokens =
+          tokenizerFactory.getBackend().create(next.getFirst()).getTokens();
+      for (int i = 0; i < tokens.size() && numIds - start < limit; i++) {
+        final String token = tokens.get(i);
+        // Stop words are removed before unknown words are mapped, also if they are unknown
+        if (stopWords.isStopword(token)) {
+          continue;
+        }
+        final int id;
+        if (wordVectors.hasWord(token)) {
+          id = vocab.indexOf(token);
+        } else if (keepUnknown) {
+          id = UNKNOWN_ID;
+        } else {
+          continue;
+        }
+        if (numIds == ids.length) {
+          ids = Arrays.copyOf(ids, 2 * ids.length);
+        }
+        ids[numIds++] = id;
+      }
+      if (keepUnknown && numIds == start) {
+        if (numIds == ids.length) {
+          ids = Arrays.copyOf(ids, 2 * ids.length);
+        }
+        ids[numIds++] = UNKNOWN_ID;
+      }
+    }
+    offsets.add(numIds);
+    sentenceProvider.reset();
+
+    final int[] offsetArray = offsets.stream().mapToInt(Integer::intValue).toArray();
+    return new TokenIdCorpus(IntBuffer.wrap(offsetArray), IntBuffer.wrap(ids, 0, numIds).slice(),
+        labels);
+  }
+
+  /**
+   * Get a view of some of the documents of this corpus. The ids are shared, not copied.
+   *
+   * @param docs Indices of the documents in this corpus, in the order of the new corpus
+   * @return Corpus of the given documents
+   */
+  public TokenIdCorpus select(int[] docs) {
+    final int[] selected = new int[docs.length];
+    for (int i = 0; i < docs.length; i++) {
+      selected[i] = index(docs[i]);
+    }
+    return new TokenIdCorpus(offsets, ids, labels, selected);
+  }
+
+  /**
+   * Get the number of documents.
+   *
+   * @return Number of documents
+   */
+  public int numDocuments() {
+    return docs == null ? labels.size() : docs.length;
+  }
+
+  /**
+   * Get the number of tokens of a document.
+   *
+   * @param doc Document index
+   * @return Number of tokens
+   */
+  public int length(int doc) {
+    final int index = index(doc);
+    return offsets.get(index + 1) - offsets.get(index);
+  }
+
+  /**
+   * Get the id of a token.
+   *
+   * @param doc Document index
+   * @param pos Token position in the document
+   * @return Vocabulary index of the token, or {@link #UNKNOWN_ID}
+   */
+  public int id(int doc, int pos) {
+    return ids.get(offsets.get(index(doc)) + pos);
+  }
+
+  /**
+   * Get the label of a document.
+   *
+   * @param doc Document index
+   * @return Label as given by the sentence provider
+   */
+  public String label(int doc) {
+    return labels.get(index(doc));
+  }
+
+  /**
+   * Get the index of a document among all documents of the underlying corpus.
+   */
+  private int index(int doc) {
+    if (docs == null) {
+      return doc;
+    }
+    return docs[doc];
+  }
+
+  /**
+   * Write the corpus to a file, via a temporary file that is then renamed. Views of some of the
+   * documents cannot be written.
+   *
+   * @param file Target file
+   * @throws IOException Could not write the file
+   */
+  public void write(File file) throws IOException {
+    if (docs != null) {
+      throw new IllegalStateException("Cannot write a view of some of the documents.");
+    }
+    ByteArrayOutputStream labelBytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(labelBytes)) {
+      for (String label : labels) {
+        out.writeUTF(label);
+      }
+    }
+
+    final Path tmp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(),
+        file.getName(), ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(numDocuments());
+        out.writeInt(ids.limit());
+        out.writeInt(labelBytes.size());
+        labelBytes.writeTo(out);
+        // Align the ids to 4 bytes
+        out.write(new byte[(4 - labelBytes.size() % 4) % 4]);
+        for (int i = 0; i < offsets.limit(); i++) {
+          out.writeInt(offsets.get(i));
+        }
+        for (int i = 0; i < ids.limit(); i++) {
+          out.writeInt(ids.get(i));
+        }
+      }
+      Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Read a corpus from a file. The offsets and ids view the mapped file without copying.
+   *
+   * @param file Corpus file
+   * @return The corpus
+   * @throws IOException Could not read the file or the file has another format
+   */
+  public static TokenIdCorpus read(File file) throws IOException {
+    final ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      throw new IOException("Not a token id corpus of version " + VERSION + ": " + file);
+    }
+    final int numDocuments = buffer.getInt();
+    final int numIds = buffer.getInt();
+    final int labelBytes = buffer.getInt();
+
+    final List<String> labels = new ArrayList<>(numDocuments);
+    final ByteBuffer labelBuffer = buffer.slice();
+    labelBuffer.limit(labelBytes);
+    try (DataInputStream in = new DataInputStream(new ByteBufferInputStream(labelBuffer))) {
+      for (int i = 0; i < numDocuments; i++) {
+        labels.add(in.readUTF());
+      }
+    }
+
+    buffer.position(buffer.position() + labelBytes + (4 - labelBytes % 4) % 4);
+    final IntBuffer ints = buffer.slice().asIntBuffer();
+    ints.limit(numDocuments + 1);
+    final IntBuffer offsets = ints.slice();
+    ints.limit(numDocuments + 1 + numIds);
+    ints.position(numDocuments + 1);
+    final IntBuffer ids = ints.slice();
+    return new TokenIdCorpus(offsets, ids, labels);
+  }
+
+  /**
+   * Input stream reading the remaining bytes of a buffer.
+   */
+  private static class ByteBufferInputStream extends InputStream {
+
+    /**
+     * The buffer
+     */
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+  }
+}
@@ -18,14 +18,12 @@
 
 package weka.dl4j.iterators.dataset.sequence.text.cnn;
 
-import static org.nd4j.linalg.indexing.NDArrayIndex.all;
-import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
-import static org.nd4j.linalg.indexing.NDArrayIndex.point;
 import static weka.dl4j.Utils.getFieldValue;
 import static weka.dl4j.Utils.invokeMethod;
 import static weka.dl4j.Utils.setFieldValue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -37,9 +35,10 @@ import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
 import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.indexing.INDArrayIndex;
 import weka.core.stopwords.AbstractStopwords;
 import weka.dl4j.Utils;
+import weka.dl4j.iterators.dataset.sequence.text.EmbeddingLookup;
+import weka.dl4j.iterators.dataset.sequence.text.TokenIdCorpus;
 
 /**
  * CnnSentenceDataSetIterator extension to Deeplearning4j implementation. This class extends its
@@ -62,11 +61,26 @@ public class CnnSentenceDataSetIterator extends
 
   private static final long serialVersionUID = 685006779872000151L;
 
+  /**
+   * Word whose vector is used for unknown words.
+   */
+  private static final String UNKNOWN_WORD = "UNKNOWN";
+
   /**
    * Stop words.
    */
   private AbstractStopwords stopwords;
 
+  /**
+   * Tokenized sentences (null if the sentences are tokenized on each pass).
+   */
+  private TokenIdCorpus corpus;
+
+  /**
+   * Batched lookup of the word vectors (created on demand).
+   */
+  private transient EmbeddingLookup lookup;
+
   /**
    * Constructor that uses {@link Builder} extended with stopwords.
    *
@@ -75,18 +89,17 @@ public class CnnSentenceDataSetIterator extends
   protected CnnSentenceDataSetIterator(CnnSentenceDataSetIterator.Builder builder) {
     super(builder);
     this.stopwords = builder.stopwords;
+    this.corpus = builder.corpus;
     setUnknownWordHandling(UnknownWordHandling.UseUnknownVector);
 
-    // Set unknown word
+    // Initialize unknown word manually. The word vectors may be shared with other iterators, so
+    // their unknown word is not changed
     WordVectors wordVectors = getWordVectors();
-    wordVectors.setUNK("UNKNOWN");
-
-    // Initialize unknown word manually
     INDArray unknown;
     if (getUseNormalizedWordVectors()) {
-      unknown = wordVectors.getWordVectorMatrixNormalized(wordVectors.getUNK());
+      unknown = wordVectors.getWordVectorMatrixNormalized(UNKNOWN_WORD);
     } else {
-      unknown = wordVectors.getWordVectorMatrix(wordVectors.getUNK());
+      unknown = wordVectors.getWordVectorMatrix(UNKNOWN_WORD);
     }
     setUnknown(unknown);
   }
@@ -101,6 +114,9 @@ public class CnnSentenceDataSetIterator extends
     if (sentenceProvider == null) {
       throw new RuntimeException("Sentenceprovider was null");
     }
+    if (corpus != null) {
+      return getCursor() < corpus.numDocuments();
+    }
     return sentenceProvider.hasNext();
   }
 
@@ -159,6 +175,9 @@ public class CnnSentenceDataSetIterator extends
    * @return List of datapoints
    */
   protected List<Datum> collectData(int num) {
+    if (corpus != null) {
+      return collectDataFromCorpus(num);
+    }
     LabeledSentenceProvider sentenceProvider = getSentenceProvider();
     String unknownWordSentinel = getUnknownWordSentinel();
     List<Datum> data = new ArrayList<>(num);
@@ -178,7 +197,29 @@ public class CnnSentenceDataSetIterator extends
         tokens.add(unknownWordSentinel);
       }
 
-      data.add(new Datum(tokens, label));
+      // The sentinel is not in the vocabulary and thus maps to the unknown id
+      EmbeddingLookup lookup = getLookup();
+      data.add(new Datum(tokens.stream().mapToInt(lookup::indexOf).toArray(), label));
+    }
+    return data;
+  }
+
+  /**
+   * Collect the data of the next sentences from the token id corpus.
+   *
+   * @param num Requested number of data points
+   * @return List of datapoints
+   */
+  protected List<Datum> collectDataFromCorpus(int num) {
+    int cursor = getCursor();
+    int end = Math.min(cursor + num, corpus.numDocuments());
+    List<Datum> data = new ArrayList<>(end - cursor);
+    for (int doc = cursor; doc < end; doc++) {
+      int[] ids = new int[corpus.length(doc)];
+      for (int j = 0; j < ids.length; j++) {
+        ids[j] = corpus.id(doc, j);
+      }
+      data.add(new Datum(ids, corpus.label(doc)));
     }
     return data;
   }
@@ -249,27 +290,21 @@ public class CnnSentenceDataSetIterator extends
    * @return INDArray containing the features
    */
   protected INDArray createFeatures(List<Datum> data, int maxTokenSizeBatch) {
-    int tokenLimit = getMaxSentenceLength();
-
-    // Determine feature shape
-    int[] featuresShape = getFeatureShape(maxTokenSizeBatch, data.size());
-
-    // Create features from tokens
-    INDArray features = Nd4j.create(featuresShape);
+    // Lay out the ids of the batch as [sentence, token], padded at the end of each sentence
+    int[] ids = new int[data.size() * maxTokenSizeBatch];
+    Arrays.fill(ids, EmbeddingLookup.PADDING_ID);
     for (int i = 0; i < data.size(); i++) {
-      List<String> currSentence = data.get(i).getTokens();
-      for (int j = 0; j < currSentence.size() && j < tokenLimit; j++) {
-        String token = currSentence.get(j);
-        INDArray vectorizedToken = getVector(token);
-        INDArrayIndex[] indices = new INDArrayIndex[4];
-        indices[0] = point(i);
-        indices[1] = point(0);
-        indices[2] = point(j);
-        indices[3] = all();
-        features.put(indices, vectorizedToken);
-      }
+      int[] sentence = data.get(i).getIds();
+      int length = Math.min(sentence.length, maxTokenSizeBatch);
+      System.arraycopy(sentence, 0, ids, i * maxTokenSizeBatch, length);
     }
-    return features;
+
+    // Gather the word vectors of all tokens at once: [sentence * token, vector] has the same
+    // layout as [sentence, 1, token, vector]
+    INDArray vectors = getLookup().gather(ids, getUnknown());
+    long[] featuresShape = Arrays.stream(getFeatureShape(maxTokenSizeBatch, data.size()))
+        .asLongStream().toArray();
+    return vectors.reshape('c', featuresShape);
   }
 
   /**
@@ -280,18 +315,12 @@ public class CnnSentenceDataSetIterator extends
    * @return Feature mask
    */
   protected INDArray createFeatureMask(List<Datum> data, int maxTokenSize) {
-    INDArray featuresMask = Nd4j.create(data.size(), 1, maxTokenSize, 1);
-    INDArrayIndex[] indices = new INDArrayIndex[4];
-    indices[1] = all();
-    indices[3] = all();
+    float[] mask = new float[data.size() * maxTokenSize];
     for (int i = 0; i < data.size(); i++) {
-      indices[0] = point(i);
-      int sentenceLength = data.get(i).numTokens();
-      sentenceLength = Math.min(sentenceLength, maxTokenSize);
-      indices[2] = interval(0, sentenceLength);
-      featuresMask.put(indices, 1.0);
+      int sentenceLength = Math.min(data.get(i).numTokens(), maxTokenSize);
+      Arrays.fill(mask, i * maxTokenSize, i * maxTokenSize + sentenceLength, 1);
     }
-    return featuresMask;
+    return EmbeddingLookup.create(mask, data.size(), 1, maxTokenSize, 1);
   }
 
   /**
@@ -393,6 +422,18 @@ public class CnnSentenceDataSetIterator extends
     return stopwords;
   }
 
+  /**
+   * Get the batched lookup of the word vectors.
+   *
+   * @return Embedding lookup
+   */
+  protected EmbeddingLookup getLookup() {
+    if (lookup == null) {
+      lookup = new EmbeddingLookup(getWordVectors());
+    }
+    return lookup;
+  }
+
   protected INDArray getVector(String s) {
     return invokeMethod(this, "getVector", s);
   }
@@ -412,6 +453,11 @@ public class CnnSentenceDataSetIterator extends
      */
     AbstractStopwords stopwords;
 
+    /**
+     * Token id corpus of the sentences
+     */
+    TokenIdCorpus corpus;
+
     /**
      * Set stopwords.
      *
@@ -423,6 +469,17 @@ public class CnnSentenceDataSetIterator extends
       return this;
     }
 
+    /**
+     * Set the token id corpus of the sentences, so that they are not tokenized on each pass.
+     *
+     * @param corpus Token id corpus (in the order of the sentence provider)
+     * @return Builder instance
+     */
+    public Builder corpus(TokenIdCorpus corpus) {
+      this.corpus = corpus;
+      return this;
+    }
+
     /**
      * Build the iterator.
      *
@@ -434,14 +491,14 @@ public class CnnSentenceDataSetIterator extends
   }
 
   /**
-   * Simple data point of tokens with an associated label
+   * Simple data point of token ids with an associated label
    */
   private class Datum {
 
     /**
-     * Tokens in this datum
+     * Vocabulary indices of the tokens in this datum
      */
-    private List<String> tokens;
+    private int[] ids;
 
     /**
      * Associated label with the tokens
@@ -449,13 +506,13 @@ public class CnnSentenceDataSetIterator extends
     private String label;
 
     /**
-     * Constructor with tokens and label.
+     * Constructor with token ids and label.
      *
-     * @param tokens Tokens
+     * @param ids Vocabulary indices of the tokens
      * @param label Label
      */
-    public Datum(List<String> tokens, String label) {
-      this.tokens = tokens;
+    public Datum(int[] ids, String label) {
+      this.ids = ids;
       this.label = label;
     }
 
@@ -465,7 +522,7 @@ public class CnnSentenceDataSetIterator extends
      * @return Number of tokens in this datum
      */
     public int numTokens() {
-      return tokens.size();
+      return ids.length;
     }
 
     /**
@@ -478,12 +535,12 @@ public class CnnSentenceDataSetIterator extends
     }
 
     /**
-     * Get the tokens.
+     * Get the token ids.
      *
-     * @return Tokens
+     * @return Vocabulary indices of the tokens
      */
-    public List<String> getTokens() {
-      return tokens;
+    public int[] getIds() {
+      return ids;
     }
   }
 }
@@ -18,12 +18,9 @@
 
 package weka.dl4j.iterators.dataset.sequence.text.rnn;
 
-import static org.nd4j.linalg.indexing.NDArrayIndex.all;
-import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
-import static org.nd4j.linalg.indexing.NDArrayIndex.point;
-
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.stream.Collectors;
@@ -36,10 +33,10 @@ import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.indexing.INDArrayIndex;
 import weka.core.Instances;
 import weka.core.stopwords.AbstractStopwords;
+import weka.dl4j.iterators.dataset.sequence.text.EmbeddingLookup;
+import weka.dl4j.iterators.dataset.sequence.text.TokenIdCorpus;
 import weka.dl4j.text.tokenization.preprocessor.TokenPreProcess;
 import weka.dl4j.text.tokenization.tokenizer.factory.TokenizerFactory;
 
@@ -62,6 +59,14 @@ public class RnnTextEmbeddingDataSetIterator implements DataSetIterator, Seriali
   protected AbstractStopwords stopWords;
   protected int cursor = 0;
   private LabeledSentenceProvider sentenceProvider;
+  /**
+   * Tokenized documents (null if the documents are tokenized on each pass)
+   */
+  private TokenIdCorpus corpus;
+  /**
+   * Batched lookup of the word vectors (created on demand)
+   */
+  private transient EmbeddingLookup lookup;
 
   /**
    * Constructor with necessary objects to create RNN features.
@@ -94,83 +99,105 @@ public class RnnTextEmbeddingDataSetIterator implements DataSetIterator, Seriali
     this.sentenceProvider = sentenceProvider;
   }
 
+  /**
+   * Constructor that builds the batches from an already tokenized corpus of the documents.
+   *
+   * @param data Instances with documents and labels
+   * @param wordVectors WordVectors object
+   * @param tokenFact Tokenizer factory
+   * @param tpp Token pre processor
+   * @param stopWords Stop word object
+   * @param sentenceProvider Sentence provider of the documents
+   * @param corpus Token id corpus of the documents (in the order of the sentence provider)
+   * @param batchSize Size of each minibatch for training
+   * @param truncateLength If reviews exceed
+   */
+  public RnnTextEmbeddingDataSetIterator(
+      Instances data,
+      WordVectors wordVectors,
+      TokenizerFactory tokenFact,
+      TokenPreProcess tpp,
+      AbstractStopwords stopWords,
+      LabeledSentenceProvider sentenceProvider,
+      TokenIdCorpus corpus,
+      int batchSize,
+      int truncateLength) {
+    this(data, wordVectors, tokenFact, tpp, stopWords, sentenceProvider, batchSize,
+        truncateLength);
+    this.corpus = corpus;
+  }
+
   @Override
   public DataSet next(int num) {
     // Check if next() call is valid - throws appropriate exceptions
     checkIfNextIsValid();
 
-    // Collect
-    List<String> sentences = new ArrayList<>(num);
+    // Collect and tokenize sentences, or take the token ids from the corpus
     List<Double> labelsRaw = new ArrayList<>(num);
-    collectData(num, sentences, labelsRaw);
-    final int numDocuments = sentences.size();
-
-    // Tokenize sentences
-    List<List<String>> tokenizedSentences = tokenizeSentences(sentences);
+    List<int[]> documents;
+    if (corpus != null) {
+      documents = collectIds(num, labelsRaw);
+    } else {
+      List<String> sentences = new ArrayList<>(num);
+      collectData(num, sentences, labelsRaw);
+      final EmbeddingLookup lookup = getLookup();
+      documents = tokenizeSentences(sentences).stream()
+          .map(tokens -> tokens.stream().mapToInt(lookup::indexOf).toArray())
+          .collect(Collectors.toList());
+    }
+    final int numDocuments = documents.size();
+    final int numClasses = data.numClasses();
+    if (numClasses < 1) {
+      throw new RuntimeException("Could not detect classification or regression task.");
+    }
 
     // Get longest sentence length
-    int maxSentenceLength = tokenizedSentences.stream().mapToInt(List::size).max().getAsInt();
+    int maxSentenceLength = documents.stream().mapToInt(d -> d.length).max().getAsInt();
 
     // Truncate maximum sentence length
     if (maxSentenceLength > truncateLength || maxSentenceLength == 0) {
       maxSentenceLength = truncateLength;
     }
 
-    // Init feature/label arrays
-    int[] featureShape = {numDocuments, wordVectorSize, maxSentenceLength};
-    int[] labelShape = {numDocuments, data.numClasses(), maxSentenceLength};
-    INDArray features = Nd4j.create(featureShape, 'f');
-    INDArray labels = Nd4j.create(labelShape, 'f');
-    INDArray featuresMask = Nd4j.zeros(numDocuments, maxSentenceLength);
-    INDArray labelsMask = Nd4j.zeros(numDocuments, maxSentenceLength);
-
+    /*
+     * Lay out the ids of the batch as [document, time step], padded at the end of each document,
+     * and fill the masks and labels from the (truncated) document lengths. The label is set at the
+     * last time step of each non-empty document.
+     */
+    final int[] ids = new int[numDocuments * maxSentenceLength];
+    Arrays.fill(ids, EmbeddingLookup.PADDING_ID);
+    final float[] featuresMaskValues = new float[numDocuments * maxSentenceLength];
+    final float[] labelsMaskValues = new float[numDocuments * maxSentenceLength];
+    final float[] labelValues = new float[numDocuments * numClasses * maxSentenceLength];
     for (int i = 0; i < numDocuments; i++) {
-      List<String> tokens = tokenizedSentences.get(i);
+      final int[] document = documents.get(i);
+      final int lastIdx = Math.min(document.length, maxSentenceLength);
 
       // Check for empty document
-      if (tokens.isEmpty()) {
+      if (lastIdx == 0) {
         continue;
       }
 
-      // Get the last index of the current document (truncated)
-      int lastIdx = Math.min(tokens.size(), maxSentenceLength);
-
-      // Get all wordvectors in batch
-      List<String> truncatedTokenList = tokens.subList(0, lastIdx);
-      final INDArray vectors = wordVectors.getWordVectors(truncatedTokenList).transpose();
-
-      /*
-       * Put wordvectors into features array at the following indices:
-       * 1) Document (i)
-       * 2) All vector elements which is equal to NDArrayIndex.interval(0, vectorSize)
-       * 3) All elements between 0 and the length of the current sequence
-       */
-      INDArrayIndex[] indices = {point(i), all(), interval(0, lastIdx)};
-      features.put(indices, vectors);
-
-      // Assign "1" to each position where a feature is present, that is, in the interval of
-      // [0, lastIdx)
-      featuresMask.get(point(i), interval(0, lastIdx)).assign(1);
-
-      // Put the labels in the labels and labelsMask arrays
-      // Differ between classification and regression task
-      if (data.numClasses() == 1) { // Regression
-        double val = labelsRaw.get(i);
-        labels.putScalar(new int[]{i, 0, lastIdx - 1}, val);
-      } else if (data.numClasses() > 1) { // Classification
-        // One-Hot-Encoded class
-        int idx = labelsRaw.get(i).intValue();
-        // Set label
-        labels.putScalar(new int[]{i, idx, lastIdx - 1}, 1.0);
-      } else {
-        throw new RuntimeException("Could not detect classification or regression task.");
+      final int offset = i * maxSentenceLength;
+      System.arraycopy(document, 0, ids, offset, lastIdx);
+      Arrays.fill(featuresMaskValues, offset, offset + lastIdx, 1);
+      labelsMaskValues[offset + lastIdx - 1] = 1;
+      if (numClasses == 1) { // Regression
+        labelValues[offset + lastIdx - 1] = labelsRaw.get(i).floatValue();
+      } else { // Classification, one-hot encoded
+        final int idx = labelsRaw.get(i).intValue();
+        labelValues[(i * numClasses + idx) * maxSentenceLength + lastIdx - 1] = 1;
       }
-
-      // Set final timestep for this example to 1.0 to show that an output exists here
-      int[] lastTimestepIndex = {i, lastIdx - 1};
-      labelsMask.putScalar(lastTimestepIndex, 1.0);
     }
 
+    final INDArray features = createFeatures(ids, numDocuments, maxSentenceLength);
+    final INDArray labels =
+        EmbeddingLookup.create(labelValues, numDocuments, numClasses, maxSentenceLength);
+    final INDArray featuresMask =
+        EmbeddingLookup.create(featuresMaskValues, numDocuments, maxSentenceLength);
+    final INDArray labelsMask =
+        EmbeddingLookup.create(labelsMaskValues, numDocuments, maxSentenceLength);
+
     // Cache the dataset
     final DataSet ds = new DataSet(features, labels, featuresMask, labelsMask);
 
@@ -179,6 +206,25 @@ public class RnnTextEmbeddingDataSetIterator implements DataSetIterator, Seriali
     return ds;
   }
 
+  /**
+   * Create the features from the token ids of the batch.
+   *
+   * @param ids Token ids laid out as [document, time step], {@link EmbeddingLookup#PADDING_ID} at
+   * padded positions
+   * @param numDocuments Number of documents
+   * @param maxSentenceLength Number of time steps
+   * @return Features of shape [document, vector, time step]
+   */
+  protected INDArray createFeatures(int[] ids, int numDocuments, int maxSentenceLength) {
+    // Gather the word vectors of all tokens at once: [document * time, vector] is reshaped to
+    // [document, time, vector] and then viewed as [document, vector, time]
+    final INDArray vectors = getLookup().gather(ids, null);
+    return vectors
+        .reshape('c', numDocuments, maxSentenceLength, wordVectorSize)
+        .permute(0, 2, 1)
+        .dup('f');
+  }
+
   /**
    * Tokenize the given sentences.
    *
@@ -226,6 +272,40 @@ public class RnnTextEmbeddingDataSetIterator implements DataSetIterator, Seriali
     }
   }
 
+  /**
+   * Collect the token ids of the next documents from the token id corpus and store the labels in
+   * {@code labelsRaw}.
+   *
+   * @param num Number of documents to collect
+   * @param labelsRaw Empty labels list
+   * @return List of token ids per document
+   */
+  protected List<int[]> collectIds(int num, List<Double> labelsRaw) {
+    final int end = Math.min(cursor + num, corpus.numDocuments());
+    List<int[]> documents = new ArrayList<>(end - cursor);
+    for (int doc = cursor; doc < end; doc++) {
+      final int[] ids = new int[corpus.length(doc)];
+      for (int j = 0; j < ids.length; j++) {
+        ids[j] = corpus.id(doc, j);
+      }
+      documents.add(ids);
+      labelsRaw.add(Double.valueOf(corpus.label(doc)));
+    }
+    return documents;
+  }
+
+  /**
+   * Get the batched lookup of the word vectors.
+   *
+   * @return Embedding lookup
+   */
+  protected EmbeddingLookup getLookup() {
+    if (lookup == null) {
+      lookup = new EmbeddingLookup(wordVectors);
+    }
+    return lookup;
+  }
+
   /**
    * Check if the next() call is valid.
    */
@@ -0,0 +1,91 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * RnnTokenIndexDataSetIterator.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset.sequence.text.rnn;
+
+import org.deeplearning4j.iterator.LabeledSentenceProvider;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import weka.core.Instances;
+import weka.core.stopwords.AbstractStopwords;
+import weka.dl4j.iterators.dataset.sequence.text.EmbeddingLookup;
+import weka.dl4j.iterators.dataset.sequence.text.TokenIdCorpus;
+import weka.dl4j.text.tokenization.preprocessor.TokenPreProcess;
+import weka.dl4j.text.tokenization.tokenizer.factory.TokenizerFactory;
+
+/**
+ * A DataSetIterator that translates each document to the sequence of vocabulary indices of its
+ * tokens instead of a sequence of word vectors. The features have the shape [document, 1, time
+ * step] and are meant to be the input of an embedding sequence layer, which holds the word
+ * vectors. Masks and labels are the same as with {@link RnnTextEmbeddingDataSetIterator}.
+ */
+public class RnnTokenIndexDataSetIterator extends RnnTextEmbeddingDataSetIterator {
+
+  private static final long serialVersionUID = -2470358436880374016L;
+
+  /**
+   * Constructor.
+   *
+   * @param data Instances with documents and labels
+   * @param wordVectors WordVectors object defining the vocabulary
+   * @param tokenFact Tokenizer factory
+   * @param tpp Token pre processor
+   * @param stopWords Stop word object
+   * @param sentenceProvider Sentence provider of the documents
+   * @param corpus Token id corpus of the documents (null to tokenize on each pass)
+   * @param batchSize Size of each minibatch for training
+   * @param truncateLength Maximum number of tokens per document
+   */
+  public RnnTokenIndexDataSetIterator(
+      Instances data,
+      WordVectors wordVectors,
+      TokenizerFactory tokenFact,
+      TokenPreProcess tpp,
+      AbstractStopwords stopWords,
+      LabeledSentenceProvider sentenceProvider,
+      TokenIdCorpus corpus,
+      int batchSize,
+      int truncateLength) {
+    super(data, wordVectors, tokenFact, tpp, stopWords, sentenceProvider, corpus, batchSize,
+        truncateLength);
+  }
+
+  /**
+   * Create the features from the token ids of the batch. Padded positions get index 0, they are
+   * excluded by the features mask.
+   *
+   * @param ids Token ids laid out as [document, time step], {@link EmbeddingLookup#PADDING_ID} at
+   * padded positions
+   * @param numDocuments Number of documents
+   * @param maxSentenceLength Number of time steps
+   * @return Features of shape [document, 1, time step]
+   */
+  @Override
+  protected INDArray createFeatures(int[] ids, int numDocuments, int maxSentenceLength) {
+    final float[] indices = new float[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      indices[i] = Math.max(ids[i], 0);
+    }
+    return EmbeddingLookup.create(indices, numDocuments, 1, maxSentenceLength);
+  }
+
+  @Override
+  public int inputColumns() {
+    return 1;
+  }
+}
@@ -23,23 +23,22 @@ import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
 
-import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import weka.core.WrongIteratorException;
-import weka.dl4j.Utils;
 import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionMetadata;
-import weka.dl4j.iterators.dataset.DefaultDataSetIterator;
+import weka.dl4j.iterators.dataset.InstancesDataSetIterator;
 import weka.dl4j.iterators.instance.api.ConvolutionalIterator;
+import weka.dl4j.preprocessing.PreprocessingPlan;
 import weka.dl4j.zoo.AbstractZooModel;
 import weka.dl4j.zoo.Dl4jLeNet;
 
 /**
- * Converts the given Instances object into a DataSet and then constructs and returns a
- * DefaultDataSetIterator. This iterator is designed for training convolutional networks on data
- * that is represented as standard WEKA instances. It enables specification of filter width and
- * height, and number of channels.
+ * Constructs and returns an InstancesDataSetIterator that converts the given Instances object into
+ * NCHW mini-batches on demand. This iterator is designed for training convolutional networks on
+ * data that is represented as standard WEKA instances. It enables specification of filter width
+ * and height, and number of channels.
  *
  * @author Christopher Beckham
  * @author Eibe Frank
@@ -151,10 +150,36 @@ public class ConvolutionInstanceIterator extends DefaultInstanceIterator impleme
    */
   @Override
   public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize) {
-    // Convert Instances to DataSet
-    DataSet dataset = Utils.instancesToConvDataSet(data, getHeight(), getWidth(), getNumChannels());
+    return getDataSetIterator(data, seed, batchSize, null);
+  }
+
+  /**
+   * Returns the actual iterator on raw instances, which are preprocessed with the given plan while
+   * converting each mini-batch.
+   *
+   * @param data the (raw) dataset to use
+   * @param seed the seed for the random number generator
+   * @param batchSize the batch size to use
+   * @param plan the preprocessing plan, may be null if the data is already preprocessed
+   * @return the DataSetIterator
+   */
+  @Override
+  public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize,
+      PreprocessingPlan plan) {
+    // Mini-batches are written directly in NCHW layout
+    return new InstancesDataSetIterator(data, batchSize, shuffle, seed, plan,
+        getFeatureShape(data.numAttributes() - 1));
+  }
 
-    return new DefaultDataSetIterator(dataset, batchSize);
+  /**
+   * Returns the NCHW shape of a single row.
+   *
+   * @param numFeatures the number of features (attributes excluding the class) of a row
+   * @return the feature shape {@code (channels, height, width)}
+   */
+  @Override
+  public long[] getFeatureShape(int numFeatures) {
+    return new long[]{getNumChannels(), getHeight(), getWidth()};
   }
 
   /**
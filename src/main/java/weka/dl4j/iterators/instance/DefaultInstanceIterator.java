@@ -19,17 +19,17 @@
 package weka.dl4j.iterators.instance;
 
 import java.util.Enumeration;
-import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import weka.dl4j.Utils;
 import weka.core.Instances;
 import weka.core.InvalidInputDataException;
 import weka.core.Option;
-import weka.dl4j.iterators.dataset.DefaultDataSetIterator;
+import weka.core.OptionMetadata;
+import weka.dl4j.iterators.dataset.InstancesDataSetIterator;
+import weka.dl4j.preprocessing.PreprocessingPlan;
 
 /**
- * Converts the given Instances object into a DataSet and then constructs and returns a
- * DefaultDataSetIterator.
+ * Constructs and returns an InstancesDataSetIterator, which converts the given Instances into
+ * mini-batches on demand.
  *
  * @author Christopher Beckham
  * @author Eibe Frank
@@ -42,6 +42,11 @@ public class DefaultInstanceIterator extends AbstractInstanceIterator {
    */
   private static final long serialVersionUID = 1316260988724548474L;
 
+  /**
+   * Whether to visit the instances in a new random order in every epoch
+   */
+  protected boolean shuffle = false;
+
   @Override
   public void validate(Instances data) throws InvalidInputDataException {
     if (data.classIndex() < 0) {
@@ -61,10 +66,52 @@ public class DefaultInstanceIterator extends AbstractInstanceIterator {
   @Override
   public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize)
       throws InvalidInputDataException {
+    return getDataSetIterator(data, seed, batchSize, null);
+  }
+
+  /**
+   * Returns the actual iterator on raw instances, which are preprocessed with the given plan while
+   * converting each mini-batch.
+   *
+   * @param data the (raw) dataset to use
+   * @param seed the seed for the random number generator
+   * @param batchSize the batch size to use
+   * @param plan the preprocessing plan, may be null if the data is already preprocessed
+   * @return the DataSetIterator
+   */
+  public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize,
+      PreprocessingPlan plan) throws InvalidInputDataException {
     validate(data);
-    // Convert Instances to DataSet
-    DataSet dataset = Utils.instancesToDataSet(data);
-    return new DefaultDataSetIterator(dataset, batchSize);
+    // Mini-batches are converted on demand
+    final int numFeatures = plan == null ? data.numAttributes() - 1 : plan.getNumFeatures();
+    return new InstancesDataSetIterator(data, batchSize, shuffle, seed, plan,
+        getFeatureShape(numFeatures));
+  }
+
+  /**
+   * Returns the shape of the features of a single row.
+   *
+   * @param numFeatures the number of features (attributes excluding the class) of a row
+   * @return the feature shape
+   */
+  public long[] getFeatureShape(int numFeatures) {
+    return new long[]{numFeatures};
+  }
+
+  @OptionMetadata(
+      displayName = "shuffle every epoch",
+      description = "Whether to visit the instances in a new random order in every epoch "
+          + "(default = false, only effective without caching).",
+      commandLineParamName = "shuffle",
+      commandLineParamSynopsis = "-shuffle",
+      displayOrder = 2
+  )
+  public boolean getShuffle() {
+    return shuffle;
+  }
+
+  public void setShuffle(boolean shuffle) {
+    this.shuffle = shuffle;
   }
 
   public String globalInfo() {
@@ -19,22 +19,37 @@
 package weka.dl4j.iterators.instance;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
 
 import lombok.extern.log4j.Log4j2;
 import org.datavec.api.split.CollectionInputSplit;
+import org.datavec.image.loader.NativeImageLoader;
 import org.datavec.image.recordreader.ImageRecordReader;
 import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
 import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
+import org.nd4j.linalg.dataset.api.preprocessor.NormalizerMinMaxScaler;
+import org.nd4j.linalg.dataset.api.preprocessor.NormalizerStandardize;
+import org.nd4j.linalg.dataset.api.preprocessor.serializer.NormalizerSerializer;
 import weka.core.Environment;
+import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.InvalidInputDataException;
 import weka.core.Option;
 import weka.core.OptionMetadata;
 import weka.dl4j.ArffMetaDataLabelGenerator;
+import weka.dl4j.Utils;
+import weka.dl4j.enums.ImageNormalization;
 import weka.dl4j.enums.PretrainedType;
+import weka.dl4j.iterators.dataset.ImageTensorDataSetIterator;
+import weka.dl4j.iterators.dataset.cache.ImageTensorCache;
 import weka.dl4j.iterators.instance.api.ConvolutionalIterator;
 import weka.dl4j.zoo.AbstractZooModel;
 import weka.dl4j.zoo.Dl4jLeNet;
@@ -57,6 +72,11 @@ public class ImageInstanceIterator extends AbstractInstanceIterator implements
    */
   private static final long serialVersionUID = -3701309032945158130L;
 
+  /**
+   * Name of the default image cache directory in the images location.
+   */
+  public static final String DEFAULT_IMAGE_CACHE_NAME = ".weka-image-cache";
+
   /**
    * The desired output height.
    */
@@ -82,6 +102,47 @@ public class ImageInstanceIterator extends AbstractInstanceIterator implements
    */
   protected File imagesLocation = new File(System.getProperty("user.dir"));
 
+  /**
+   * Normalization of the pixel values.
+   */
+  protected ImageNormalization normalization = ImageNormalization.SCALE;
+
+  /**
+   * Number of images sampled to compute the normalization statistics.
+   */
+  protected int normalizationSampleSize = 1000;
+
+  /**
+   * File the normalization statistics are loaded from or, if it does not exist, saved to.
+   */
+  protected File normalizerFile = new File(Utils.defaultFileLocation());
+
+  /**
+   * Whether to decode each image once into the image tensor cache.
+   */
+  protected boolean useImageCache = false;
+
+  /**
+   * Root directory of the image tensor cache (default: ".weka-image-cache" in the images
+   * location).
+   */
+  protected File imageCacheDirectory = new File(Utils.defaultFileLocation());
+
+  /**
+   * Number of threads decoding images into the cache (if < 1, the number of processors).
+   */
+  protected int numDecodeThreads = 0;
+
+  /**
+   * The image tensor cache in use (created on demand).
+   */
+  protected transient ImageTensorCache imageTensorCache;
+
+  /**
+   * Normalizer fitted on the training data (null if not yet fitted or if no statistics are needed).
+   */
+  protected DataNormalization fittedNormalizer;
+
   @FilePropertyMetadata(fileChooserDialogType = KFGUIConsts.SAVE_DIALOG, directoriesOnly = true)
   @OptionMetadata(
       displayName = "directory of images",
@@ -159,6 +220,106 @@ public class ImageInstanceIterator extends AbstractInstanceIterator implements
     this.channelsLast = channelsLast;
   }
 
+  @OptionMetadata(
+      displayName = "normalization",
+      description = "The normalization of the pixel values: SCALE from [0, 255] to [0, 1], or "
+          + "STANDARDIZE/MIN_MAX per channel with statistics of a sample of the training images "
+          + "(default = SCALE).",
+      commandLineParamName = "normalization",
+      commandLineParamSynopsis = "-normalization <string>",
+      displayOrder = 5
+  )
+  public ImageNormalization getNormalization() {
+    return normalization;
+  }
+
+  public void setNormalization(ImageNormalization normalization) {
+    this.normalization = normalization;
+  }
+
+  @OptionMetadata(
+      displayName = "normalization sample size",
+      description = "The number of training images sampled to compute the normalization "
+          + "statistics (default = 1000).",
+      commandLineParamName = "normalizationSampleSize",
+      commandLineParamSynopsis = "-normalizationSampleSize <int>",
+      displayOrder = 6
+  )
+  public int getNormalizationSampleSize() {
+    return normalizationSampleSize;
+  }
+
+  public void setNormalizationSampleSize(int normalizationSampleSize) {
+    this.normalizationSampleSize = normalizationSampleSize;
+  }
+
+  @FilePropertyMetadata(fileChooserDialogType = KFGUIConsts.SAVE_DIALOG, directoriesOnly = false)
+  @OptionMetadata(
+      displayName = "normalizer file",
+      description = "Optional file to load the normalization statistics from. If it does not "
+          + "exist, the statistics computed from the sample are saved to it (default = none).",
+      commandLineParamName = "normalizerFile",
+      commandLineParamSynopsis = "-normalizerFile <string>",
+      displayOrder = 7
+  )
+  public File getNormalizerFile() {
+    return normalizerFile;
+  }
+
+  public void setNormalizerFile(File normalizerFile) {
+    this.normalizerFile = normalizerFile;
+  }
+
+  @OptionMetadata(
+      displayName = "use image cache",
+      description = "Whether to decode each image once into a memory-mapped cache of resized "
+          + "images, which later epochs and runs read instead of decoding the image files. The "
+          + "cache keeps every image it decoded until its directory is deleted (default = false).",
+      commandLineParamName = "imageCache",
+      commandLineParamSynopsis = "-imageCache",
+      displayOrder = 8
+  )
+  public boolean getUseImageCache() {
+    return useImageCache;
+  }
+
+  public void setUseImageCache(boolean useImageCache) {
+    this.useImageCache = useImageCache;
+  }
+
+  @FilePropertyMetadata(fileChooserDialogType = KFGUIConsts.SAVE_DIALOG, directoriesOnly = true)
+  @OptionMetadata(
+      displayName = "image cache directory",
+      description = "The root directory of the image cache (default = .weka-image-cache in the "
+          + "directory of images).",
+      commandLineParamName = "imageCacheDir",
+      commandLineParamSynopsis = "-imageCacheDir <string>",
+      displayOrder = 9
+  )
+  public File getImageCacheDirectory() {
+    return imageCacheDirectory;
+  }
+
+  public void setImageCacheDirectory(File imageCacheDirectory) {
+    this.imageCacheDirectory = imageCacheDirectory;
+  }
+
+  @OptionMetadata(
+      displayName = "number of decoding threads",
+      description = "The number of threads decoding images into the image cache (default = 0, "
+          + "the number of processors).",
+      commandLineParamName = "numDecodeThreads",
+      commandLineParamSynopsis = "-numDecodeThreads <int>",
+      displayOrder = 10
+  )
+  public int getNumDecodeThreads() {
+    return numDecodeThreads;
+  }
+
+  public void setNumDecodeThreads(int numDecodeThreads) {
+    this.numDecodeThreads = numDecodeThreads;
+  }
+
   /**
    * Enforces the input image size if using a zoo model.
    * @param tmpZooModel Zoo model to constrain input size to
@@ -238,11 +399,22 @@ public class ImageInstanceIterator extends AbstractInstanceIterator implements
     CollectionInputSplit cis = new CollectionInputSplit(labelGenerator.getPathURIs());
     reader.initialize(cis);
 
+    // The reader infers the label columns from the rows it reads. Use all class values instead,
+    // in sorted order as the reader does, so that the columns do not depend on which classes
+    // occur in the given rows (e.g. in a single batch)
+    final List<String> labels = reader.getLabels();
+    labels.clear();
+    for (int i = 0; i < data.numClasses(); i++) {
+      labels.add(data.classAttribute().value(i));
+    }
+    Collections.sort(labels);
+
     return reader;
   }
 
   /**
-   * This method returns the iterator. Scales all intensity values: it divides them by 255.
+   * This method returns the iterator. Normalizes the intensity values, by default it divides them
+   * by 255 (see {@link #getNormalizer(Instances, int)}).
    *
    * @param data the dataset to use
    * @param seed the seed for the random number generator
@@ -255,6 +427,30 @@ public class ImageInstanceIterator extends AbstractInstanceIterator implements
 
     batchSize = Math.min(data.numInstances(), batchSize);
     validate(data);
+    DataSetIterator tmpIter = getRawDataSetIterator(data, batchSize);
+    tmpIter.setPreProcessor(getNormalizer(data, seed));
+    return tmpIter;
+  }
+
+  /**
+   * Returns an iterator over the unnormalized pixel values, either read from the image tensor
+   * cache or decoded from the image files.
+   *
+   * @param data the dataset to use
+   * @param batchSize the batch size to use
+   * @return the iterator
+   * @throws Exception if the images cannot be read
+   */
+  protected DataSetIterator getRawDataSetIterator(Instances data, int batchSize)
+      throws Exception {
+    if (useImageCache) {
+      final ImageTensorCache cache = getImageTensorCache();
+      final int numThreads = numDecodeThreads > 0 ? numDecodeThreads
+          : Runtime.getRuntime().availableProcessors();
+      final int[] slots = cache.update(getImageFiles(data), this::createImageLoader, numThreads);
+      return new ImageTensorDataSetIterator(cache, slots, data, batchSize);
+    }
+
     ImageRecordReader reader = getImageRecordReader(data);
 
     // Required for supporting channels-last models (currently only EfficientNet)
@@ -263,12 +459,181 @@ public class ImageInstanceIterator extends AbstractInstanceIterator implements
 
     final int labelIndex = 1; // Use explicit label index position
     final int numPossibleLabels = data.numClasses();
-    DataSetIterator tmpIter =
-        new RecordReaderDataSetIterator(reader, batchSize, labelIndex, numPossibleLabels);
-    DataNormalization scaler = new ImagePreProcessingScaler(0, 1);
-    scaler.fit(tmpIter);
-    tmpIter.setPreProcessor(scaler);
-    return tmpIter;
+    return new RecordReaderDataSetIterator(reader, batchSize, labelIndex, numPossibleLabels);
+  }
+
+  /**
+   * Returns the image tensor cache for the current image shape and channel order.
+   *
+   * @return the cache
+   */
+  protected synchronized ImageTensorCache getImageTensorCache() {
+    final File root = Utils.notDefaultFileLocation(imageCacheDirectory) ? imageCacheDirectory
+        : new File(resolveImagesLocation(), DEFAULT_IMAGE_CACHE_NAME);
+    final ImageTensorCache cache = new ImageTensorCache(root, getHeight(), getWidth(),
+        getNumChannels(), getChannelsLast(), getImageLoaderVariant());
+    if (imageTensorCache == null
+        || !imageTensorCache.getDirectory().equals(cache.getDirectory())) {
+      if (imageTensorCache != null) {
+        imageTensorCache.close();
+      }
+      imageTensorCache = cache;
+    }
+    return imageTensorCache;
+  }
+
+  /**
+   * Creates the loader decoding a single image into the target shape, like the image record
+   * reader does.
+   *
+   * @return the image loader
+   */
+  protected NativeImageLoader createImageLoader() {
+    return new NativeImageLoader(getHeight(), getWidth(), getNumChannels());
+  }
+
+  /**
+   * Returns the name of the image loader variant, which distinguishes cached images of the same
+   * shape that were decoded differently.
+   *
+   * @return the variant name
+   */
+  protected String getImageLoaderVariant() {
+    return "scale";
+  }
+
+  /**
+   * Returns the image file of each instance.
+   *
+   * @param data the meta instances
+   * @return the image files
+   */
+  protected List<File> getImageFiles(Instances data) {
+    final File location = resolveImagesLocation();
+    List<File> files = new ArrayList<>(data.numInstances());
+    for (Instance inst : data) {
+      files.add(new File(location, inst.stringValue(0)));
+    }
+    return files;
+  }
+
+  /**
+   * Returns the images location with environment variables substituted.
+   *
+   * @return the images location
+   */
+  protected File resolveImagesLocation() {
+    String resolved = getImagesLocation().toString();
+    try {
+      resolved = Environment.getSystemWide().substitute(resolved);
+    } catch (Exception ex) {
+      // ignore
+    }
+    return new File(resolved);
+  }
+
+  /**
+   * Returns the normalizer of the pixel values. The fixed scaling needs no statistics, so no image
+   * is read in advance. Normalizers that need statistics are loaded from the normalizer file or
+   * fitted once on a sample of the given (training) instances, and then reused until the iterator
+   * is initialized again.
+   *
+   * @param data the dataset to sample from if the statistics are not yet available
+   * @param seed the seed for sampling
+   * @return the normalizer
+   * @throws Exception if the statistics cannot be loaded or computed
+   */
+  public synchronized DataNormalization getNormalizer(Instances data, int seed) throws Exception {
+    if (normalization == ImageNormalization.SCALE) {
+      // Pixel values are in [0, 255], so the range is known without fitting
+      return new ImagePreProcessingScaler(0, 1);
+    }
+    if (fittedNormalizer != null) {
+      return fittedNormalizer;
+    }
+    if (getChannelsLast()) {
+      throw new InvalidInputDataException(
+          "Normalization statistics are computed per channel and require channels first.");
+    }
+
+    final boolean useFile = Utils.notDefaultFileLocation(normalizerFile);
+    if (useFile && normalizerFile.exists()) {
+      log.info("Loading normalization statistics from {}", normalizerFile);
+      fittedNormalizer = NormalizerSerializer.getDefault().restore(normalizerFile);
+      return fittedNormalizer;
+    }
+
+    final Instances sample = sample(data, seed);
+    log.info("Computing {} statistics from {} images", normalization, sample.numInstances());
+    DataNormalization normalizer = normalization == ImageNormalization.STANDARDIZE
+        ? new NormalizerStandardize() : new NormalizerMinMaxScaler(0, 1);
+    normalizer.fit(getRawDataSetIterator(sample,
+        Math.max(1, Math.min(getTrainBatchSize(), sample.numInstances()))));
+    if (useFile) {
+      NormalizerSerializer.getDefault().write(normalizer, normalizerFile);
+      log.info("Saved normalization statistics to {}", normalizerFile);
+    }
+    fittedNormalizer = normalizer;
+    return fittedNormalizer;
+  }
+
+  /**
+   * Draws a random sample of at most the normalization sample size from the given instances.
+   *
+   * @param data the dataset to sample from
+   * @param seed the seed for sampling
+   * @return the sample (the dataset itself if it is not larger than the sample size)
+   */
+  protected Instances sample(Instances data, int seed) {
+    final int n = data.numInstances();
+    final int size = Math.max(1, normalizationSampleSize);
+    if (n <= size) {
+      return data;
+    }
+    int[] indices = new int[n];
+    for (int i = 0; i < n; i++) {
+      indices[i] = i;
+    }
+    Random random = new Random(seed);
+    Instances sample = new Instances(data, size);
+    for (int i = 0; i < size; i++) {
+      int j = i + random.nextInt(n - i);
+      int tmp = indices[i];
+      indices[i] = indices[j];
+      indices[j] = tmp;
+      sample.add(data.instance(indices[i]));
+    }
+    return sample;
+  }
+
+  /**
+   * Discards the fitted normalization statistics, so that they are computed again for the next
+   * training data.
+   */
+  @Override
+  public void initialize() {
+    super.initialize();
+    fittedNormalizer = null;
+  }
+
+  /**
+   * Custom deserialization method. Iterators saved by earlier versions lack the normalization and
+   * image cache settings, which are set to their defaults.
+   *
+   * @param ois the object input stream
+   */
+  private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+    ois.defaultReadObject();
+    if (normalization == null) {
+      normalization = ImageNormalization.SCALE;
+      normalizationSampleSize = 1000;
+    }
+    if (normalizerFile == null) {
+      normalizerFile = new File(Utils.defaultFileLocation());
+    }
+    if (imageCacheDirectory == null) {
+      imageCacheDirectory = new File(Utils.defaultFileLocation());
+    }
   }
 
   /**
@@ -20,6 +20,7 @@ package weka.dl4j.iterators.instance;
 
 import java.io.File;
 import org.datavec.api.split.CollectionInputSplit;
+import org.datavec.image.loader.NativeImageLoader;
 import org.datavec.image.recordreader.ImageRecordReader;
 import org.datavec.image.transform.ResizeImageTransform;
 import weka.core.Environment;
@@ -182,4 +183,15 @@ public class ResizeImageInstanceIterator extends ImageInstanceIterator {
     reader.initialize(cis);
     return reader;
   }
+
+  @Override
+  protected NativeImageLoader createImageLoader() {
+    ResizeImageTransform rit = new ResizeImageTransform(getWidth(), getHeight());
+    return new NativeImageLoader(getHeight(), getWidth(), getNumChannels(), rit);
+  }
+
+  @Override
+  protected String getImageLoaderVariant() {
+    return "resize";
+  }
 }
@@ -0,0 +1,91 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * SparseInstanceIterator.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.instance;
+
+import java.util.Enumeration;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import weka.core.Instances;
+import weka.core.InvalidInputDataException;
+import weka.core.Option;
+import weka.dl4j.iterators.dataset.SparseDataSetIterator;
+
+/**
+ * Constructs and returns a SparseDataSetIterator, which passes the non-zero values of each
+ * mini-batch on without densifying them. Requires a SparseDenseLayer as first layer.
+ */
+public class SparseInstanceIterator extends DefaultInstanceIterator {
+
+  /**
+   * The ID used to serialize this class
+   */
+  private static final long serialVersionUID = -2040863316339462415L;
+
+  /**
+   * Returns the actual iterator.
+   *
+   * @param data the dataset to use
+   * @param seed the seed for the random number generator
+   * @param batchSize the batch size to use
+   * @return the DataSetIterator
+   */
+  @Override
+  public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize)
+      throws InvalidInputDataException {
+    validate(data);
+    return new SparseDataSetIterator(data, batchSize, shuffle, seed);
+  }
+
+  public String globalInfo() {
+    return "Instance iterator for high-dimensional sparse data (e.g. bag-of-words), that passes "
+        + "only the non-zero values of each mini-batch to the network. Memory and time per "
+        + "mini-batch scale with the number of non-zeros instead of the number of attributes. "
+        + "The first layer must be a SparseDenseLayer. Disable normalization/standardization to "
+        + "keep the data sparse.";
+  }
+
+  /**
+   * Returns an enumeration describing the available options.
+   *
+   * @return an enumeration of all the available options.
+   */
+  @Override
+  public Enumeration<Option> listOptions() {
+    return Option.listOptionsForClassHierarchy(this.getClass(), super.getClass()).elements();
+  }
+
+  /**
+   * Gets the current settings of the Classifier.
+   *
+   * @return an array of strings suitable for passing to setOptions
+   */
+  @Override
+  public String[] getOptions() {
+    return Option.getOptionsForHierarchy(this, super.getClass());
+  }
+
+  /**
+   * Parses a given list of options.
+   *
+   * @param options the list of options as an array of strings
+   * @throws Exception if an option is not supported
+   */
+  public void setOptions(String[] options) throws Exception {
+    Option.setOptionsForHierarchy(options, this, super.getClass());
+  }
+}
@@ -18,37 +18,39 @@
 
 package weka.dl4j.iterators.instance.sequence.text;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Paths;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.UUID;
-import java.util.zip.GZIPInputStream;
+import java.util.Map;
 import lombok.extern.log4j.Log4j2;
-import org.apache.commons.io.FileUtils;
 import org.deeplearning4j.iterator.LabeledSentenceProvider;
-import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
 import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.OptionMetadata;
-import weka.core.converters.CSVSaver;
+import weka.dl4j.Utils;
+import weka.dl4j.iterators.dataset.cache.ContentHash;
+import weka.dl4j.iterators.dataset.sequence.text.TokenIdCorpus;
 import weka.dl4j.iterators.instance.sequence.AbstractSequenceInstanceIterator;
 import weka.dl4j.iterators.provider.CollectionLabeledSentenceProvider;
+import weka.dl4j.iterators.provider.FileLabeledSentenceProvider;
+import weka.dl4j.text.embeddings.WordVectorsRegistry;
 import weka.dl4j.text.stopwords.Dl4jAbstractStopwords;
 import weka.dl4j.text.stopwords.Dl4jRainbow;
 import weka.dl4j.text.tokenization.preprocessor.CommonPreProcessor;
 import weka.dl4j.text.tokenization.preprocessor.TokenPreProcess;
 import weka.dl4j.text.tokenization.tokenizer.factory.DefaultTokenizerFactory;
 import weka.dl4j.text.tokenization.tokenizer.factory.TokenizerFactory;
+import weka.gui.FilePropertyMetadata;
 import weka.gui.ProgrammaticProperty;
+import weka.gui.knowledgeflow.KFGUIConsts;
 
 /**
  * Abstract text iterator that provides variables and methods for text processing.
@@ -63,6 +65,10 @@ public abstract class AbstractTextEmbeddingIterator extends AbstractSequenceInst
    * Loaded word vectors
    */
   public transient WordVectors wordVectors;
+  /**
+   * Handle of the shared word vectors, if they were loaded from the word vector location
+   */
+  protected transient WordVectorsRegistry.Handle wordVectorsHandle;
   /**
    * Word vector file location
    */
@@ -83,11 +89,31 @@ public abstract class AbstractTextEmbeddingIterator extends AbstractSequenceInst
    * Truncation length (maximum number of tokens per document)
    */
   protected int truncateLength = 100;
+  /**
+   * Whether to tokenize the documents on every pass instead of once into a token id corpus
+   */
+  protected boolean doNotCacheTokens = false;
+  /**
+   * Directory of the token id corpus files (default: keep the corpora in memory only)
+   */
+  protected File tokenCacheDirectory = new File(Utils.defaultFileLocation());
+  /**
+   * Maximum number of token id corpora kept in memory
+   */
+  protected static final int MAX_CACHED_CORPORA = 4;
+  /**
+   * Maximum number of token id corpus files kept in the token cache directory
+   */
+  protected static final int MAX_CORPUS_FILES = 16;
+  /**
+   * Token id corpora of recently used datasets, by key (least recently used first)
+   */
+  protected transient Map<String, TokenIdCorpus> tokenIdCorpora;
 
   /**
    * Initialize the word vectors from the given file
    */
-  public void initWordVectors() {
+  public synchronized void initWordVectors() {
 
     if (wordVectors != null) {
       log.debug("Word vectors already loaded, skipping initialization.");
@@ -96,172 +122,23 @@ public abstract class AbstractTextEmbeddingIterator extends AbstractSequenceInst
 
     log.debug("Loading word vector model");
 
-    final String path = wordVectorLocation.getAbsolutePath();
-    final String pathLower = path.toLowerCase();
-    if (pathLower.endsWith(".arff")) {
-      loadEmbeddingFromArff(path);
-    } else if (pathLower.endsWith(".csv")) {
-      // Check if file is CSV
-      boolean success = loadEmbeddingFromCSV(wordVectorLocation);
-      if (!success) {
-        throw new RuntimeException("Could not load the word vector file.");
-      }
-    } else if (pathLower.endsWith(".csv.gz")) {
-      loadGZipped();
-    } else {
-      // If no file extension was caught before, try loading as is
-      wordVectors = WordVectorSerializer.loadStaticModel(wordVectorLocation);
-    }
-  }
-
-  /**
-   * Load wordVectors from a gzipped csv file
-   */
-  private void loadGZipped() {
     try {
-      GZIPInputStream gzis = new GZIPInputStream(new FileInputStream(wordVectorLocation));
-      File tmpFile =
-          Paths.get(System.getProperty("java.io.tmpdir"), "wordmodel-tmp.csv").toFile();
-      tmpFile.delete();
-      FileOutputStream fos = new FileOutputStream(tmpFile);
-      int length;
-      byte[] buffer = new byte[1024];
-      while ((length = gzis.read(buffer)) > 0) {
-        fos.write(buffer, 0, length);
-      }
-      fos.close();
-      gzis.close();
-
-      // Try loading decompressed CSV file
-      boolean success = loadEmbeddingFromCSV(tmpFile);
-      if (!success) {
-        throw new RuntimeException("Could not load the word vector file.");
-      }
+      // Word vectors of the same file are shared with all other iterators, e.g. of other folds
+      wordVectorsHandle = WordVectorsRegistry.acquire(wordVectorLocation, this);
+      wordVectors = wordVectorsHandle.getWordVectors();
     } catch (IOException e) {
-      e.printStackTrace();
-    }
-  }
-
-  /**
-   * Load the embedding from a given arff file. First converts the ARFF to a temporary CSV file and
-   * continues the loading mechanism with the CSV file afterwards
-   *
-   * @param path Path to the ARFF file
-   */
-  private void loadEmbeddingFromArff(String path) {
-    // Try loading ARFF file
-    try {
-      Instances insts = new Instances(new FileReader(path));
-      CSVSaver saver = new CSVSaver();
-      saver.setFieldSeparator(" ");
-      saver.setInstances(insts);
-      final File tmpFile =
-          Paths.get(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString() + ".csv")
-              .toFile();
-      saver.setFile(tmpFile);
-      saver.setNoHeaderRow(true);
-      saver.writeBatch();
-      loadEmbeddingFromCSV(tmpFile);
-      tmpFile.delete();
-    } catch (Exception e) {
       throw new RuntimeException(
-          "ARFF file could not be read (" + wordVectorLocation.getAbsolutePath() + ")", e);
+          "Could not load the word vector file (" + wordVectorLocation.getAbsolutePath() + ")", e);
     }
   }
 
   /**
-   * Try to load the embedding from a CSV file. This iterates over different separators.
-   *
-   * @param f CSV file
-   * @return True if loading was successful
-   */
-  private boolean loadEmbeddingFromCSV(File f) {
-    // Try different separators
-    for (String sep : new String[]{" ", ";", ",", "\t", "\\w", ":"}) {
-      boolean success = loadEmbeddingFromCSV(sep, f);
-      if (success) {
-        return true;
-      }
-    }
-    return false;
-  }
-
-  /**
-   * Try to load the embedding from a CSV file.
-   *
-   * @param separator Separator for CSV interpretation
-   * @param file CSV file
+   * Release the shared word vectors of this iterator, if any.
    */
-  private boolean loadEmbeddingFromCSV(String separator, File file) {
-    try {
-      File augmentedCSVFile = Paths.get(file.getAbsolutePath() + ".aug").toFile();
-      augmentedCSVFile.delete();
-      BufferedReader br = new BufferedReader(new FileReader(file));
-      BufferedWriter bw = new BufferedWriter(new FileWriter(augmentedCSVFile));
-      String line;
-      // Replace separator with whitespace in each line for dl4j parsing
-      while ((line = br.readLine()) != null) {
-        if (!line.contains(separator)) {
-          return false; // Continue to the next separator
-        }
-        bw.write(line.replaceAll(separator, " "));
-        bw.newLine();
-      }
-      br.close();
-      bw.close();
-
-      // First try to load it as is
-      try {
-        wordVectors = WordVectorSerializer.loadStaticModel(augmentedCSVFile);
-        if (wordVectors.vocab().words().size() != FileUtils.readLines(augmentedCSVFile).size()) {
-          throw new Exception("Something went wrong"); // Continue in catch clause
-        }
-        augmentedCSVFile.delete();
-        return true;
-      } catch (Exception e) {
-        // Failed: this might be due to DL4J expecting the word at pos [0] and the CSV file having
-        // the word at the last position
-
-        // Try to put the last token to the first position and reload the model
-        File augmentedCSVFileSwitched = Paths.get(file.getAbsolutePath() + ".aug2").toFile();
-        augmentedCSVFileSwitched.delete();
-        br = new BufferedReader(new FileReader(augmentedCSVFile));
-        bw = new BufferedWriter(new FileWriter(augmentedCSVFileSwitched));
-
-        // Replace separator with whitespace in each line for dl4j parsing
-        while ((line = br.readLine()) != null) {
-          String[] parts = line.split(" ");
-          // Join the parts, starting with the last one
-          StringBuilder sb = new StringBuilder();
-          sb.append(parts[parts.length - 1]);
-          for (int i = 0; i < parts.length - 1; i++) {
-            if (i < parts.length - 1) {
-              sb.append(" ");
-            }
-            sb.append(parts[i]);
-          }
-          bw.write(sb.toString());
-          bw.newLine();
-        }
-        br.close();
-        bw.close();
-
-        try {
-          wordVectors = WordVectorSerializer.loadStaticModel(augmentedCSVFileSwitched);
-          // Success
-          return true;
-        } catch (Exception ex) {
-          return false;
-        } finally {
-          augmentedCSVFile.delete();
-          augmentedCSVFileSwitched.delete();
-        }
-      } finally {
-        augmentedCSVFile.delete();
-      }
-    } catch (IOException e) {
-      // Not successful
-      return false;
+  protected void releaseWordVectors() {
+    if (wordVectorsHandle != null) {
+      wordVectorsHandle.release();
+      wordVectorsHandle = null;
     }
   }
 
@@ -297,6 +174,10 @@ public abstract class AbstractTextEmbeddingIterator extends AbstractSequenceInst
    * @param file Word vector location
    */
   public void setWordVectorLocation(File file) {
+    if (wordVectorsHandle != null && !file.equals(wordVectorLocation)) {
+      releaseWordVectors();
+      wordVectors = null;
+    }
     this.wordVectorLocation = file;
   }
 
@@ -345,6 +226,41 @@ public abstract class AbstractTextEmbeddingIterator extends AbstractSequenceInst
     this.stopwords = stopwords;
   }
 
+  @OptionMetadata(
+      displayName = "do not cache tokens",
+      description = "Tokenize the documents on every pass instead of once into a corpus of "
+          + "token ids (default = false).",
+      commandLineParamName = "doNotCacheTokens",
+      commandLineParamSynopsis = "-doNotCacheTokens",
+      commandLineParamIsFlag = true,
+      displayOrder = 6
+  )
+  public boolean getDoNotCacheTokens() {
+    return doNotCacheTokens;
+  }
+
+  public void setDoNotCacheTokens(boolean doNotCacheTokens) {
+    this.doNotCacheTokens = doNotCacheTokens;
+  }
+
+  @FilePropertyMetadata(fileChooserDialogType = KFGUIConsts.SAVE_DIALOG, directoriesOnly = true)
+  @OptionMetadata(
+      displayName = "token cache directory",
+      description = "The directory in which token id corpora are stored and memory-mapped. "
+          + "The " + MAX_CORPUS_FILES + " most recently used corpora are kept "
+          + "(default = none, corpora are kept in memory).",
+      commandLineParamName = "tokenCacheDir",
+      commandLineParamSynopsis = "-tokenCacheDir <string>",
+      displayOrder = 7
+  )
+  public File getTokenCacheDirectory() {
+    return tokenCacheDirectory;
+  }
+
+  public void setTokenCacheDirectory(File tokenCacheDirectory) {
+    this.tokenCacheDirectory = tokenCacheDirectory;
+  }
+
   @ProgrammaticProperty
   public WordVectors getWordVectors() {
     return wordVectors;
@@ -352,6 +268,7 @@ public abstract class AbstractTextEmbeddingIterator extends AbstractSequenceInst
 
   @ProgrammaticProperty
   public void setWordVectors(WordVectors wordVectors) {
+    releaseWordVectors();
     this.wordVectors = wordVectors;
   }
 
@@ -378,4 +295,153 @@ public abstract class AbstractTextEmbeddingIterator extends AbstractSequenceInst
     }
     return new CollectionLabeledSentenceProvider(sentences, labels, data.numClasses());
   }
+
+  /**
+   * Returns the iterator of the given data, which takes the token ids from the given corpus
+   * instead of tokenizing the documents.
+   *
+   * @param data the dataset to use
+   * @param seed the seed for the random number generator
+   * @param batchSize the batch size to use
+   * @param corpus Token id corpus of the documents of the data in their order, e.g. a
+   * {@link TokenIdCorpus#select(int[]) selection} of the corpus of a larger dataset (null to
+   * tokenize the documents on every pass)
+   * @return the DataSetIterator
+   * @throws Exception if the iterator cannot be created
+   */
+  public abstract DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize,
+      TokenIdCorpus corpus) throws Exception;
+
+  /**
+   * Get the token id corpus of all documents of the given data, loading the word vectors if
+   * necessary.
+   *
+   * @param data Data
+   * @return Token id corpus, or null if tokens are not cached
+   * @throws IOException Could not read or write the corpus file
+   */
+  public TokenIdCorpus getTokenIdCorpus(Instances data) throws IOException {
+    initWordVectors();
+    return getTokenIdCorpus(data, getSentenceProvider(data));
+  }
+
+  /**
+   * Get the token id corpus of the given data. Each dataset is tokenized only once: the corpus is
+   * kept in memory for the most recently used datasets and, if a token cache directory is set,
+   * stored in (and memory-mapped from) a file named by the hash of the data and the options. Only
+   * the {@value #MAX_CORPUS_FILES} most recently used files are kept in the directory.
+   *
+   * @param data Data
+   * @param sentenceProvider Sentence provider of the data
+   * @return Token id corpus, or null if tokens are not cached
+   * @throws IOException Could not read or write the corpus file
+   */
+  protected synchronized TokenIdCorpus getTokenIdCorpus(Instances data,
+      LabeledSentenceProvider sentenceProvider) throws IOException {
+    if (doNotCacheTokens) {
+      return null;
+    }
+    if (tokenIdCorpora == null) {
+      tokenIdCorpora = new LinkedHashMap<String, TokenIdCorpus>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenIdCorpus> eldest) {
+          return size() > MAX_CACHED_CORPORA;
+        }
+      };
+    }
+
+    final String key = getTokenIdCorpusKey(data, sentenceProvider);
+    TokenIdCorpus corpus = tokenIdCorpora.get(key);
+    if (corpus != null) {
+      return corpus;
+    }
+
+    File file = null;
+    if (Utils.notDefaultFileLocation(tokenCacheDirectory)) {
+      file = new File(tokenCacheDirectory, "tokens-" + key + ".bin");
+      if (file.isFile()) {
+        try {
+          corpus = TokenIdCorpus.read(file);
+          // Mark the file as recently used
+          file.setLastModified(System.currentTimeMillis());
+        } catch (IOException e) {
+          log.warn("Could not read token id corpus " + file + ", tokenizing again", e);
+        }
+      }
+    }
+    if (corpus == null) {
+      log.debug("Tokenizing " + data.numInstances() + " documents");
+      tokenizerFactory.getBackend().setTokenPreProcessor(tokenPreProcess.getBackend());
+      corpus = TokenIdCorpus.build(sentenceProvider, tokenizerFactory, wordVectors, stopwords,
+          keepsUnknownWords(), truncateLength);
+      if (file != null) {
+        Files.createDirectories(tokenCacheDirectory.toPath());
+        corpus.write(file);
+        corpus = TokenIdCorpus.read(file);
+        pruneTokenCacheDirectory();
+      }
+    }
+    tokenIdCorpora.put(key, corpus);
+    return corpus;
+  }
+
+  /**
+   * Delete the least recently used token id corpus files beyond {@link #MAX_CORPUS_FILES} from the
+   * token cache directory.
+   */
+  protected void pruneTokenCacheDirectory() {
+    final File[] files = tokenCacheDirectory.listFiles(
+        (dir, name) -> name.startsWith("tokens-") && name.endsWith(".bin"));
+    if (files == null || files.length <= MAX_CORPUS_FILES) {
+      return;
+    }
+    // Other processes may touch the files while sorting
+    final Map<File, Long> lastUsed = new HashMap<>();
+    for (File file : files) {
+      lastUsed.put(file, file.lastModified());
+    }
+    Arrays.sort(files, Comparator.comparing(lastUsed::get, Comparator.reverseOrder()));
+    for (int i = MAX_CORPUS_FILES; i < files.length; i++) {
+      if (!files[i].delete()) {
+        log.debug("Could not delete token id corpus {}", files[i]);
+      }
+    }
+  }
+
+  /**
+   * Compute the key of the token id corpus of the given data. The key identifies the tokens: the
+   * documents (or the size and modification time of each text file), the iterator and its options
+   * and the word vector file.
+   *
+   * @param data Data
+   * @param sentenceProvider Sentence provider of the data
+   * @return Key
+   */
+  protected String getTokenIdCorpusKey(Instances data, LabeledSentenceProvider sentenceProvider) {
+    ContentHash hash = new ContentHash()
+        .update(TokenIdCorpus.VERSION)
+        .update(getClass().getName())
+        .update(weka.core.Utils.joinOptions(getOptions()))
+        .update(keepsUnknownWords())
+        .update(wordVectorLocation.getAbsolutePath())
+        .update(wordVectorLocation.length())
+        .update(wordVectorLocation.lastModified())
+        .update(wordVectors == null ? 0L : wordVectors.vocab().numWords())
+        .update(data);
+    if (sentenceProvider instanceof FileLabeledSentenceProvider) {
+      for (File file : ((FileLabeledSentenceProvider) sentenceProvider).getFiles()) {
+        hash.update(file.length()).update(file.lastModified());
+      }
+    }
+    return hash.toHex();
+  }
+
+  /**
+   * Whether tokens that are not in the vocabulary are kept in the token id corpus.
+   *
+   * @return False, unknown tokens are removed
+   */
+  protected boolean keepsUnknownWords() {
+    return false;
+  }
 }
@@ -18,12 +18,14 @@
 
 package weka.dl4j.iterators.instance.sequence.text.cnn;
 
+import java.io.IOException;
 import java.util.Enumeration;
 import org.deeplearning4j.iterator.LabeledSentenceProvider;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import weka.core.Instances;
 import weka.core.InvalidInputDataException;
 import weka.core.Option;
+import weka.dl4j.iterators.dataset.sequence.text.TokenIdCorpus;
 import weka.dl4j.iterators.dataset.sequence.text.cnn.CnnSentenceDataSetIterator;
 import weka.dl4j.iterators.instance.sequence.text.AbstractTextEmbeddingIterator;
 
@@ -37,11 +39,20 @@ public class CnnTextEmbeddingInstanceIterator extends AbstractTextEmbeddingItera
   private static final long serialVersionUID = 3417451906101970927L;
 
   @Override
-  public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize) {
+  public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize)
+      throws IOException {
+    initialize();
+    return getDataSetIterator(data, seed, batchSize, getTokenIdCorpus(data));
+  }
+
+  @Override
+  public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize,
+      TokenIdCorpus corpus) throws IOException {
     initialize();
     LabeledSentenceProvider clsp = getSentenceProvider(data);
     return new CnnSentenceDataSetIterator.Builder()
         .stopwords(stopwords)
+        .corpus(corpus)
         .wordVectors(wordVectors)
         .tokenizerFactory(tokenizerFactory.getBackend())
         .sentenceProvider(clsp)
@@ -52,6 +63,16 @@ public class CnnTextEmbeddingInstanceIterator extends AbstractTextEmbeddingItera
         .build();
   }
 
+  /**
+   * Unknown words are kept, since they are mapped to the unknown word vector.
+   *
+   * @return True
+   */
+  @Override
+  protected boolean keepsUnknownWords() {
+    return true;
+  }
+
   @Override
   public void validate(Instances data) throws InvalidInputDataException {
     if (!getWordVectorLocation().isFile()) {
@@ -21,11 +21,11 @@ package weka.dl4j.iterators.instance.sequence.text.rnn;
 import java.io.IOException;
 import java.util.Enumeration;
 import lombok.extern.log4j.Log4j2;
-import org.deeplearning4j.iterator.LabeledSentenceProvider;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import weka.core.Instances;
 import weka.core.InvalidInputDataException;
 import weka.core.Option;
+import weka.dl4j.iterators.dataset.sequence.text.TokenIdCorpus;
 import weka.dl4j.iterators.dataset.sequence.text.rnn.RnnTextEmbeddingDataSetIterator;
 import weka.dl4j.iterators.instance.sequence.text.AbstractTextEmbeddingIterator;
 
@@ -78,15 +78,21 @@ public class RnnTextEmbeddingInstanceIterator extends AbstractTextEmbeddingItera
   public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize)
       throws InvalidInputDataException, IOException {
     validate(data);
+    return getDataSetIterator(data, seed, batchSize, getTokenIdCorpus(data));
+  }
+
+  @Override
+  public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize,
+      TokenIdCorpus corpus) {
     initWordVectors();
-    final LabeledSentenceProvider prov = getSentenceProvider(data);
     return new RnnTextEmbeddingDataSetIterator(
         data,
         wordVectors,
         tokenizerFactory,
         tokenPreProcess,
         stopwords,
-        prov,
+        getSentenceProvider(data),
+        corpus,
         batchSize,
         truncateLength);
   }
@@ -19,19 +19,16 @@
 package weka.dl4j.iterators.instance.sequence.text.rnn;
 
 import java.io.File;
-import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
 import org.deeplearning4j.iterator.LabeledSentenceProvider;
-import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.InvalidInputDataException;
 import weka.core.Option;
 import weka.core.OptionMetadata;
-import weka.dl4j.iterators.dataset.sequence.text.rnn.RnnTextEmbeddingDataSetIterator;
 import weka.dl4j.iterators.provider.FileLabeledSentenceProvider;
 
 /**
@@ -52,23 +49,6 @@ public class RnnTextFilesEmbeddingInstanceIterator extends RnnTextEmbeddingInsta
   private static final long serialVersionUID = -1065956690877737854L;
   private File textsLocation = new File(System.getProperty("user.dir"));
 
-  @Override
-  public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize)
-      throws InvalidInputDataException, IOException {
-    validate(data);
-    initWordVectors();
-    final LabeledSentenceProvider sentenceProvider = getSentenceProvider(data);
-    return new RnnTextEmbeddingDataSetIterator(
-        data,
-        wordVectors,
-        tokenizerFactory,
-        tokenPreProcess,
-        stopwords,
-        sentenceProvider,
-        batchSize,
-        truncateLength);
-  }
-
   @Override
   public LabeledSentenceProvider getSentenceProvider(Instances data) {
     List<File> files = new ArrayList<>();
@@ -0,0 +1,100 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * RnnTokenIndexInstanceIterator.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.instance.sequence.text.rnn;
+
+import java.util.Enumeration;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.dl4j.iterators.dataset.sequence.text.TokenIdCorpus;
+import weka.dl4j.iterators.dataset.sequence.text.rnn.RnnTokenIndexDataSetIterator;
+
+/**
+ * Text iterator that maps each document to the sequence of vocabulary indices of its tokens in the
+ * word vectors, instead of the sequence of the word vectors themselves. The first layer of the
+ * network must be an {@link weka.dl4j.layers.EmbeddingSequenceLayer}, which is initialized from the
+ * word vectors of this iterator.
+ *
+ * <p>Assumes the instance with the following attributes:
+ *
+ * <ul>
+ * <li>Text (e.g. a elementwise document)
+ * <li>Class
+ * </ul>
+ */
+public class RnnTokenIndexInstanceIterator extends RnnTextEmbeddingInstanceIterator {
+
+  /**
+   * The ID used to serialize this class
+   */
+  private static final long serialVersionUID = 6263180214815462154L;
+
+  @Override
+  public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize,
+      TokenIdCorpus corpus) {
+    initWordVectors();
+    return new RnnTokenIndexDataSetIterator(
+        data,
+        wordVectors,
+        tokenizerFactory,
+        tokenPreProcess,
+        stopwords,
+        getSentenceProvider(data),
+        corpus,
+        batchSize,
+        truncateLength);
+  }
+
+  /**
+   * Returns an enumeration describing the available options.
+   *
+   * @return an enumeration of all the available options.
+   */
+  @Override
+  public Enumeration<Option> listOptions() {
+    return Option.listOptionsForClassHierarchy(this.getClass(), super.getClass()).elements();
+  }
+
+  /**
+   * Gets the current settings of the Classifier.
+   *
+   * @return an array of strings suitable for passing to setOptions
+   */
+  @Override
+  public String[] getOptions() {
+    return Option.getOptionsForHierarchy(this, super.getClass());
+  }
+
+  /**
+   * Parses a given list of options.
+   *
+   * @param options the list of options as an array of strings
+   * @throws Exception if an option is not supported
+   */
+  public void setOptions(String[] options) throws Exception {
+    Option.setOptionsForHierarchy(options, this, super.getClass());
+  }
+
+  public String globalInfo() {
+    return "Text iterator that reads documents line wise from an ARFF file. Each document is then "
+        + "processed by the tokenization, stopwords, token-preprocessing and afterwards mapped to "
+        + "the vocabulary indices of its tokens in the given word-vector model. Requires an "
+        + "EmbeddingSequenceLayer as first layer, which is initialized from the word vectors.";
+  }
+}
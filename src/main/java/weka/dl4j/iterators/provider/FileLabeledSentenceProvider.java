@@ -91,4 +91,13 @@ public class FileLabeledSentenceProvider implements LabeledSentenceProvider {
   public int numLabelClasses() {
     return numClasses;
   }
+
+  /**
+   * Get the files, one per sentence.
+   *
+   * @return Files
+   */
+  public List<File> getFiles() {
+    return files;
+  }
 }
\ No newline at end of file
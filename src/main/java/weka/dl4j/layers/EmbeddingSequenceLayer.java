@@ -0,0 +1,191 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * EmbeddingSequenceLayer.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.layers;
+
+import java.io.Serializable;
+import java.util.Enumeration;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.nn.weights.embeddings.EmbeddingInitializer;
+import org.deeplearning4j.nn.weights.embeddings.WeightInitEmbedding;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.learning.config.NoOp;
+import weka.core.Option;
+import weka.core.OptionHandler;
+import weka.core.OptionMetadata;
+import weka.dl4j.iterators.dataset.sequence.text.EmbeddingLookup;
+
+/**
+ * A version of DeepLearning4j's EmbeddingSequenceLayer that implements WEKA option handling. Maps
+ * sequences of token indices of shape [batch, 1, time] to sequences of vectors of shape [batch,
+ * nOut, time]. Must be the first layer when using the RnnTokenIndexInstanceIterator, which
+ * initializes it from the word vectors of the iterator.
+ */
+public class EmbeddingSequenceLayer extends
+    FeedForwardLayer<org.deeplearning4j.nn.conf.layers.EmbeddingSequenceLayer>
+    implements OptionHandler, Serializable {
+
+  // The serial version ID used when serializing this class
+  protected static final long serialVersionUID = -3419866201387712207L;
+
+  /**
+   * Constructor for setting some defaults.
+   */
+  public EmbeddingSequenceLayer() {
+    super();
+    setLayerName("Embedding sequence layer");
+  }
+
+  @Override
+  public void initializeBackend() {
+    backend = new org.deeplearning4j.nn.conf.layers.EmbeddingSequenceLayer.Builder().build();
+  }
+
+  /**
+   * Global info.
+   *
+   * @return string describing this class.
+   */
+  public String globalInfo() {
+    return "An embedding layer for sequences of token indices from DeepLearning4J. The weights are "
+        + "initialized from the word vectors of the RnnTokenIndexInstanceIterator and can be "
+        + "frozen or fine-tuned.";
+  }
+
+  @OptionMetadata(
+      displayName = "freeze embeddings",
+      description = "Whether to keep the word vectors fixed instead of fine-tuning them "
+          + "(default = false).",
+      commandLineParamName = "freezeEmbeddings",
+      commandLineParamSynopsis = "-freezeEmbeddings",
+      commandLineParamIsFlag = true,
+      displayOrder = 3
+  )
+  public boolean getFreezeEmbeddings() {
+    return backend.getIUpdater() instanceof NoOp;
+  }
+
+  public void setFreezeEmbeddings(boolean freezeEmbeddings) {
+    backend.setIUpdater(freezeEmbeddings ? new NoOp() : null);
+    backend.setBiasUpdater(freezeEmbeddings ? new NoOp() : null);
+  }
+
+  @OptionMetadata(
+      displayName = "has bias",
+      description = "Whether to add a bias to the vectors (default = false).",
+      commandLineParamName = "hasBias",
+      commandLineParamSynopsis = "-hasBias",
+      commandLineParamIsFlag = true,
+      displayOrder = 4
+  )
+  public boolean getHasBias() {
+    return backend.isHasBias();
+  }
+
+  public void setHasBias(boolean hasBias) {
+    backend.setHasBias(hasBias);
+  }
+
+  /**
+   * Set the number of inputs (the vocabulary size), the number of outputs (the vector size) and
+   * the initial weights from the given word vectors. Row i of the weights is the vector of the
+   * word with vocabulary index i.
+   *
+   * @param wordVectors Word vectors
+   */
+  public void initializeFromWordVectors(WordVectors wordVectors) {
+    final INDArray matrix = EmbeddingLookup.getEmbeddingMatrix(wordVectors);
+    backend.setNIn(matrix.rows());
+    setNOut(matrix.columns());
+    backend.setWeightInitFn(new WeightInitEmbedding(new MatrixEmbeddingInitializer(matrix)));
+  }
+
+  /**
+   * Returns an enumeration describing the available options.
+   *
+   * @return an enumeration of all the available options.
+   */
+  @Override
+  public Enumeration<Option> listOptions() {
+    return Option.listOptionsForClassHierarchy(this.getClass(), super.getClass()).elements();
+  }
+
+  /**
+   * Gets the current settings of the Classifier.
+   *
+   * @return an array of strings suitable for passing to setOptions
+   */
+  @Override
+  public String[] getOptions() {
+    return Option.getOptionsForHierarchy(this, super.getClass());
+  }
+
+  /**
+   * Parses a given list of options.
+   *
+   * @param options the list of options as an array of strings
+   * @throws Exception if an option is not supported
+   */
+  public void setOptions(String[] options) throws Exception {
+    Option.setOptionsForHierarchy(options, this, super.getClass());
+  }
+
+  /**
+   * Initializes the embedding weights with a copy of a matrix. The matrix is not part of the
+   * network configuration, so the configuration stays small.
+   */
+  protected static class MatrixEmbeddingInitializer implements EmbeddingInitializer,
+      Serializable {
+
+    private static final long serialVersionUID = 4479208612871693314L;
+
+    /**
+     * The matrix of shape [vocabulary size, vector size]
+     */
+    private final transient INDArray matrix;
+
+    /**
+     * Constructor.
+     *
+     * @param matrix The matrix of shape [vocabulary size, vector size]
+     */
+    public MatrixEmbeddingInitializer(INDArray matrix) {
+      this.matrix = matrix;
+    }
+
+    @Override
+    public void loadWeightsInto(INDArray array) {
+      array.assign(matrix);
+    }
+
+    @Override
+    public long vocabSize() {
+      return matrix.rows();
+    }
+
+    @Override
+    public int vectorSize() {
+      return (int) matrix.columns();
+    }
+
+    @Override
+    public boolean jsonSerializable() {
+      return false;
+    }
+  }
+}
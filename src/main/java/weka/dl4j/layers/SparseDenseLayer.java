@@ -0,0 +1,91 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * SparseDenseLayer.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.layers;
+
+import java.io.Serializable;
+import java.util.Enumeration;
+import weka.core.Option;
+import weka.core.OptionHandler;
+import weka.dl4j.activations.ActivationReLU;
+import weka.dl4j.layers.sparse.SparseInputDenseLayer;
+
+/**
+ * A densely connected layer for sparse input that implements WEKA option handling. Must be the
+ * first layer when using the SparseInstanceIterator.
+ */
+public class SparseDenseLayer extends FeedForwardLayer<SparseInputDenseLayer>
+    implements OptionHandler, Serializable {
+
+  // The serial version ID used when serializing this class
+  protected static final long serialVersionUID = 4153360264883128375L;
+
+  /**
+   * Constructor for setting some defaults.
+   */
+  public SparseDenseLayer() {
+    super();
+    setLayerName("Sparse dense layer");
+    setActivationFunction(new ActivationReLU());
+  }
+
+  @Override
+  public void initializeBackend() {
+    backend = new SparseInputDenseLayer();
+  }
+
+  /**
+   * Global info.
+   *
+   * @return string describing this class.
+   */
+  public String globalInfo() {
+    return "A densely connected layer that multiplies sparse input with its weights without "
+        + "densifying it. Must be the first layer and be used with the SparseInstanceIterator.";
+  }
+
+  /**
+   * Returns an enumeration describing the available options.
+   *
+   * @return an enumeration of all the available options.
+   */
+  @Override
+  public Enumeration<Option> listOptions() {
+    return Option.listOptionsForClassHierarchy(this.getClass(), super.getClass()).elements();
+  }
+
+  /**
+   * Gets the current settings of the Classifier.
+   *
+   * @return an array of strings suitable for passing to setOptions
+   */
+  @Override
+  public String[] getOptions() {
+    return Option.getOptionsForHierarchy(this, super.getClass());
+  }
+
+  /**
+   * Parses a given list of options.
+   *
+   * @param options the list of options as an array of strings
+   * @throws Exception if an option is not supported
+   */
+  public void setOptions(String[] options) throws Exception {
+    Option.setOptionsForHierarchy(options, this, super.getClass());
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * SparseInputDenseLayer.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.layers.sparse;
+
+import java.util.Collection;
+import java.util.Map;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import lombok.extern.log4j.Log4j2;
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.ParamInitializer;
+import org.deeplearning4j.nn.conf.GradientNormalization;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.conf.layers.LayerValidation;
+import org.deeplearning4j.nn.conf.memory.LayerMemoryReport;
+import org.deeplearning4j.nn.conf.memory.MemoryReport;
+import org.deeplearning4j.nn.params.DefaultParamInitializer;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.learning.config.Adam;
+import org.nd4j.linalg.learning.config.IUpdater;
+import org.nd4j.linalg.learning.config.Nesterovs;
+import org.nd4j.linalg.learning.config.NoOp;
+import org.nd4j.linalg.learning.config.Sgd;
+
+/**
+ * Configuration of a dense layer whose input are packed sparse mini-batches (see
+ * {@link weka.dl4j.iterators.dataset.CsrBatch}). The number of inputs is the number of columns of
+ * the sparse data, not the width of the packed batches.
+ * <p>
+ * With SGD, Nesterovs momentum or Adam and neither weight regularization nor gradient
+ * normalization, the weights are updated lazily: the layer applies the updater to the weight rows
+ * of the columns that occur in a batch only and leaves the other rows (and their updater state)
+ * untouched, while the network updater sees a no-op updater for the weights. Other settings fall
+ * back to a dense update of all nIn x nOut weights on every batch.
+ */
+@Log4j2
+@Data
+@NoArgsConstructor
+@EqualsAndHashCode(callSuper = true)
+@ToString(callSuper = true)
+public class SparseInputDenseLayer extends FeedForwardLayer {
+
+  private static final long serialVersionUID = -5119281367233582134L;
+
+  @Override
+  public Layer instantiate(NeuralNetConfiguration conf,
+      Collection<TrainingListener> trainingListeners, int layerIndex, INDArray layerParamsView,
+      boolean initializeParams, DataType networkDataType) {
+    LayerValidation.assertNInNOutSet("SparseInputDenseLayer", getLayerName(), layerIndex, getNIn(),
+        getNOut());
+    if (!isLazyWeightUpdate()) {
+      log.warn("The sparse dense layer updates all of its weights on every batch with the {} "
+          + "updater. Use SGD, Nesterovs or Adam without weight regularization and gradient "
+          + "normalization to update only the weight rows of the columns in a batch.",
+          getIUpdater().getClass().getSimpleName());
+    }
+    SparseInputDenseLayerImpl ret = new SparseInputDenseLayerImpl(conf, networkDataType);
+    ret.setListeners(trainingListeners);
+    ret.setIndex(layerIndex);
+    ret.setParamsViewArray(layerParamsView);
+    Map<String, INDArray> paramTable = initializer().init(conf, layerParamsView, initializeParams);
+    ret.setParamTable(paramTable);
+    ret.setConf(conf);
+    return ret;
+  }
+
+  /**
+   * Whether the layer updates its weights lazily (see the class documentation).
+   *
+   * @return true if only the weight rows of the columns in a batch are updated
+   */
+  public boolean isLazyWeightUpdate() {
+    final IUpdater updater = getIUpdater();
+    return (updater instanceof Sgd || updater instanceof Nesterovs || updater instanceof Adam)
+        && !hasWeightRegularization()
+        && (getGradientNormalization() == null
+        || getGradientNormalization() == GradientNormalization.None);
+  }
+
+  /**
+   * Whether the weights are regularized.
+   *
+   * @return true if there is any weight regularization
+   */
+  private boolean hasWeightRegularization() {
+    return getRegularization() != null && !getRegularization().isEmpty();
+  }
+
+  @Override
+  public IUpdater getUpdaterByParam(String paramName) {
+    if (DefaultParamInitializer.WEIGHT_KEY.equals(paramName) && isLazyWeightUpdate()) {
+      // The layer applies the weight update itself
+      return new NoOp();
+    }
+    return super.getUpdaterByParam(paramName);
+  }
+
+  @Override
+  public ParamInitializer initializer() {
+    return DefaultParamInitializer.getInstance();
+  }
+
+  @Override
+  public LayerMemoryReport getMemoryReport(InputType inputType) {
+    InputType outputType = getOutputType(-1, inputType);
+    final long numParams = initializer().numParams(this);
+    final long updaterStateSize = (long) getIUpdater().stateSize(numParams);
+
+    return new LayerMemoryReport.Builder(layerName, SparseInputDenseLayer.class, inputType,
+        outputType)
+        .standardMemory(numParams, updaterStateSize)
+        .workingMemory(0, 0, 0, 0)
+        .cacheMemory(MemoryReport.CACHE_MODE_ALL_ZEROS, MemoryReport.CACHE_MODE_ALL_ZEROS)
+        .build();
+  }
+}
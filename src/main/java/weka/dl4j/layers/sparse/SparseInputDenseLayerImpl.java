@@ -0,0 +1,273 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * SparseInputDenseLayerImpl.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.layers.sparse;
+
+import java.util.List;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.gradient.DefaultGradient;
+import org.deeplearning4j.nn.gradient.Gradient;
+import org.deeplearning4j.nn.layers.BaseLayer;
+import org.deeplearning4j.nn.params.DefaultParamInitializer;
+import org.deeplearning4j.nn.workspace.ArrayType;
+import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
+import org.nd4j.common.primitives.Pair;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.Adam;
+import org.nd4j.linalg.learning.config.IUpdater;
+import org.nd4j.linalg.learning.config.Nesterovs;
+import org.nd4j.linalg.learning.config.NoOp;
+import org.nd4j.linalg.learning.regularization.Regularization;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import weka.dl4j.iterators.dataset.CsrBatch;
+
+/**
+ * Dense layer implementation that multiplies a sparse mini-batch with the dense weight matrix.
+ * <p>
+ * Only the weight rows of the columns that occur in the batch are gathered, so the forward pass
+ * and the weight gradient computation scale with the non-zeros of the batch instead of the number
+ * of inputs. No epsilon is passed on, since this layer can only be the first layer of a network.
+ * Input dropout is not supported, as it would drop the packed column indices.
+ * <p>
+ * If the weights are updated lazily (see {@link SparseInputDenseLayer#isLazyWeightUpdate()}), the
+ * backward pass applies the updater to the used weight rows and returns their update as the weight
+ * gradient, which the network's no-op weight updater passes on unchanged. Rows of unused columns
+ * keep their weights and updater state, as in the lazy Adam of other frameworks, so results differ
+ * from a dense update whenever a batch does not use every column. The updater state is not saved
+ * with the model, just like the network updater state. Note that the optimizer of the network
+ * still subtracts the whole flattened gradient from the parameters, a single pass over the
+ * parameters that is outside of this layer.
+ */
+public class SparseInputDenseLayerImpl extends BaseLayer<SparseInputDenseLayer> {
+
+  private static final long serialVersionUID = -1842751307127339846L;
+
+  /**
+   * Rows of the weight gradient written by the previous backward pass (null if the whole gradient
+   * must be cleared)
+   */
+  private int[] writtenRows;
+
+  /**
+   * Updater state of the weights if they are updated lazily (one nIn x nOut array per state
+   * variable, null until the first update)
+   */
+  private INDArray[] weightState;
+
+  public SparseInputDenseLayerImpl(NeuralNetConfiguration conf, DataType dataType) {
+    super(conf, dataType);
+  }
+
+  @Override
+  protected Pair<INDArray, INDArray> preOutputWithPreNorm(boolean training, boolean forBackprop,
+      LayerWorkspaceMgr workspaceMgr) {
+    assertInputSet(forBackprop);
+    INDArray W = getParamWithNoise(DefaultParamInitializer.WEIGHT_KEY, training, workspaceMgr);
+    INDArray b = getParamWithNoise(DefaultParamInitializer.BIAS_KEY, training, workspaceMgr);
+
+    CsrBatch batch = CsrBatch.fromFeatures(input, (int) layerConf().getNIn());
+    INDArray ret = workspaceMgr.createUninitialized(ArrayType.ACTIVATIONS, W.dataType(),
+        batch.getNumRows(), W.size(1));
+    final int[] columns = batch.uniqueColumns();
+    if (columns.length == 0) {
+      ret.assign(0);
+    } else {
+      // (batch x used columns) times the used rows of W
+      INDArray compact = batch.toCompactDense(columns, W.dataType());
+      compact.mmul(Nd4j.pullRows(W, 1, columns), ret);
+    }
+    ret.addiRowVector(b);
+    return new Pair<>(ret, ret);
+  }
+
+  @Override
+  public Pair<Gradient, INDArray> backpropGradient(INDArray epsilon,
+      LayerWorkspaceMgr workspaceMgr) {
+    assertInputSet(true);
+    INDArray z = preOutput(true, workspaceMgr);
+    INDArray delta = layerConf().getActivationFn().backprop(z, epsilon).getFirst();
+    if (maskArray != null) {
+      applyMask(delta);
+    }
+
+    CsrBatch batch = CsrBatch.fromFeatures(input, (int) layerConf().getNIn());
+    final int[] columns = batch.uniqueColumns();
+    INDArray weightGrad = gradientViews.get(DefaultParamInitializer.WEIGHT_KEY);
+    clearWeightGradient(weightGrad);
+    if (columns.length > 0) {
+      // Gradient of the used rows of W, scattered into the (otherwise zero) weight gradient
+      INDArray columnGrad = batch.toCompactDense(columns, delta.dataType()).transpose()
+          .mmul(delta).dup('c');
+      if (layerConf().isLazyWeightUpdate()) {
+        columnGrad = lazyUpdate(columnGrad, columns);
+      }
+      scatterRows(columnGrad, columns, weightGrad);
+    }
+    writtenRows = keepsZeroGradients() ? columns : null;
+    INDArray biasGrad = gradientViews.get(DefaultParamInitializer.BIAS_KEY);
+    delta.sum(biasGrad, 0);
+
+    Gradient ret = new DefaultGradient();
+    ret.gradientForVariable().put(DefaultParamInitializer.WEIGHT_KEY, weightGrad);
+    ret.gradientForVariable().put(DefaultParamInitializer.BIAS_KEY, biasGrad);
+    weightNoiseParams.clear();
+    return new Pair<>(ret, null);
+  }
+
+  /**
+   * Clear the weight gradient. If the updater leaves zero gradients untouched, only the rows
+   * written by the previous backward pass can be non-zero, otherwise the whole gradient is cleared.
+   *
+   * @param weightGrad Weight gradient view
+   */
+  private void clearWeightGradient(INDArray weightGrad) {
+    if (writtenRows == null) {
+      weightGrad.assign(0);
+      return;
+    }
+    final DataBuffer to = weightGrad.data();
+    final long toOffset = weightGrad.offset();
+    final long rowStride = weightGrad.stride(0);
+    final long columnStride = weightGrad.stride(1);
+    final long numColumns = weightGrad.columns();
+    for (int row : writtenRows) {
+      final long rowOffset = toOffset + row * rowStride;
+      for (long j = 0; j < numColumns; j++) {
+        to.put(rowOffset + j * columnStride, 0.0);
+      }
+    }
+  }
+
+  /**
+   * Apply the updater of the layer to the given weight rows only. Mirrors the SGD, Nesterovs and
+   * Adam updaters of ND4J, restricted to these rows.
+   *
+   * @param rowGrad Gradient of the rows (c order, overwritten)
+   * @param rows Weight row of each gradient row
+   * @return Update of the rows, to be subtracted from their weights
+   */
+  private INDArray lazyUpdate(INDArray rowGrad, int[] rows) {
+    final IUpdater updater = layerConf().getIUpdater();
+    final int iteration = getIterationCount();
+    final int epoch = getEpochCount();
+    final double learningRate = updater.getLearningRate(iteration, epoch);
+    if (updater instanceof Adam) {
+      final Adam adam = (Adam) updater;
+      final INDArray[] state = getWeightState(2);
+      INDArray m = Nd4j.pullRows(state[0], 1, rows);
+      INDArray v = Nd4j.pullRows(state[1], 1, rows);
+      m.muli(adam.getBeta1()).addi(rowGrad.mul(1.0 - adam.getBeta1()));
+      v.muli(adam.getBeta2()).addi(rowGrad.muli(rowGrad).muli(1.0 - adam.getBeta2()));
+      scatterRows(m, rows, state[0]);
+      scatterRows(v, rows, state[1]);
+      double alpha = learningRate * Math.sqrt(1.0 - Math.pow(adam.getBeta2(), iteration + 1))
+          / (1.0 - Math.pow(adam.getBeta1(), iteration + 1));
+      if (Double.isNaN(alpha) || alpha == 0.0) {
+        alpha = adam.getEpsilon();
+      }
+      return m.muli(alpha).divi(Transforms.sqrt(v, false).addi(adam.getEpsilon()));
+    } else if (updater instanceof Nesterovs) {
+      final double momentum = ((Nesterovs) updater).currentMomentum(iteration, epoch);
+      final INDArray[] state = getWeightState(1);
+      INDArray v = Nd4j.pullRows(state[0], 1, rows);
+      INDArray update = v.mul(momentum);
+      v.muli(momentum).subi(rowGrad.muli(learningRate));
+      scatterRows(v, rows, state[0]);
+      return update.addi(v.muli(-momentum - 1.0));
+    }
+    return rowGrad.muli(learningRate);
+  }
+
+  /**
+   * Get the lazy updater state of the weights, allocating it on first use.
+   *
+   * @param numVariables Number of state variables of the updater
+   * @return One nIn x nOut array per state variable
+   */
+  private INDArray[] getWeightState(int numVariables) {
+    final INDArray W = getParam(DefaultParamInitializer.WEIGHT_KEY);
+    if (weightState == null || weightState.length != numVariables) {
+      weightState = new INDArray[numVariables];
+      for (int i = 0; i < numVariables; i++) {
+        weightState[i] = Nd4j.zeros(W.dataType(), W.rows(), W.columns());
+      }
+    }
+    return weightState;
+  }
+
+  /**
+   * Whether applying the network updater to the weight gradient keeps its zero entries at zero,
+   * i.e. no update (which includes the lazy update of the layer) without regularization.
+   * Regularization and updaters such as RmsProp write into every entry of the gradient view.
+   *
+   * @return true if only the written rows of the gradient can be non-zero after an update
+   */
+  private boolean keepsZeroGradients() {
+    final IUpdater updater = layerConf().getUpdaterByParam(DefaultParamInitializer.WEIGHT_KEY);
+    final List<Regularization> regularization = layerConf().getRegularization();
+    return updater instanceof NoOp && (regularization == null || regularization.isEmpty());
+  }
+
+  @Override
+  public void setBackpropGradientsViewArray(INDArray gradients) {
+    super.setBackpropGradientsViewArray(gradients);
+    writtenRows = null;
+    weightState = null;
+  }
+
+  /**
+   * Write the rows of {@code source} into the given rows of {@code target}.
+   *
+   * @param source Rows to write (c order)
+   * @param rows Target row of each source row
+   * @param target Target matrix (any order)
+   */
+  private static void scatterRows(INDArray source, int[] rows, INDArray target) {
+    final DataBuffer from = source.data();
+    final DataBuffer to = target.data();
+    final long fromOffset = source.offset();
+    final long toOffset = target.offset();
+    final long rowStride = target.stride(0);
+    final long columnStride = target.stride(1);
+    final long numColumns = source.columns();
+    for (int i = 0; i < rows.length; i++) {
+      final long rowOffset = toOffset + rows[i] * rowStride;
+      for (long j = 0; j < numColumns; j++) {
+        to.put(rowOffset + j * columnStride, from.getDouble(fromOffset + i * numColumns + j));
+      }
+    }
+  }
+
+  @Override
+  public boolean isPretrainLayer() {
+    return false;
+  }
+
+  @Override
+  public boolean hasBias() {
+    return true;
+  }
+
+  @Override
+  public boolean hasLayerNorm() {
+    return false;
+  }
+}
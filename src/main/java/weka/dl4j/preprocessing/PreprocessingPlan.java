@@ -0,0 +1,499 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * PreprocessingPlan.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.preprocessing;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import lombok.extern.log4j.Log4j2;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.dl4j.iterators.dataset.cache.ContentHash;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.NominalToBinary;
+import weka.filters.unsupervised.attribute.Normalize;
+import weka.filters.unsupervised.attribute.ReplaceMissingValues;
+import weka.filters.unsupervised.attribute.Standardize;
+
+/**
+ * A compiled form of the {@link ReplaceMissingValues}, {@link NominalToBinary} and
+ * {@link Standardize}/{@link Normalize} filter chain of the Dl4jMlpClassifier.
+ * <p>
+ * The plan is compiled from the fitted filters and turns a raw instance into its feature row in a
+ * single pass: missing values are imputed, nominal attributes expanded into binary columns and all
+ * columns scaled, without creating any intermediate {@link Instances}. It only holds one
+ * replacement value per attribute and two statistics per column, all of which are derived from the
+ * output of the fitted filters for probe instances. When compiled, the plan is checked against the
+ * filtered training data and rejected unless its output agrees on every instance up to
+ * {@link #TOLERANCE}.
+ */
+@Log4j2
+public class PreprocessingPlan implements Serializable {
+
+  /**
+   * The ID used to serialize this class
+   */
+  private static final long serialVersionUID = 6420418620591811534L;
+
+  /**
+   * Relative tolerance of the check against the filters. The statistics derived from the filter
+   * output can differ from the filter's own in the last bits, far below the single precision of
+   * the network input.
+   */
+  static final double TOLERANCE = 1e-9;
+
+  /**
+   * Scaling applied after imputation and expansion
+   */
+  enum Scaling {
+    NONE, STANDARDIZE, NORMALIZE
+  }
+
+  /**
+   * Number of raw attributes (including the class)
+   */
+  private final int numAttributes;
+
+  /**
+   * Class index of the raw data
+   */
+  private final int classIndex;
+
+  /**
+   * Number of values per raw attribute (0 for numeric attributes)
+   */
+  private final int[] numValues;
+
+  /**
+   * Replacement of missing values per raw attribute (mean or mode index)
+   */
+  private final double[] replacement;
+
+  /**
+   * First expanded column of each raw attribute (including the class)
+   */
+  private final int[] outputStart;
+
+  /**
+   * Number of expanded columns of each raw attribute (one for numeric and binary nominal
+   * attributes, one per value otherwise)
+   */
+  private final int[] outputWidth;
+
+  /**
+   * Whether the expanded class column is numeric (and thus scaled)
+   */
+  private final boolean numericClass;
+
+  /**
+   * Scaling of the expanded columns
+   */
+  private final Scaling scaling;
+
+  /**
+   * Mean (standardize) or minimum (normalize) per expanded column
+   */
+  private final double[] columnA;
+
+  /**
+   * Standard deviation (standardize) or maximum (normalize) per expanded column
+   */
+  private final double[] columnB;
+
+  /**
+   * Scale factor of the normalization
+   */
+  private final double normalizeScale;
+
+  /**
+   * Translation of the normalization
+   */
+  private final double normalizeTranslation;
+
+  /**
+   * Constructor.
+   */
+  private PreprocessingPlan(int numAttributes, int classIndex, int[] numValues,
+      double[] replacement, int[] outputStart, int[] outputWidth, boolean numericClass,
+      Scaling scaling, double[] columnA, double[] columnB, double normalizeScale,
+      double normalizeTranslation) {
+    this.numAttributes = numAttributes;
+    this.classIndex = classIndex;
+    this.numValues = numValues;
+    this.replacement = replacement;
+    this.outputStart = outputStart;
+    this.outputWidth = outputWidth;
+    this.numericClass = numericClass;
+    this.scaling = scaling;
+    this.columnA = columnA;
+    this.columnB = columnB;
+    this.normalizeScale = normalizeScale;
+    this.normalizeTranslation = normalizeTranslation;
+  }
+
+  /**
+   * Compile the plan from filters fitted on the given training data.
+   *
+   * @param data Raw training data (with class index set)
+   * @param replaceMissing Fitted ReplaceMissingValues filter
+   * @param nominalToBinary Fitted NominalToBinary filter
+   * @param scalingFilter Fitted Standardize or Normalize filter, may be null
+   * @return The plan, or null if the data or filters are not supported or the plan does not
+   * reproduce the output of the filters
+   * @throws Exception The filters could not be applied to the training data
+   */
+  public static PreprocessingPlan compile(Instances data, ReplaceMissingValues replaceMissing,
+      NominalToBinary nominalToBinary, Filter scalingFilter) throws Exception {
+    Instances filtered = Filter.useFilter(data, replaceMissing);
+    filtered = Filter.useFilter(filtered, nominalToBinary);
+    if (scalingFilter != null) {
+      filtered = Filter.useFilter(filtered, scalingFilter);
+    }
+    return compile(data, filtered, replaceMissing, nominalToBinary, scalingFilter);
+  }
+
+  /**
+   * Compile the plan from filters fitted on the given training data, which the filters have
+   * already been applied to.
+   *
+   * @param data Raw training data (with class index set)
+   * @param filtered The training data after the filters, in the same order
+   * @param replaceMissing Fitted ReplaceMissingValues filter
+   * @param nominalToBinary Fitted NominalToBinary filter
+   * @param scalingFilter Fitted Standardize or Normalize filter, may be null
+   * @return The plan, or null if the data or filters are not supported or the plan does not
+   * reproduce the output of the filters
+   */
+  public static PreprocessingPlan compile(Instances data, Instances filtered,
+      ReplaceMissingValues replaceMissing, NominalToBinary nominalToBinary,
+      Filter scalingFilter) {
+    try {
+      PreprocessingPlan plan = fromFilters(data, replaceMissing, nominalToBinary, scalingFilter);
+      if (plan != null && plan.reproduces(data, filtered)) {
+        return plan;
+      }
+    } catch (Exception e) {
+      log.debug("Could not compile preprocessing plan", e);
+    }
+    log.info("Preprocessing falls back to the Weka filters.");
+    return null;
+  }
+
+  /**
+   * Read the plan from the fitted filters.
+   */
+  private static PreprocessingPlan fromFilters(Instances data,
+      ReplaceMissingValues replaceMissing, NominalToBinary nominalToBinary, Filter scalingFilter)
+      throws Exception {
+    final int numAttributes = data.numAttributes();
+    final int classIndex = data.classIndex();
+
+    // Only numeric (including date) and nominal attributes are supported
+    int[] numValues = new int[numAttributes];
+    for (int j = 0; j < numAttributes; j++) {
+      Attribute att = data.attribute(j);
+      if (!att.isNumeric() && !att.isNominal()) {
+        return null;
+      }
+      numValues[j] = att.isNominal() ? att.numValues() : 0;
+    }
+
+    // Imputed values: all-missing instance passed through the fitted filter
+    double[] missing = new double[numAttributes];
+    Arrays.fill(missing, Utils.missingValue());
+    Instance probe = new DenseInstance(1.0, missing);
+    probe.setDataset(data);
+    replaceMissing.input(probe);
+    final double[] replacement = replaceMissing.output().toDoubleArray();
+
+    // Expanded layout as created by NominalToBinary
+    int[] outputStart = new int[numAttributes];
+    int[] outputWidth = new int[numAttributes];
+    int numOutputs = 0;
+    for (int j = 0; j < numAttributes; j++) {
+      Attribute att = data.attribute(j);
+      outputStart[j] = numOutputs;
+      outputWidth[j] = att.isNominal() && j != classIndex && att.numValues() > 2
+          ? att.numValues() : 1;
+      numOutputs += outputWidth[j];
+    }
+    final Instances expanded = nominalToBinary.getOutputFormat();
+    if (numOutputs != expanded.numAttributes()) {
+      return null;
+    }
+
+    Scaling scaling = Scaling.NONE;
+    double[] columnA = null;
+    double[] columnB = null;
+    double normalizeScale = 1.0;
+    double normalizeTranslation = 0.0;
+    if (scalingFilter instanceof Standardize) {
+      scaling = Scaling.STANDARDIZE;
+      columnA = new double[numOutputs];
+      columnB = new double[numOutputs];
+      if (!probeStandardize(scalingFilter, expanded, columnA, columnB)) {
+        return null;
+      }
+    } else if (scalingFilter instanceof Normalize) {
+      Normalize normalize = (Normalize) scalingFilter;
+      scaling = Scaling.NORMALIZE;
+      columnA = normalize.getMinArray();
+      columnB = normalize.getMaxArray();
+      normalizeScale = normalize.getScale();
+      normalizeTranslation = normalize.getTranslation();
+    } else if (scalingFilter != null) {
+      return null;
+    }
+    if (scaling != Scaling.NONE
+        && (columnA == null || columnA.length != numOutputs || columnB.length != numOutputs)) {
+      return null;
+    }
+
+    return new PreprocessingPlan(numAttributes, classIndex, numValues, replacement, outputStart,
+        outputWidth, data.classAttribute().isNumeric(), scaling, columnA, columnB,
+        normalizeScale, normalizeTranslation);
+  }
+
+  /**
+   * Derive the mean and standard deviation of each numeric column from the output of a fitted
+   * Standardize filter for the values 0 and 1, since the filter does not expose its statistics.
+   * Standardizing is affine: 0 maps to {@code -mean / sd} and 1 to {@code (1 - mean) / sd}.
+   * Columns that are not standardized (e.g. a nominal class) get mean 0 and deviation 1.
+   *
+   * @param standardize Fitted Standardize filter
+   * @param expanded Input format of the filter
+   * @param means Means to fill
+   * @param stdDevs Standard deviations to fill
+   * @return false if the filter output is not affine in the input
+   */
+  private static boolean probeStandardize(Filter standardize, Instances expanded, double[] means,
+      double[] stdDevs) throws Exception {
+    final double[] zeros = new double[expanded.numAttributes()];
+    final double[] ones = new double[expanded.numAttributes()];
+    for (int j = 0; j < ones.length; j++) {
+      // Nominal columns keep the first value
+      ones[j] = expanded.attribute(j).isNumeric() ? 1 : 0;
+    }
+    final double[] out0 = probe(standardize, expanded, zeros);
+    final double[] out1 = probe(standardize, expanded, ones);
+    for (int j = 0; j < means.length; j++) {
+      if (!expanded.attribute(j).isNumeric()) {
+        means[j] = 0;
+        stdDevs[j] = 1;
+        continue;
+      }
+      final double slope = out1[j] - out0[j];
+      if (!(slope > 0) || Double.isInfinite(slope) || Double.isNaN(out0[j])) {
+        return false;
+      }
+      stdDevs[j] = 1 / slope;
+      means[j] = -out0[j] * stdDevs[j];
+    }
+    return true;
+  }
+
+  /**
+   * Pass a single instance through a fitted filter.
+   *
+   * @param filter Fitted filter
+   * @param format Input format of the filter
+   * @param values Values of the instance
+   * @return Values of the filtered instance
+   */
+  private static double[] probe(Filter filter, Instances format, double[] values)
+      throws Exception {
+    Instance inst = new DenseInstance(1.0, values);
+    inst.setDataset(format);
+    filter.input(inst);
+    return filter.output().toDoubleArray();
+  }
+
+  /**
+   * Check that the plan yields the output of the filters on all training instances, up to
+   * {@link #TOLERANCE}.
+   *
+   * @param data Raw training data
+   * @param filtered The training data after the filters
+   * @return true if every value agrees
+   */
+  private boolean reproduces(Instances data, Instances filtered) {
+    if (filtered.numInstances() != data.numInstances()
+        || filtered.numAttributes() != getNumFeatures() + 1) {
+      return false;
+    }
+    double[] row = new double[getNumFeatures()];
+    for (int i = 0; i < data.numInstances(); i++) {
+      transform(data.instance(i), row);
+      Instance expected = filtered.instance(i);
+      int col = 0;
+      for (int j = 0; j < expected.numAttributes(); j++) {
+        final double actual = j == expected.classIndex()
+            ? transformClass(data.instance(i)) : row[col++];
+        if (!agrees(expected.value(j), actual)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether two values are equal up to {@link #TOLERANCE}, relative to the larger of their
+   * magnitude and 1. Missing values only agree with missing values.
+   *
+   * @param expected Value of the filters
+   * @param actual Value of the plan
+   * @return true if the values agree
+   */
+  static boolean agrees(double expected, double actual) {
+    if (Utils.isMissingValue(expected) || Utils.isMissingValue(actual)) {
+      return Utils.isMissingValue(expected) && Utils.isMissingValue(actual);
+    }
+    return Math.abs(expected - actual)
+        <= TOLERANCE * Math.max(1, Math.max(Math.abs(expected), Math.abs(actual)));
+  }
+
+  /**
+   * Write the feature row of a raw instance (class left out).
+   *
+   * @param inst Raw instance
+   * @param features Feature row of length {@link #getNumFeatures()}
+   */
+  public void transform(Instance inst, double[] features) {
+    final int classOutput = outputStart[classIndex];
+    for (int j = 0; j < numAttributes; j++) {
+      if (j == classIndex) {
+        continue;
+      }
+      double value = inst.value(j);
+      if (Utils.isMissingValue(value)) {
+        value = replacement[j];
+      }
+
+      final int out = outputStart[j];
+      // Shift by -1 behind the class, since the class is left out from the features
+      final int col = out < classOutput ? out : out - 1;
+      final int width = outputWidth[j];
+      if (width == 1) {
+        features[col] = scale(out, value);
+      } else {
+        for (int k = 0; k < width; k++) {
+          final double binary = Utils.isMissingValue(value) ? value : (k == (int) value ? 1 : 0);
+          features[col + k] = scale(out + k, binary);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the (imputed and, if numeric, scaled) class value of a raw instance.
+   *
+   * @param inst Raw instance
+   * @return Class value
+   */
+  public double transformClass(Instance inst) {
+    double value = inst.classValue();
+    if (Utils.isMissingValue(value)) {
+      value = replacement[classIndex];
+    }
+    return numericClass ? scale(outputStart[classIndex], value) : value;
+  }
+
+  /**
+   * Scale an expanded column value the way Standardize/Normalize do.
+   *
+   * @param column Expanded column (including the class)
+   * @param value Value
+   * @return Scaled value
+   */
+  private double scale(int column, double value) {
+    if (Utils.isMissingValue(value)) {
+      return value;
+    }
+    switch (scaling) {
+      case STANDARDIZE:
+        if (columnB[column] > 0) {
+          return (value - columnA[column]) / columnB[column];
+        }
+        return value - columnA[column];
+      case NORMALIZE:
+        if (Double.isNaN(columnA[column]) || columnB[column] == columnA[column]) {
+          return 0;
+        }
+        return (value - columnA[column]) / (columnB[column] - columnA[column]) * normalizeScale
+            + normalizeTranslation;
+      default:
+        return value;
+    }
+  }
+
+  /**
+   * Get the number of feature columns (expanded columns without the class).
+   *
+   * @return Number of feature columns
+   */
+  public int getNumFeatures() {
+    return outputStart[numAttributes - 1] + outputWidth[numAttributes - 1] - 1;
+  }
+
+  /**
+   * Add the layout and the fitted statistics of the plan to a hash, e.g. to identify batches
+   * preprocessed by it.
+   *
+   * @param hash Hash to update
+   * @return The hash
+   */
+  public ContentHash updateHash(ContentHash hash) {
+    hash.update(numAttributes).update(classIndex).update(numericClass)
+        .update(scaling.name()).update(normalizeScale).update(normalizeTranslation);
+    for (int j = 0; j < numAttributes; j++) {
+      hash.update(numValues[j]).update(replacement[j]).update(outputWidth[j]);
+    }
+    if (columnA != null) {
+      for (int k = 0; k < columnA.length; k++) {
+        hash.update(columnA[k]).update(columnB[k]);
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Check whether the given data has the layout the plan was compiled for.
+   *
+   * @param data Raw data
+   * @return True if the number of attributes, their types and numbers of values and the class
+   * index match
+   */
+  public boolean isCompatible(Instances data) {
+    if (data.numAttributes() != numAttributes || data.classIndex() != classIndex) {
+      return false;
+    }
+    for (int j = 0; j < numAttributes; j++) {
+      Attribute att = data.attribute(j);
+      final boolean sameType = att.isNominal()
+          ? att.numValues() == numValues[j] : att.isNumeric() && numValues[j] == 0;
+      if (!sameType) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * CheckpointManager.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.serialization;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.extern.log4j.Log4j2;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Instances;
+import weka.core.WekaException;
+
+/**
+ * Writes training checkpoints into a directory in the background and rotates old ones.
+ * <p>
+ * A checkpoint directory contains one session file, holding the classifier (without its network)
+ * and the validation data as they were when training started, and up to {@code retention}
+ * checkpoint files named after the epoch they were taken at. Files are written under a temporary
+ * name and moved into place once complete, so a crash never leaves a partial checkpoint behind.
+ * <p>
+ * Checkpoints are written by a single writer thread. If the writer falls behind by more than one
+ * checkpoint, the next checkpoint is written by the training thread itself, which bounds the
+ * memory held by pending snapshots.
+ */
+@Log4j2
+public class CheckpointManager implements Closeable {
+
+  /**
+   * Name of the session file.
+   */
+  public static final String SESSION_FILE_NAME = "session.ser";
+
+  /**
+   * Pattern of checkpoint file names.
+   */
+  private static final Pattern CHECKPOINT_FILE_PATTERN =
+      Pattern.compile("checkpoint-(\\d+)\\.ckpt");
+
+  /**
+   * Suffix of files that are still being written.
+   */
+  private static final String TMP_SUFFIX = ".tmp";
+
+  /**
+   * Checkpoint directory.
+   */
+  private final File directory;
+
+  /**
+   * Number of checkpoints to keep (0 = keep all).
+   */
+  private final int retention;
+
+  /**
+   * Background writer.
+   */
+  private final ThreadPoolExecutor writer;
+
+  /**
+   * Constructor.
+   *
+   * @param directory Checkpoint directory (created if it does not exist)
+   * @param retention Number of checkpoints to keep (0 = keep all)
+   * @throws IOException Could not create the directory
+   */
+  public CheckpointManager(File directory, int retention) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create checkpoint directory " + directory);
+    }
+    this.directory = directory;
+    this.retention = retention;
+    this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(1), r -> {
+      Thread t = new Thread(r, "checkpoint-writer");
+      t.setDaemon(true);
+      return t;
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * Start a new training session: remove all checkpoints of a previous session and write the
+   * session file.
+   *
+   * @param clf Classifier being trained (initialized, before the first epoch)
+   * @param valData Validation data used for early stopping, may be null
+   * @throws IOException Could not write the session file
+   */
+  public void startSession(Dl4jMlpClassifier clf, Instances valData) throws IOException {
+    for (File f : listCheckpoints(directory)) {
+      Files.deleteIfExists(f.toPath());
+    }
+    File tmp = new File(directory, SESSION_FILE_NAME + TMP_SUFFIX);
+    try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tmp), FramedModelSerializer.BUFFER_SIZE))) {
+      clf.writeWithoutNetwork(oos);
+      oos.writeObject(valData);
+    }
+    moveIntoPlace(tmp, sessionFile(directory));
+  }
+
+  /**
+   * Write the given checkpoint in the background.
+   *
+   * @param checkpoint Snapshot of the training state
+   */
+  public void submit(TrainingCheckpoint checkpoint) {
+    writer.execute(() -> write(checkpoint));
+  }
+
+  /**
+   * Write a checkpoint and rotate old ones. Errors are logged, a failed checkpoint must not stop
+   * the training.
+   *
+   * @param checkpoint Snapshot of the training state
+   */
+  private void write(TrainingCheckpoint checkpoint) {
+    final long start = System.nanoTime();
+    final File file = checkpointFile(directory, checkpoint.getNumEpochsPerformed());
+    final File tmp = new File(file.getPath() + TMP_SUFFIX);
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmp), FramedModelSerializer.BUFFER_SIZE))) {
+        checkpoint.write(out);
+      }
+      moveIntoPlace(tmp, file);
+      log.debug("Wrote checkpoint {} in {} ms", file, (System.nanoTime() - start) / 1000000);
+      rotate();
+    } catch (IOException e) {
+      log.error("Could not write checkpoint " + file, e);
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Delete the oldest checkpoints exceeding the retention.
+   */
+  private synchronized void rotate() throws IOException {
+    if (retention <= 0) {
+      return;
+    }
+    List<File> checkpoints = listCheckpoints(directory);
+    for (int i = 0; i < checkpoints.size() - retention; i++) {
+      Files.deleteIfExists(checkpoints.get(i).toPath());
+    }
+  }
+
+  /**
+   * Wait for pending checkpoints to be written and stop the writer thread.
+   */
+  @Override
+  public void close() {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Get the session file of a checkpoint directory.
+   *
+   * @param directory Checkpoint directory
+   * @return Session file
+   */
+  public static File sessionFile(File directory) {
+    return new File(directory, SESSION_FILE_NAME);
+  }
+
+  /**
+   * Read the most recent checkpoint of a checkpoint directory.
+   *
+   * @param directory Checkpoint directory
+   * @return Latest checkpoint
+   * @throws IOException Could not read the checkpoint
+   * @throws WekaException The directory does not contain a checkpoint
+   */
+  public static TrainingCheckpoint readLatest(File directory) throws IOException, WekaException {
+    List<File> checkpoints = listCheckpoints(directory);
+    if (checkpoints.isEmpty() || !sessionFile(directory).isFile()) {
+      throw new WekaException("No checkpoint found in " + directory);
+    }
+    File latest = checkpoints.get(checkpoints.size() - 1);
+    log.info("Restoring checkpoint {}", latest);
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(latest), FramedModelSerializer.BUFFER_SIZE))) {
+      return TrainingCheckpoint.read(in);
+    }
+  }
+
+  /**
+   * List the complete checkpoints of a directory, oldest first.
+   *
+   * @param directory Checkpoint directory
+   * @return Checkpoint files sorted by epoch
+   */
+  private static List<File> listCheckpoints(File directory) {
+    List<File> checkpoints = new ArrayList<>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (CHECKPOINT_FILE_PATTERN.matcher(f.getName()).matches()) {
+          checkpoints.add(f);
+        }
+      }
+    }
+    checkpoints.sort(Comparator.comparingLong(CheckpointManager::epochOf));
+    return checkpoints;
+  }
+
+  /**
+   * Get the epoch a checkpoint file was taken at.
+   *
+   * @param file Checkpoint file
+   * @return Epoch
+   */
+  private static long epochOf(File file) {
+    Matcher m = CHECKPOINT_FILE_PATTERN.matcher(file.getName());
+    return m.matches() ? Long.parseLong(m.group(1)) : -1;
+  }
+
+  /**
+   * Get the checkpoint file for an epoch.
+   *
+   * @param directory Checkpoint directory
+   * @param epoch Number of epochs performed
+   * @return Checkpoint file
+   */
+  private static File checkpointFile(File directory, int epoch) {
+    return new File(directory, String.format("checkpoint-%06d.ckpt", epoch));
+  }
+
+  /**
+   * Move a completely written file to its final name.
+   *
+   * @param src Temporary file
+   * @param dst Final file
+   * @throws IOException Could not move the file
+   */
+  private static void moveIntoPlace(File src, File dst) throws IOException {
+    try {
+      Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
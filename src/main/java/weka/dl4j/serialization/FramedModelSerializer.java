@@ -0,0 +1,305 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * FramedModelSerializer.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.serialization;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.concurrency.AffinityManager.Location;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Single-pass serialization of a {@link ComputationGraph} into a framed, length-prefixed format.
+ * <p>
+ * Layout (all lengths are prefixed, multi-byte values are big-endian as written by {@link
+ * DataOutput}, array contents are little-endian):
+ * <pre>
+ * int     MAGIC
+ * int     VERSION
+ * int     length of the configuration json, followed by its UTF-8 bytes
+ * array   flattened network parameters
+ * boolean updater state present, followed by the updater state array if true
+ * </pre>
+ * An array is written as its data type name, its number of elements and the raw element bytes.
+ * Since the total size is known from the frame headers, the model can be written while streaming
+ * and restored straight from the stream without knowing the size upfront or using a temp file.
+ */
+public class FramedModelSerializer {
+
+  /**
+   * Marker at the start of a framed model.
+   */
+  public static final int MAGIC = 0x574B444C;
+
+  /**
+   * Current format version.
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * Size of the buffer used to move array contents between the stream and off-heap memory.
+   */
+  public static final int BUFFER_SIZE = 1 << 20;
+
+  /**
+   * Byte order of the array contents in the stream.
+   */
+  public static final ByteOrder STREAM_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  /**
+   * Write the given model to the output.
+   *
+   * @param model Model to write
+   * @param out Output to write to
+   * @param saveUpdater Whether to include the updater state
+   * @throws IOException Could not write to the output
+   */
+  public static void writeModel(ComputationGraph model, DataOutput out, boolean saveUpdater)
+      throws IOException {
+    INDArray updaterState = null;
+    if (saveUpdater && model.getUpdater() != null) {
+      updaterState = model.getUpdater().getStateViewArray();
+    }
+    writeModel(model.getConfiguration(), model.params(), updaterState, out);
+  }
+
+  /**
+   * Write a model given by its configuration, parameters and (optional) updater state to the
+   * output.
+   *
+   * @param conf Network configuration
+   * @param params Flattened network parameters
+   * @param updaterState Updater state, may be null
+   * @param out Output to write to
+   * @throws IOException Could not write to the output
+   */
+  public static void writeModel(ComputationGraphConfiguration conf, INDArray params,
+      INDArray updaterState, DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+
+    byte[] json = conf.toJson().getBytes(StandardCharsets.UTF_8);
+    out.writeInt(json.length);
+    out.write(json);
+
+    writeArray(params, out);
+
+    out.writeBoolean(updaterState != null);
+    if (updaterState != null) {
+      writeArray(updaterState, out);
+    }
+  }
+
+  /**
+   * Read a model written by {@link #writeModel(ComputationGraph, DataOutput, boolean)}.
+   *
+   * @param in Input to read from
+   * @param loadUpdater Whether to restore the updater state (if present)
+   * @return Restored model
+   * @throws IOException Could not read from the input or the input is not a framed model
+   */
+  public static ComputationGraph readModel(DataInput in, boolean loadUpdater) throws IOException {
+    ComputationGraphConfiguration conf = readHeader(in);
+    INDArray params = readArray(in);
+
+    ComputationGraph model = new ComputationGraph(conf);
+    model.init(params, false);
+
+    if (in.readBoolean()) {
+      INDArray updaterState = readArray(in);
+      if (loadUpdater) {
+        model.getUpdater().setStateViewArray(updaterState);
+      }
+    }
+    return model;
+  }
+
+  /**
+   * Read the header (magic, version, configuration) of a framed model.
+   *
+   * @param in Input to read from
+   * @return Network configuration
+   * @throws IOException Could not read from the input or the input is not a framed model
+   */
+  public static ComputationGraphConfiguration readHeader(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Input is not a framed network model.");
+    }
+    int version = in.readInt();
+    if (version > VERSION) {
+      throw new IOException("Unsupported network model format version " + version
+          + ". The latest supported version is " + VERSION + ".");
+    }
+
+    byte[] json = new byte[in.readInt()];
+    in.readFully(json);
+    return ComputationGraphConfiguration.fromJson(new String(json, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Restore a model that was written with {@link ModelSerializer} into exactly {@code size} bytes
+   * of the given stream (format used up to now by the Dl4jMlpClassifier). The zip archive is parsed
+   * while streaming, so no temp file is necessary. Exactly {@code size} bytes are consumed.
+   *
+   * @param in Input stream positioned at the start of the model
+   * @param size Size of the serialized model in bytes
+   * @return Restored model
+   * @throws IOException Could not read the model
+   */
+  public static ComputationGraph readLegacyModel(InputStream in, long size) throws IOException {
+    BoundedInputStream bounded = new BoundedInputStream(in, size);
+    bounded.setPropagateClose(false);
+
+    String json = null;
+    INDArray params = null;
+    ZipInputStream zis = new ZipInputStream(new BufferedInputStream(bounded, BUFFER_SIZE));
+    ZipEntry entry;
+    while ((entry = zis.getNextEntry()) != null) {
+      if (ModelSerializer.CONFIGURATION_JSON.equals(entry.getName())) {
+        json = IOUtils.toString(zis, StandardCharsets.UTF_8);
+      } else if (ModelSerializer.COEFFICIENTS_BIN.equals(entry.getName())) {
+        params = Nd4j.read(new DataInputStream(zis));
+      }
+      zis.closeEntry();
+    }
+
+    // Consume trailing bytes (e.g. the zip central directory)
+    IOUtils.skip(bounded, Long.MAX_VALUE);
+
+    if (json == null || params == null) {
+      throw new IOException("Network model is missing its configuration or parameters.");
+    }
+    ComputationGraph model =
+        new ComputationGraph(ComputationGraphConfiguration.fromJson(json));
+    model.init(params, false);
+    return model;
+  }
+
+  /**
+   * Write an array as data type, length and raw contents.
+   *
+   * @param arr Array to write
+   * @param out Output to write to
+   * @throws IOException Could not write to the output
+   */
+  public static void writeArray(INDArray arr, DataOutput out) throws IOException {
+    if (arr.isView()) {
+      arr = arr.dup();
+    }
+    out.writeUTF(arr.dataType().name());
+    out.writeLong(arr.length());
+    writeContents(arr, out);
+  }
+
+  /**
+   * Write the raw contents of a (non-view) array in stream byte order.
+   *
+   * @param arr Array to write
+   * @param out Output to write to
+   * @throws IOException Could not write to the output
+   */
+  public static void writeContents(INDArray arr, DataOutput out) throws IOException {
+    final int width = arr.dataType().width();
+    // The contents may have been computed on a device
+    Nd4j.getAffinityManager().ensureLocation(arr, Location.HOST);
+    ByteBuffer src = arr.data().asNio().order(ByteOrder.nativeOrder());
+    src.position(0);
+    src.limit((int) (arr.length() * width));
+    byte[] buffer = new byte[chunkSize(width)];
+    while (src.hasRemaining()) {
+      int n = Math.min(buffer.length, src.remaining());
+      src.get(buffer, 0, n);
+      toStreamOrder(buffer, n, width);
+      out.write(buffer, 0, n);
+    }
+  }
+
+  /**
+   * Read an array written by {@link #writeArray(INDArray, DataOutput)} into a new row vector.
+   *
+   * @param in Input to read from
+   * @return Row vector with the array contents
+   * @throws IOException Could not read from the input
+   */
+  public static INDArray readArray(DataInput in) throws IOException {
+    final DataType dataType = DataType.valueOf(in.readUTF());
+    final long length = in.readLong();
+
+    INDArray arr = Nd4j.createUninitialized(dataType, 1, length);
+    final int width = dataType.width();
+    ByteBuffer dst = arr.data().asNio().order(ByteOrder.nativeOrder());
+    dst.position(0);
+    dst.limit((int) (length * width));
+    byte[] buffer = new byte[chunkSize(width)];
+    while (dst.hasRemaining()) {
+      int n = Math.min(buffer.length, dst.remaining());
+      in.readFully(buffer, 0, n);
+      toStreamOrder(buffer, n, width);
+      dst.put(buffer, 0, n);
+    }
+    Nd4j.getAffinityManager().tickHostWrite(arr);
+    return arr;
+  }
+
+  /**
+   * Get a chunk size that is a multiple of the element width.
+   *
+   * @param width Element width in bytes
+   * @return Chunk size
+   */
+  public static int chunkSize(int width) {
+    return BUFFER_SIZE - BUFFER_SIZE % width;
+  }
+
+  /**
+   * Convert between native and stream byte order in place. The conversion is symmetric, so the same
+   * method is used for reading and writing. Does nothing on little-endian platforms.
+   *
+   * @param buffer Buffer with whole elements
+   * @param len Number of valid bytes in the buffer
+   * @param width Element width in bytes
+   */
+  public static void toStreamOrder(byte[] buffer, int len, int width) {
+    if (width == 1 || ByteOrder.nativeOrder() == STREAM_ORDER) {
+      return;
+    }
+    for (int i = 0; i < len; i += width) {
+      for (int lo = i, hi = i + width - 1; lo < hi; lo++, hi--) {
+        byte tmp = buffer[lo];
+        buffer[lo] = buffer[hi];
+        buffer[hi] = tmp;
+      }
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * LazyComputationGraph.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.serialization;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import lombok.extern.log4j.Log4j2;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.indexer.DoubleIndexer;
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * A {@link ComputationGraph} whose layers are only built when the network is first requested. On
+ * little-endian CPU platforms float and double parameters are backed directly by the
+ * (memory-mapped) buffer, so no copy is made; otherwise they are copied into a new array once.
+ * <p>
+ * The backing buffer must stay reachable for as long as the network is used, therefore instances
+ * of this class should be kept alongside the network they create. The buffer is a single mapping,
+ * which limits the parameters to 2 GB.
+ */
+@Log4j2
+public class LazyComputationGraph {
+
+  /**
+   * Network configuration as json.
+   */
+  private final String configJson;
+
+  /**
+   * Raw parameter contents in little-endian order.
+   */
+  private final ByteBuffer params;
+
+  /**
+   * Data type of the parameters.
+   */
+  private final DataType dataType;
+
+  /**
+   * Number of parameters.
+   */
+  private final long numParams;
+
+  /**
+   * The network, null until first requested.
+   */
+  private ComputationGraph graph;
+
+  /**
+   * Constructor.
+   *
+   * @param configJson Network configuration as json
+   * @param params Raw parameter contents in little-endian order
+   * @param dataType Data type of the parameters
+   * @param numParams Number of parameters
+   */
+  public LazyComputationGraph(String configJson, ByteBuffer params, DataType dataType,
+      long numParams) {
+    this.configJson = configJson;
+    this.params = params;
+    this.dataType = dataType;
+    this.numParams = numParams;
+  }
+
+  /**
+   * Get the network, building it on the first call.
+   *
+   * @return Network backed by the parameter buffer
+   */
+  public synchronized ComputationGraph get() {
+    if (graph == null) {
+      long start = System.nanoTime();
+      ComputationGraph cg =
+          new ComputationGraph(ComputationGraphConfiguration.fromJson(configJson));
+      cg.init(wrapParams(), false);
+      graph = cg;
+      log.debug("Materialized network with {} parameters in {} ms", numParams,
+          (System.nanoTime() - start) / 1000000);
+    }
+    return graph;
+  }
+
+  /**
+   * Check whether the network has already been built.
+   *
+   * @return True if {@link #get()} has been called before
+   */
+  public synchronized boolean isMaterialized() {
+    return graph != null;
+  }
+
+  /**
+   * Create the flattened parameter row vector. On little-endian platforms, float and double
+   * parameters are viewed through a native pointer to the mapping, so the network reads the mapped
+   * pages directly (on GPU backends the parameters are still copied to the device). Other data
+   * types and platforms convert the contents into a new array.
+   *
+   * @return Parameter row vector
+   */
+  private INDArray wrapParams() {
+    ByteBuffer src = params.duplicate();
+    if (ByteOrder.nativeOrder() == FramedModelSerializer.STREAM_ORDER) {
+      // Nd4j.createBuffer(ByteBuffer, ...) would copy the contents, a pointer views them
+      final BytePointer bytes = new BytePointer(src);
+      if (dataType == DataType.FLOAT) {
+        FloatPointer pointer = new FloatPointer(bytes).capacity(numParams).limit(numParams);
+        return Nd4j.create(Nd4j.createBuffer(pointer, dataType, numParams,
+            FloatIndexer.create(pointer)), new long[]{1, numParams});
+      } else if (dataType == DataType.DOUBLE) {
+        DoublePointer pointer = new DoublePointer(bytes).capacity(numParams).limit(numParams);
+        return Nd4j.create(Nd4j.createBuffer(pointer, dataType, numParams,
+            DoubleIndexer.create(pointer)), new long[]{1, numParams});
+      }
+    }
+
+    final int width = dataType.width();
+    INDArray arr = Nd4j.createUninitialized(dataType, 1, numParams);
+    ByteBuffer dst = arr.data().asNio().order(ByteOrder.nativeOrder());
+    dst.position(0);
+    byte[] buffer = new byte[FramedModelSerializer.chunkSize(width)];
+    while (src.hasRemaining()) {
+      int n = Math.min(buffer.length, src.remaining());
+      src.get(buffer, 0, n);
+      FramedModelSerializer.toStreamOrder(buffer, n, width);
+      dst.put(buffer, 0, n);
+    }
+    Nd4j.getAffinityManager().tickHostWrite(arr);
+    return arr;
+  }
+}
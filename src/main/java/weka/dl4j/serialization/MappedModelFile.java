@@ -0,0 +1,236 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * MappedModelFile.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.serialization;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import lombok.extern.log4j.Log4j2;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.WekaException;
+
+/**
+ * Model file layout for fast inference loading. The classifier (without its network), the network
+ * configuration and the parameters are stored in separate sections, with the parameter block
+ * page-aligned and in little-endian order:
+ * <pre>
+ * int     MAGIC
+ * int     VERSION
+ * long    offset of the parameter block
+ * long    number of parameters
+ * utf     parameter data type
+ * int     length of the serialized classifier, followed by its bytes
+ * int     length of the configuration json, followed by its UTF-8 bytes
+ * ...     zero padding up to the parameter block
+ * raw     parameter contents
+ * </pre>
+ * Reading such a file only deserializes the small classifier and configuration sections. The
+ * parameter block is memory-mapped (copy-on-write) and used as the backing store of the network's
+ * parameters, which is only built on the first forward pass. Several JVMs loading the same file
+ * share the pages of the parameter block through the page cache. This holds for float and double
+ * parameters on little-endian CPU platforms; otherwise the parameters are copied into memory once
+ * when the network is built (see {@link LazyComputationGraph}). The parameter block is a single
+ * mapping and therefore limited to 2 GB.
+ * <p>
+ * Convert a regular serialized model with
+ * <pre>
+ * java weka.dl4j.serialization.MappedModelFile &lt;input.model&gt; &lt;output.model&gt;
+ * </pre>
+ */
+@Log4j2
+public class MappedModelFile {
+
+  /**
+   * Marker at the start of a mapped model file.
+   */
+  public static final int MAGIC = 0x574B444D;
+
+  /**
+   * Current format version.
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * Alignment of the parameter block (page size).
+   */
+  public static final int ALIGNMENT = 4096;
+
+  /**
+   * Check whether the given file is a mapped model file.
+   *
+   * @param file File to check
+   * @return True if the file starts with {@link #MAGIC}
+   */
+  public static boolean isMappedModelFile(File file) {
+    if (!file.isFile() || file.length() < 4) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      return in.readInt() == MAGIC;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Write the given (initialized) classifier into a mapped model file.
+   *
+   * @param clf Classifier to write
+   * @param file Output file
+   * @throws IOException Could not write the file
+   * @throws WekaException The classifier has no network
+   */
+  public static void write(Dl4jMlpClassifier clf, File file) throws IOException, WekaException {
+    ComputationGraph model = clf.getModel();
+    if (model == null) {
+      throw new WekaException("Classifier has no network to write.");
+    }
+    INDArray params = model.params();
+    if (params.isView()) {
+      params = params.dup();
+    }
+
+    // Classifier, configuration and parameter type
+    ByteArrayOutputStream shell = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(shell)) {
+      clf.writeWithoutNetwork(oos);
+    }
+    byte[] json = model.getConfiguration().toJson().getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream bodyOut = new DataOutputStream(body);
+    bodyOut.writeUTF(params.dataType().name());
+    bodyOut.writeInt(shell.size());
+    shell.writeTo(bodyOut);
+    bodyOut.writeInt(json.length);
+    bodyOut.write(json);
+    bodyOut.flush();
+
+    final int headerSize = 4 + 4 + 8 + 8;
+    final long paramsOffset = align(headerSize + body.size());
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file), FramedModelSerializer.BUFFER_SIZE))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(paramsOffset);
+      out.writeLong(params.length());
+      body.writeTo(out);
+      out.write(new byte[(int) (paramsOffset - headerSize - body.size())]);
+      FramedModelSerializer.writeContents(params, out);
+    }
+  }
+
+  /**
+   * Read a classifier from a mapped model file. The network is attached lazily and its parameters
+   * are backed by a memory mapping of the file.
+   *
+   * @param file Mapped model file
+   * @return Classifier
+   * @throws IOException Could not read the file
+   * @throws ClassNotFoundException Could not deserialize the classifier
+   */
+  public static Dl4jMlpClassifier read(File file) throws IOException, ClassNotFoundException {
+    long start = System.nanoTime();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(Channels.newInputStream(channel)));
+      if (in.readInt() != MAGIC) {
+        throw new IOException("File " + file + " is not a mapped model file.");
+      }
+      int version = in.readInt();
+      if (version > VERSION) {
+        throw new IOException("Unsupported mapped model file version " + version
+            + ". The latest supported version is " + VERSION + ".");
+      }
+      final long paramsOffset = in.readLong();
+      final long numParams = in.readLong();
+      final DataType dataType = DataType.valueOf(in.readUTF());
+
+      byte[] shell = new byte[in.readInt()];
+      in.readFully(shell);
+      byte[] json = new byte[in.readInt()];
+      in.readFully(json);
+
+      final long paramsBytes = numParams * dataType.width();
+      if (paramsBytes > Integer.MAX_VALUE) {
+        throw new IOException("Parameter block of " + paramsBytes + " bytes is too large to be "
+            + "mapped. Load the model with the regular serialized format instead.");
+      }
+      MappedByteBuffer mapped = channel.map(MapMode.PRIVATE, paramsOffset, paramsBytes);
+
+      Dl4jMlpClassifier clf;
+      try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(shell))) {
+        clf = (Dl4jMlpClassifier) ois.readObject();
+      }
+      clf.setLazyModel(new LazyComputationGraph(new String(json, StandardCharsets.UTF_8),
+          mapped, dataType, numParams));
+
+      log.debug("Mapped model file {} in {} ms", file, (System.nanoTime() - start) / 1000000);
+      return clf;
+    }
+  }
+
+  /**
+   * Round up to the next multiple of {@link #ALIGNMENT}.
+   *
+   * @param offset Offset
+   * @return Aligned offset
+   */
+  private static long align(long offset) {
+    return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+  }
+
+  /**
+   * Convert a regular serialized Dl4jMlpClassifier into a mapped model file.
+   *
+   * @param args Input file and output file
+   * @throws Exception Could not convert the model
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: " + MappedModelFile.class.getName()
+          + " <input.model> <output.model>");
+      return;
+    }
+    Dl4jMlpClassifier clf;
+    try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(
+        new FileInputStream(args[0]), FramedModelSerializer.BUFFER_SIZE))) {
+      clf = (Dl4jMlpClassifier) ois.readObject();
+    }
+    write(clf, new File(args[1]));
+  }
+}
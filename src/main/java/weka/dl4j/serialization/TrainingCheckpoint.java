@@ -0,0 +1,242 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * TrainingCheckpoint.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.serialization;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.rng.Random;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.dl4j.earlystopping.EarlyStopping;
+
+/**
+ * Snapshot of the mutable training state at the end of an epoch: network parameters, updater state,
+ * epoch counters, early stopping counters and the state of the ND4J random number generator of the
+ * training thread. Together with the classifier it was taken from, this is all that is needed to
+ * continue training exactly where the snapshot was taken: the row order of shuffling iterators only
+ * depends on the seed of the classifier and the number of epochs performed (see
+ * {@link weka.dl4j.iterators.dataset.EpochAware}).
+ * <p>
+ * Taking a snapshot only copies the arrays, so it can be written by a different thread while the
+ * training continues.
+ */
+public class TrainingCheckpoint {
+
+  /**
+   * Marker at the start of a checkpoint.
+   */
+  public static final int MAGIC = 0x574B4443;
+
+  /**
+   * Current format version.
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * Network configuration (contains the iteration and epoch counts of the network).
+   */
+  private final ComputationGraphConfiguration conf;
+
+  /**
+   * Flattened network parameters.
+   */
+  private final INDArray params;
+
+  /**
+   * Updater state, null if the updater has no state.
+   */
+  private final INDArray updaterState;
+
+  /**
+   * Total number of epochs performed.
+   */
+  private final int numEpochsPerformed;
+
+  /**
+   * Number of epochs performed in the current session.
+   */
+  private final int numEpochsPerformedThisSession;
+
+  /**
+   * Upper bound for the number of epochs.
+   */
+  private final int maxEpochs;
+
+  /**
+   * Early stopping: number of epochs without improvement.
+   */
+  private final int countEpochsNoImprovement;
+
+  /**
+   * Early stopping: best validation score.
+   */
+  private final double lastBestScore;
+
+  /**
+   * Root state of the random number generator.
+   */
+  private final long rngRootState;
+
+  /**
+   * Node state of the random number generator.
+   */
+  private final long rngNodeState;
+
+  /**
+   * Take a snapshot of the current training state. Must be called from the training thread, as the
+   * random number generator state is thread-local.
+   *
+   * @param model Network being trained
+   * @param numEpochsPerformed Total number of epochs performed
+   * @param numEpochsPerformedThisSession Number of epochs performed in the current session
+   * @param maxEpochs Upper bound for the number of epochs
+   * @param earlyStopping Early stopping configuration
+   */
+  public TrainingCheckpoint(ComputationGraph model, int numEpochsPerformed,
+      int numEpochsPerformedThisSession, int maxEpochs, EarlyStopping earlyStopping) {
+    this.conf = model.getConfiguration().clone();
+    this.params = model.params().dup();
+    INDArray state = model.getUpdater() == null ? null : model.getUpdater().getStateViewArray();
+    this.updaterState = state == null ? null : state.dup();
+    this.numEpochsPerformed = numEpochsPerformed;
+    this.numEpochsPerformedThisSession = numEpochsPerformedThisSession;
+    this.maxEpochs = maxEpochs;
+    this.countEpochsNoImprovement = earlyStopping.getCountEpochsNoImprovement();
+    this.lastBestScore = earlyStopping.getLastBestScore();
+    Random rng = Nd4j.getRandom();
+    this.rngRootState = rng.rootState();
+    this.rngNodeState = rng.nodeState();
+  }
+
+  /**
+   * Constructor used when reading a checkpoint.
+   */
+  private TrainingCheckpoint(ComputationGraphConfiguration conf, INDArray params,
+      INDArray updaterState, int numEpochsPerformed, int numEpochsPerformedThisSession,
+      int maxEpochs, int countEpochsNoImprovement, double lastBestScore, long rngRootState,
+      long rngNodeState) {
+    this.conf = conf;
+    this.params = params;
+    this.updaterState = updaterState;
+    this.numEpochsPerformed = numEpochsPerformed;
+    this.numEpochsPerformedThisSession = numEpochsPerformedThisSession;
+    this.maxEpochs = maxEpochs;
+    this.countEpochsNoImprovement = countEpochsNoImprovement;
+    this.lastBestScore = lastBestScore;
+    this.rngRootState = rngRootState;
+    this.rngNodeState = rngNodeState;
+  }
+
+  /**
+   * Write this checkpoint to the output.
+   *
+   * @param out Output to write to
+   * @throws IOException Could not write to the output
+   */
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(numEpochsPerformed);
+    out.writeInt(numEpochsPerformedThisSession);
+    out.writeInt(maxEpochs);
+    out.writeInt(countEpochsNoImprovement);
+    out.writeDouble(lastBestScore);
+    out.writeLong(rngRootState);
+    out.writeLong(rngNodeState);
+    FramedModelSerializer.writeModel(conf, params, updaterState, out);
+  }
+
+  /**
+   * Read a checkpoint written by {@link #write(DataOutput)}.
+   *
+   * @param in Input to read from
+   * @return Checkpoint
+   * @throws IOException Could not read from the input or the input is not a checkpoint
+   */
+  public static TrainingCheckpoint read(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Input is not a training checkpoint.");
+    }
+    int version = in.readInt();
+    if (version > VERSION) {
+      throw new IOException("Unsupported checkpoint format version " + version
+          + ". The latest supported version is " + VERSION + ".");
+    }
+    int numEpochsPerformed = in.readInt();
+    int numEpochsPerformedThisSession = in.readInt();
+    int maxEpochs = in.readInt();
+    int countEpochsNoImprovement = in.readInt();
+    double lastBestScore = in.readDouble();
+    long rngRootState = in.readLong();
+    long rngNodeState = in.readLong();
+
+    ComputationGraphConfiguration conf = FramedModelSerializer.readHeader(in);
+    INDArray params = FramedModelSerializer.readArray(in);
+    INDArray updaterState = in.readBoolean() ? FramedModelSerializer.readArray(in) : null;
+    return new TrainingCheckpoint(conf, params, updaterState, numEpochsPerformed,
+        numEpochsPerformedThisSession, maxEpochs, countEpochsNoImprovement, lastBestScore,
+        rngRootState, rngNodeState);
+  }
+
+  /**
+   * Build the network with the parameters and updater state of this checkpoint.
+   *
+   * @return Network
+   */
+  public ComputationGraph restoreModel() {
+    ComputationGraph model = new ComputationGraph(conf.clone());
+    model.init(params.dup(), false);
+    if (updaterState != null) {
+      model.getUpdater().setStateViewArray(updaterState.dup());
+    }
+    return model;
+  }
+
+  /**
+   * Restore the early stopping counters of this checkpoint.
+   *
+   * @param earlyStopping Early stopping configuration to restore
+   */
+  public void restoreEarlyStopping(EarlyStopping earlyStopping) {
+    earlyStopping.restoreState(countEpochsNoImprovement, lastBestScore);
+  }
+
+  /**
+   * Restore the random number generator state of the calling thread. Should be the last step of
+   * a restore, so that no other initialization consumes random numbers afterwards.
+   */
+  public void restoreRandom() {
+    Nd4j.getRandom().setStates(rngRootState, rngNodeState);
+  }
+
+  public int getNumEpochsPerformed() {
+    return numEpochsPerformed;
+  }
+
+  public int getNumEpochsPerformedThisSession() {
+    return numEpochsPerformedThisSession;
+  }
+
+  public int getMaxEpochs() {
+    return maxEpochs;
+  }
+}
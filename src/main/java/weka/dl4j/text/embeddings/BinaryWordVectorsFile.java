@@ -0,0 +1,715 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * BinaryWordVectorsFile.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.text.embeddings;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import lombok.extern.log4j.Log4j2;
+import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import weka.dl4j.iterators.dataset.cache.ContentHash;
+
+/**
+ * Binary word vector file for fast loading. The vectors are stored as one contiguous float matrix,
+ * followed by the vocabulary and a hash index over it. All values are in little-endian order:
+ * <pre>
+ * int     MAGIC
+ * int     VERSION
+ * int     number of words
+ * int     vector size
+ * long    length of the source file
+ * long    modification time of the source file
+ * long    offset of the vectors
+ * long    offset of the words
+ * long    offset of the word offsets
+ * long    offset of the index
+ * int     index capacity
+ * ...     zero padding up to the vectors (page-aligned)
+ * float   vectors, one row of vector size floats per word
+ * ...     words, each as int length followed by its UTF-8 bytes
+ * long    offset of each word, relative to the words
+ * int     index, word index + 1 (0 if empty), open addressing with linear probing
+ * </pre>
+ * Opening such a file only maps it: words are looked up with the hash index and vectors are read
+ * from the mapped matrix when they are used, so loading takes constant time and only the pages of
+ * the used words are read (see {@link #toWordVectors()}). Text and ARFF embeddings are converted
+ * once with {@link WordVectorsTextParser}, either explicitly with
+ * <pre>
+ * java weka.dl4j.text.embeddings.BinaryWordVectorsFile &lt;input&gt; &lt;output.wvb&gt;
+ * </pre>
+ * or implicitly into a cache in the temporary directory, see {@link #getConvertedFile(File)}, which
+ * also converts other models loaded by the {@link WordVectorSerializer}.
+ */
+@Log4j2
+public class BinaryWordVectorsFile {
+
+  /**
+   * Marker at the start of a binary word vector file ("WWVB").
+   */
+  public static final int MAGIC = 0x57575642;
+
+  /**
+   * Current format version.
+   */
+  public static final int VERSION = 3;
+
+  /**
+   * Alignment of the vectors (page size).
+   */
+  public static final int ALIGNMENT = 4096;
+
+  /**
+   * Size of the header.
+   */
+  private static final int HEADER_SIZE = 4 * 4 + 6 * 8 + 4;
+
+  /**
+   * Maximum number of bytes of the vectors in one mapping.
+   */
+  private static final int CHUNK_BYTES = 1 << 26;
+
+  /**
+   * File extension of binary word vector files.
+   */
+  public static final String EXTENSION = ".wvb";
+
+  /**
+   * The file
+   */
+  private final File file;
+
+  /**
+   * Number of words
+   */
+  private final int numWords;
+
+  /**
+   * Size of the vectors
+   */
+  private final int vectorSize;
+
+  /**
+   * Length of the source file the vectors were converted from
+   */
+  private final long sourceLength;
+
+  /**
+   * Modification time of the source file the vectors were converted from
+   */
+  private final long sourceLastModified;
+
+  /**
+   * Mappings of the vectors, each holding {@link #rowsPerChunk} rows (the last one possibly less)
+   */
+  private final FloatBuffer[] vectorChunks;
+
+  /**
+   * Number of rows of each mapping of the vectors
+   */
+  private final int rowsPerChunk;
+
+  /**
+   * The words
+   */
+  private final ByteBuffer words;
+
+  /**
+   * Offset of each word in {@link #words}
+   */
+  private final LongBuffer wordOffsets;
+
+  /**
+   * Hash index over the words
+   */
+  private final IntBuffer index;
+
+  /**
+   * Constructor, reads the header and maps the vectors, the vocabulary and the index.
+   *
+   * @param file Binary word vector file
+   * @throws IOException Could not read the file or the file has another format
+   */
+  private BinaryWordVectorsFile(File file) throws IOException {
+    this.file = file;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_SIZE) {
+        throw new IOException("File " + file + " is not a binary word vector file.");
+      }
+      ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      if (header.getInt() != MAGIC) {
+        throw new IOException("File " + file + " is not a binary word vector file.");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported binary word vector file version " + version
+            + ". Only version " + VERSION + " is supported, convert the source file again.");
+      }
+      numWords = header.getInt();
+      vectorSize = header.getInt();
+      sourceLength = header.getLong();
+      sourceLastModified = header.getLong();
+      final long vectorsOffset = header.getLong();
+      final long wordsOffset = header.getLong();
+      final long wordOffsetsOffset = header.getLong();
+      final long indexOffset = header.getLong();
+      final int indexCapacity = header.getInt();
+
+      // Map the vectors in chunks of whole rows, since a mapping is limited to 2 GB
+      rowsPerChunk = Math.max(1, CHUNK_BYTES / (4 * Math.max(1, vectorSize)));
+      vectorChunks = new FloatBuffer[(numWords + rowsPerChunk - 1) / rowsPerChunk];
+      for (int i = 0; i < vectorChunks.length; i++) {
+        final long row = (long) i * rowsPerChunk;
+        final long rows = Math.min(rowsPerChunk, numWords - row);
+        vectorChunks[i] = channel.map(MapMode.READ_ONLY, vectorsOffset + 4L * row * vectorSize,
+            4L * rows * vectorSize).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+      }
+      words = channel.map(MapMode.READ_ONLY, wordsOffset, wordOffsetsOffset - wordsOffset)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      wordOffsets = channel.map(MapMode.READ_ONLY, wordOffsetsOffset, 8L * numWords)
+          .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+      index = channel.map(MapMode.READ_ONLY, indexOffset, 4L * indexCapacity)
+          .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+  }
+
+  /**
+   * Check whether the given file is a binary word vector file.
+   *
+   * @param file File to check
+   * @return True if the file starts with {@link #MAGIC}
+   */
+  public static boolean isBinaryWordVectorsFile(File file) {
+    if (!file.isFile() || file.length() < HEADER_SIZE) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      return Integer.reverseBytes(in.readInt()) == MAGIC;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Open a binary word vector file.
+   *
+   * @param file Binary word vector file
+   * @return The opened file
+   * @throws IOException Could not read the file or the file has another format
+   */
+  public static BinaryWordVectorsFile open(File file) throws IOException {
+    return new BinaryWordVectorsFile(file);
+  }
+
+  /**
+   * Get the binary word vector file converted from the given word vector file. Text and ARFF files
+   * (see {@link WordVectorsTextParser#isSupported}) are parsed, other files, such as binary word2vec
+   * models, are converted with {@link #convertStaticModel(File, File)}. The file is cached in the
+   * temporary directory and only converted again if the source has changed.
+   *
+   * @param source Word vector file
+   * @return The binary word vector file
+   * @throws IOException Could not convert the file
+   */
+  public static File getConvertedFile(File source) throws IOException {
+    final File canonical = source.getCanonicalFile();
+    final File dir = new File(System.getProperty("java.io.tmpdir"), "weka-word-vectors");
+    final File target = new File(dir,
+        new ContentHash().update(canonical.getPath()).toHex() + EXTENSION);
+    synchronized (BinaryWordVectorsFile.class) {
+      if (isBinaryWordVectorsFile(target)) {
+        try {
+          BinaryWordVectorsFile converted = open(target);
+          if (converted.sourceLength == canonical.length()
+              && converted.sourceLastModified == canonical.lastModified()) {
+            log.debug("Using converted word vectors {} of {}", target, source);
+            return target;
+          }
+        } catch (IOException e) {
+          log.debug("Could not read converted word vectors " + target, e);
+        }
+      }
+      Files.createDirectories(dir.toPath());
+      long start = System.nanoTime();
+      if (WordVectorsTextParser.isSupported(canonical)) {
+        WordVectorsTextParser.convert(canonical, target);
+      } else {
+        convertStaticModel(canonical, target);
+      }
+      log.info("Converted word vectors {} to {} in {} ms", source, target,
+          (System.nanoTime() - start) / 1000000);
+      return target;
+    }
+  }
+
+  /**
+   * Convert a word vector file that the {@link WordVectorSerializer} can load as a static model
+   * into a binary word vector file. The model is loaded once and its vectors are written in the
+   * order of its vocabulary.
+   *
+   * @param source Word vector file, e.g. a binary word2vec model
+   * @param target Binary word vector file
+   * @throws IOException Could not load the model or write the target
+   */
+  public static void convertStaticModel(File source, File target) throws IOException {
+    final WordVectors wordVectors = WordVectorSerializer.loadStaticModel(source);
+    final int numWords = wordVectors.vocab().numWords();
+    if (numWords == 0) {
+      throw new IOException("No word vectors in " + source);
+    }
+    final int vectorSize =
+        wordVectors.getWordVector(wordVectors.vocab().wordAtIndex(0)).length;
+    final Writer writer = new Writer(target, vectorSize, source.length(), source.lastModified());
+    try {
+      for (int i = 0; i < numWords; i++) {
+        final String word = wordVectors.vocab().wordAtIndex(i);
+        writer.add(word, wordVectors.getWordVectorMatrix(word).toFloatVector(), 0);
+      }
+      writer.finish();
+    } finally {
+      writer.discard();
+    }
+  }
+
+  /**
+   * Get the number of words.
+   *
+   * @return Number of words
+   */
+  public int numWords() {
+    return numWords;
+  }
+
+  /**
+   * Get the size of the vectors.
+   *
+   * @return Vector size
+   */
+  public int getVectorSize() {
+    return vectorSize;
+  }
+
+  /**
+   * Get the length of the source file the vectors were converted from.
+   *
+   * @return Length in bytes
+   */
+  public long getSourceLength() {
+    return sourceLength;
+  }
+
+  /**
+   * Get the modification time of the source file the vectors were converted from.
+   *
+   * @return Modification time in milliseconds
+   */
+  public long getSourceLastModified() {
+    return sourceLastModified;
+  }
+
+  /**
+   * Get a word of the vocabulary.
+   *
+   * @param i Word index
+   * @return Word
+   */
+  public String getWord(int i) {
+    final int offset = (int) wordOffsets.get(i);
+    byte[] bytes = new byte[words.getInt(offset)];
+    ByteBuffer source = words.duplicate();
+    source.position(offset + 4);
+    source.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Look up the index of a word with the hash index.
+   *
+   * @param word Word
+   * @return Word index, or -1 if the word is not in the vocabulary
+   */
+  public int indexOf(String word) {
+    final int mask = index.limit() - 1;
+    for (int slot = hash(word) & mask; ; slot = (slot + 1) & mask) {
+      final int entry = index.get(slot);
+      if (entry == 0) {
+        return -1;
+      }
+      if (getWord(entry - 1).equals(word)) {
+        return entry - 1;
+      }
+    }
+  }
+
+  /**
+   * Copy the vector of a word from the mapped matrix.
+   *
+   * @param i Word index
+   * @param values Array receiving the vector
+   * @param offset Offset of the vector in the array
+   */
+  public void readVector(int i, float[] values, int offset) {
+    final FloatBuffer chunk = vectorChunks[i / rowsPerChunk].duplicate();
+    chunk.position((i % rowsPerChunk) * vectorSize);
+    chunk.get(values, offset, vectorSize);
+  }
+
+  /**
+   * Read the vectors of some words. Only the rows of the given words are read from the file.
+   *
+   * @param rows Word indices
+   * @return Matrix of shape [number of rows, vector size], with row i holding the vector of word
+   * rows[i]
+   */
+  public INDArray readVectors(int[] rows) {
+    final float[] values = new float[rows.length * vectorSize];
+    for (int i = 0; i < rows.length; i++) {
+      readVector(rows[i], values, i * vectorSize);
+    }
+    return Nd4j.create(values, new long[]{rows.length, vectorSize}, 'c');
+  }
+
+  /**
+   * Read the vectors of all words. The vectors are copied from the mapped file into a new matrix,
+   * one mapping of at most 64 MB at a time.
+   *
+   * @return Matrix of shape [number of words, vector size]
+   */
+  public INDArray readVectors() {
+    INDArray vectors = Nd4j.createUninitialized(DataType.FLOAT, numWords, vectorSize);
+    for (int i = 0; i < vectorChunks.length; i++) {
+      final FloatBuffer chunk = vectorChunks[i].duplicate();
+      final int row = i * rowsPerChunk;
+      final int rows = chunk.remaining() / Math.max(1, vectorSize);
+      float[] values = new float[chunk.remaining()];
+      chunk.get(values);
+      vectors.get(NDArrayIndex.interval(row, row + rows), NDArrayIndex.all())
+          .assign(Nd4j.create(values, new long[]{rows, vectorSize}, 'c'));
+    }
+    return vectors;
+  }
+
+  /**
+   * Create read-only word vectors backed by this file. Nothing is read up front: the vocabulary
+   * looks words up with the hash index and the vectors are read from the mapped matrix when they
+   * are used, see {@link MappedWordVectors}.
+   *
+   * @return Word vectors
+   */
+  public WordVectors toWordVectors() {
+    log.debug("Mapped {} word vectors from {}", numWords, file);
+    return new MappedWordVectors(this);
+  }
+
+  /**
+   * Hash of a word in the index.
+   *
+   * @param word Word
+   * @return Hash
+   */
+  private static int hash(String word) {
+    final int h = word.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Round up to the next multiple of {@link #ALIGNMENT}.
+   *
+   * @param offset Offset
+   * @return Aligned offset
+   */
+  private static long align(long offset) {
+    return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+  }
+
+  /**
+   * Convert a text or ARFF word vector file into a binary word vector file.
+   *
+   * @param args Input file and output file
+   * @throws Exception Could not convert the file
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: " + BinaryWordVectorsFile.class.getName()
+          + " <input.csv|.csv.gz|.txt|.txt.gz|.vec|.vec.gz|.arff> <output" + EXTENSION + ">");
+      return;
+    }
+    WordVectorsTextParser.convert(new File(args[0]), new File(args[1]));
+  }
+
+  /**
+   * Writer of a binary word vector file. The vectors are written as they are added, the words and
+   * the index when the writer is finished. The file is written to a temporary file that replaces
+   * the target on {@link #finish()}.
+   */
+  public static class Writer {
+
+    /**
+     * Target file
+     */
+    private final File file;
+
+    /**
+     * Temporary file
+     */
+    private final Path tmp;
+
+    /**
+     * Channel of the temporary file
+     */
+    private final FileChannel channel;
+
+    /**
+     * Size of the vectors
+     */
+    private final int vectorSize;
+
+    /**
+     * Length of the source file
+     */
+    private final long sourceLength;
+
+    /**
+     * Modification time of the source file
+     */
+    private final long sourceLastModified;
+
+    /**
+     * Encoded words that were added
+     */
+    private ByteBuffer wordBytes = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Offset of each word in {@link #wordBytes}
+     */
+    private long[] wordOffsets = new long[1024];
+
+    /**
+     * Words that were added
+     */
+    private final Set<String> seen = new HashSet<>();
+
+    /**
+     * Number of words that were added
+     */
+    private int numWords = 0;
+
+    /**
+     * Buffer collecting vectors before they are written
+     */
+    private final ByteBuffer vectorBuffer;
+
+    /**
+     * Whether the writer was finished or discarded
+     */
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param file Target file
+     * @param vectorSize Size of the vectors
+     * @param sourceLength Length of the source file
+     * @param sourceLastModified Modification time of the source file
+     * @throws IOException Could not create the file
+     */
+    public Writer(File file, int vectorSize, long sourceLength, long sourceLastModified)
+        throws IOException {
+      this.file = file;
+      this.vectorSize = vectorSize;
+      this.sourceLength = sourceLength;
+      this.sourceLastModified = sourceLastModified;
+      this.tmp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(),
+          file.getName(), ".tmp");
+      this.channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+      this.vectorBuffer = ByteBuffer.allocate(Math.max(4 * vectorSize, CHUNK_BYTES >> 4))
+          .order(ByteOrder.LITTLE_ENDIAN);
+      channel.position(align(HEADER_SIZE));
+    }
+
+    /**
+     * Add a word and its vector. Repeated words are skipped.
+     *
+     * @param word Word
+     * @param values Values containing the vector
+     * @param offset Offset of the vector in the values
+     * @return False if the word was skipped
+     * @throws IOException Could not write the vector
+     */
+    public boolean add(String word, float[] values, int offset) throws IOException {
+      if (!seen.add(word)) {
+        return false;
+      }
+      if (vectorBuffer.remaining() < 4 * vectorSize) {
+        flushVectors();
+      }
+      vectorBuffer.asFloatBuffer().put(values, offset, vectorSize);
+      vectorBuffer.position(vectorBuffer.position() + 4 * vectorSize);
+
+      final byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+      if (wordBytes.remaining() < 4 + bytes.length) {
+        ByteBuffer grown = ByteBuffer.allocate(
+            Math.max(2 * wordBytes.capacity(), wordBytes.position() + 4 + bytes.length))
+            .order(ByteOrder.LITTLE_ENDIAN);
+        wordBytes.flip();
+        grown.put(wordBytes);
+        wordBytes = grown;
+      }
+      if (numWords == wordOffsets.length) {
+        wordOffsets = Arrays.copyOf(wordOffsets, 2 * numWords);
+      }
+      wordOffsets[numWords++] = wordBytes.position();
+      wordBytes.putInt(bytes.length);
+      wordBytes.put(bytes);
+      return true;
+    }
+
+    /**
+     * Get the number of words that were added.
+     *
+     * @return Number of words
+     */
+    public int numWords() {
+      return numWords;
+    }
+
+    /**
+     * Write the buffered vectors.
+     *
+     * @throws IOException Could not write the vectors
+     */
+    private void flushVectors() throws IOException {
+      vectorBuffer.flip();
+      while (vectorBuffer.hasRemaining()) {
+        channel.write(vectorBuffer);
+      }
+      vectorBuffer.clear();
+    }
+
+    /**
+     * Write the words, the index and the header and replace the target file.
+     *
+     * @throws IOException Could not write the file
+     */
+    public void finish() throws IOException {
+      if (closed) {
+        return;
+      }
+      try {
+        flushVectors();
+        final long wordsOffset = channel.position();
+        wordBytes.flip();
+        while (wordBytes.hasRemaining()) {
+          channel.write(wordBytes);
+        }
+
+        final long wordOffsetsOffset = channel.position();
+        ByteBuffer offsets = ByteBuffer.allocate(8 * numWords).order(ByteOrder.LITTLE_ENDIAN);
+        offsets.asLongBuffer().put(wordOffsets, 0, numWords);
+        while (offsets.hasRemaining()) {
+          channel.write(offsets);
+        }
+
+        final long indexOffset = channel.position();
+        final int indexCapacity = Integer.highestOneBit(Math.max(2, 2 * numWords - 1)) << 1;
+        final int[] slots = new int[indexCapacity];
+        final int mask = indexCapacity - 1;
+        for (int i = 0; i < numWords; i++) {
+          final int offset = (int) wordOffsets[i];
+          byte[] bytes = new byte[wordBytes.getInt(offset)];
+          ByteBuffer source = wordBytes.duplicate();
+          source.position(offset + 4);
+          source.get(bytes);
+          int slot = hash(new String(bytes, StandardCharsets.UTF_8)) & mask;
+          while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+          }
+          slots[slot] = i + 1;
+        }
+        ByteBuffer indexBytes = ByteBuffer.allocate(4 * indexCapacity)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        indexBytes.asIntBuffer().put(slots);
+        while (indexBytes.hasRemaining()) {
+          channel.write(indexBytes);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(numWords);
+        header.putInt(vectorSize);
+        header.putLong(sourceLength);
+        header.putLong(sourceLastModified);
+        header.putLong(align(HEADER_SIZE));
+        header.putLong(wordsOffset);
+        header.putLong(wordOffsetsOffset);
+        header.putLong(indexOffset);
+        header.putInt(indexCapacity);
+        header.flip();
+        channel.position(0);
+        while (header.hasRemaining()) {
+          channel.write(header);
+        }
+        channel.force(false);
+        channel.close();
+        Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        closed = true;
+      } finally {
+        discard();
+      }
+    }
+
+    /**
+     * Discard the temporary file without replacing the target file. Does nothing if the writer was
+     * already finished.
+     *
+     * @throws IOException Could not delete the temporary file
+     */
+    public void discard() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      channel.close();
+      Files.deleteIfExists(tmp);
+    }
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * MappedWordVectors.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.text.embeddings;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import lombok.extern.log4j.Log4j2;
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectorsImpl;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Read-only word vectors backed by a memory-mapped {@link BinaryWordVectorsFile}.
+ * <p>
+ * Creating them reads nothing: the vocabulary looks words up with the hash index of the file and
+ * single vectors are read from the mapped matrix, so that only the pages of the used words are
+ * loaded. Use {@link #getFile()} to gather the vectors of many words at once. Operations that need
+ * the whole matrix, such as {@link #wordsNearest(String, int)}, read it once on first use.
+ */
+@Log4j2
+public class MappedWordVectors extends WordVectorsImpl<VocabWord> {
+
+  /**
+   * The mapped file
+   */
+  private final BinaryWordVectorsFile file;
+
+  /**
+   * Constructor.
+   *
+   * @param file Opened binary word vector file
+   */
+  public MappedWordVectors(BinaryWordVectorsFile file) {
+    this.file = file;
+    final MappedVocab mappedVocab = new MappedVocab(file);
+    this.vocab = mappedVocab;
+    setLookupTable(new MappedLookupTable(file, mappedVocab));
+  }
+
+  /**
+   * Get the mapped file.
+   *
+   * @return Binary word vector file
+   */
+  public BinaryWordVectorsFile getFile() {
+    return file;
+  }
+
+  @Override
+  public boolean hasWord(String word) {
+    return file.indexOf(word) >= 0;
+  }
+
+  @Override
+  public INDArray getWordVectorMatrix(String word) {
+    final INDArray vector = lookupTable.vector(word);
+    return vector != null ? vector : lookupTable.vector(getUNK());
+  }
+
+  @Override
+  public INDArray getWordVectors(Collection<String> labels) {
+    final int unknown = file.indexOf(getUNK());
+    final List<Integer> rows = new ArrayList<>(labels.size());
+    for (String label : labels) {
+      final int row = file.indexOf(label);
+      if (row >= 0 || unknown >= 0) {
+        rows.add(row >= 0 ? row : unknown);
+      }
+    }
+    return file.readVectors(rows.stream().mapToInt(Integer::intValue).toArray());
+  }
+
+  /**
+   * Vocabulary of a binary word vector file. Words are looked up with the hash index of the file
+   * and created on demand, nothing is held in memory.
+   */
+  private static class MappedVocab extends AbstractCache<VocabWord> {
+
+    /**
+     * The mapped file
+     */
+    private final BinaryWordVectorsFile file;
+
+    MappedVocab(BinaryWordVectorsFile file) {
+      this.file = file;
+    }
+
+    /**
+     * Create the vocabulary word of an index.
+     */
+    private VocabWord newWord(int index) {
+      VocabWord word = new VocabWord(1.0, file.getWord(index));
+      word.setIndex(index);
+      return word;
+    }
+
+    @Override
+    public int numWords() {
+      return file.numWords();
+    }
+
+    @Override
+    public int indexOf(String label) {
+      return file.indexOf(label);
+    }
+
+    @Override
+    public boolean containsWord(String word) {
+      return file.indexOf(word) >= 0;
+    }
+
+    @Override
+    public boolean hasToken(String token) {
+      return containsWord(token);
+    }
+
+    @Override
+    public String wordAtIndex(int index) {
+      return index >= 0 && index < file.numWords() ? file.getWord(index) : null;
+    }
+
+    @Override
+    public VocabWord elementAtIndex(int index) {
+      return index >= 0 && index < file.numWords() ? newWord(index) : null;
+    }
+
+    @Override
+    public VocabWord wordFor(String word) {
+      final int index = file.indexOf(word);
+      return index >= 0 ? newWord(index) : null;
+    }
+
+    @Override
+    public VocabWord tokenFor(String label) {
+      return wordFor(label);
+    }
+
+    @Override
+    public Collection<String> words() {
+      return new AbstractList<String>() {
+        @Override
+        public String get(int index) {
+          return file.getWord(index);
+        }
+
+        @Override
+        public int size() {
+          return file.numWords();
+        }
+      };
+    }
+
+    @Override
+    public Collection<VocabWord> vocabWords() {
+      return new AbstractList<VocabWord>() {
+        @Override
+        public VocabWord get(int index) {
+          return newWord(index);
+        }
+
+        @Override
+        public int size() {
+          return file.numWords();
+        }
+      };
+    }
+
+    @Override
+    public Collection<VocabWord> tokens() {
+      return vocabWords();
+    }
+  }
+
+  /**
+   * Lookup table reading single vectors from the mapped matrix. The whole matrix is only read if
+   * the weights are requested. Unknown words have no vector.
+   */
+  private static class MappedLookupTable extends InMemoryLookupTable<VocabWord> {
+
+    /**
+     * The mapped file
+     */
+    private final BinaryWordVectorsFile file;
+
+    /**
+     * All vectors, read on the first request of the weights
+     */
+    private INDArray weights;
+
+    MappedLookupTable(BinaryWordVectorsFile file, MappedVocab vocab) {
+      super(vocab, file.getVectorSize(), false, 0.025, Nd4j.getRandom(), 0);
+      this.file = file;
+    }
+
+    @Override
+    public INDArray vector(String word) {
+      final int index = file.indexOf(word);
+      if (index < 0) {
+        return null;
+      }
+      float[] values = new float[file.getVectorSize()];
+      file.readVector(index, values, 0);
+      return Nd4j.create(values);
+    }
+
+    @Override
+    public synchronized INDArray getWeights() {
+      if (weights == null) {
+        log.debug("Reading all {} word vectors into memory", file.numWords());
+        weights = file.readVectors();
+      }
+      return weights;
+    }
+
+    @Override
+    public INDArray getSyn0() {
+      return getWeights();
+    }
+  }
+}
@@ -0,0 +1,501 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * WordVectorsRegistry.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.text.embeddings;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import lombok.extern.log4j.Log4j2;
+import org.deeplearning4j.models.embeddings.WeightLookupTable;
+import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * JVM-wide registry of loaded word vectors.
+ * <p>
+ * Word vectors are loaded once per file and shared by all users of the same file, identified by
+ * its canonical path, length and modification time. Each user holds a {@link Handle}; the word
+ * vectors are dropped from the registry when the last handle is released, either explicitly or
+ * because its owner was garbage collected. The handles of collected owners are released by a daemon
+ * thread, so that the word vectors are dropped even if nothing else is acquired afterwards. The
+ * shared word vectors must not be modified.
+ */
+@Log4j2
+public final class WordVectorsRegistry {
+
+  /**
+   * Registered word vectors, by file
+   */
+  private static final Map<Key, Entry> ENTRIES = new HashMap<>();
+
+  /**
+   * References to the owners of handles that are released when the owner is collected
+   */
+  private static final Set<OwnerReference> OWNERS = new HashSet<>();
+
+  /**
+   * Queue of collected owners
+   */
+  private static final ReferenceQueue<Object> COLLECTED = new ReferenceQueue<>();
+
+  /**
+   * Daemon thread releasing the handles of collected owners
+   */
+  private static final Thread CLEANER = new Thread(WordVectorsRegistry::releaseCollectedOwners,
+      "WordVectorsRegistry-cleaner");
+
+  static {
+    CLEANER.setDaemon(true);
+    CLEANER.start();
+  }
+
+  /**
+   * Number of times word vectors were loaded
+   */
+  private static long numLoads = 0;
+
+  /**
+   * Number of times registered word vectors were handed out without loading
+   */
+  private static long numHits = 0;
+
+  /**
+   * Total time spent loading word vectors, in nanoseconds
+   */
+  private static long loadNanos = 0;
+
+  private WordVectorsRegistry() {
+  }
+
+  /**
+   * Acquire the word vectors of a file, loading them if they are not registered yet.
+   *
+   * @param file Word vector file
+   * @return Handle of the word vectors, to be released when they are no longer used
+   * @throws IOException Could not load the word vectors
+   */
+  public static Handle acquire(File file) throws IOException {
+    final Key key = new Key(file);
+    final Entry entry;
+    synchronized (ENTRIES) {
+      entry = ENTRIES.computeIfAbsent(key, Entry::new);
+      entry.refCount++;
+    }
+    try {
+      return new Handle(entry, entry.get());
+    } catch (IOException | RuntimeException e) {
+      release(entry);
+      throw e;
+    }
+  }
+
+  /**
+   * Acquire the word vectors of a file for an owner. The handle is released when the owner is
+   * garbage collected, if it was not released before.
+   *
+   * @param file Word vector file
+   * @param owner Owner of the handle, must not be referenced by the handle
+   * @return Handle of the word vectors
+   * @throws IOException Could not load the word vectors
+   */
+  public static Handle acquire(File file, Object owner) throws IOException {
+    final Handle handle = acquire(file);
+    synchronized (ENTRIES) {
+      handle.ownerReference = new OwnerReference(owner, handle);
+      OWNERS.add(handle.ownerReference);
+    }
+    return handle;
+  }
+
+  /**
+   * Load word vectors from a file: binary word vector files are mapped, other files (text, ARFF and
+   * word2vec models) are converted once into a binary word vector file that is then mapped. Files
+   * that cannot be converted are loaded with the {@link WordVectorSerializer}.
+   *
+   * @param file Word vector file
+   * @return Word vectors
+   * @throws IOException Could not load the word vectors
+   */
+  public static WordVectors load(File file) throws IOException {
+    if (BinaryWordVectorsFile.isBinaryWordVectorsFile(file)) {
+      return BinaryWordVectorsFile.open(file).toWordVectors();
+    }
+    // Other files are converted once and then loaded from the binary format
+    File converted;
+    try {
+      converted = BinaryWordVectorsFile.getConvertedFile(file);
+    } catch (IOException | RuntimeException e) {
+      log.warn("Could not convert the word vector file, loading it as is: " + e.getMessage());
+      converted = null;
+    }
+    if (converted != null) {
+      return BinaryWordVectorsFile.open(converted).toWordVectors();
+    }
+    return WordVectorSerializer.loadStaticModel(file);
+  }
+
+  /**
+   * Get the statistics of the registry.
+   *
+   * @return Statistics
+   */
+  public static Stats getStats() {
+    synchronized (ENTRIES) {
+      int numHandles = 0;
+      long numBytes = 0;
+      for (Entry entry : ENTRIES.values()) {
+        numHandles += entry.refCount;
+        numBytes += entry.numBytes;
+      }
+      return new Stats(ENTRIES.size(), numHandles, numLoads, numHits, loadNanos / 1000000,
+          numBytes);
+    }
+  }
+
+  /**
+   * Release a reference to an entry and drop the entry after the last reference.
+   *
+   * @param entry Entry
+   */
+  private static void release(Entry entry) {
+    synchronized (ENTRIES) {
+      if (--entry.refCount == 0 && ENTRIES.get(entry.key) == entry) {
+        ENTRIES.remove(entry.key);
+        log.debug("Released word vectors {}", entry.key.path);
+      }
+    }
+  }
+
+  /**
+   * Check whether the word vectors of a file are registered.
+   *
+   * @param file Word vector file
+   * @return Whether a handle of the file was acquired and not released
+   * @throws IOException Could not resolve the file
+   */
+  static boolean isRegistered(File file) throws IOException {
+    final Key key = new Key(file);
+    synchronized (ENTRIES) {
+      return ENTRIES.containsKey(key);
+    }
+  }
+
+  /**
+   * Release the handles of collected owners as they are enqueued. Run by the {@link #CLEANER}.
+   */
+  private static void releaseCollectedOwners() {
+    while (true) {
+      final Reference<?> reference;
+      try {
+        reference = COLLECTED.remove();
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        ((OwnerReference) reference).handle.release();
+      } catch (RuntimeException e) {
+        log.warn("Could not release the word vectors of a collected owner", e);
+      }
+    }
+  }
+
+  /**
+   * Estimate the memory held by word vectors.
+   *
+   * @param wordVectors Word vectors
+   * @return Number of bytes of the embedding matrix, 0 if unknown
+   */
+  private static long estimateBytes(WordVectors wordVectors) {
+    if (wordVectors instanceof MappedWordVectors) {
+      // Mapped vectors are held by the page cache of the file, not the heap
+      return 0;
+    }
+    try {
+      final WeightLookupTable<?> table = wordVectors.lookupTable();
+      final INDArray weights = table == null ? null : table.getWeights();
+      if (weights != null) {
+        return weights.length() * weights.dataType().width();
+      }
+    } catch (UnsupportedOperationException e) {
+      // Static models have no lookup table
+    }
+    final int numWords = wordVectors.vocab().numWords();
+    if (numWords == 0) {
+      return 0;
+    }
+    return (long) numWords * wordVectors.getWordVector(wordVectors.vocab().wordAtIndex(0)).length
+        * Float.BYTES;
+  }
+
+  /**
+   * A word vector file, identified by its canonical path, length and modification time.
+   */
+  private static class Key {
+
+    /**
+     * Canonical path
+     */
+    final String path;
+
+    /**
+     * Length of the file
+     */
+    final long length;
+
+    /**
+     * Modification time of the file
+     */
+    final long lastModified;
+
+    Key(File file) throws IOException {
+      final File canonical = file.getCanonicalFile();
+      this.path = canonical.getPath();
+      this.length = canonical.length();
+      this.lastModified = canonical.lastModified();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return path.equals(other.path) && length == other.length
+          && lastModified == other.lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, length, lastModified);
+    }
+  }
+
+  /**
+   * Registered word vectors of a file.
+   */
+  private static class Entry {
+
+    /**
+     * The file
+     */
+    final Key key;
+
+    /**
+     * Number of handles, guarded by {@link #ENTRIES}
+     */
+    int refCount = 0;
+
+    /**
+     * Estimated number of bytes of the word vectors
+     */
+    volatile long numBytes = 0;
+
+    /**
+     * The word vectors, loaded by the first handle
+     */
+    private WordVectors wordVectors;
+
+    Entry(Key key) {
+      this.key = key;
+    }
+
+    /**
+     * Get the word vectors, loading them if necessary. Concurrent users of the same file wait for
+     * the first load.
+     */
+    synchronized WordVectors get() throws IOException {
+      if (wordVectors != null) {
+        synchronized (ENTRIES) {
+          numHits++;
+        }
+        log.debug("Sharing word vectors {}", key.path);
+        return wordVectors;
+      }
+      final long start = System.nanoTime();
+      wordVectors = load(new File(key.path));
+      final long nanos = System.nanoTime() - start;
+      numBytes = estimateBytes(wordVectors);
+      synchronized (ENTRIES) {
+        numLoads++;
+        loadNanos += nanos;
+      }
+      log.debug("Loaded word vectors {} in {} ms", key.path, nanos / 1000000);
+      return wordVectors;
+    }
+  }
+
+  /**
+   * Reference to the owner of a handle.
+   */
+  private static class OwnerReference extends PhantomReference<Object> {
+
+    /**
+     * The handle to release when the owner is collected
+     */
+    final Handle handle;
+
+    OwnerReference(Object owner, Handle handle) {
+      super(owner, COLLECTED);
+      this.handle = handle;
+    }
+  }
+
+  /**
+   * Handle of shared word vectors.
+   */
+  public static class Handle {
+
+    /**
+     * The registry entry
+     */
+    private final Entry entry;
+
+    /**
+     * The word vectors
+     */
+    private final WordVectors wordVectors;
+
+    /**
+     * Reference to the owner, if any
+     */
+    private OwnerReference ownerReference;
+
+    /**
+     * Whether the handle was released
+     */
+    private boolean released = false;
+
+    Handle(Entry entry, WordVectors wordVectors) {
+      this.entry = entry;
+      this.wordVectors = wordVectors;
+    }
+
+    /**
+     * Get the shared word vectors.
+     *
+     * @return Word vectors, must not be modified
+     */
+    public WordVectors getWordVectors() {
+      return wordVectors;
+    }
+
+    /**
+     * Release the handle. Does nothing if the handle was already released.
+     */
+    public void release() {
+      synchronized (ENTRIES) {
+        if (released) {
+          return;
+        }
+        released = true;
+        if (ownerReference != null) {
+          OWNERS.remove(ownerReference);
+          ownerReference.clear();
+          ownerReference = null;
+        }
+        WordVectorsRegistry.release(entry);
+      }
+    }
+  }
+
+  /**
+   * Statistics of the registry.
+   */
+  public static class Stats {
+
+    /**
+     * Number of registered files
+     */
+    private final int numEntries;
+
+    /**
+     * Number of unreleased handles
+     */
+    private final int numHandles;
+
+    /**
+     * Number of loads
+     */
+    private final long numLoads;
+
+    /**
+     * Number of handles that shared loaded word vectors
+     */
+    private final long numHits;
+
+    /**
+     * Total load time in milliseconds
+     */
+    private final long loadMillis;
+
+    /**
+     * Estimated memory of the registered word vectors in bytes
+     */
+    private final long numBytes;
+
+    Stats(int numEntries, int numHandles, long numLoads, long numHits, long loadMillis,
+        long numBytes) {
+      this.numEntries = numEntries;
+      this.numHandles = numHandles;
+      this.numLoads = numLoads;
+      this.numHits = numHits;
+      this.loadMillis = loadMillis;
+      this.numBytes = numBytes;
+    }
+
+    public int getNumEntries() {
+      return numEntries;
+    }
+
+    public int getNumHandles() {
+      return numHandles;
+    }
+
+    public long getNumLoads() {
+      return numLoads;
+    }
+
+    public long getNumHits() {
+      return numHits;
+    }
+
+    public long getLoadMillis() {
+      return loadMillis;
+    }
+
+    public long getNumBytes() {
+      return numBytes;
+    }
+
+    @Override
+    public String toString() {
+      return "WordVectorsRegistry: " + numEntries + " files, " + numHandles + " handles, "
+          + numLoads + " loads (" + loadMillis + " ms), " + numHits + " hits, "
+          + (numBytes >> 20) + " MB";
+    }
+  }
+}
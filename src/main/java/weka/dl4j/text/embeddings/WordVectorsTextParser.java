@@ -0,0 +1,492 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * WordVectorsTextParser.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.text.embeddings;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import lombok.extern.log4j.Log4j2;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ArffLoader;
+
+/**
+ * Single-pass parser of text and ARFF word vector files into a {@link BinaryWordVectorsFile}.
+ * <p>
+ * Text files have one word and its vector per line, optionally preceded by a word2vec header line
+ * with the number of words and the vector size. The separator (tab, space, comma, semicolon or
+ * colon), the vector size and whether the word is the first or the last field are detected from
+ * the first line. Lines are read by one thread and parsed in chunks by a pool of threads, and the
+ * parsed chunks are written in order. Gzipped files are decompressed while reading.
+ * <p>
+ * ARFF files have one string or nominal attribute holding the word, all other attributes are the
+ * numeric vector.
+ */
+@Log4j2
+public class WordVectorsTextParser {
+
+  /**
+   * Number of lines parsed by one task
+   */
+  public static final int CHUNK_LINES = 4096;
+
+  /**
+   * Candidate separators, in order of preference
+   */
+  private static final char[] SEPARATORS = {'\t', ' ', ',', ';', ':'};
+
+  /**
+   * File extensions of text word vector files
+   */
+  private static final String[] TEXT_EXTENSIONS = {".csv", ".txt", ".vec"};
+
+  /**
+   * Size of the read buffer
+   */
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  /**
+   * The separator
+   */
+  private final char separator;
+
+  /**
+   * Size of the vectors
+   */
+  private final int vectorSize;
+
+  /**
+   * Whether the word is the first field (else the last)
+   */
+  private final boolean wordFirst;
+
+  /**
+   * Constructor.
+   *
+   * @param separator The separator
+   * @param vectorSize Size of the vectors
+   * @param wordFirst Whether the word is the first field (else the last)
+   */
+  protected WordVectorsTextParser(char separator, int vectorSize, boolean wordFirst) {
+    this.separator = separator;
+    this.vectorSize = vectorSize;
+    this.wordFirst = wordFirst;
+  }
+
+  /**
+   * Check whether the given file can be converted, judging by its extension.
+   *
+   * @param file Word vector file
+   * @return True for .csv, .txt, .vec and .arff files, also gzipped
+   */
+  public static boolean isSupported(File file) {
+    return isArff(file) || isText(file);
+  }
+
+  /**
+   * Convert a text or ARFF word vector file into a binary word vector file, using one parser
+   * thread per processor.
+   *
+   * @param source Text or ARFF word vector file
+   * @param target Binary word vector file
+   * @throws IOException Could not read or parse the source or write the target
+   */
+  public static void convert(File source, File target) throws IOException {
+    convert(source, target, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Convert a text or ARFF word vector file into a binary word vector file.
+   *
+   * @param source Text or ARFF word vector file
+   * @param target Binary word vector file
+   * @param numThreads Number of parser threads
+   * @throws IOException Could not read or parse the source or write the target
+   */
+  public static void convert(File source, File target, int numThreads) throws IOException {
+    if (isArff(source)) {
+      convertArff(source, target);
+    } else {
+      convertText(source, target, Math.max(1, numThreads));
+    }
+  }
+
+  /**
+   * Detect the format of a text word vector file from its first line.
+   *
+   * @param line First line (after an optional header line)
+   * @return Parser of the lines, or null if the line does not hold a word and a vector
+   */
+  public static WordVectorsTextParser detect(String line) {
+    line = stripTrailing(line);
+    WordVectorsTextParser best = null;
+    for (char separator : SEPARATORS) {
+      final String[] fields = split(line, separator);
+      if (fields.length < 2) {
+        continue;
+      }
+      final boolean wordFirst = isNumber(fields[fields.length - 1]);
+      int numeric = 0;
+      if (wordFirst) {
+        while (numeric < fields.length - 1 && isNumber(fields[fields.length - 1 - numeric])) {
+          numeric++;
+        }
+      } else {
+        while (numeric < fields.length - 1 && isNumber(fields[numeric])) {
+          numeric++;
+        }
+      }
+      if (numeric > 0 && (best == null || numeric > best.vectorSize)) {
+        best = new WordVectorsTextParser(separator, numeric, wordFirst);
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Check whether a line is a word2vec header, holding the number of words and the vector size.
+   *
+   * @param line Line
+   * @return True if the line consists of two integers
+   */
+  public static boolean isHeader(String line) {
+    final String[] fields = split(stripTrailing(line), ' ');
+    if (fields.length != 2) {
+      return false;
+    }
+    try {
+      Long.parseLong(fields[0]);
+      Long.parseLong(fields[1]);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Get the size of the vectors.
+   *
+   * @return Vector size
+   */
+  public int getVectorSize() {
+    return vectorSize;
+  }
+
+  /**
+   * Parse a line.
+   *
+   * @param line Line
+   * @param values Array the vector is written into
+   * @param offset Offset of the vector in the values
+   * @return The word
+   * @throws NumberFormatException The line does not hold a word and a vector of the detected size
+   */
+  public String parse(String line, float[] values, int offset) {
+    line = stripTrailing(line);
+    if (wordFirst) {
+      // The vector is made of the last fields, the word may contain the separator
+      int end = line.length();
+      for (int i = vectorSize - 1; i >= 0; i--) {
+        final int start = line.lastIndexOf(separator, end - 1);
+        if (start <= 0) {
+          throw new NumberFormatException("Expected a word and " + vectorSize + " values");
+        }
+        values[offset + i] = Float.parseFloat(line.substring(start + 1, end));
+        end = start;
+      }
+      return line.substring(0, end);
+    }
+    int start = 0;
+    for (int i = 0; i < vectorSize; i++) {
+      final int end = line.indexOf(separator, start);
+      if (end < 0 || end == line.length() - 1) {
+        throw new NumberFormatException("Expected " + vectorSize + " values and a word");
+      }
+      values[offset + i] = Float.parseFloat(line.substring(start, end));
+      start = end + 1;
+    }
+    return line.substring(start);
+  }
+
+  /**
+   * Convert a text word vector file.
+   */
+  private static void convertText(File source, File target, int numThreads)
+      throws IOException {
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(open(source), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+      String first = reader.readLine();
+      long firstLineNumber = 1;
+      int headerVectorSize = -1;
+      if (first != null && isHeader(first)) {
+        headerVectorSize = Integer.parseInt(split(stripTrailing(first), ' ')[1]);
+        first = reader.readLine();
+        firstLineNumber++;
+      }
+      WordVectorsTextParser parser = first == null ? null : detect(first);
+      if (parser == null || parser.vectorSize < headerVectorSize) {
+        throw new IOException("Could not detect the format of the word vector file " + source);
+      }
+      if (headerVectorSize > 0) {
+        // The header resolves words that look like numbers
+        parser = new WordVectorsTextParser(parser.separator, headerVectorSize, parser.wordFirst);
+      }
+
+      final BinaryWordVectorsFile.Writer writer = new BinaryWordVectorsFile.Writer(target,
+          parser.vectorSize, source.length(), source.lastModified());
+      final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      try {
+        final Deque<Future<Chunk>> pending = new ArrayDeque<>();
+        List<String> lines = new ArrayList<>(CHUNK_LINES);
+        lines.add(first);
+        long lineNumber = firstLineNumber;
+        long chunkStart = firstLineNumber;
+        String line;
+        while ((line = reader.readLine()) != null) {
+          lineNumber++;
+          lines.add(line);
+          if (lines.size() == CHUNK_LINES) {
+            pending.add(submit(executor, parser, lines, chunkStart, source));
+            lines = new ArrayList<>(CHUNK_LINES);
+            chunkStart = lineNumber + 1;
+            // Bound the number of parsed chunks waiting to be written
+            if (pending.size() >= 2 * numThreads) {
+              write(pending.poll().get(), writer);
+            }
+          }
+        }
+        pending.add(submit(executor, parser, lines, chunkStart, source));
+        while (!pending.isEmpty()) {
+          write(pending.poll().get(), writer);
+        }
+        writer.finish();
+        log.debug("Parsed {} word vectors of size {} from {}", writer.numWords(),
+            parser.vectorSize, source);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while parsing " + source, e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException("Could not parse " + source, e.getCause());
+      } finally {
+        executor.shutdownNow();
+        writer.discard();
+      }
+    }
+  }
+
+  /**
+   * Submit a chunk of lines to be parsed.
+   */
+  private static Future<Chunk> submit(ExecutorService executor, WordVectorsTextParser parser,
+      List<String> lines, long firstLineNumber, File source) {
+    return executor.submit(() -> {
+      final Chunk chunk = new Chunk(lines.size(), parser.vectorSize);
+      for (int i = 0; i < lines.size(); i++) {
+        final String line = lines.get(i);
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        try {
+          chunk.words[chunk.size] = parser.parse(line, chunk.values,
+              chunk.size * parser.vectorSize);
+        } catch (NumberFormatException e) {
+          throw new IOException("Could not parse line " + (firstLineNumber + i) + " of " + source
+              + ": " + e.getMessage());
+        }
+        chunk.size++;
+      }
+      return chunk;
+    });
+  }
+
+  /**
+   * Write a parsed chunk, skipping repeated words.
+   */
+  private static void write(Chunk chunk, BinaryWordVectorsFile.Writer writer) throws IOException {
+    for (int i = 0; i < chunk.size; i++) {
+      if (!writer.add(chunk.words[i], chunk.values, i * chunk.vectorSize)) {
+        log.debug("Skipping repeated word vector of {}", chunk.words[i]);
+      }
+    }
+  }
+
+  /**
+   * Convert an ARFF word vector file.
+   */
+  private static void convertArff(File source, File target) throws IOException {
+    final ArffLoader loader = new ArffLoader();
+    loader.setSource(source);
+    final Instances structure = loader.getStructure();
+    int wordIndex = -1;
+    for (int j = 0; j < structure.numAttributes(); j++) {
+      final Attribute att = structure.attribute(j);
+      if ((att.isString() || att.isNominal()) && wordIndex < 0) {
+        wordIndex = j;
+      } else if (!att.isNumeric()) {
+        throw new IOException("Expected one string or nominal attribute holding the word and "
+            + "numeric attributes holding the vector in " + source);
+      }
+    }
+    if (wordIndex < 0) {
+      throw new IOException("No string or nominal attribute holding the word in " + source);
+    }
+
+    final int vectorSize = structure.numAttributes() - 1;
+    final BinaryWordVectorsFile.Writer writer =
+        new BinaryWordVectorsFile.Writer(target, vectorSize, source.length(),
+            source.lastModified());
+    try {
+      final float[] vector = new float[vectorSize];
+      Instance inst;
+      while ((inst = loader.getNextInstance(structure)) != null) {
+        if (inst.hasMissingValue()) {
+          throw new IOException("Missing value in word vector " + inst + " of " + source);
+        }
+        for (int j = 0, k = 0; j < structure.numAttributes(); j++) {
+          if (j != wordIndex) {
+            vector[k++] = (float) inst.value(j);
+          }
+        }
+        writer.add(inst.stringValue(wordIndex), vector, 0);
+      }
+      writer.finish();
+    } finally {
+      writer.discard();
+    }
+  }
+
+  /**
+   * Open a file, decompressing it if it is gzipped.
+   */
+  private static InputStream open(File file) throws IOException {
+    final InputStream in = new FileInputStream(file);
+    if (file.getName().toLowerCase().endsWith(".gz")) {
+      return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+    return in;
+  }
+
+  /**
+   * Check whether the file is an ARFF file, judging by its extension.
+   */
+  private static boolean isArff(File file) {
+    final String name = file.getName().toLowerCase();
+    return name.endsWith(".arff") || name.endsWith(".arff.gz");
+  }
+
+  /**
+   * Check whether the file is a text word vector file, judging by its extension.
+   */
+  private static boolean isText(File file) {
+    final String name = file.getName().toLowerCase();
+    for (String extension : TEXT_EXTENSIONS) {
+      if (name.endsWith(extension) || name.endsWith(extension + ".gz")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Split a line at every occurrence of the separator.
+   */
+  private static String[] split(String line, char separator) {
+    final List<String> fields = new ArrayList<>();
+    int start = 0;
+    int end;
+    while ((end = line.indexOf(separator, start)) >= 0) {
+      fields.add(line.substring(start, end));
+      start = end + 1;
+    }
+    fields.add(line.substring(start));
+    return fields.toArray(new String[0]);
+  }
+
+  /**
+   * Check whether a field is a number.
+   */
+  private static boolean isNumber(String field) {
+    try {
+      Float.parseFloat(field);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Remove trailing whitespace, as left by some exporters after the last value.
+   */
+  private static String stripTrailing(String line) {
+    int end = line.length();
+    while (end > 0 && Character.isWhitespace(line.charAt(end - 1))) {
+      end--;
+    }
+    return end == line.length() ? line : line.substring(0, end);
+  }
+
+  /**
+   * Parsed lines of a chunk.
+   */
+  private static class Chunk {
+
+    /**
+     * Words of the parsed lines
+     */
+    final String[] words;
+
+    /**
+     * Vectors of the parsed lines, one after the other
+     */
+    final float[] values;
+
+    /**
+     * Size of the vectors
+     */
+    final int vectorSize;
+
+    /**
+     * Number of parsed lines
+     */
+    int size = 0;
+
+    Chunk(int numLines, int vectorSize) {
+      this.words = new String[numLines];
+      this.values = new float[numLines * vectorSize];
+      this.vectorSize = vectorSize;
+    }
+  }
+}
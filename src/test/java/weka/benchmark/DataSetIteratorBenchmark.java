@@ -0,0 +1,151 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * DataSetIteratorBenchmark.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.benchmark;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.dl4j.Utils;
+import weka.dl4j.iterators.dataset.DefaultDataSetIterator;
+import weka.dl4j.iterators.dataset.InstancesDataSetIterator;
+
+/**
+ * Compares one epoch over the {@link DefaultDataSetIterator} (whole dataset converted upfront,
+ * preprocessor applied to the whole dataset per batch) with the on-demand
+ * {@link InstancesDataSetIterator}. Run with
+ *
+ * <pre>
+ * java weka.benchmark.DataSetIteratorBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DataSetIteratorBenchmark {
+
+  /**
+   * Number of instances
+   */
+  @Param({"10000", "50000"})
+  public int numInstances;
+
+  /**
+   * Number of numeric attributes
+   */
+  @Param({"100"})
+  public int numAttributes;
+
+  /**
+   * Whether to set a (feature scaling) preprocessor
+   */
+  @Param({"false", "true"})
+  public boolean preprocess;
+
+  /**
+   * Batch size
+   */
+  private static final int BATCH_SIZE = 32;
+
+  /**
+   * Benchmark data
+   */
+  private Instances data;
+
+  @Setup
+  public void setup() {
+    ArrayList<Attribute> atts = new ArrayList<>();
+    for (int i = 0; i < numAttributes; i++) {
+      atts.add(new Attribute("att" + i));
+    }
+    ArrayList<String> classValues = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      classValues.add("c" + i);
+    }
+    atts.add(new Attribute("class", classValues));
+    data = new Instances("benchmark", atts, numInstances);
+    data.setClassIndex(numAttributes);
+
+    Random rand = new Random(42);
+    for (int i = 0; i < numInstances; i++) {
+      double[] values = new double[numAttributes + 1];
+      for (int j = 0; j < numAttributes; j++) {
+        values[j] = rand.nextGaussian();
+      }
+      values[numAttributes] = rand.nextInt(classValues.size());
+      data.add(new DenseInstance(1.0, values));
+    }
+  }
+
+  @Benchmark
+  public void defaultIterator(Blackhole bh) {
+    epoch(new DefaultDataSetIterator(Utils.instancesToDataSet(data), BATCH_SIZE), bh);
+  }
+
+  @Benchmark
+  public void instancesIterator(Blackhole bh) {
+    epoch(new InstancesDataSetIterator(data, BATCH_SIZE), bh);
+  }
+
+  @Benchmark
+  public void instancesIteratorShuffled(Blackhole bh) {
+    DataSetIterator it = new InstancesDataSetIterator(data, BATCH_SIZE, true, 42);
+    it.reset();
+    epoch(it, bh);
+  }
+
+  /**
+   * Iterate one epoch
+   */
+  private void epoch(DataSetIterator it, Blackhole bh) {
+    if (preprocess) {
+      it.setPreProcessor((DataSetPreProcessor) ds -> ds.getFeatures().muli(0.5));
+    }
+    while (it.hasNext()) {
+      bh.consume(it.next());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .include(DataSetIteratorBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+}
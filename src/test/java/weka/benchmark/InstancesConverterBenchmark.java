@@ -0,0 +1,203 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * InstancesConverterBenchmark.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.benchmark;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.dl4j.InstancesConverter;
+
+/**
+ * Compares the former row-by-row conversion of {@link Instances} (fresh arrays per row, copied
+ * with {@code putRow}, reshaped and copied a second time for convolutions) with the bulk
+ * {@link InstancesConverter}, both sequentially and on the common fork-join pool. Run with
+ *
+ * <pre>
+ * java weka.benchmark.InstancesConverterBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InstancesConverterBenchmark {
+
+  /**
+   * Kind of input: dense (100 attributes), sparse (1000 attributes, 1% non-zero) or conv (1x28x28)
+   */
+  @Param({"dense", "sparse", "conv"})
+  public String input;
+
+  /**
+   * Number of instances
+   */
+  @Param({"100000"})
+  public int numInstances;
+
+  /**
+   * Benchmark data
+   */
+  private Instances data;
+
+  /**
+   * Shape of a single row
+   */
+  private long[] featureShape;
+
+  /**
+   * Single-threaded pool for the sequential bulk conversion
+   */
+  private ForkJoinPool sequentialPool;
+
+  @Setup
+  public void setup() {
+    final int numAttributes;
+    final double density;
+    switch (input) {
+      case "sparse":
+        numAttributes = 1000;
+        density = 0.01;
+        featureShape = new long[]{numAttributes};
+        break;
+      case "conv":
+        numAttributes = 28 * 28;
+        density = 1.0;
+        featureShape = new long[]{1, 28, 28};
+        break;
+      default:
+        numAttributes = 100;
+        density = 1.0;
+        featureShape = new long[]{numAttributes};
+    }
+
+    ArrayList<Attribute> atts = new ArrayList<>();
+    for (int i = 0; i < numAttributes; i++) {
+      atts.add(new Attribute("att" + i));
+    }
+    ArrayList<String> classValues = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      classValues.add("c" + i);
+    }
+    atts.add(new Attribute("class", classValues));
+    data = new Instances("benchmark", atts, numInstances);
+    data.setClassIndex(numAttributes);
+
+    Random rand = new Random(42);
+    for (int i = 0; i < numInstances; i++) {
+      double[] values = new double[numAttributes + 1];
+      for (int j = 0; j < numAttributes; j++) {
+        if (rand.nextDouble() < density) {
+          values[j] = rand.nextGaussian();
+        }
+      }
+      values[numAttributes] = rand.nextInt(classValues.size());
+      data.add(density < 1.0 ? new SparseInstance(1.0, values) : new DenseInstance(1.0, values));
+    }
+    sequentialPool = new ForkJoinPool(1);
+  }
+
+  @TearDown
+  public void tearDown() {
+    sequentialPool.shutdown();
+  }
+
+  @Benchmark
+  public DataSet rowByRow() {
+    DataSet ds = rowByRowDataSet(data);
+    if (featureShape.length == 1) {
+      return ds;
+    }
+    // Former instancesToConvDataSet: reshape and copy every row a second time
+    INDArray conv = Nd4j.zeros(numInstances, featureShape[0], featureShape[1], featureShape[2]);
+    for (int i = 0; i < numInstances; i++) {
+      INDArray row = ds.getFeatures().getRow(i);
+      conv.putRow(i, row.reshape(1, featureShape[0], featureShape[1], featureShape[2]));
+    }
+    return new DataSet(conv, ds.getLabels());
+  }
+
+  @Benchmark
+  public DataSet bulkSequential() {
+    return sequentialPool.submit(() -> InstancesConverter.toDataSet(data, featureShape)).join();
+  }
+
+  @Benchmark
+  public DataSet bulkParallel() {
+    return InstancesConverter.toDataSet(data, featureShape);
+  }
+
+  /**
+   * The former Utils.instancesToDataSet implementation.
+   */
+  private static DataSet rowByRowDataSet(Instances insts) {
+    INDArray data = Nd4j.zeros(insts.numInstances(), insts.numAttributes() - 1);
+    INDArray outcomes = Nd4j.zeros(insts.numInstances(), insts.numClasses());
+
+    for (int i = 0; i < insts.numInstances(); i++) {
+      double[] independent = new double[insts.numAttributes() - 1];
+      double[] dependent = new double[insts.numClasses()];
+      Instance current = insts.instance(i);
+      for (int j = 0; j < current.numValues(); j++) {
+        int index = current.index(j);
+        double value = current.valueSparse(j);
+
+        if (index < insts.classIndex()) {
+          independent[index] = value;
+        } else if (index > insts.classIndex()) {
+          independent[index - 1] = value;
+        }
+      }
+      dependent[(int) current.classValue()] = 1.0;
+      data.putRow(i, Nd4j.create(independent));
+      outcomes.putRow(i, Nd4j.create(dependent));
+    }
+    return new DataSet(data, outcomes);
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .include(InstancesConverterBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+}
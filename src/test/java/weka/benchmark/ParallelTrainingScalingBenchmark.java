@@ -0,0 +1,101 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ParallelTrainingScalingBenchmark.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Instances;
+import weka.dl4j.enums.ParallelTrainingMode;
+import weka.dl4j.iterators.instance.AbstractInstanceIterator;
+import weka.dl4j.iterators.instance.DefaultInstanceIterator;
+import weka.dl4j.layers.DenseLayer;
+import weka.dl4j.layers.OutputLayer;
+import weka.util.DatasetLoader;
+import weka.util.TestUtil;
+
+/**
+ * Measures training throughput (samples/sec) of the {@link Dl4jMlpClassifier} against the number
+ * of CPU workers on the bundled datasets. Run from the project root:
+ *
+ * <pre>
+ * java weka.benchmark.ParallelTrainingScalingBenchmark [numEpochs] [maxWorkers]
+ * </pre>
+ */
+public class ParallelTrainingScalingBenchmark {
+
+  /**
+   * Batch size used for all runs
+   */
+  private static final int BATCH_SIZE = 16;
+
+  public static void main(String[] args) throws Exception {
+    final int numEpochs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    final int maxWorkers =
+        args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+    final List<Integer> workerCounts = new ArrayList<>();
+    for (int w = 1; w <= maxWorkers; w *= 2) {
+      workerCounts.add(w);
+    }
+
+    System.out.println("dataset,mode,workers,samples/sec,speedup");
+    for (ParallelTrainingMode mode : ParallelTrainingMode.values()) {
+      run("iris", DatasetLoader.loadIris(), new DefaultInstanceIterator(), mode, numEpochs,
+          workerCounts);
+      run("diabetes", DatasetLoader.loadDiabetes(), new DefaultInstanceIterator(), mode,
+          numEpochs, workerCounts);
+      run("mnist-minimal", DatasetLoader.loadMiniMnistMeta(),
+          DatasetLoader.loadMiniMnistImageIterator(), mode, numEpochs, workerCounts);
+    }
+  }
+
+  /**
+   * Train one classifier per worker count and print the achieved throughput.
+   */
+  private static void run(String name, Instances data, AbstractInstanceIterator iterator,
+      ParallelTrainingMode mode, int numEpochs, List<Integer> workerCounts) throws Exception {
+    iterator.setTrainBatchSize(BATCH_SIZE);
+    double baseline = -1;
+    for (int numWorkers : workerCounts) {
+      Dl4jMlpClassifier clf = new Dl4jMlpClassifier();
+      clf.setSeed(TestUtil.SEED);
+      clf.setNumEpochs(numEpochs);
+      clf.setInstanceIterator(iterator);
+      clf.setNumCPUWorkers(numWorkers);
+      clf.setParallelTrainingMode(mode);
+      clf.setParameterAveragingFrequency(1);
+
+      DenseLayer denseLayer = new DenseLayer();
+      denseLayer.setNOut(64);
+      clf.setLayers(denseLayer, new OutputLayer());
+
+      final long start = System.nanoTime();
+      clf.buildClassifier(data);
+      final double seconds = (System.nanoTime() - start) / 1e9;
+
+      final double samplesPerSec = (double) data.numInstances() * numEpochs / seconds;
+      if (baseline < 0) {
+        baseline = samplesPerSec;
+      }
+      System.out.printf("%s,%s,%d,%.1f,%.2f%n", name, mode, numWorkers, samplesPerSec,
+          samplesPerSec / baseline);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * SingleInstancePredictionBenchmark.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.benchmark;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.dl4j.layers.DenseLayer;
+import weka.dl4j.layers.OutputLayer;
+
+/**
+ * Latency of predicting one instance at a time with the preallocated single-instance path of the
+ * {@link Dl4jMlpClassifier}, compared to predicting a one-instance dataset (header copy, filters
+ * and iterator per call). Sample mode reports the latency percentiles (p0.50, p0.99, ...). Run
+ * with
+ *
+ * <pre>
+ * java weka.benchmark.SingleInstancePredictionBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SingleInstancePredictionBenchmark {
+
+  /**
+   * Number of numeric attributes
+   */
+  @Param({"20", "500"})
+  public int numAttributes;
+
+  /**
+   * Number of (random) instances to predict in turn
+   */
+  private static final int NUM_INSTANCES = 1000;
+
+  /**
+   * Trained classifier
+   */
+  private Dl4jMlpClassifier clf;
+
+  /**
+   * Instances to predict
+   */
+  private Instances data;
+
+  /**
+   * Position of the next instance to predict
+   */
+  private int next;
+
+  @Setup
+  public void setup() throws Exception {
+    ArrayList<Attribute> atts = new ArrayList<>();
+    for (int i = 0; i < numAttributes; i++) {
+      atts.add(new Attribute("att" + i));
+    }
+    ArrayList<String> classValues = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      classValues.add("c" + i);
+    }
+    atts.add(new Attribute("class", classValues));
+    data = new Instances("benchmark", atts, NUM_INSTANCES);
+    data.setClassIndex(numAttributes);
+
+    Random rand = new Random(42);
+    for (int i = 0; i < NUM_INSTANCES; i++) {
+      double[] values = new double[numAttributes + 1];
+      for (int j = 0; j < numAttributes; j++) {
+        values[j] = rand.nextGaussian();
+      }
+      values[numAttributes] = rand.nextInt(classValues.size());
+      data.add(new DenseInstance(1.0, values));
+    }
+
+    clf = new Dl4jMlpClassifier();
+    DenseLayer dense = new DenseLayer();
+    dense.setNOut(64);
+    clf.setLayers(dense, new OutputLayer());
+    clf.setNumEpochs(1);
+    clf.buildClassifier(data);
+  }
+
+  /**
+   * Next instance to predict
+   */
+  private Instance nextInstance() {
+    next = (next + 1) % NUM_INSTANCES;
+    return data.instance(next);
+  }
+
+  @Benchmark
+  public double[] singleInstance() throws Exception {
+    return clf.distributionForInstance(nextInstance());
+  }
+
+  @Benchmark
+  public double[] oneInstanceDataset() throws Exception {
+    Instance inst = nextInstance();
+    Instances insts = new Instances(inst.dataset(), 1);
+    insts.add(inst);
+    return clf.distributionsForInstances(insts)[0];
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .include(SingleInstancePredictionBenchmark.class.getSimpleName())
+        .build()).run();
+  }
+}
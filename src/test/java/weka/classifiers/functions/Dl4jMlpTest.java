@@ -30,6 +30,7 @@ import java.io.ObjectOutputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
@@ -39,12 +40,15 @@ import org.junit.rules.TestName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import weka.core.Instances;
+import weka.core.SelectedTag;
 import weka.core.InvalidNetworkArchitectureException;
 import weka.core.MissingOutputLayerException;
 import weka.core.WrongIteratorException;
+import weka.core.converters.ArffLoader;
 import weka.dl4j.enums.CacheMode;
 import weka.dl4j.enums.ConvolutionMode;
 import weka.dl4j.NeuralNetConfiguration;
+import weka.dl4j.enums.ParallelTrainingMode;
 import weka.dl4j.enums.PoolingType;
 import weka.dl4j.activations.ActivationIdentity;
 import weka.dl4j.activations.ActivationReLU;
@@ -54,6 +58,7 @@ import weka.dl4j.earlystopping.EarlyStopping;
 import weka.dl4j.iterators.instance.ConvolutionInstanceIterator;
 import weka.dl4j.iterators.instance.DefaultInstanceIterator;
 import weka.dl4j.iterators.instance.ImageInstanceIterator;
+import weka.dl4j.iterators.instance.SparseInstanceIterator;
 import weka.dl4j.iterators.instance.sequence.text.cnn.CnnTextEmbeddingInstanceIterator;
 import weka.dl4j.iterators.instance.sequence.text.cnn.CnnTextFilesEmbeddingInstanceIterator;
 import weka.dl4j.layers.BatchNormalization;
@@ -62,13 +67,16 @@ import weka.dl4j.layers.DenseLayer;
 import weka.dl4j.layers.GlobalPoolingLayer;
 import weka.dl4j.layers.Layer;
 import weka.dl4j.layers.OutputLayer;
+import weka.dl4j.layers.SparseDenseLayer;
 import weka.dl4j.layers.SubsamplingLayer;
 import weka.dl4j.listener.EpochListener;
 import weka.dl4j.lossfunctions.LossMCXENT;
 import weka.dl4j.lossfunctions.LossMSE;
 import weka.dl4j.updater.Adam;
+import weka.dl4j.updater.Sgd;
 import weka.dl4j.zoo.Dl4jLeNet;
 import weka.filters.Filter;
+import weka.filters.unsupervised.instance.NonSparseToSparse;
 import weka.filters.unsupervised.instance.RemovePercentage;
 import weka.util.DatasetLoader;
 import weka.util.TestUtil;
@@ -346,6 +354,249 @@ public class Dl4jMlpTest {
     clf2.buildClassifier(dataMnist);
   }
 
+  /**
+   * Test that a serialized and restored classifier makes identical predictions.
+   *
+   * @throws Exception Could not build classifier.
+   */
+  @Test
+  public void testSerializationPredictionsUnchanged() throws Exception {
+    clf.buildClassifier(dataIris);
+    final double[][] expected = clf.distributionsForInstances(dataIris);
+
+    String tmpDir = System.getProperty("java.io.tmpdir");
+    String clfPath = Paths.get(tmpDir, "dl4j-mlp-framed.ser").toString();
+    saveClf(clfPath, clf);
+    Dl4jMlpClassifier clfLoaded = readClf(clfPath);
+    final double[][] actual = clfLoaded.distributionsForInstances(dataIris);
+
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertArrayEquals(expected[i], actual[i], 1e-12);
+    }
+    Files.delete(Paths.get(clfPath));
+  }
+
+  /**
+   * Test that models saved in the previous (ModelSerializer based) format can still be loaded.
+   *
+   * @throws Exception Could not read classifier.
+   */
+  @Test
+  public void testLegacySerializedModel() throws Exception {
+    Dl4jMlpClassifier clfLoaded = readClf("src/test/resources/models/custom_1x28x28_mnist_30e.model");
+    Assert.assertNotNull(clfLoaded.getModel());
+    Assert.assertTrue(clfLoaded.getModel().numParams() > 0);
+  }
+
+  /**
+   * Test that resuming an interrupted training from its latest checkpoint yields the same model as
+   * an uninterrupted training.
+   *
+   * @throws Exception Could not build classifier.
+   */
+  @Test
+  public void testCheckpointResume() throws Exception {
+    clf.setNumEpochs(4);
+    clf.buildClassifier(dataIris);
+    final double[][] expected = clf.distributionsForInstances(dataIris);
+
+    File checkpointDir = Files.createTempDirectory("dl4j-checkpoints").toFile();
+    Dl4jMlpClassifier interrupted = new Dl4jMlpClassifier();
+    interrupted.setSeed(TestUtil.SEED);
+    interrupted.setNumEpochs(4);
+    interrupted.setCheckpointDirectory(checkpointDir);
+    interrupted.setCheckpointEpochs(1);
+    interrupted.setCheckpointRetention(2);
+    interrupted.initializeClassifier(dataIris);
+    interrupted.next();
+    interrupted.next();
+    // Simulate a crash after the second epoch
+    interrupted.closeCheckpointing();
+
+    Dl4jMlpClassifier resumed = Dl4jMlpClassifier.resumeFromCheckpoint(checkpointDir);
+    final double[][] actual = resumed.distributionsForInstances(dataIris);
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertArrayEquals(expected[i], actual[i], 1e-12);
+    }
+
+    File[] checkpoints = checkpointDir.listFiles((dir, name) -> name.endsWith(".ckpt"));
+    assertEquals(2, checkpoints.length);
+    for (File f : checkpointDir.listFiles()) {
+      f.delete();
+    }
+    checkpointDir.delete();
+  }
+
+  /**
+   * Test that resuming a training whose iterator shuffles the rows every epoch continues with the
+   * row order of the interrupted session.
+   *
+   * @throws Exception Could not build classifier.
+   */
+  @Test
+  public void testCheckpointResumeShuffled() throws Exception {
+    DefaultInstanceIterator iterator = new DefaultInstanceIterator();
+    iterator.setTrainBatchSize(16);
+    iterator.setShuffle(true);
+    clf.setInstanceIterator(iterator);
+    clf.setNumEpochs(5);
+    clf.buildClassifier(dataIris);
+    final double[][] expected = clf.distributionsForInstances(dataIris);
+
+    File checkpointDir = Files.createTempDirectory("dl4j-checkpoints").toFile();
+    Dl4jMlpClassifier interrupted = new Dl4jMlpClassifier();
+    interrupted.setSeed(TestUtil.SEED);
+    interrupted.setInstanceIterator(iterator);
+    interrupted.setNumEpochs(5);
+    interrupted.setCheckpointDirectory(checkpointDir);
+    interrupted.setCheckpointEpochs(1);
+    interrupted.initializeClassifier(dataIris);
+    interrupted.next();
+    interrupted.next();
+    interrupted.next();
+    // Simulate a crash after the third epoch
+    interrupted.closeCheckpointing();
+
+    Dl4jMlpClassifier resumed = Dl4jMlpClassifier.resumeFromCheckpoint(checkpointDir);
+    final double[][] actual = resumed.distributionsForInstances(dataIris);
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertArrayEquals(expected[i], actual[i], 1e-12);
+    }
+
+    for (File f : checkpointDir.listFiles()) {
+      f.delete();
+    }
+    checkpointDir.delete();
+  }
+
+  /**
+   * Test training from an incremental loader with preprocessing fitted on a sample.
+   *
+   * @throws Exception Could not build classifier.
+   */
+  @Test
+  public void testBuildFromLoader() throws Exception {
+    ArffLoader loader = new ArffLoader();
+    loader.setFile(new File("src/test/resources/nominal/iris-missing-values.arff"));
+    clf.setLoaderSampleSize(100);
+    clf.setLoaderChunkSize(32);
+    clf.setNumEpochs(2);
+    clf.buildClassifierFromLoader(loader);
+
+    final Instances data = DatasetLoader.loadIrisMissingValues();
+    final double[][] distributions = clf.distributionsForInstances(data);
+    assertEquals(data.numInstances(), distributions.length);
+    for (double[] distribution : distributions) {
+      assertEquals(1.0, Arrays.stream(distribution).sum(), 1e-6);
+    }
+  }
+
+  /**
+   * Test that the sparse input path yields the same predictions as the dense one
+   */
+  @Test
+  public void testSparseInputMatchesDense() throws Exception {
+    checkSparseInputMatchesDense(dataIris, new NeuralNetConfiguration(),
+        new DefaultInstanceIterator().getTrainBatchSize());
+  }
+
+  /**
+   * Test that the sparse input path yields the same predictions as the dense one with plain SGD,
+   * where only the weight gradient rows of the previous batch are cleared
+   */
+  @Test
+  public void testSparseInputMatchesDenseSgd() throws Exception {
+    // Every row leaves out one attribute, so that consecutive batches use different columns
+    Instances data = new Instances(dataIris);
+    for (int i = 0; i < data.numInstances(); i++) {
+      data.instance(i).setValue(i % (data.numAttributes() - 1), 0);
+    }
+    NeuralNetConfiguration nnc = new NeuralNetConfiguration();
+    nnc.setUpdater(new Sgd());
+    checkSparseInputMatchesDense(data, nnc, 1);
+  }
+
+  /**
+   * Train a dense and a sparse network on the given data and compare their predictions.
+   *
+   * @param data Dense data
+   * @param nnc Network configuration
+   * @param batchSize Batch size
+   * @throws Exception Could not build classifier.
+   */
+  private void checkSparseInputMatchesDense(Instances data, NeuralNetConfiguration nnc,
+      int batchSize) throws Exception {
+    NonSparseToSparse toSparse = new NonSparseToSparse();
+    toSparse.setInputFormat(data);
+    final Instances sparseData = Filter.useFilter(data, toSparse);
+
+    final SelectedTag noFilter =
+        new SelectedTag(Dl4jMlpClassifier.FILTER_NONE, Dl4jMlpClassifier.TAGS_FILTER);
+    clf.setFilterType(noFilter);
+    clf.setNeuralNetConfiguration(nnc);
+    DefaultInstanceIterator denseIterator = new DefaultInstanceIterator();
+    denseIterator.setTrainBatchSize(batchSize);
+    clf.setInstanceIterator(denseIterator);
+    DenseLayer denseLayer = new DenseLayer();
+    denseLayer.setNOut(8);
+    clf.setLayers(denseLayer, new OutputLayer());
+    clf.buildClassifier(data);
+
+    Dl4jMlpClassifier sparseClf = new Dl4jMlpClassifier();
+    sparseClf.setSeed(TestUtil.SEED);
+    sparseClf.setNumEpochs(TestUtil.DEFAULT_NUM_EPOCHS);
+    sparseClf.setFilterType(noFilter);
+    sparseClf.setNeuralNetConfiguration(nnc);
+    SparseInstanceIterator sparseIterator = new SparseInstanceIterator();
+    sparseIterator.setTrainBatchSize(batchSize);
+    sparseClf.setInstanceIterator(sparseIterator);
+    SparseDenseLayer sparseLayer = new SparseDenseLayer();
+    sparseLayer.setNOut(8);
+    sparseClf.setLayers(sparseLayer, new OutputLayer());
+    sparseClf.buildClassifier(sparseData);
+
+    final double[][] expected = clf.distributionsForInstances(data);
+    final double[][] actual = sparseClf.distributionsForInstances(sparseData);
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertArrayEquals(expected[i], actual[i], 1e-3);
+    }
+  }
+
+  /**
+   * Test that a SparseDenseLayer is rejected with the default instance iterator
+   */
+  @Test(expected = InvalidNetworkArchitectureException.class)
+  public void testSparseLayerWithDefaultIterator() throws Exception {
+    clf.setLayers(new SparseDenseLayer(), new OutputLayer());
+    clf.initializeClassifier(dataIris);
+  }
+
+  /**
+   * Test that single-instance predictions equal the batch predictions, also from another thread
+   */
+  @Test
+  public void testSingleInstancePrediction() throws Exception {
+    clf.buildClassifier(dataIris);
+    final double[][] expected = clf.distributionsForInstances(dataIris);
+    for (int i = 0; i < dataIris.numInstances(); i++) {
+      Assert.assertArrayEquals(expected[i], clf.distributionForInstance(dataIris.instance(i)),
+          1e-6);
+    }
+
+    // Every thread uses its own input row and workspace
+    final double[][] actual = new double[1][];
+    Thread other = new Thread(() -> {
+      try {
+        actual[0] = clf.distributionForInstance(dataIris.instance(0));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    other.start();
+    other.join();
+    Assert.assertArrayEquals(expected[0], actual[0], 1e-6);
+  }
+
   /**
    * Test no outputlayer
    */
@@ -364,6 +615,29 @@ public class Dl4jMlpTest {
     clf.buildClassifier(dataIris);
   }
 
+  /**
+   * Test data-parallel training on multiple CPU workers with parameter averaging
+   */
+  @Test
+  public void testParallelCPUWorkersAveraging() throws Exception {
+    clf.setNumCPUWorkers(2);
+    clf.setParallelTrainingMode(ParallelTrainingMode.AVERAGING);
+    clf.setParameterAveragingFrequency(1);
+    clf.getInstanceIterator().setTrainBatchSize(16);
+    TestUtil.holdout(clf, dataIris);
+  }
+
+  /**
+   * Test data-parallel training on multiple CPU workers with gradient sharing
+   */
+  @Test
+  public void testParallelCPUWorkersSharedGradients() throws Exception {
+    clf.setNumCPUWorkers(2);
+    clf.setParallelTrainingMode(ParallelTrainingMode.SHARED_GRADIENTS);
+    clf.getInstanceIterator().setTrainBatchSize(16);
+    TestUtil.holdout(clf, dataIris);
+  }
+
   /**
    * Test zoo model with wrong iterator
    */
@@ -52,6 +52,8 @@ import weka.dl4j.activations.ActivationTanH;
 import weka.dl4j.iterators.instance.sequence.RelationalInstanceIterator;
 import weka.dl4j.iterators.instance.sequence.text.rnn.RnnTextEmbeddingInstanceIterator;
 import weka.dl4j.iterators.instance.sequence.text.rnn.RnnTextFilesEmbeddingInstanceIterator;
+import weka.dl4j.iterators.instance.sequence.text.rnn.RnnTokenIndexInstanceIterator;
+import weka.dl4j.layers.EmbeddingSequenceLayer;
 import weka.dl4j.layers.LSTM;
 import weka.dl4j.layers.RnnOutputLayer;
 import weka.dl4j.lossfunctions.LossMSE;
@@ -197,6 +199,43 @@ public class RnnSequenceClassifierTest {
     TestUtil.holdout(clf, data, 5, tii);
   }
 
+  @Test
+  public void testImdbClassificationTokenIndex() throws Exception {
+
+    // Init data
+    data = DatasetLoader.loadImdb();
+    RnnTokenIndexInstanceIterator tokenIndexIterator = new RnnTokenIndexInstanceIterator();
+    tokenIndexIterator.setWordVectorLocation(modelSlim);
+    tokenIndexIterator.setTruncateLength(truncateLength);
+    tokenIndexIterator.setTrainBatchSize(batchSize);
+
+    // Define layers, the embedding is initialized from the word vectors and kept fixed
+    EmbeddingSequenceLayer embedding = new EmbeddingSequenceLayer();
+    embedding.setFreezeEmbeddings(true);
+
+    LSTM lstm1 = new LSTM();
+    lstm1.setNOut(3);
+    lstm1.setActivationFunction(new ActivationTanH());
+
+    RnnOutputLayer rnnOut = new RnnOutputLayer();
+
+    // Config classifier
+    clf.setInstanceIterator(tokenIndexIterator);
+    clf.setLayers(embedding, lstm1, rnnOut);
+    clf.settBPTTbackwardLength(20);
+    clf.settBPTTforwardLength(20);
+    clf.setQueueSize(0);
+
+    // Reduce datasize
+    data.randomize(new Random(42));
+    RemovePercentage rp = new RemovePercentage();
+    rp.setPercentage(95);
+    rp.setInputFormat(data);
+    data = Filter.useFilter(data, rp);
+
+    TestUtil.holdout(clf, data, 5, tokenIndexIterator);
+  }
+
   @Test
   public void testAngerRegression() throws Exception {
     // Define layers
@@ -0,0 +1,161 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * InstancesConverterTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j;
+
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.util.DatasetLoader;
+
+/**
+ * Test class for the {@link InstancesConverter}.
+ */
+public class InstancesConverterTest {
+
+  /**
+   * Test dense classification data
+   */
+  @Test
+  public void testDense() throws Exception {
+    Instances data = DatasetLoader.loadIris();
+    DataSet ds = InstancesConverter.toDataSet(data);
+    assertConverted(data, null, 0, ds);
+  }
+
+  /**
+   * Test sparse data with the class in the middle, large enough to be converted in parallel
+   */
+  @Test
+  public void testSparseParallel() {
+    final int numInstances = 2 * InstancesConverter.BLOCK_VALUES / 10;
+    Instances data = makeData(numInstances, 20, 10, true);
+    DataSet ds = InstancesConverter.toDataSet(data);
+    assertConverted(data, null, 0, ds);
+  }
+
+  /**
+   * Test a subset of rows in a given order, in double precision
+   */
+  @Test
+  public void testOrderedSubset() {
+    Instances data = makeData(100, 10, 1, false);
+    int[] order = new int[data.numInstances()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = order.length - 1 - i;
+    }
+    DataSet ds = InstancesConverter.toDataSet(data, order, 10, 20, DataType.DOUBLE,
+        data.numAttributes() - 1);
+    Assert.assertEquals(DataType.DOUBLE, ds.getFeatures().dataType());
+    Assert.assertEquals(20, ds.numExamples());
+    assertConverted(data, order, 10, ds);
+  }
+
+  /**
+   * Test that convolutional features are NCHW tensors of the flat features
+   */
+  @Test
+  public void testConvolution() throws Exception {
+    Instances data = DatasetLoader.loadMiniMnistArff();
+    DataSet flat = InstancesConverter.toDataSet(data);
+    DataSet conv = Utils.instancesToConvDataSet(data, 28, 28, 1);
+
+    Assert.assertArrayEquals(new long[]{data.numInstances(), 1, 28, 28},
+        conv.getFeatures().shape());
+    Assert.assertEquals(flat.getFeatures(), conv.getFeatures().reshape(data.numInstances(), 784));
+    Assert.assertEquals(flat.getLabels(), conv.getLabels());
+  }
+
+  /**
+   * Test that a feature shape not matching the attributes is rejected
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidShape() throws Exception {
+    InstancesConverter.toDataSet(DatasetLoader.loadIris(), 2, 3);
+  }
+
+  /**
+   * Compare the dataset with the attribute values of the instances.
+   */
+  private void assertConverted(Instances data, int[] order, int from, DataSet ds) {
+    INDArray features = ds.getFeatures();
+    INDArray labels = ds.getLabels();
+    for (int i = 0; i < ds.numExamples(); i++) {
+      Instance inst = data.instance(order == null ? from + i : order[from + i]);
+      int col = 0;
+      for (int j = 0; j < inst.numAttributes(); j++) {
+        if (j != data.classIndex()) {
+          Assert.assertEquals(inst.value(j), features.getDouble(i, col++), 1e-6);
+        }
+      }
+      if (data.numClasses() > 1) {
+        for (int k = 0; k < data.numClasses(); k++) {
+          Assert.assertEquals(k == (int) inst.classValue() ? 1.0 : 0.0, labels.getDouble(i, k), 0);
+        }
+      } else {
+        Assert.assertEquals(inst.classValue(), labels.getDouble(i, 0), 1e-6);
+      }
+    }
+  }
+
+  /**
+   * Create random numeric data with the class attribute in the middle.
+   */
+  private Instances makeData(int numInstances, int numAttributes, int numClasses,
+      boolean sparse) {
+    ArrayList<Attribute> atts = new ArrayList<>();
+    for (int i = 0; i < numAttributes; i++) {
+      atts.add(new Attribute("att" + i));
+    }
+    final int classIndex = numAttributes / 2;
+    if (numClasses > 1) {
+      ArrayList<String> classValues = new ArrayList<>();
+      for (int i = 0; i < numClasses; i++) {
+        classValues.add("c" + i);
+      }
+      atts.add(classIndex, new Attribute("class", classValues));
+    } else {
+      atts.add(classIndex, new Attribute("class"));
+    }
+    Instances data = new Instances("test", atts, numInstances);
+    data.setClassIndex(classIndex);
+
+    Random rand = new Random(42);
+    for (int i = 0; i < numInstances; i++) {
+      double[] values = new double[numAttributes + 1];
+      for (int j = 0; j < values.length; j++) {
+        if (j == classIndex) {
+          values[j] = numClasses > 1 ? rand.nextInt(numClasses) : rand.nextDouble();
+        } else if (!sparse || rand.nextInt(5) == 0) {
+          values[j] = rand.nextGaussian();
+        }
+      }
+      data.add(sparse ? new SparseInstance(1.0, values) : new DenseInstance(1.0, values));
+    }
+    return data;
+  }
+}
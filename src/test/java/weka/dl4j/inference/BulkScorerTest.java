@@ -0,0 +1,93 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * BulkScorerTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.inference;
+
+import java.io.File;
+import java.nio.file.Files;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Instances;
+import weka.core.converters.ArffLoader;
+import weka.core.converters.ArffSaver;
+import weka.util.DatasetLoader;
+import weka.util.TestUtil;
+
+/**
+ * Test class for the {@link BulkScorer}.
+ */
+public class BulkScorerTest {
+
+  /**
+   * Trained classifier
+   */
+  private Dl4jMlpClassifier clf;
+
+  /**
+   * Iris data
+   */
+  private Instances data;
+
+  @Before
+  public void before() throws Exception {
+    data = DatasetLoader.loadIris();
+    clf = TestUtil.trainedIrisMlp();
+  }
+
+  /**
+   * Test that parallel predictions equal the sequential predictions, also with a last partial range
+   */
+  @Test
+  public void testParallelPredictions() throws Exception {
+    final double[][] expected = clf.distributionsForInstances(data);
+    final double[][] actual = new BulkScorer(new ReplicaPool(clf, 3), 7)
+        .distributionsForInstances(data);
+    Assert.assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertArrayEquals(expected[i], actual[i], 1e-6);
+    }
+  }
+
+  /**
+   * Test that streamed predictions are written in order
+   */
+  @Test
+  public void testSaver() throws Exception {
+    final double[][] expected = clf.distributionsForInstances(data);
+    File file = Files.createTempFile("predictions", ".arff").toFile();
+    file.deleteOnExit();
+    ArffSaver saver = new ArffSaver();
+    saver.setFile(file);
+    new BulkScorer(new ReplicaPool(clf, 2), 16).distributionsForInstances(data, saver);
+
+    ArffLoader loader = new ArffLoader();
+    loader.setFile(file);
+    Instances preds = loader.getDataSet();
+    Assert.assertEquals(data.numInstances(), preds.numInstances());
+    Assert.assertEquals(data.numClasses() + 1, preds.numAttributes());
+    for (int i = 0; i < expected.length; i++) {
+      for (int k = 0; k < data.numClasses(); k++) {
+        Assert.assertEquals(expected[i][k], preds.instance(i).value(k), 1e-5);
+      }
+      Assert.assertEquals(weka.core.Utils.maxIndex(expected[i]),
+          (int) preds.instance(i).value(data.numClasses()));
+    }
+  }
+}
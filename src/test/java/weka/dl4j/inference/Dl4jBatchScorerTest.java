@@ -0,0 +1,80 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Dl4jBatchScorerTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.inference;
+
+import java.io.File;
+import java.nio.file.Files;
+import org.junit.Assert;
+import org.junit.Test;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Instances;
+import weka.core.converters.ArffLoader;
+import weka.core.converters.CSVSaver;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.Remove;
+import weka.util.DatasetLoader;
+import weka.util.TestUtil;
+
+/**
+ * Test class for the {@link Dl4jBatchScorer}.
+ */
+public class Dl4jBatchScorerTest {
+
+  /**
+   * Test that scoring a CSV file without the class column yields the predictions of the classifier
+   * in the order of the rows
+   */
+  @Test
+  public void testScoreCsv() throws Exception {
+    final Instances data = DatasetLoader.loadIris();
+    Dl4jMlpClassifier clf = TestUtil.trainedIrisMlp();
+    final double[][] expected = clf.distributionsForInstances(data);
+
+    // Write the features without the class column
+    Remove remove = new Remove();
+    remove.setAttributeIndicesArray(new int[]{data.classIndex()});
+    remove.setInputFormat(data);
+    Instances features = Filter.useFilter(data, remove);
+    File input = Files.createTempFile("scorer-input", ".csv").toFile();
+    File output = Files.createTempFile("scorer-output", ".arff").toFile();
+    input.deleteOnExit();
+    output.deleteOnExit();
+    CSVSaver saver = new CSVSaver();
+    saver.setInstances(features);
+    saver.setFile(input);
+    saver.writeBatch();
+
+    Dl4jBatchScorer scorer = new Dl4jBatchScorer();
+    scorer.setInputFile(input);
+    scorer.setOutputFile(output);
+    scorer.setBatchSize(16);
+    scorer.setNumWorkers(2);
+    Assert.assertEquals(data.numInstances(), scorer.score(clf));
+
+    ArffLoader loader = new ArffLoader();
+    loader.setFile(output);
+    Instances preds = loader.getDataSet();
+    Assert.assertEquals(data.numInstances(), preds.numInstances());
+    for (int i = 0; i < expected.length; i++) {
+      for (int k = 0; k < data.numClasses(); k++) {
+        Assert.assertEquals(expected[i][k], preds.instance(i).value(k), 1e-5);
+      }
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Dl4jInferenceServerTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.inference;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.classifiers.functions.RnnSequenceClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.util.DatasetLoader;
+import weka.util.TestUtil;
+
+/**
+ * Test class for the {@link Dl4jInferenceServer}, using a local client.
+ */
+public class Dl4jInferenceServerTest {
+
+  /**
+   * Trained classifier
+   */
+  private Dl4jMlpClassifier clf;
+
+  /**
+   * Iris data
+   */
+  private Instances data;
+
+  /**
+   * Server under test
+   */
+  private Dl4jInferenceServer server;
+
+  @Before
+  public void before() throws Exception {
+    data = DatasetLoader.loadIris();
+    clf = TestUtil.trainedIrisMlp();
+
+    server = new Dl4jInferenceServer();
+    server.setPort(0);
+    server.setNumWarmupBatches(2);
+    server.addModel("iris", clf);
+    server.start();
+  }
+
+  @After
+  public void after() {
+    server.stop();
+  }
+
+  /**
+   * Test that JSON predictions equal the predictions of the classifier
+   */
+  @Test
+  public void testJsonPrediction() throws Exception {
+    final double[][] expected = clf.distributionsForInstances(data);
+    StringBuilder json = new StringBuilder("{\"instances\": [");
+    for (int i = 0; i < data.numInstances(); i++) {
+      Instance inst = data.instance(i);
+      json.append(i == 0 ? "[" : ", [");
+      for (int j = 0; j < data.numAttributes() - 1; j++) {
+        json.append(j == 0 ? "" : ", ").append(inst.value(j));
+      }
+      json.append(']');
+    }
+    json.append("]}");
+
+    checkJsonPredictions("/models/iris/predict", json.toString(), expected);
+
+    HttpURLConnection conn = post("/models/iris/predict", "application/json",
+        "{\"instances\": [[\"unknown\"]]}".getBytes(StandardCharsets.UTF_8));
+    Assert.assertEquals(400, conn.getResponseCode());
+  }
+
+  /**
+   * Test that malformed and oversized requests are rejected with status 400
+   */
+  @Test
+  public void testBadRequests() throws Exception {
+    HttpURLConnection conn = post("/models/iris/predict", "application/json",
+        "{\"instances\": [[1, 2".getBytes(StandardCharsets.UTF_8));
+    Assert.assertEquals(400, conn.getResponseCode());
+
+    // More instances than can be queued, without sending them
+    conn = post("/models/iris/predict", Dl4jInferenceServer.BINARY_CONTENT_TYPE,
+        binaryHeader(Integer.MAX_VALUE, data.numAttributes()));
+    Assert.assertEquals(400, conn.getResponseCode());
+
+    conn = post("/models/iris/predict", Dl4jInferenceServer.BINARY_CONTENT_TYPE,
+        binaryHeader(1, Integer.MAX_VALUE));
+    Assert.assertEquals(400, conn.getResponseCode());
+  }
+
+  /**
+   * Test that a text model (with a string attribute) is warmed up and predicts JSON requests like
+   * the classifier
+   */
+  @Test
+  public void testTextPrediction() throws Exception {
+    RnnSequenceClassifier rnn = TestUtil.trainedAngerRnn();
+    Instances anger = new Instances(DatasetLoader.loadAnger(), 0, 20);
+    final double[][] expected = rnn.distributionsForInstances(anger);
+
+    server.stop();
+    server = new Dl4jInferenceServer();
+    server.setPort(0);
+    server.setNumWarmupBatches(2);
+    server.addModel("anger", rnn);
+    server.start();
+    Assert.assertTrue(server.isReady());
+
+    StringBuilder json = new StringBuilder("{\"instances\": [");
+    for (int i = 0; i < anger.numInstances(); i++) {
+      String text = anger.instance(i).stringValue(0);
+      json.append(i == 0 ? "[\"" : ", [\"")
+          .append(text.replace("\\", "\\\\").replace("\"", "\\\""))
+          .append("\"]");
+    }
+    json.append("]}");
+    checkJsonPredictions("/models/anger/predict", json.toString(), expected);
+
+    HttpURLConnection conn = post("/models/anger/predict", Dl4jInferenceServer.BINARY_CONTENT_TYPE,
+        binaryHeader(0, anger.numAttributes()));
+    Assert.assertEquals(400, conn.getResponseCode());
+  }
+
+  /**
+   * Post a JSON request and compare the predictions with the expected ones.
+   */
+  private void checkJsonPredictions(String path, String json, double[][] expected)
+      throws Exception {
+    HttpURLConnection conn = post(path, "application/json",
+        json.getBytes(StandardCharsets.UTF_8));
+    Assert.assertEquals(200, conn.getResponseCode());
+    String body = read(conn.getInputStream());
+    String[] rows = body.substring(body.indexOf("[[") + 2, body.lastIndexOf("]]"))
+        .split("\\], \\[");
+    Assert.assertEquals(expected.length, rows.length);
+    for (int i = 0; i < rows.length; i++) {
+      String[] values = rows[i].split(", ");
+      Assert.assertEquals(expected[i].length, values.length);
+      for (int k = 0; k < values.length; k++) {
+        Assert.assertEquals(expected[i][k], Double.parseDouble(values[k]), 1e-6);
+      }
+    }
+  }
+
+  /**
+   * Get the header of a binary request.
+   */
+  private static byte[] binaryHeader(int numInstances, int numValues) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(numInstances);
+    out.writeInt(numValues);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Test that binary predictions equal the predictions of the classifier, also with missing values
+   */
+  @Test
+  public void testBinaryPrediction() throws Exception {
+    Instances test = new Instances(data);
+    test.instance(0).setMissing(0);
+    final double[][] expected = clf.distributionsForInstances(test);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(test.numInstances());
+    out.writeInt(test.numAttributes());
+    for (Instance inst : test) {
+      for (int j = 0; j < test.numAttributes(); j++) {
+        out.writeDouble(inst.isMissing(j) ? Utils.missingValue() : inst.value(j));
+      }
+    }
+    out.flush();
+
+    HttpURLConnection conn = post("/models/iris/predict", Dl4jInferenceServer.BINARY_CONTENT_TYPE,
+        bytes.toByteArray());
+    Assert.assertEquals(200, conn.getResponseCode());
+    try (DataInputStream in = new DataInputStream(conn.getInputStream())) {
+      Assert.assertEquals(test.numInstances(), in.readInt());
+      Assert.assertEquals(test.numClasses(), in.readInt());
+      for (double[] pred : expected) {
+        for (double p : pred) {
+          Assert.assertEquals(p, in.readDouble(), 1e-6);
+        }
+      }
+    }
+  }
+
+  /**
+   * Test the health, model and metrics endpoints
+   */
+  @Test
+  public void testEndpoints() throws Exception {
+    Assert.assertTrue(server.isReady());
+    Assert.assertEquals(200, get("/health").getResponseCode());
+    Assert.assertEquals(404, get("/models/unknown").getResponseCode());
+
+    String models = read(get("/models").getInputStream());
+    Assert.assertTrue(models.contains("\"iris\""));
+    Assert.assertTrue(models.contains("\"Iris-setosa\""));
+
+    String metrics = read(get("/metrics").getInputStream());
+    Assert.assertTrue(metrics.contains("\"iris\""));
+    Assert.assertTrue(metrics.contains("\"batches\""));
+  }
+
+  private HttpURLConnection get(String path) throws Exception {
+    URL url = new URL("http://127.0.0.1:" + server.getListeningPort() + path);
+    return (HttpURLConnection) url.openConnection();
+  }
+
+  private HttpURLConnection post(String path, String contentType, byte[] body) throws Exception {
+    HttpURLConnection conn = get(path);
+    conn.setRequestMethod("POST");
+    conn.setRequestProperty("Content-Type", contentType);
+    conn.setDoOutput(true);
+    try (OutputStream out = conn.getOutputStream()) {
+      out.write(body);
+    }
+    return conn;
+  }
+
+  private static String read(InputStream in) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      bytes.write(buffer, 0, n);
+    }
+    in.close();
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
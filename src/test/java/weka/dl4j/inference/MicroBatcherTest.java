@@ -0,0 +1,139 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * MicroBatcherTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.inference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Instances;
+import weka.util.DatasetLoader;
+import weka.util.TestUtil;
+
+/**
+ * Test class for the {@link MicroBatcher}.
+ */
+public class MicroBatcherTest {
+
+  /**
+   * Trained classifier
+   */
+  private Dl4jMlpClassifier clf;
+
+  /**
+   * Iris data
+   */
+  private Instances data;
+
+  @Before
+  public void before() throws Exception {
+    data = DatasetLoader.loadIris();
+    clf = TestUtil.trainedIrisMlp();
+  }
+
+  /**
+   * Test that batched predictions equal the predictions of the classifier and that the metrics
+   * account for every request
+   */
+  @Test
+  public void testBatchedPredictions() throws Exception {
+    final double[][] expected = clf.distributionsForInstances(data);
+    try (MicroBatcher batcher = new MicroBatcher(clf, 16, 2000, 1000, 2)) {
+      List<CompletableFuture<double[]>> futures = new ArrayList<>();
+      for (int i = 0; i < data.numInstances(); i++) {
+        futures.add(batcher.submit(data.instance(i)));
+      }
+      for (int i = 0; i < data.numInstances(); i++) {
+        Assert.assertArrayEquals(expected[i], futures.get(i).get(), 1e-6);
+      }
+
+      MicroBatcher.Metrics metrics = batcher.getMetrics();
+      Assert.assertEquals(data.numInstances(), metrics.getNumRequests());
+      Assert.assertEquals(16, metrics.getBatchSizeCounts().length);
+      Assert.assertTrue(metrics.getMeanBatchSize() > 1);
+      long delays = 0;
+      for (long c : metrics.getDelayCounts()) {
+        delays += c;
+      }
+      Assert.assertEquals(data.numInstances(), delays);
+    }
+  }
+
+  /**
+   * Test that requests are rejected once the queue is full and after closing
+   */
+  @Test
+  public void testBackPressure() throws Exception {
+    MicroBatcher batcher = new MicroBatcher(clf, 1, 0, 1);
+    List<CompletableFuture<double[]>> futures = new ArrayList<>();
+    for (int i = 0; i < data.numInstances(); i++) {
+      futures.add(batcher.trySubmit(data.instance(i)));
+    }
+    int rejected = 0;
+    for (CompletableFuture<double[]> future : futures) {
+      try {
+        future.join();
+      } catch (Exception e) {
+        Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        rejected++;
+      }
+    }
+    Assert.assertEquals(rejected, batcher.getMetrics().getNumRejected());
+    Assert.assertEquals(data.numInstances() - rejected, batcher.getMetrics().getNumRequests());
+
+    batcher.close();
+    try {
+      batcher.submit(data.instance(0));
+      Assert.fail("Closed batcher accepted a request");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Test that closing the batcher cancels the requests of a batch that is still being collected
+   */
+  @Test
+  public void testCloseWithPartialBatch() throws Exception {
+    // The batch waits up to a minute for further requests
+    MicroBatcher batcher = new MicroBatcher(clf, 16, 60_000_000L, 100);
+    List<CompletableFuture<double[]>> futures = new ArrayList<>();
+    futures.add(batcher.submit(data.instance(0)));
+    futures.add(batcher.submit(data.instance(1)));
+    while (batcher.getQueueLength() > 0) {
+      Thread.sleep(10);
+    }
+    batcher.close();
+
+    for (CompletableFuture<double[]> future : futures) {
+      try {
+        future.get(10, TimeUnit.SECONDS);
+        Assert.fail("Request of the pending batch was predicted");
+      } catch (CancellationException e) {
+        // expected, a future completed with a CancellationException rethrows it unwrapped
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ReplicaPoolTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.inference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Instances;
+import weka.util.DatasetLoader;
+import weka.util.TestUtil;
+
+/**
+ * Test class for the {@link ReplicaPool}.
+ */
+public class ReplicaPoolTest {
+
+  /**
+   * Trained classifier
+   */
+  private Dl4jMlpClassifier clf;
+
+  /**
+   * Iris data
+   */
+  private Instances data;
+
+  @Before
+  public void before() throws Exception {
+    data = DatasetLoader.loadIris();
+    clf = TestUtil.trainedIrisMlp();
+  }
+
+  /**
+   * Test that the replicas use the parameters of the trained network
+   */
+  @Test
+  public void testSharedParameters() {
+    ComputationGraph model = clf.getModel();
+    ComputationGraph replica = ReplicaPool.createReplica(model);
+    Assert.assertEquals(model.params().data().address(), replica.params().data().address());
+  }
+
+  /**
+   * Test that concurrent predictions equal the predictions of the classifier
+   */
+  @Test
+  public void testConcurrentPredictions() throws Exception {
+    checkConcurrentPredictions(clf, data);
+  }
+
+  /**
+   * Test that concurrent predictions of a text RNN equal the predictions of the classifier
+   */
+  @Test
+  public void testConcurrentRnnPredictions() throws Exception {
+    Instances anger = new Instances(DatasetLoader.loadAnger(), 0, 100);
+    checkConcurrentPredictions(TestUtil.trainedAngerRnn(), anger);
+  }
+
+  /**
+   * Predict the data with several threads sharing a pool of three replicas, one instance at a time
+   * and as a whole, and compare the predictions with those of the classifier.
+   *
+   * @param clf Trained classifier
+   * @param data Data to predict
+   * @throws Exception Prediction failed
+   */
+  private static void checkConcurrentPredictions(Dl4jMlpClassifier clf, Instances data)
+      throws Exception {
+    final double[][] expected = clf.distributionsForInstances(data);
+    final ReplicaPool pool = new ReplicaPool(clf, 3);
+
+    ExecutorService executor = Executors.newFixedThreadPool(6);
+    try {
+      List<Future<double[][]>> futures = new ArrayList<>();
+      for (int t = 0; t < 6; t++) {
+        futures.add(executor.submit(() -> {
+          double[][] preds = new double[data.numInstances()][];
+          for (int i = 0; i < data.numInstances(); i++) {
+            preds[i] = pool.distributionForInstance(data.instance(i));
+          }
+          return preds;
+        }));
+      }
+      futures.add(executor.submit(() -> pool.distributionsForInstances(data)));
+      for (Future<double[][]> future : futures) {
+        double[][] actual = future.get();
+        for (int i = 0; i < expected.length; i++) {
+          Assert.assertArrayEquals(expected[i], actual[i], 1e-6);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    Assert.assertEquals(3, pool.getNumIdle());
+  }
+
+  /**
+   * Test leasing and returning replicas
+   */
+  @Test
+  public void testLease() throws Exception {
+    ReplicaPool pool = new ReplicaPool(clf, 2);
+    ReplicaPool.Replica first = pool.lease();
+    ReplicaPool.Replica second = pool.lease();
+    Assert.assertEquals(0, pool.getNumIdle());
+    Assert.assertNull(pool.tryLease(10, TimeUnit.MILLISECONDS));
+
+    first.close();
+    first.close();
+    Assert.assertEquals(1, pool.getNumIdle());
+    pool.release(second);
+    Assert.assertEquals(2, pool.getNumIdle());
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * SparseInputDenseLayerTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.layers.sparse;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.params.DefaultParamInitializer;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.Adam;
+import org.nd4j.linalg.learning.config.NoOp;
+import weka.dl4j.iterators.dataset.CsrBatch;
+
+/**
+ * JUnit tests for the lazy weight update of the {@link SparseInputDenseLayer}.
+ */
+public class SparseInputDenseLayerTest {
+
+  /**
+   * Number of outputs
+   */
+  private static final int NUM_OUTPUTS = 4;
+
+  /**
+   * Learning rate of the Adam updater
+   */
+  private static final double LEARNING_RATE = 0.01;
+
+  /**
+   * Test that only the weight rows of the columns in a batch are updated with Adam
+   */
+  @Test
+  public void testLazyAdamUpdatesUsedRowsOnly() {
+    final int numInputs = 100;
+    Layer layer = newLayer(numInputs);
+    SparseInputDenseLayer conf = (SparseInputDenseLayer) layer.conf().getLayer();
+    Assert.assertTrue(conf.isLazyWeightUpdate());
+    Assert.assertTrue(conf.getUpdaterByParam(DefaultParamInitializer.WEIGHT_KEY) instanceof NoOp);
+
+    checkUpdatedRows(backprop(layer, new int[]{3, 17}, new int[]{17, 42}), numInputs, 3, 17, 42);
+    // Rows of the previous batch must be cleared
+    checkUpdatedRows(backprop(layer, new int[]{5}), numInputs, 5);
+  }
+
+  /**
+   * Test that the cost of the gradient and update of a batch does not grow with the number of
+   * inputs
+   */
+  @Test
+  public void testBatchCostDoesNotGrowWithNumInputs() {
+    final long small = medianBackpropNanos(newLayer(1000));
+    final long large = medianBackpropNanos(newLayer(4_000_000));
+    Assert.assertTrue("Batch took " + large + "ns with 4M inputs and " + small + "ns with 1000",
+        large < 4 * small + 2_000_000);
+  }
+
+  /**
+   * Check that the weight update only has non-zero entries in the given rows, where each entry is
+   * (close to) the learning rate in magnitude, as it must be after a first Adam step.
+   */
+  private static void checkUpdatedRows(INDArray update, int numInputs, int... rows) {
+    for (int i = 0; i < numInputs; i++) {
+      final int row = i;
+      final boolean used = Arrays.stream(rows).anyMatch(r -> r == row);
+      for (int j = 0; j < NUM_OUTPUTS; j++) {
+        final double value = Math.abs(update.getDouble(row, j));
+        Assert.assertEquals("Row " + row, used ? LEARNING_RATE : 0.0, value, 1e-6);
+      }
+    }
+  }
+
+  /**
+   * Get the median time of a backward pass of a small batch, after a warm up.
+   */
+  private static long medianBackpropNanos(Layer layer) {
+    final long[] times = new long[25];
+    for (int i = -10; i < times.length; i++) {
+      final long start = System.nanoTime();
+      backprop(layer, new int[]{i + 10, 7}, new int[]{7, 99});
+      if (i >= 0) {
+        times[i] = System.nanoTime() - start;
+      }
+    }
+    Arrays.sort(times);
+    return times[times.length / 2];
+  }
+
+  /**
+   * Run a backward pass for a batch with the given columns (all values 1) and an epsilon of ones.
+   *
+   * @return Weight gradient, which holds the weight update
+   */
+  private static INDArray backprop(Layer layer, int[]... rowColumns) {
+    int[] rowPointers = new int[rowColumns.length + 1];
+    for (int i = 0; i < rowColumns.length; i++) {
+      rowPointers[i + 1] = rowPointers[i] + rowColumns[i].length;
+    }
+    int[] columns = Arrays.stream(rowColumns).flatMapToInt(Arrays::stream).toArray();
+    double[] values = new double[columns.length];
+    Arrays.fill(values, 1);
+    final int numInputs = (int) ((SparseInputDenseLayer) layer.conf().getLayer()).getNIn();
+    CsrBatch batch = new CsrBatch(numInputs, rowPointers, columns, values);
+
+    LayerWorkspaceMgr mgr = LayerWorkspaceMgr.noWorkspaces();
+    layer.setInput(batch.toFeatures(DataType.FLOAT), mgr);
+    INDArray epsilon = Nd4j.ones(DataType.FLOAT, rowColumns.length, NUM_OUTPUTS);
+    return layer.backpropGradient(epsilon, mgr).getFirst()
+        .getGradientFor(DefaultParamInitializer.WEIGHT_KEY);
+  }
+
+  /**
+   * Create a sparse dense layer with identity activation and the Adam updater.
+   */
+  private static Layer newLayer(int numInputs) {
+    SparseInputDenseLayer layerConf = new SparseInputDenseLayer();
+    layerConf.setNIn(numInputs);
+    layerConf.setNOut(NUM_OUTPUTS);
+    NeuralNetConfiguration conf = new NeuralNetConfiguration.Builder()
+        .updater(new Adam(LEARNING_RATE))
+        .weightInit(WeightInit.XAVIER)
+        .activation(Activation.IDENTITY)
+        .layer(layerConf)
+        .build();
+    final long numParams = layerConf.initializer().numParams(conf);
+    Layer layer = conf.getLayer().instantiate(conf, Collections.emptyList(), 0,
+        Nd4j.create(DataType.FLOAT, 1, numParams), true, DataType.FLOAT);
+    layer.setBackpropGradientsViewArray(Nd4j.create(DataType.FLOAT, 1, numParams));
+    return layer;
+  }
+}
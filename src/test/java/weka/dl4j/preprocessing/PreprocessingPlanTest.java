@@ -0,0 +1,246 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * PreprocessingPlanTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.preprocessing;
+
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.dl4j.iterators.dataset.cache.ContentHash;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.NominalToBinary;
+import weka.filters.unsupervised.attribute.Normalize;
+import weka.filters.unsupervised.attribute.ReplaceMissingValues;
+import weka.filters.unsupervised.attribute.Standardize;
+import weka.util.DatasetLoader;
+
+/**
+ * Test class for the {@link PreprocessingPlan}.
+ */
+public class PreprocessingPlanTest {
+
+  /**
+   * Filters of the last call to {@link #fitAndCompile(Instances, Filter)}
+   */
+  private Filter[] filters;
+
+  /**
+   * Test numeric attributes with missing values, standardized
+   */
+  @Test
+  public void testMissingValuesStandardize() throws Exception {
+    assertSameAsFilters(DatasetLoader.loadIrisMissingValues(), new Standardize());
+  }
+
+  /**
+   * Test nominal attributes with missing values and the class in the middle, normalized
+   */
+  @Test
+  public void testNominalNormalize() throws Exception {
+    assertSameAsFilters(makeMixedData(300, false), new Normalize());
+  }
+
+  /**
+   * Test a numeric class, which is scaled like the features
+   */
+  @Test
+  public void testNumericClassStandardize() throws Exception {
+    assertSameAsFilters(makeMixedData(300, true), new Standardize());
+  }
+
+  /**
+   * Test without scaling
+   */
+  @Test
+  public void testNoScaling() throws Exception {
+    assertSameAsFilters(makeMixedData(50, false), null);
+  }
+
+  /**
+   * Test that a string attribute is rejected
+   */
+  @Test
+  public void testUnsupportedAttribute() throws Exception {
+    Instances data = makeMixedData(10, false);
+    data.insertAttributeAt(new Attribute("text", (ArrayList<String>) null), 0);
+    Assert.assertNull(fitAndCompile(data, null));
+  }
+
+  /**
+   * Test that the classifier predicts the same with and without the plan
+   */
+  @Test
+  public void testClassifierPredictions() throws Exception {
+    Instances data = makeMixedData(100, false);
+
+    Dl4jMlpClassifier withPlan = new Dl4jMlpClassifier();
+    withPlan.setNumEpochs(2);
+    withPlan.buildClassifier(data);
+
+    Dl4jMlpClassifier withFilters = new Dl4jMlpClassifier() {
+      @Override
+      protected PreprocessingPlan compilePreprocessingPlan(Instances data, Instances filtered) {
+        Assert.assertNotNull(super.compilePreprocessingPlan(data, filtered));
+        return null;
+      }
+    };
+    withFilters.setNumEpochs(2);
+    withFilters.buildClassifier(data);
+
+    double[][] expected = withFilters.distributionsForInstances(data);
+    double[][] actual = withPlan.distributionsForInstances(data);
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertArrayEquals(expected[i], actual[i], 1e-6);
+    }
+  }
+
+  /**
+   * Test that the hash of a plan depends on the statistics it was fitted with
+   */
+  @Test
+  public void testHashDependsOnStatistics() throws Exception {
+    Instances data = makeMixedData(100, false);
+    final String hash = fitAndCompile(data, new Standardize()).updateHash(new ContentHash())
+        .toHex();
+    Assert.assertEquals(hash, fitAndCompile(data, new Standardize())
+        .updateHash(new ContentHash()).toHex());
+
+    Instances subset = new Instances(data, 0, 50);
+    Assert.assertNotEquals(hash, fitAndCompile(subset, new Standardize())
+        .updateHash(new ContentHash()).toHex());
+  }
+
+  /**
+   * Test that predictions for instances with another format are rejected
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testIncompatiblePredictions() throws Exception {
+    Instances data = makeMixedData(100, false);
+    Dl4jMlpClassifier clf = new Dl4jMlpClassifier();
+    clf.setNumEpochs(1);
+    clf.buildClassifier(data);
+
+    Instances other = new Instances(data);
+    other.deleteAttributeAt(4);
+    clf.distributionsForInstances(other);
+  }
+
+  /**
+   * Assert that the plan yields the output of the filter chain on all instances.
+   */
+  private void assertSameAsFilters(Instances data, Filter scaling) throws Exception {
+    PreprocessingPlan plan = fitAndCompile(data, scaling);
+    Assert.assertNotNull(plan);
+    Assert.assertTrue(plan.isCompatible(data));
+
+    Instances filtered = applyFilters(data);
+    Assert.assertEquals(filtered.numAttributes() - 1, plan.getNumFeatures());
+
+    double[] row = new double[plan.getNumFeatures()];
+    for (int i = 0; i < data.numInstances(); i++) {
+      plan.transform(data.instance(i), row);
+      double[] expected = filtered.instance(i).toDoubleArray();
+      int col = 0;
+      for (int j = 0; j < expected.length; j++) {
+        final double actual =
+            j == filtered.classIndex() ? plan.transformClass(data.instance(i)) : row[col++];
+        Assert.assertTrue(expected[j] + " != " + actual, PreprocessingPlan.agrees(expected[j],
+            actual));
+      }
+    }
+  }
+
+  /**
+   * Fit the filters the way the Dl4jMlpClassifier does and compile them.
+   */
+  private PreprocessingPlan fitAndCompile(Instances data, Filter scaling) throws Exception {
+    ReplaceMissingValues replaceMissing = new ReplaceMissingValues();
+    replaceMissing.setInputFormat(data);
+    Instances tmp = Filter.useFilter(data, replaceMissing);
+    NominalToBinary nominalToBinary = new NominalToBinary();
+    nominalToBinary.setInputFormat(tmp);
+    tmp = Filter.useFilter(tmp, nominalToBinary);
+    if (scaling != null) {
+      scaling.setOptions(new String[]{"-unset-class-temporarily"});
+      scaling.setInputFormat(tmp);
+      Filter.useFilter(tmp, scaling);
+    }
+    filters = scaling == null ? new Filter[]{replaceMissing, nominalToBinary}
+        : new Filter[]{replaceMissing, nominalToBinary, scaling};
+    return PreprocessingPlan.compile(data, replaceMissing, nominalToBinary, scaling);
+  }
+
+  /**
+   * Apply the fitted filters.
+   */
+  private Instances applyFilters(Instances data) throws Exception {
+    for (Filter f : filters) {
+      data = Filter.useFilter(data, f);
+    }
+    return data;
+  }
+
+  /**
+   * Create data with numeric, binary and multi-valued nominal attributes, about 10% missing values
+   * and the class in the middle.
+   */
+  private Instances makeMixedData(int numInstances, boolean numericClass) {
+    ArrayList<String> colors = new ArrayList<>();
+    colors.add("red");
+    colors.add("green");
+    colors.add("blue");
+    ArrayList<String> flags = new ArrayList<>();
+    flags.add("no");
+    flags.add("yes");
+    ArrayList<String> classValues = new ArrayList<>();
+    classValues.add("a");
+    classValues.add("b");
+
+    ArrayList<Attribute> atts = new ArrayList<>();
+    atts.add(new Attribute("num0"));
+    atts.add(new Attribute("color", colors));
+    atts.add(numericClass ? new Attribute("class") : new Attribute("class", classValues));
+    atts.add(new Attribute("flag", flags));
+    atts.add(new Attribute("num1"));
+    Instances data = new Instances("mixed", atts, numInstances);
+    data.setClassIndex(2);
+
+    Random rand = new Random(42);
+    for (int i = 0; i < numInstances; i++) {
+      double[] values = new double[5];
+      values[0] = rand.nextGaussian() * 3 + 1;
+      values[1] = rand.nextInt(3);
+      values[2] = numericClass ? values[0] + rand.nextGaussian() : rand.nextInt(2);
+      values[3] = rand.nextInt(2);
+      values[4] = rand.nextDouble() * 100;
+      for (int j = 0; j < values.length; j++) {
+        if (j != 2 && rand.nextDouble() < 0.1) {
+          values[j] = Utils.missingValue();
+        }
+      }
+      data.add(new DenseInstance(1.0, values));
+    }
+    return data;
+  }
+}
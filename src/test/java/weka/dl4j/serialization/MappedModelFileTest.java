@@ -0,0 +1,85 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * MappedModelFileTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.serialization;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Instances;
+import weka.dl4j.layers.DenseLayer;
+import weka.dl4j.layers.OutputLayer;
+import weka.util.DatasetLoader;
+import weka.util.TestUtil;
+
+/**
+ * Tests for the {@link MappedModelFile} format.
+ */
+public class MappedModelFileTest {
+
+  /**
+   * Mapped model file written by the tests
+   */
+  private File modelFile;
+
+  @Before
+  public void setUp() throws Exception {
+    modelFile = Files.createTempFile("mapped", ".model").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    modelFile.delete();
+  }
+
+  @Test
+  public void testPredictionsUnchanged() throws Exception {
+    Instances data = DatasetLoader.loadIris();
+    Dl4jMlpClassifier clf = new Dl4jMlpClassifier();
+    clf.setSeed(TestUtil.SEED);
+    clf.setNumEpochs(TestUtil.DEFAULT_NUM_EPOCHS);
+    DenseLayer denseLayer = new DenseLayer();
+    denseLayer.setNOut(8);
+    clf.setLayers(denseLayer, new OutputLayer());
+    clf.buildClassifier(data);
+
+    MappedModelFile.write(clf, modelFile);
+    assertTrue(MappedModelFile.isMappedModelFile(modelFile));
+
+    Dl4jMlpClassifier mapped = MappedModelFile.read(modelFile);
+
+    double[][] expected = clf.distributionsForInstances(data);
+    double[][] actual = mapped.distributionsForInstances(data);
+    for (int i = 0; i < expected.length; i++) {
+      assertArrayEquals(expected[i], actual[i], 1e-7);
+    }
+  }
+
+  @Test
+  public void testRegularModelFileIsNotMapped() throws Exception {
+    assertFalse(MappedModelFile.isMappedModelFile(
+        new File("src/test/resources/models/custom_1x28x28_mnist_30e.model")));
+  }
+}
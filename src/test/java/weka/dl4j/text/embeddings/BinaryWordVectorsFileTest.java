@@ -0,0 +1,145 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * BinaryWordVectorsFileTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.text.embeddings;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Tests for the {@link BinaryWordVectorsFile} format and the {@link WordVectorsTextParser}.
+ */
+public class BinaryWordVectorsFileTest {
+
+  /**
+   * Binary word vector file written by the tests
+   */
+  private File binaryFile;
+
+  @Before
+  public void setUp() throws Exception {
+    binaryFile = Files.createTempFile("vectors", BinaryWordVectorsFile.EXTENSION).toFile();
+  }
+
+  @After
+  public void tearDown() {
+    binaryFile.delete();
+  }
+
+  @Test
+  public void testConvertSmallEmbeddings() throws Exception {
+    final File[] embeddings = new File("src/test/resources/embeddings/small").listFiles();
+    Arrays.sort(embeddings);
+    for (File f : embeddings) {
+      WordVectorsTextParser.convert(f, binaryFile, 2);
+      assertTrue(BinaryWordVectorsFile.isBinaryWordVectorsFile(binaryFile));
+
+      BinaryWordVectorsFile vectors = BinaryWordVectorsFile.open(binaryFile);
+      assertEquals(f.getName(), 3, vectors.numWords());
+      assertEquals(f.getName(), 4, vectors.getVectorSize());
+      assertEquals(f.getName(), "christmas", vectors.getWord(1));
+      assertEquals(f.getName(), 1, vectors.indexOf("christmas"));
+      assertEquals(f.getName(), -1, vectors.indexOf("santa"));
+
+      INDArray matrix = vectors.readVectors();
+      assertArrayEquals(new float[]{4, 5, 6, 7}, matrix.getRow(1).toFloatVector(), 0f);
+
+      WordVectors wordVectors = vectors.toWordVectors();
+      assertArrayEquals(new double[]{3, 4, 5, 6}, wordVectors.getWordVector("tree"), 0);
+      assertEquals(f.getName(), 1, wordVectors.vocab().indexOf("christmas"));
+      assertFalse(f.getName(), wordVectors.hasWord("santa"));
+    }
+  }
+
+  /**
+   * Test that the mapped word vectors read the vectors of single words and gathered rows
+   */
+  @Test
+  public void testMappedWordVectors() throws Exception {
+    final File[] embeddings = new File("src/test/resources/embeddings/small").listFiles();
+    Arrays.sort(embeddings);
+    WordVectorsTextParser.convert(embeddings[0], binaryFile, 1);
+    BinaryWordVectorsFile vectors = BinaryWordVectorsFile.open(binaryFile);
+
+    WordVectors wordVectors = vectors.toWordVectors();
+    assertTrue(wordVectors instanceof MappedWordVectors);
+    assertEquals(3, wordVectors.vocab().numWords());
+    assertEquals("christmas", wordVectors.vocab().wordAtIndex(1));
+    assertEquals(-1, wordVectors.vocab().indexOf("santa"));
+    assertNull(wordVectors.getWordVectorMatrix("santa"));
+    assertArrayEquals(new float[]{4, 5, 6, 7},
+        wordVectors.getWordVectorMatrix("christmas").toFloatVector(), 0f);
+
+    INDArray rows = vectors.readVectors(new int[]{1, 1, 0});
+    assertArrayEquals(new long[]{3, 4}, rows.shape());
+    assertArrayEquals(new float[]{4, 5, 6, 7}, rows.getRow(0).toFloatVector(), 0f);
+    assertEquals(vectors.readVectors().getRow(0), rows.getRow(2));
+    assertEquals(rows.getRow(0), wordVectors.getWordVectors(Arrays.asList("christmas", "santa"))
+        .getRow(0));
+  }
+
+  @Test
+  public void testConvertWord2VecText() throws Exception {
+    final File text = Files.createTempFile("vectors", ".txt").toFile();
+    try {
+      // Header, a word looking like a number, a repeated word and trailing separators
+      Files.write(text, ("4 2\n"
+          + "the 0.5 -1.5 \n"
+          + "42 1e-3 2\n"
+          + "new york 3 4\n"
+          + "the 9 9\n").getBytes(StandardCharsets.UTF_8));
+      WordVectorsTextParser.convert(text, binaryFile, 1);
+
+      BinaryWordVectorsFile vectors = BinaryWordVectorsFile.open(binaryFile);
+      assertEquals(3, vectors.numWords());
+      assertEquals(2, vectors.getVectorSize());
+      assertEquals("new york", vectors.getWord(2));
+      assertEquals("42", vectors.getWord(1));
+      assertArrayEquals(new float[]{0.5f, -1.5f},
+          vectors.readVectors().getRow(0).toFloatVector(), 0f);
+    } finally {
+      text.delete();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testMalformedLine() throws Exception {
+    final File text = Files.createTempFile("vectors", ".csv").toFile();
+    try {
+      Files.write(text, "a,1,2\nb,1,x\n".getBytes(StandardCharsets.UTF_8));
+      WordVectorsTextParser.convert(text, binaryFile);
+    } finally {
+      text.delete();
+      assertFalse(BinaryWordVectorsFile.isBinaryWordVectorsFile(binaryFile));
+    }
+  }
+}
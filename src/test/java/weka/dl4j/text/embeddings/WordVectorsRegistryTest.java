@@ -0,0 +1,97 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * WordVectorsRegistryTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.text.embeddings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link WordVectorsRegistry}.
+ */
+public class WordVectorsRegistryTest {
+
+  /**
+   * Binary word vector file registered by the tests
+   */
+  private File binaryFile;
+
+  @Before
+  public void setUp() throws Exception {
+    binaryFile = Files.createTempFile("vectors", BinaryWordVectorsFile.EXTENSION).toFile();
+    final File[] embeddings = new File("src/test/resources/embeddings/small").listFiles();
+    Arrays.sort(embeddings);
+    WordVectorsTextParser.convert(embeddings[0], binaryFile, 1);
+  }
+
+  @After
+  public void tearDown() {
+    binaryFile.delete();
+  }
+
+  /**
+   * Test that handles share the word vectors and that the entry is dropped after the last release
+   */
+  @Test
+  public void testRelease() throws Exception {
+    WordVectorsRegistry.Handle first = WordVectorsRegistry.acquire(binaryFile);
+    WordVectorsRegistry.Handle second = WordVectorsRegistry.acquire(binaryFile);
+    assertSame(first.getWordVectors(), second.getWordVectors());
+    assertEquals(3, first.getWordVectors().vocab().numWords());
+
+    first.release();
+    first.release();
+    assertTrue(WordVectorsRegistry.isRegistered(binaryFile));
+    second.release();
+    assertFalse(WordVectorsRegistry.isRegistered(binaryFile));
+  }
+
+  /**
+   * Test that the entry of a collected owner is dropped without any further acquire
+   */
+  @Test
+  public void testCollectedOwnerReleased() throws Exception {
+    acquireForTemporaryOwner();
+    assertTrue(WordVectorsRegistry.isRegistered(binaryFile));
+
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (WordVectorsRegistry.isRegistered(binaryFile)
+        && System.currentTimeMillis() < deadline) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    assertFalse(WordVectorsRegistry.isRegistered(binaryFile));
+  }
+
+  /**
+   * Acquire the word vectors for an owner that is unreachable after the call.
+   */
+  private void acquireForTemporaryOwner() throws Exception {
+    final Object owner = new Object();
+    WordVectorsRegistry.acquire(binaryFile, owner);
+  }
+}
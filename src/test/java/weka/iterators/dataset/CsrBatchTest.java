@@ -0,0 +1,115 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * CsrBatchTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.iterators.dataset;
+
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.dl4j.InstancesConverter;
+import weka.dl4j.iterators.dataset.CsrBatch;
+
+/**
+ * JUnit tests for the {@link CsrBatch}
+ */
+public class CsrBatchTest {
+
+  /**
+   * Number of attributes (excluding the class)
+   */
+  private static final int NUM_ATTRIBUTES = 1000;
+  /**
+   * Sparse data with the class as first attribute
+   */
+  private Instances data;
+
+  @Before
+  public void init() {
+    ArrayList<Attribute> atts = new ArrayList<>();
+    ArrayList<String> classValues = new ArrayList<>();
+    classValues.add("a");
+    classValues.add("b");
+    atts.add(new Attribute("class", classValues));
+    for (int i = 0; i < NUM_ATTRIBUTES; i++) {
+      atts.add(new Attribute("att" + i));
+    }
+    data = new Instances("sparse", atts, 50);
+    data.setClassIndex(0);
+
+    Random rand = new Random(42);
+    for (int i = 0; i < 50; i++) {
+      double[] values = new double[NUM_ATTRIBUTES + 1];
+      values[0] = rand.nextInt(2);
+      for (int j = 0; j < 5; j++) {
+        values[1 + rand.nextInt(NUM_ATTRIBUTES)] = rand.nextGaussian();
+      }
+      data.add(new SparseInstance(1.0, values));
+    }
+  }
+
+  /**
+   * Test that the batch is the dense feature matrix without the class
+   */
+  @Test
+  public void testToDense() {
+    CsrBatch batch = CsrBatch.fromInstances(data, null, 0, data.numInstances());
+    Assert.assertEquals(NUM_ATTRIBUTES, batch.getNumColumns());
+    Assert.assertTrue(batch.getMaxRowNonZeros() <= 5);
+    Assert.assertEquals(InstancesConverter.toDataSet(data).getFeatures(),
+        batch.toDense(Nd4j.defaultFloatingPointType()));
+  }
+
+  /**
+   * Test that packing and unpacking yields the same batch, with a width depending on the non-zeros
+   */
+  @Test
+  public void testPackedRoundTrip() {
+    CsrBatch batch = CsrBatch.fromInstances(data, null, 10, 20);
+    INDArray packed = batch.toFeatures(DataType.FLOAT);
+    Assert.assertEquals(20, packed.rows());
+    Assert.assertEquals(2 * batch.getMaxRowNonZeros(), packed.columns());
+
+    CsrBatch unpacked = CsrBatch.fromFeatures(packed, NUM_ATTRIBUTES);
+    Assert.assertArrayEquals(batch.getRowPointers(), unpacked.getRowPointers());
+    Assert.assertArrayEquals(batch.getColumnIndices(), unpacked.getColumnIndices());
+    Assert.assertArrayEquals(batch.getValues(), unpacked.getValues(), 1e-6);
+  }
+
+  /**
+   * Test that the compact product equals the dense product
+   */
+  @Test
+  public void testCompactProduct() {
+    CsrBatch batch = CsrBatch.fromInstances(data, null, 0, 32);
+    INDArray weights = Nd4j.rand(DataType.DOUBLE, NUM_ATTRIBUTES, 8);
+
+    final int[] columns = batch.uniqueColumns();
+    INDArray compact = batch.toCompactDense(columns, DataType.DOUBLE)
+        .mmul(Nd4j.pullRows(weights, 1, columns));
+    INDArray dense = batch.toDense(DataType.DOUBLE).mmul(weights);
+    Assert.assertTrue(dense.equalsWithEps(compact, 1e-8));
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * EmbeddingLookupTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.iterators.dataset;
+
+import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.dl4j.iterators.dataset.sequence.text.EmbeddingLookup;
+import weka.dl4j.iterators.dataset.sequence.text.TokenIdCorpus;
+import weka.util.DatasetLoader;
+
+/**
+ * JUnit tests for the {@link EmbeddingLookup}
+ */
+public class EmbeddingLookupTest {
+
+  /**
+   * Test that the gathered rows equal the single word vectors, with zero padding and the given
+   * unknown vector
+   */
+  @Test
+  public void testGather() throws Exception {
+    WordVectors wordVectors =
+        WordVectorSerializer.loadStaticModel(DatasetLoader.loadGoogleNewsVectors());
+    EmbeddingLookup lookup = new EmbeddingLookup(wordVectors);
+    int vectorSize = lookup.getVectorSize();
+    INDArray unknown = Nd4j.ones(Nd4j.defaultFloatingPointType(), 1, vectorSize);
+
+    int[] ids = {3, EmbeddingLookup.PADDING_ID, TokenIdCorpus.UNKNOWN_ID, 0, 3};
+    INDArray vectors = lookup.gather(ids, unknown);
+    Assert.assertArrayEquals(new long[]{ids.length, vectorSize}, vectors.shape());
+    for (int i = 0; i < ids.length; i++) {
+      INDArray expected;
+      if (ids[i] >= 0) {
+        expected = wordVectors.getWordVectorMatrix(wordVectors.vocab().wordAtIndex(ids[i]));
+      } else if (ids[i] == TokenIdCorpus.UNKNOWN_ID) {
+        expected = unknown;
+      } else {
+        expected = Nd4j.zeros(Nd4j.defaultFloatingPointType(), vectorSize);
+      }
+      Assert.assertEquals(expected.reshape(vectorSize).castTo(vectors.dataType()),
+          vectors.getRow(i));
+    }
+    Assert.assertEquals(ids[0], lookup.indexOf(wordVectors.vocab().wordAtIndex(ids[0])));
+    Assert.assertEquals(TokenIdCorpus.UNKNOWN_ID, lookup.indexOf("UNKNOWN_WORD_SENTINEL"));
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ImageTensorCacheTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.iterators.dataset;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+import org.datavec.image.loader.NativeImageLoader;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import weka.dl4j.iterators.dataset.cache.ImageTensorCache;
+
+/**
+ * Test class for the {@link ImageTensorCache}.
+ */
+public class ImageTensorCacheTest {
+
+  /**
+   * Image height and width
+   */
+  private static final int SIZE = 2;
+
+  /**
+   * Directory of the images and the cache
+   */
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("image-cache").toFile();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.walk(dir.toPath()).sorted(Collections.reverseOrder()).map(Path::toFile)
+        .forEach(File::delete);
+  }
+
+  /**
+   * Test that a modified image is decoded again into its slot
+   */
+  @Test
+  public void testModifiedImageInvalidatesSlot() throws Exception {
+    File first = writeImage("first.png", 10);
+    File second = writeImage("second.png", 20);
+    ImageTensorCache cache = newCache();
+    int[] slots = cache.update(Arrays.asList(first, second), this::newLoader, 1);
+    Assert.assertArrayEquals(pixels(10), read(cache, slots[0]));
+
+    writeImage("first.png", 30);
+    Assert.assertTrue(first.setLastModified(first.lastModified() + 2000));
+    int[] updated = cache.update(Arrays.asList(first, second), this::newLoader, 1);
+    Assert.assertArrayEquals(slots, updated);
+    Assert.assertArrayEquals(pixels(30), read(cache, updated[0]));
+    Assert.assertArrayEquals(pixels(20), read(cache, updated[1]));
+    cache.close();
+  }
+
+  /**
+   * Test that caches sharing a directory see the images added by each other
+   */
+  @Test
+  public void testSharedIndex() throws Exception {
+    File first = writeImage("first.png", 10);
+    File second = writeImage("second.png", 20);
+    File third = writeImage("third.png", 30);
+    ImageTensorCache a = newCache();
+    ImageTensorCache b = newCache();
+    a.update(Collections.singletonList(first), this::newLoader, 1);
+    int[] slotsB = b.update(Arrays.asList(first, second), this::newLoader, 1);
+    int[] slotsA = a.update(Arrays.asList(second, third), this::newLoader, 1);
+
+    Assert.assertEquals(slotsB[1], slotsA[0]);
+    Assert.assertEquals(2, slotsA[1]);
+    Assert.assertArrayEquals(pixels(20), read(a, slotsA[0]));
+    Assert.assertArrayEquals(pixels(30), read(a, slotsA[1]));
+    a.close();
+    b.close();
+  }
+
+  /**
+   * Test that caches on the same directory can be updated concurrently within one JVM
+   */
+  @Test
+  public void testConcurrentUpdates() throws Exception {
+    final List<File> files = Arrays.asList(writeImage("first.png", 10),
+        writeImage("second.png", 20));
+    final ImageTensorCache a = newCache();
+    final ImageTensorCache b = newCache();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<int[]>> futures = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        final ImageTensorCache cache = i % 2 == 0 ? a : b;
+        futures.add(executor.submit(() -> cache.update(files, this::newLoader, 1)));
+      }
+      final int[] expected = futures.get(0).get();
+      for (Future<int[]> future : futures) {
+        Assert.assertArrayEquals(expected, future.get());
+      }
+      Assert.assertArrayEquals(pixels(20), read(b, expected[1]));
+    } finally {
+      executor.shutdownNow();
+    }
+    a.close();
+    b.close();
+  }
+
+  /**
+   * Write a grayscale image with all pixels set to the given value.
+   */
+  private File writeImage(String name, int value) throws IOException {
+    BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_BYTE_GRAY);
+    for (int y = 0; y < SIZE; y++) {
+      for (int x = 0; x < SIZE; x++) {
+        image.getRaster().setSample(x, y, 0, value);
+      }
+    }
+    File file = new File(dir, name);
+    ImageIO.write(image, "png", file);
+    return file;
+  }
+
+  /**
+   * Get the cached bytes of an image with all pixels set to the given value.
+   */
+  private static byte[] pixels(int value) {
+    byte[] pixels = new byte[SIZE * SIZE];
+    Arrays.fill(pixels, (byte) value);
+    return pixels;
+  }
+
+  private ImageTensorCache newCache() {
+    return new ImageTensorCache(new File(dir, "cache"), SIZE, SIZE, 1, false, "test");
+  }
+
+  private NativeImageLoader newLoader() {
+    return new NativeImageLoader(SIZE, SIZE, 1);
+  }
+
+  private static byte[] read(ImageTensorCache cache, int slot) throws IOException {
+    byte[] pixels = new byte[cache.getImageBytes()];
+    cache.read(slot, pixels, 0);
+    return pixels;
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * InstancesDataSetIteratorTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.iterators.dataset;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import weka.core.Instances;
+import weka.dl4j.Utils;
+import weka.dl4j.iterators.dataset.DefaultDataSetIterator;
+import weka.dl4j.iterators.dataset.InstancesDataSetIterator;
+import weka.util.DatasetLoader;
+
+/**
+ * JUnit tests for the {@link InstancesDataSetIterator}
+ */
+public class InstancesDataSetIteratorTest {
+
+  /**
+   * Batch size
+   */
+  private static final int BATCH_SIZE = 32;
+  /**
+   * Data
+   */
+  private Instances data;
+
+  @Before
+  public void init() throws Exception {
+    data = DatasetLoader.loadIris();
+  }
+
+  /**
+   * Test that the batches equal those of the DefaultDataSetIterator, including the last partial
+   * batch returned by next()
+   */
+  @Test
+  public void testSameBatchesAsDefault() {
+    DefaultDataSetIterator expected =
+        new DefaultDataSetIterator(Utils.instancesToDataSet(data), BATCH_SIZE);
+    InstancesDataSetIterator actual = new InstancesDataSetIterator(data, BATCH_SIZE);
+
+    int offset = 0;
+    while (offset < data.numInstances()) {
+      Assert.assertEquals(expected.hasNext(), actual.hasNext());
+      DataSet e = expected.next();
+      DataSet a = actual.next();
+      Assert.assertEquals(e.getFeatures(), a.getFeatures());
+      Assert.assertEquals(e.getLabels(), a.getLabels());
+      offset += a.numExamples();
+    }
+    Assert.assertEquals(data.numInstances(), offset);
+    Assert.assertFalse(actual.hasNext());
+  }
+
+  /**
+   * Test that a shuffled epoch visits every row exactly once in a new order
+   */
+  @Test
+  public void testShuffledEpoch() {
+    InstancesDataSetIterator it = new InstancesDataSetIterator(data, 1, true, 42);
+    INDArray firstEpoch = collectLabels(it);
+    it.reset();
+    INDArray secondEpoch = collectLabels(it);
+
+    Assert.assertEquals(firstEpoch.sum(0), secondEpoch.sum(0));
+    Assert.assertNotEquals(firstEpoch, secondEpoch);
+  }
+
+  /**
+   * Test that an iterator positioned at an epoch visits the rows in the same order as an iterator
+   * that was reset up to that epoch
+   */
+  @Test
+  public void testSetEpoch() {
+    InstancesDataSetIterator reset = new InstancesDataSetIterator(data, 1, true, 42);
+    reset.reset();
+    reset.reset();
+    InstancesDataSetIterator positioned = new InstancesDataSetIterator(data, 1, true, 42);
+    positioned.setEpoch(2);
+    Assert.assertEquals(collectLabels(reset), collectLabels(positioned));
+
+    reset.reset();
+    positioned.reset();
+    Assert.assertEquals(collectLabels(reset), collectLabels(positioned));
+  }
+
+  /**
+   * Collect the labels of one epoch
+   */
+  private INDArray collectLabels(InstancesDataSetIterator it) {
+    INDArray labels = null;
+    int row = 0;
+    while (it.hasNext()) {
+      INDArray next = it.next().getLabels();
+      if (labels == null) {
+        labels = next.ulike().reshape(data.numInstances(), next.columns());
+      }
+      labels.putRow(row++, next.getRow(0));
+    }
+    return labels;
+  }
+}
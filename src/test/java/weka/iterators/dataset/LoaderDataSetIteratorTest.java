@@ -0,0 +1,122 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * LoaderDataSetIteratorTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.iterators.dataset;
+
+import java.io.File;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.dataset.DataSet;
+import weka.core.Instances;
+import weka.core.converters.ArffLoader;
+import weka.dl4j.iterators.dataset.LoaderDataSetIterator;
+import weka.dl4j.iterators.instance.DefaultInstanceIterator;
+import weka.util.DatasetLoader;
+
+/**
+ * JUnit tests for the {@link LoaderDataSetIterator}
+ */
+public class LoaderDataSetIteratorTest {
+
+  /**
+   * Seed
+   */
+  private static final int SEED = 42;
+  /**
+   * Batch size
+   */
+  private static final int BATCH_SIZE = 16;
+  /**
+   * Loader for the iris data
+   */
+  private ArffLoader loader;
+
+  @Before
+  public void init() throws Exception {
+    loader = new ArffLoader();
+    loader.setFile(new File("src/test/resources/nominal/iris.arff"));
+  }
+
+  /**
+   * Test that every epoch yields all full mini batches of the data
+   */
+  @Test
+  public void testEpochs() throws Exception {
+    final int numInstances = DatasetLoader.NUM_INSTANCES_IRIS;
+    final int numAttributes = 4;
+    DefaultInstanceIterator dii = new DefaultInstanceIterator();
+    LoaderDataSetIterator it = new LoaderDataSetIterator(loader, numAttributes, chunk -> chunk,
+        dii, BATCH_SIZE, 50, 2, SEED);
+
+    for (int epoch = 0; epoch < 3; epoch++) {
+      int numSamples = 0;
+      while (it.hasNext()) {
+        DataSet next = it.next();
+        Assert.assertEquals(numAttributes, next.getFeatures().columns());
+        Assert.assertEquals(DatasetLoader.NUM_CLASSES_IRIS, next.getLabels().columns());
+        numSamples += next.numExamples();
+      }
+      // Chunks are rounded up to 64 instances: 64 + 64 + 22, the last partial batch is dropped
+      Assert.assertEquals(numInstances - numInstances % BATCH_SIZE, numSamples);
+      it.reset();
+    }
+    it.shutdown();
+    Assert.assertFalse(it.hasNext());
+  }
+
+  /**
+   * Test that preprocessing errors are passed on to the consumer
+   */
+  @Test(expected = RuntimeException.class)
+  public void testPreprocessingError() {
+    LoaderDataSetIterator it = new LoaderDataSetIterator(loader, 4, chunk -> {
+      throw new Exception("Preprocessing failed");
+    }, new DefaultInstanceIterator(), BATCH_SIZE, 50, 2, SEED);
+    it.hasNext();
+  }
+
+  /**
+   * Test that the column counts are available at the end of an epoch
+   */
+  @Test
+  public void testColumnsAtEndOfEpoch() {
+    LoaderDataSetIterator it = new LoaderDataSetIterator(loader, 4, chunk -> chunk,
+        new DefaultInstanceIterator(), BATCH_SIZE, 50, 2, SEED);
+    while (it.hasNext()) {
+      it.next();
+    }
+    Assert.assertEquals(4, it.inputColumns());
+    Assert.assertEquals(DatasetLoader.NUM_CLASSES_IRIS, it.totalOutcomes());
+    it.shutdown();
+  }
+
+  /**
+   * Test that the column counts of a loader without mini batches cannot be determined
+   */
+  @Test(expected = IllegalStateException.class)
+  public void testColumnsWithoutBatches() {
+    LoaderDataSetIterator it = new LoaderDataSetIterator(loader, 4,
+        chunk -> new Instances(chunk, 0), new DefaultInstanceIterator(), BATCH_SIZE, 50, 2, SEED);
+    try {
+      it.inputColumns();
+    } finally {
+      it.shutdown();
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ParallelDataSetIteratorTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.iterators.dataset;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import weka.core.Instances;
+import weka.dl4j.iterators.dataset.ParallelDataSetIterator;
+import weka.dl4j.iterators.instance.DefaultInstanceIterator;
+import weka.dl4j.iterators.instance.ImageInstanceIterator;
+import weka.util.DatasetLoader;
+
+/**
+ * JUnit tests for the {@link ParallelDataSetIterator}
+ */
+public class ParallelDataSetIteratorTest {
+
+  /**
+   * Batch size
+   */
+  private static final int BATCH_SIZE = 16;
+  /**
+   * Seed
+   */
+  private static final int SEED = 42;
+  /**
+   * Data
+   */
+  private Instances data;
+  /**
+   * Shuffling instance iterator
+   */
+  private DefaultInstanceIterator instanceIterator;
+
+  @Before
+  public void init() throws Exception {
+    data = DatasetLoader.loadIris();
+    instanceIterator = new DefaultInstanceIterator();
+    instanceIterator.setShuffle(true);
+    instanceIterator.setTrainBatchSize(BATCH_SIZE);
+  }
+
+  /**
+   * Test that ordered batches equal those of the sequential iterator over several shuffled epochs,
+   * including the last partial batch returned by next()
+   */
+  @Test
+  public void testSameBatchesAsSequential() throws Exception {
+    DataSetIterator expected = instanceIterator.getDataSetIterator(data, SEED, BATCH_SIZE);
+    ParallelDataSetIterator actual =
+        new ParallelDataSetIterator(instanceIterator, data, SEED, BATCH_SIZE, 4, true);
+
+    for (int epoch = 0; epoch < 3; epoch++) {
+      int offset = 0;
+      while (offset < data.numInstances()) {
+        Assert.assertEquals(expected.hasNext(), actual.hasNext());
+        DataSet e = expected.next();
+        DataSet a = actual.next();
+        Assert.assertEquals(e.getFeatures(), a.getFeatures());
+        Assert.assertEquals(e.getLabels(), a.getLabels());
+        offset += a.numExamples();
+      }
+      Assert.assertEquals(data.numInstances(), offset);
+      Assert.assertFalse(actual.hasNext());
+      expected.reset();
+      actual.reset();
+    }
+    actual.shutdown();
+  }
+
+  /**
+   * Test that unordered batches contain every row exactly once
+   */
+  @Test
+  public void testUnorderedEpoch() throws Exception {
+    ParallelDataSetIterator it =
+        new ParallelDataSetIterator(instanceIterator, data, SEED, BATCH_SIZE, 4, false);
+    it.reset();
+
+    Set<String> rows = new HashSet<>();
+    int count = 0;
+    while (count < data.numInstances()) {
+      DataSet batch = it.next();
+      for (int i = 0; i < batch.numExamples(); i++) {
+        rows.add(batch.getFeatures().getRow(i).toString());
+      }
+      count += batch.numExamples();
+    }
+    Assert.assertFalse(it.hasNext());
+    Assert.assertEquals(data.numInstances(), count);
+    Assert.assertEquals(distinctRows(), rows);
+    it.shutdown();
+  }
+
+  /**
+   * Test that the label columns of image batches do not depend on the classes in the batch
+   */
+  @Test
+  public void testImageBatchMissingClasses() throws Exception {
+    Instances meta = DatasetLoader.loadMiniMnistMeta();
+    ImageInstanceIterator imageIterator = DatasetLoader.loadMiniMnistImageIterator();
+    DataSetIterator expected = imageIterator.getDataSetIterator(meta, SEED, BATCH_SIZE);
+    ParallelDataSetIterator actual =
+        new ParallelDataSetIterator(imageIterator, meta, SEED, BATCH_SIZE, 4, true);
+
+    boolean missingClass = false;
+    int offset = 0;
+    while (offset < meta.numInstances()) {
+      DataSet e = expected.next();
+      DataSet a = actual.next();
+      Assert.assertEquals(meta.numClasses(), a.getLabels().columns());
+      Assert.assertEquals(e.getLabels(), a.getLabels());
+      missingClass |= a.getLabels().sum(0).minNumber().doubleValue() == 0;
+      offset += a.numExamples();
+    }
+    Assert.assertTrue("No batch misses a class", missingClass);
+    actual.shutdown();
+  }
+
+  /**
+   * Get the distinct feature rows of the data.
+   */
+  private Set<String> distinctRows() throws Exception {
+    Set<String> rows = new HashSet<>();
+    DataSet all = new ParallelDataSetIterator(new DefaultInstanceIterator(), data, SEED,
+        data.numInstances(), 1, true).next();
+    for (int i = 0; i < all.numExamples(); i++) {
+      rows.add(all.getFeatures().getRow(i).toString());
+    }
+    return rows;
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * PersistentDataSetCacheTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.iterators.dataset;
+
+import java.io.File;
+import java.nio.file.Files;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.core.Instances;
+import weka.dl4j.iterators.dataset.cache.ContentHash;
+import weka.dl4j.iterators.dataset.cache.DataSetFile;
+import weka.dl4j.iterators.dataset.cache.PersistentDataSetCache;
+import weka.util.DatasetLoader;
+
+/**
+ * Test class for the {@link PersistentDataSetCache} and its file format.
+ */
+public class PersistentDataSetCacheTest {
+
+  /**
+   * Cache root directory
+   */
+  private File root;
+
+  @Before
+  public void before() throws Exception {
+    root = Files.createTempDirectory("dataset-cache").toFile();
+    root.deleteOnExit();
+  }
+
+  /**
+   * Test that datasets (with masks) are read back unchanged, with and without compression
+   */
+  @Test
+  public void testRoundTrip() throws Exception {
+    INDArray features = Nd4j.rand(3, 4, 5);
+    INDArray labels = Nd4j.rand(3, 2, 5);
+    INDArray mask = Nd4j.ones(3, 5);
+    DataSet ds = new DataSet(features, labels, mask, null);
+
+    for (boolean compress : new boolean[]{false, true}) {
+      File file = new File(root, "batch-" + compress);
+      DataSetFile.write(ds, file, compress);
+      DataSet read = DataSetFile.read(file);
+      Assert.assertEquals(features, read.getFeatures());
+      Assert.assertEquals(labels, read.getLabels());
+      Assert.assertEquals(mask, read.getFeaturesMaskArray());
+      Assert.assertNull(read.getLabelsMaskArray());
+      file.deleteOnExit();
+    }
+  }
+
+  /**
+   * Test that a completed entry is seen by another cache instance with the same key
+   */
+  @Test
+  public void testReuse() {
+    final DataSet ds = new DataSet(Nd4j.rand(2, 3), Nd4j.rand(2, 2));
+    PersistentDataSetCache first = new PersistentDataSetCache(root, "key", Long.MAX_VALUE, false);
+    Assert.assertFalse(first.isComplete("batches"));
+    first.put("0", ds);
+    first.setComplete("batches", true);
+
+    PersistentDataSetCache second = new PersistentDataSetCache(root, "key", Long.MAX_VALUE, false);
+    Assert.assertTrue(second.isComplete("batches"));
+    Assert.assertTrue(second.contains("0"));
+    Assert.assertEquals(ds.getFeatures(), second.get("0").getFeatures());
+    Assert.assertFalse(new PersistentDataSetCache(root, "other", Long.MAX_VALUE, false)
+        .isComplete("batches"));
+  }
+
+  /**
+   * Test that least recently used entries are evicted beyond the size limit
+   */
+  @Test
+  public void testEviction() throws Exception {
+    final DataSet ds = new DataSet(Nd4j.rand(100, 100), Nd4j.rand(100, 2));
+    PersistentDataSetCache old = new PersistentDataSetCache(root, "old", Long.MAX_VALUE, false);
+    old.put("0", ds);
+    old.setComplete("batches", true);
+    old.getEntry().setLastModified(
+        System.currentTimeMillis() - PersistentDataSetCache.IN_USE_MILLIS - 60000);
+
+    final long entrySize = new File(old.getEntry(), "0").length();
+    PersistentDataSetCache current = new PersistentDataSetCache(root, "new", entrySize + 1024,
+        false);
+    current.put("0", ds);
+    current.setComplete("batches", true);
+    Assert.assertFalse(old.getEntry().exists());
+    Assert.assertTrue(current.isComplete("batches"));
+  }
+
+  /**
+   * Test that entries used recently, e.g. by another fold or process, are not evicted
+   */
+  @Test
+  public void testNoEvictionOfEntriesInUse() throws Exception {
+    final DataSet ds = new DataSet(Nd4j.rand(100, 100), Nd4j.rand(100, 2));
+    PersistentDataSetCache used = new PersistentDataSetCache(root, "used", Long.MAX_VALUE, false);
+    used.put("0", ds);
+    used.setComplete("batches", true);
+    used.getEntry().setLastModified(
+        System.currentTimeMillis() - PersistentDataSetCache.IN_USE_MILLIS - 60000);
+    // Reading marks the entry as used again
+    PersistentDataSetCache reader = new PersistentDataSetCache(root, "used", Long.MAX_VALUE,
+        false);
+    Assert.assertEquals(ds.getFeatures(), reader.get("0").getFeatures());
+
+    final long entrySize = new File(used.getEntry(), "0").length();
+    PersistentDataSetCache current = new PersistentDataSetCache(root, "new", entrySize + 1024,
+        false);
+    current.put("0", ds);
+    current.setComplete("batches", true);
+    Assert.assertTrue(reader.isComplete("batches"));
+    Assert.assertEquals(ds.getFeatures(), reader.get("0").getFeatures());
+  }
+
+  /**
+   * Test that the content hash depends on the data
+   */
+  @Test
+  public void testContentHash() throws Exception {
+    Instances data = DatasetLoader.loadIris();
+    final String hash = new ContentHash().update(data).toHex();
+    Assert.assertEquals(hash, new ContentHash().update(new Instances(data)).toHex());
+    data.instance(0).setValue(0, data.instance(0).value(0) + 1);
+    Assert.assertNotEquals(hash, new ContentHash().update(data).toHex());
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * TieredDataSetCacheTest.java
+ * Copyright (C) 2017-2018 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.iterators.dataset;
+
+import java.io.File;
+import java.nio.file.Files;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.dl4j.iterators.dataset.cache.TieredDataSetCache;
+
+/**
+ * Test class for the {@link TieredDataSetCache}.
+ */
+public class TieredDataSetCacheTest {
+
+  /**
+   * Test that batches beyond the memory budget are spilled and read back unchanged
+   */
+  @Test
+  public void testSpill() throws Exception {
+    File dir = Files.createTempDirectory("tiered-cache").toFile();
+    dir.deleteOnExit();
+    DataSet[] batches = new DataSet[3];
+    for (int i = 0; i < batches.length; i++) {
+      batches[i] = new DataSet(Nd4j.rand(10, 7), Nd4j.rand(10, 3), Nd4j.ones(10, 1), null);
+    }
+
+    // Budget for a single batch (float features, labels and mask)
+    final long batchBytes = (10 * 7 + 10 * 3 + 10) * 4;
+    TieredDataSetCache cache = new TieredDataSetCache(batchBytes, dir);
+    for (int i = 0; i < batches.length; i++) {
+      cache.put(String.valueOf(i), batches[i]);
+    }
+    cache.setComplete("default", true);
+    Assert.assertTrue(cache.isComplete("default"));
+
+    for (int i = 0; i < batches.length; i++) {
+      Assert.assertTrue(cache.contains(String.valueOf(i)));
+      DataSet read = cache.get(String.valueOf(i));
+      Assert.assertEquals(batches[i].getFeatures(), read.getFeatures());
+      Assert.assertEquals(batches[i].getLabels(), read.getLabels());
+      Assert.assertEquals(batches[i].getFeaturesMaskArray(), read.getFeaturesMaskArray());
+    }
+
+    TieredDataSetCache.Statistics stats = cache.getStatistics();
+    Assert.assertEquals(1, stats.getMemoryBatches());
+    Assert.assertEquals(2, stats.getSpilledBatches());
+    Assert.assertEquals(1, stats.getMemoryHits());
+    Assert.assertEquals(2, stats.getSpillHits());
+
+    cache.close();
+    Assert.assertEquals(0, dir.listFiles().length);
+  }
+
+  /**
+   * Test that modifying a batch after putting it or after reading it from memory does not change
+   * the cached batch
+   */
+  @Test
+  public void testMemoryBatchesCopied() throws Exception {
+    File dir = Files.createTempDirectory("tiered-cache").toFile();
+    dir.deleteOnExit();
+    DataSet batch = new DataSet(Nd4j.rand(10, 7), Nd4j.rand(10, 3));
+    DataSet expected = batch.copy();
+    TieredDataSetCache cache = new TieredDataSetCache(Long.MAX_VALUE, dir);
+    cache.put("0", batch);
+    batch.getFeatures().addi(1);
+
+    for (int epoch = 0; epoch < 2; epoch++) {
+      DataSet read = cache.get("0");
+      Assert.assertEquals(expected.getFeatures(), read.getFeatures());
+      Assert.assertEquals(expected.getLabels(), read.getLabels());
+      // Normalize in place, as a preprocessor would
+      read.getFeatures().muli(2);
+    }
+    Assert.assertEquals(1, cache.getStatistics().getMemoryBatches());
+    cache.close();
+  }
+}
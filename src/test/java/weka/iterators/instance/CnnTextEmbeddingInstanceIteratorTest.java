@@ -20,6 +20,8 @@ package weka.iterators.instance;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
@@ -37,8 +39,10 @@ import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.InvalidInputDataException;
+import weka.dl4j.iterators.dataset.sequence.text.TokenIdCorpus;
 import weka.dl4j.iterators.instance.AbstractInstanceIterator;
 import weka.dl4j.iterators.instance.sequence.text.cnn.CnnTextEmbeddingInstanceIterator;
+import weka.dl4j.text.stopwords.Dl4jWordsFromFile;
 import weka.util.DatasetLoader;
 import weka.util.TestUtil;
 
@@ -206,4 +210,56 @@ public class CnnTextEmbeddingInstanceIteratorTest {
     }
     return count;
   }
+
+  /**
+   * Test that creating an iterator does not change the unknown word of the word vectors, which may
+   * be shared with other iterators
+   *
+   * @throws Exception IO error
+   */
+  @Test
+  public void testSharedWordVectorsUnchanged() throws Exception {
+    final Instances data = DatasetLoader.loadReutersMinimal();
+    cteii.initialize();
+    final String unknown = cteii.getWordVectors().getUNK();
+    cteii.getDataSetIterator(data, SEED, 4);
+    Assert.assertEquals(unknown, cteii.getWordVectors().getUNK());
+  }
+
+  /**
+   * Test that a stop word that is not in the vocabulary is removed instead of being mapped to the
+   * unknown word
+   *
+   * @throws Exception IO error
+   */
+  @Test
+  public void testUnknownStopwordRemoved() throws Exception {
+    final String stopword = "qzxvunknownstopword";
+    final File stopwordFile = File.createTempFile("stopwords", ".txt");
+    stopwordFile.deleteOnExit();
+    Files.write(stopwordFile.toPath(), Arrays.asList(stopword));
+    final Dl4jWordsFromFile stopwords = new Dl4jWordsFromFile();
+    stopwords.setStopwords(stopwordFile);
+    cteii.setStopwords(stopwords);
+    cteii.initialize();
+    Assert.assertFalse(cteii.getWordVectors().hasWord(stopword));
+
+    // Words that the tokenizer and the preprocessor keep as they are
+    final String[] words = Arrays.stream(
+        (String[]) cteii.getWordVectors().vocab().words().toArray(new String[0]))
+        .filter(w -> w.matches("[a-z]+")).limit(2).toArray(String[]::new);
+    final String first = words[0];
+    final String second = words[1];
+    final Instances data = new Instances(makeData(), 0, 2);
+    data.get(0).setValue(0, first + " " + stopword + " " + second);
+    data.get(1).setValue(0, first + " " + second);
+
+    final TokenIdCorpus corpus = cteii.getTokenIdCorpus(data);
+    Assert.assertEquals(2, corpus.length(0));
+    Assert.assertEquals(corpus.length(1), corpus.length(0));
+    for (int pos = 0; pos < corpus.length(0); pos++) {
+      Assert.assertNotEquals(TokenIdCorpus.UNKNOWN_ID, corpus.id(0, pos));
+      Assert.assertEquals(corpus.id(1, pos), corpus.id(0, pos));
+    }
+  }
 }
@@ -20,6 +20,7 @@ package weka.iterators.instance;
 
 import java.io.File;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -31,11 +32,14 @@ import org.junit.Before;
 import org.junit.Test;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.preprocessor.NormalizerStandardize;
 import weka.dl4j.Utils;
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.InvalidInputDataException;
+import weka.core.SerializedObject;
+import weka.dl4j.enums.ImageNormalization;
 import weka.dl4j.iterators.instance.ImageInstanceIterator;
 import weka.dl4j.zoo.Dl4jLeNet;
 import weka.dl4j.zoo.Dl4jResNet50;
@@ -180,6 +184,73 @@ public class ImageInstanceIteratorTest {
     }
   }
 
+  /**
+   * Test that standardization statistics are computed from a sample, saved to the normalizer file
+   * and loaded from it by a fresh iterator
+   *
+   * @throws Exception IO error.
+   */
+  @Test
+  public void testStandardizeWithNormalizerFile() throws Exception {
+    final Instances metaData = DatasetLoader.loadMiniMnistMeta();
+    final File file = File.createTempFile("normalizer", ".bin");
+    file.delete();
+    file.deleteOnExit();
+    this.idi.setNormalization(ImageNormalization.STANDARDIZE);
+    this.idi.setNormalizationSampleSize(20);
+    this.idi.setNormalizerFile(file);
+
+    final NormalizerStandardize fitted =
+        (NormalizerStandardize) this.idi.getNormalizer(metaData, SEED);
+    Assert.assertTrue(file.exists());
+    Assert.assertEquals(1, fitted.getMean().length());
+
+    ImageInstanceIterator other = new ImageInstanceIterator();
+    other.setImagesLocation(this.idi.getImagesLocation());
+    other.setNormalization(ImageNormalization.STANDARDIZE);
+    other.setNormalizerFile(file);
+    final NormalizerStandardize loaded =
+        (NormalizerStandardize) other.getNormalizer(metaData, SEED);
+    Assert.assertEquals(fitted.getMean(), loaded.getMean());
+    Assert.assertEquals(fitted.getStd(), loaded.getStd());
+  }
+
+  /**
+   * Test that batches read from the image cache equal the decoded batches, also when the cache is
+   * reused by a fresh iterator
+   *
+   * @throws Exception IO error.
+   */
+  @Test
+  public void testImageCache() throws Exception {
+    final Instances metaData = DatasetLoader.loadMiniMnistMeta();
+    final File cacheDir = Files.createTempDirectory("image-cache").toFile();
+    cacheDir.deleteOnExit();
+    final int batchSize = 7;
+    final DataSetIterator decoded = this.idi.getDataSetIterator(metaData, SEED, batchSize);
+
+    for (int run = 0; run < 2; run++) {
+      ImageInstanceIterator cached = new ImageInstanceIterator();
+      cached.setImagesLocation(this.idi.getImagesLocation());
+      cached.setNumChannels(1);
+      cached.setWidth(28);
+      cached.setHeight(28);
+      cached.setUseImageCache(true);
+      cached.setImageCacheDirectory(cacheDir);
+      final DataSetIterator it = cached.getDataSetIterator(metaData, SEED, batchSize);
+
+      decoded.reset();
+      while (decoded.hasNext()) {
+        Assert.assertTrue(it.hasNext());
+        final DataSet e = Utils.getNext(decoded);
+        final DataSet a = Utils.getNext(it);
+        Assert.assertEquals(e.getFeatures(), a.getFeatures());
+        Assert.assertEquals(e.getLabels(), a.getLabels());
+      }
+      Assert.assertFalse(it.hasNext());
+    }
+  }
+
   @Test
   public void Test_EnforceZooModelSize_Resnet50() {
     idi.enforceZooModelSize(new Dl4jResNet50());
@@ -217,4 +288,25 @@ public class ImageInstanceIteratorTest {
     }
     return count;
   }
+
+  /**
+   * Test that an iterator saved without the normalization and image cache settings, as by earlier
+   * versions, is restored with their defaults
+   */
+  @Test
+  public void testReadLegacyIterator() throws Exception {
+    idi.setNormalization(null);
+    idi.setNormalizationSampleSize(0);
+    idi.setNormalizerFile(null);
+    idi.setImageCacheDirectory(null);
+
+    ImageInstanceIterator restored =
+        (ImageInstanceIterator) new SerializedObject(idi).getObject();
+    Assert.assertEquals(ImageNormalization.SCALE, restored.getNormalization());
+    Assert.assertEquals(1000, restored.getNormalizationSampleSize());
+    Assert.assertFalse(Utils.notDefaultFileLocation(restored.getNormalizerFile()));
+    Assert.assertFalse(Utils.notDefaultFileLocation(restored.getImageCacheDirectory()));
+    Assert.assertEquals(idi.getImagesLocation(), restored.getImagesLocation());
+    Assert.assertEquals(28, restored.getHeight());
+  }
 }
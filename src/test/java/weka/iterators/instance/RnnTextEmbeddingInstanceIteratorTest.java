@@ -19,10 +19,14 @@
 package weka.iterators.instance;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
@@ -35,7 +39,9 @@ import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import weka.dl4j.Utils;
 import weka.core.Instances;
+import weka.dl4j.iterators.dataset.ParallelDataSetIterator;
 import weka.dl4j.iterators.instance.sequence.text.rnn.RnnTextEmbeddingInstanceIterator;
+import weka.dl4j.text.embeddings.WordVectorsRegistry;
 import weka.util.DatasetLoader;
 import weka.util.TestUtil;
 
@@ -120,6 +126,78 @@ public class RnnTextEmbeddingInstanceIteratorTest {
         });
   }
 
+  /**
+   * Test that batches built from the token id corpus, in memory and memory-mapped from a file,
+   * equal the batches of documents tokenized on each pass.
+   *
+   * @throws Exception IO error.
+   */
+  @Test
+  public void testTokenCache() throws Exception {
+    Instances data = DatasetLoader.loadReutersMinimal();
+    tii.setTruncateLength(50);
+    tii.setDoNotCacheTokens(true);
+    tii.initWordVectors();
+    final DataSetIterator tokenized = tii.getDataSetIterator(data, TestUtil.SEED, 4);
+
+    final File cacheDir = Files.createTempDirectory("token-cache").toFile();
+    cacheDir.deleteOnExit();
+    for (File dir : Arrays.asList(new File(Utils.defaultFileLocation()), cacheDir, cacheDir)) {
+      RnnTextEmbeddingInstanceIterator cached = new RnnTextEmbeddingInstanceIterator();
+      cached.setWordVectorLocation(tii.getWordVectorLocation());
+      cached.setWordVectors(tii.getWordVectors());
+      cached.setTruncateLength(50);
+      cached.setTokenCacheDirectory(dir);
+      final DataSetIterator it = cached.getDataSetIterator(data, TestUtil.SEED, 4);
+
+      // Iterate twice to check the reset
+      for (int epoch = 0; epoch < 2; epoch++) {
+        tokenized.reset();
+        it.reset();
+        while (tokenized.hasNext()) {
+          assertTrue(it.hasNext());
+          final DataSet expected = tokenized.next();
+          final DataSet actual = it.next();
+          assertEquals(expected.getFeatures(), actual.getFeatures());
+          assertEquals(expected.getLabels(), actual.getLabels());
+          assertEquals(expected.getFeaturesMaskArray(), actual.getFeaturesMaskArray());
+        }
+        assertFalse(it.hasNext());
+      }
+    }
+    assertEquals(1, cacheDir.listFiles().length);
+  }
+
+  /**
+   * Test that parallel batches select their documents from a single token id corpus of all rows and
+   * equal the sequential batches.
+   *
+   * @throws Exception IO error.
+   */
+  @Test
+  public void testParallelBatchesFromCorpus() throws Exception {
+    Instances data = DatasetLoader.loadReutersMinimal();
+    tii.setTruncateLength(50);
+    final File cacheDir = Files.createTempDirectory("token-cache").toFile();
+    cacheDir.deleteOnExit();
+    tii.setTokenCacheDirectory(cacheDir);
+    final DataSetIterator sequential = tii.getDataSetIterator(data, TestUtil.SEED, 4);
+    final ParallelDataSetIterator parallel =
+        new ParallelDataSetIterator(tii, data, TestUtil.SEED, 4, 2, true);
+
+    int offset = 0;
+    while (offset < data.numInstances()) {
+      final DataSet expected = sequential.next();
+      final DataSet actual = parallel.next();
+      assertEquals(expected.getFeatures(), actual.getFeatures());
+      assertEquals(expected.getLabels(), actual.getLabels());
+      assertEquals(expected.getFeaturesMaskArray(), actual.getFeaturesMaskArray());
+      offset += actual.numExamples();
+    }
+    parallel.shutdown();
+    assertEquals(1, cacheDir.listFiles().length);
+  }
+
   /**
    * Test different word vector formats crafted by hand.
    */
@@ -145,4 +223,37 @@ public class RnnTextEmbeddingInstanceIteratorTest {
       assertTrue(ws.containsAll(words) && words.containsAll(ws));
     }
   }
+
+  /**
+   * Test that iterators of the same word vector file share the loaded word vectors and that they
+   * are dropped from the registry when the last iterator releases them.
+   */
+  @Test
+  public void testSharedWordVectors() throws IOException {
+    // A copy, so that the file is not registered by other tests
+    final File f = Files.createTempFile("shared-emb", ".csv").toFile();
+    f.deleteOnExit();
+    Files.copy(new File("src/test/resources/embeddings/small/comma-sep-emb.csv").toPath(),
+        f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    final long loads = WordVectorsRegistry.getStats().getNumLoads();
+    final long hits = WordVectorsRegistry.getStats().getNumHits();
+    final int entries = WordVectorsRegistry.getStats().getNumEntries();
+
+    RnnTextEmbeddingInstanceIterator first = new RnnTextEmbeddingInstanceIterator();
+    first.setWordVectorLocation(f);
+    first.initialize();
+    RnnTextEmbeddingInstanceIterator second = new RnnTextEmbeddingInstanceIterator();
+    second.setWordVectorLocation(new File(f.getAbsolutePath()));
+    second.initialize();
+
+    assertSame(first.getWordVectors(), second.getWordVectors());
+    assertEquals(loads + 1, WordVectorsRegistry.getStats().getNumLoads());
+    assertEquals(hits + 1, WordVectorsRegistry.getStats().getNumHits());
+    assertEquals(entries + 1, WordVectorsRegistry.getStats().getNumEntries());
+
+    first.setWordVectors(null);
+    assertEquals(entries + 1, WordVectorsRegistry.getStats().getNumEntries());
+    second.setWordVectors(null);
+    assertEquals(entries, WordVectorsRegistry.getStats().getNumEntries());
+  }
 }
@@ -39,10 +39,19 @@ import org.slf4j.LoggerFactory;
 import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
 import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.classifiers.functions.RnnSequenceClassifier;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.TestInstances;
+import weka.dl4j.activations.ActivationIdentity;
+import weka.dl4j.activations.ActivationTanH;
 import weka.dl4j.iterators.instance.AbstractInstanceIterator;
+import weka.dl4j.iterators.instance.sequence.text.rnn.RnnTextEmbeddingInstanceIterator;
+import weka.dl4j.layers.DenseLayer;
+import weka.dl4j.layers.LSTM;
+import weka.dl4j.layers.OutputLayer;
+import weka.dl4j.layers.RnnOutputLayer;
+import weka.dl4j.lossfunctions.LossMSE;
 import weka.filters.Filter;
 import weka.filters.unsupervised.instance.Randomize;
 import weka.filters.unsupervised.instance.RemovePercentage;
@@ -205,6 +214,52 @@ public class TestUtil {
     return res;
   }
 
+  /**
+   * Train a small MLP (a dense layer with 8 outputs and an output layer) on the iris data.
+   *
+   * @return Trained classifier
+   * @throws Exception Could not load the data or build the classifier
+   */
+  public static Dl4jMlpClassifier trainedIrisMlp() throws Exception {
+    Dl4jMlpClassifier clf = new Dl4jMlpClassifier();
+    clf.setSeed(SEED);
+    clf.setNumEpochs(DEFAULT_NUM_EPOCHS);
+    DenseLayer dense = new DenseLayer();
+    dense.setNOut(8);
+    clf.setLayers(dense, new OutputLayer());
+    clf.buildClassifier(DatasetLoader.loadIris());
+    return clf;
+  }
+
+  /**
+   * Train a small LSTM regression model (an LSTM with 3 outputs and an RNN output layer) on the
+   * anger tweets, embedded with the slim Google News vectors.
+   *
+   * @return Trained classifier
+   * @throws Exception Could not load the data or build the classifier
+   */
+  public static RnnSequenceClassifier trainedAngerRnn() throws Exception {
+    RnnTextEmbeddingInstanceIterator iterator = new RnnTextEmbeddingInstanceIterator();
+    iterator.setWordVectorLocation(DatasetLoader.loadGoogleNewsVectors());
+    iterator.setTruncateLength(10);
+    iterator.setTrainBatchSize(DEFAULT_BATCHSIZE);
+
+    LSTM lstm = new LSTM();
+    lstm.setNOut(3);
+    lstm.setActivationFunction(new ActivationTanH());
+    RnnOutputLayer rnnOut = new RnnOutputLayer();
+    rnnOut.setLossFn(new LossMSE());
+    rnnOut.setActivationFunction(new ActivationIdentity());
+
+    RnnSequenceClassifier clf = new RnnSequenceClassifier();
+    clf.setSeed(SEED);
+    clf.setNumEpochs(DEFAULT_NUM_EPOCHS);
+    clf.setInstanceIterator(iterator);
+    clf.setLayers(lstm, rnnOut);
+    clf.buildClassifier(DatasetLoader.loadAnger());
+    return clf;
+  }
+
 //  /**
 //   * Enables the UIServer at http://localhost:9000/train
 //   *